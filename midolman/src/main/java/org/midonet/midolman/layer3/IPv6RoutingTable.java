@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+/**
+ * An IPv6 routing table, implemented as a path-compressed binary trie over
+ * the 128-bit destination prefixes. Each node only exists if it holds routes
+ * or branches, so a lookup visits at most one node per distinct prefix length
+ * along the path to the destination.
+ *
+ * Since the Route class only stores IPv4 prefixes, the IPv6 prefixes of a
+ * route are given when it is added. Routes added with addRoute(Route) match
+ * their IPv4 prefixes as IPv4-mapped IPv6 addresses (::ffff:0:0/96).
+ *
+ * Like the IPv4 routing table, this class is not thread-safe for writers.
+ */
+public class IPv6RoutingTable implements RoutingTableIfc<IPv6Addr> {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final long IPV4_MAPPED_UPPER = 0L;
+    private static final long IPV4_MAPPED_LOWER = 0xffffL << 32;
+
+    private static final class Entry {
+        final Route route;
+        final long srcUpper;
+        final long srcLower;
+        final int srcLength;
+
+        Entry(Route route, long srcUpper, long srcLower, int srcLength) {
+            this.route = route;
+            this.srcUpper = srcUpper;
+            this.srcLower = srcLower;
+            this.srcLength = srcLength;
+        }
+    }
+
+    private static final class Node {
+        Node parent;
+        Node left;
+        Node right;
+        final long upper;
+        final long lower;
+        final int length;
+        final List<Entry> entries = new ArrayList<>(1);
+        // The minimum-weight routes, when none of the routes filters by
+        // source, or null otherwise.
+        List<Route> best;
+
+        Node(Node parent, long upper, long lower, int length) {
+            this.parent = parent;
+            this.upper = maskUpper(upper, length);
+            this.lower = maskLower(lower, length);
+            this.length = length;
+        }
+
+        void update() {
+            best = null;
+            if (entries.isEmpty())
+                return;
+            int minWeight = Integer.MAX_VALUE;
+            for (Entry e : entries) {
+                if (e.srcLength != 0)
+                    return;
+                minWeight = Math.min(minWeight, e.route.weight);
+            }
+            List<Route> routes = new ArrayList<>();
+            for (Entry e : entries) {
+                if (e.route.weight == minWeight)
+                    routes.add(e.route);
+            }
+            best = Collections.unmodifiableList(routes);
+        }
+    }
+
+    private Node root;
+    private int numRoutes = 0;
+
+    static long maskUpper(long upper, int length) {
+        if (length >= 64) return upper;
+        if (length == 0) return 0L;
+        return upper & (~0L << (64 - length));
+    }
+
+    static long maskLower(long lower, int length) {
+        if (length <= 64) return 0L;
+        return lower & (~0L << (128 - length));
+    }
+
+    static boolean matches(long upper, long lower, long prefixUpper,
+                           long prefixLower, int length) {
+        return maskUpper(upper ^ prefixUpper, length) == 0L &&
+               maskLower(lower ^ prefixLower, length) == 0L;
+    }
+
+    private static int bitAt(long upper, long lower, int index) {
+        return index < 64 ? (int) (upper >>> (63 - index)) & 1
+                          : (int) (lower >>> (127 - index)) & 1;
+    }
+
+    private static int firstDifference(long upper1, long lower1,
+                                       long upper2, long lower2) {
+        long diff = upper1 ^ upper2;
+        if (diff != 0L)
+            return Long.numberOfLeadingZeros(diff);
+        return 64 + Long.numberOfLeadingZeros(lower1 ^ lower2);
+    }
+
+    public int numRoutes() {
+        return numRoutes;
+    }
+
+    /**
+     * Adds a route for its IPv4 prefixes, mapped into the IPv4-mapped IPv6
+     * address space.
+     */
+    @Override
+    public void addRoute(Route rt) {
+        addRoute(rt, IPV4_MAPPED_UPPER,
+                 IPV4_MAPPED_LOWER | (rt.srcNetworkAddr & 0xffffffffL),
+                 rt.srcNetworkLength == 0 ? 0 : 96 + rt.srcNetworkLength,
+                 IPV4_MAPPED_UPPER,
+                 IPV4_MAPPED_LOWER | (rt.dstNetworkAddr & 0xffffffffL),
+                 96 + rt.dstNetworkLength);
+    }
+
+    public void addRoute(Route rt, IPv6Subnet src, IPv6Subnet dst) {
+        addRoute(rt, src.getAddress().upperWord(), src.getAddress().lowerWord(),
+                 src.getPrefixLen(), dst.getAddress().upperWord(),
+                 dst.getAddress().lowerWord(), dst.getPrefixLen());
+    }
+
+    private void addRoute(Route rt, long srcUpper, long srcLower, int srcLength,
+                          long dstUpper, long dstLower, int dstLength) {
+        log.debug("addRoute: {}", rt);
+        numRoutes++;
+        Entry entry = new Entry(rt, srcUpper, srcLower, srcLength);
+
+        Node parent = null;
+        boolean inLeftChild = false;
+        Node node = root;
+        while (node != null && dstLength >= node.length &&
+               matches(dstUpper, dstLower, node.upper, node.lower,
+                       node.length)) {
+            if (dstLength == node.length) {
+                node.entries.add(entry);
+                node.update();
+                return;
+            }
+            inLeftChild = bitAt(dstUpper, dstLower, node.length) == 0;
+            parent = node;
+            node = inLeftChild ? node.left : node.right;
+        }
+
+        Node newNode = new Node(parent, dstUpper, dstLower, dstLength);
+        newNode.entries.add(entry);
+        newNode.update();
+        if (node != null) {
+            int diff = firstDifference(node.upper, node.lower,
+                                       newNode.upper, newNode.lower);
+            if (diff < node.length && diff < dstLength) {
+                // Branch both nodes from a new node at the first difference.
+                Node branch = new Node(parent, dstUpper, dstLower, diff);
+                if (bitAt(dstUpper, dstLower, diff) == 0) {
+                    branch.left = newNode;
+                    branch.right = node;
+                } else {
+                    branch.left = node;
+                    branch.right = newNode;
+                }
+                node.parent = branch;
+                newNode.parent = branch;
+                newNode = branch;
+            } else {
+                // The new node is a prefix of the existing one.
+                if (bitAt(node.upper, node.lower, dstLength) == 0)
+                    newNode.left = node;
+                else
+                    newNode.right = node;
+                node.parent = newNode;
+            }
+        }
+        replaceChild(parent, inLeftChild, newNode);
+    }
+
+    public void deleteRoute(Route rt, IPv6Subnet dst) {
+        deleteRoute(rt, dst.getAddress().upperWord(),
+                    dst.getAddress().lowerWord(), dst.getPrefixLen());
+    }
+
+    public void deleteRoute(Route rt) {
+        deleteRoute(rt, IPV4_MAPPED_UPPER,
+                    IPV4_MAPPED_LOWER | (rt.dstNetworkAddr & 0xffffffffL),
+                    96 + rt.dstNetworkLength);
+    }
+
+    private void deleteRoute(Route rt, long dstUpper, long dstLower,
+                             int dstLength) {
+        log.debug("deleteRoute: {}", rt);
+        Node node = root;
+        while (node != null && dstLength >= node.length &&
+               matches(dstUpper, dstLower, node.upper, node.lower,
+                       node.length)) {
+            if (dstLength == node.length) {
+                for (int i = 0; i < node.entries.size(); i++) {
+                    if (node.entries.get(i).route.equals(rt)) {
+                        node.entries.remove(i);
+                        numRoutes--;
+                        node.update();
+                        compact(node);
+                        return;
+                    }
+                }
+                return;
+            }
+            node = bitAt(dstUpper, dstLower, node.length) == 0 ? node.left
+                                                               : node.right;
+        }
+    }
+
+    /** Removes empty nodes with less than two children, up to the root. */
+    private void compact(Node node) {
+        while (node != null && node.entries.isEmpty() &&
+               (node.left == null || node.right == null)) {
+            Node child = node.left != null ? node.left : node.right;
+            Node parent = node.parent;
+            if (child != null)
+                child.parent = parent;
+            replaceChild(parent, parent != null && parent.left == node, child);
+            node = parent;
+        }
+    }
+
+    private void replaceChild(Node parent, boolean left, Node child) {
+        if (parent == null)
+            root = child;
+        else if (left)
+            parent.left = child;
+        else
+            parent.right = child;
+    }
+
+    @Override
+    public List<Route> lookup(IPv6Addr src, IPv6Addr dst) {
+        return lookup(src, dst, log);
+    }
+
+    /**
+     * Returns the routes with the minimum weight among those with the longest
+     * destination prefix that match the source address. The returned list
+     * must not be modified.
+     */
+    @Override
+    public List<Route> lookup(IPv6Addr src, IPv6Addr dst, Logger logger) {
+        long dstUpper = dst.upperWord();
+        long dstLower = dst.lowerWord();
+        Node match = null;
+        Node node = root;
+        while (node != null && matches(dstUpper, dstLower, node.upper,
+                                       node.lower, node.length)) {
+            match = node;
+            if (node.length == 128)
+                break;
+            node = bitAt(dstUpper, dstLower, node.length) == 0 ? node.left
+                                                               : node.right;
+        }
+
+        List<Route> ret = Collections.emptyList();
+        while (match != null) {
+            if (match.best != null) {
+                ret = match.best;
+                break;
+            }
+            List<Route> routes = matching(match, src);
+            if (routes != null) {
+                ret = routes;
+                break;
+            }
+            match = match.parent;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("lookup: return {} for src {} dst {}", ret, src, dst);
+        }
+        return ret;
+    }
+
+    private static List<Route> matching(Node node, IPv6Addr src) {
+        long srcUpper = src.upperWord();
+        long srcLower = src.lowerWord();
+        List<Route> ret = null;
+        int minWeight = Integer.MAX_VALUE;
+        for (int i = 0; i < node.entries.size(); i++) {
+            Entry e = node.entries.get(i);
+            if (!matches(srcUpper, srcLower, e.srcUpper, e.srcLower,
+                         e.srcLength))
+                continue;
+            if (ret == null)
+                ret = new ArrayList<>(2);
+            if (e.route.weight < minWeight) {
+                ret.clear();
+                ret.add(e.route);
+                minWeight = e.route.weight;
+            } else if (e.route.weight == minWeight) {
+                ret.add(e.route);
+            }
+        }
+        return ret;
+    }
+}
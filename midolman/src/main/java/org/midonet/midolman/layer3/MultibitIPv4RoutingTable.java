@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * An immutable IPv4 routing table backed by a multibit trie with a fixed
+ * stride of 8 bits and leaf pushing: a lookup reads at most four array cells,
+ * one per byte of the destination address, without following object
+ * references.
+ *
+ * The routes with the same destination prefix form a group. Every leaf of the
+ * trie stores the most specific group covering its address range, and every
+ * group links to the next less specific one, which is where the lookup
+ * continues when none of the routes in a group match the source address.
+ * For groups whose routes do not filter by source, the minimum-weight ECMP
+ * set is computed when the table is built and returned as is, such that the
+ * lookup does not allocate.
+ *
+ * The table is rebuilt when routes are added, and the lookups are lock-free.
+ * Create the table with all its routes at once whenever possible.
+ */
+public class MultibitIPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final int STRIDE = 8;
+    private static final int CHUNK_SIZE = 1 << STRIDE;
+    private static final int EMPTY = 0;
+
+    private static final Comparator<Route> PREFIX_LENGTH =
+        new Comparator<Route>() {
+            @Override
+            public int compare(Route r1, Route r2) {
+                return Integer.compare(r1.dstNetworkLength,
+                                       r2.dstNetworkLength);
+            }
+        };
+
+    /**
+     * The compiled table. A cell of the trie holds either the index of a
+     * group plus one, EMPTY, or the bitwise complement of the offset of a
+     * child chunk.
+     */
+    private static final class Snapshot {
+        final Route[] allRoutes;
+        final int[] trie;
+
+        final int[] groupParent;
+        final int[] groupStart;
+        final int[] groupEnd;
+        final List<Route>[] groupBest;
+
+        final int[] srcAddr;
+        final int[] srcLength;
+        final int[] weight;
+        final Route[] routes;
+
+        @SuppressWarnings("unchecked")
+        Snapshot(Route[] allRoutes) {
+            this.allRoutes = allRoutes;
+
+            Route[] sorted = Arrays.copyOf(allRoutes, allRoutes.length);
+            Arrays.sort(sorted, PREFIX_LENGTH);
+
+            // Group the routes by destination prefix, in increasing order of
+            // prefix length.
+            Map<Long, List<Route>> groups = new HashMap<>();
+            List<List<Route>> ordered = new ArrayList<>();
+            for (Route rt : sorted) {
+                int dst = mask(rt.dstNetworkAddr, rt.dstNetworkLength);
+                Long key = ((long) rt.dstNetworkLength << 32) |
+                           (dst & 0xFFFFFFFFL);
+                List<Route> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(key, group);
+                    ordered.add(group);
+                }
+                if (!group.contains(rt))
+                    group.add(rt);
+            }
+
+            int numGroups = ordered.size();
+            groupParent = new int[numGroups];
+            groupStart = new int[numGroups];
+            groupEnd = new int[numGroups];
+            groupBest = new List[numGroups];
+
+            int numRoutes = 0;
+            for (List<Route> group : ordered)
+                numRoutes += group.size();
+            srcAddr = new int[numRoutes];
+            srcLength = new int[numRoutes];
+            weight = new int[numRoutes];
+            routes = new Route[numRoutes];
+
+            Builder builder = new Builder();
+            int r = 0;
+            for (int g = 0; g < numGroups; g++) {
+                List<Route> group = ordered.get(g);
+                Route first = group.get(0);
+                int dst = mask(first.dstNetworkAddr, first.dstNetworkLength);
+
+                // Groups are inserted from the least to the most specific, so
+                // the current leaf for the prefix is the closest ancestor.
+                groupParent[g] = builder.lookup(dst) - 1;
+                builder.insert(dst, first.dstNetworkLength, g + 1);
+
+                groupStart[g] = r;
+                boolean anySource = true;
+                for (Route rt : group) {
+                    srcAddr[r] = rt.srcNetworkAddr;
+                    srcLength[r] = rt.srcNetworkLength;
+                    weight[r] = rt.weight;
+                    routes[r] = rt;
+                    anySource &= rt.srcNetworkLength == 0;
+                    r++;
+                }
+                groupEnd[g] = r;
+                if (anySource)
+                    groupBest[g] = bestOf(group);
+            }
+            trie = builder.build();
+        }
+
+        List<Route> lookup(int src, int dst) {
+            int[] trie = this.trie;
+            int cell = trie[dst >>> 24];
+            int shift = 24;
+            while (cell < 0) {
+                shift -= STRIDE;
+                cell = trie[~cell + ((dst >>> shift) & (CHUNK_SIZE - 1))];
+            }
+
+            int group = cell - 1;
+            while (group >= 0) {
+                List<Route> best = groupBest[group];
+                if (best != null)
+                    return best;
+                best = matching(group, src);
+                if (best != null)
+                    return best;
+                group = groupParent[group];
+            }
+            return Collections.emptyList();
+        }
+
+        private List<Route> matching(int group, int src) {
+            int minWeight = Integer.MAX_VALUE;
+            int count = 0;
+            for (int i = groupStart[group]; i < groupEnd[group]; i++) {
+                if (IPv4Subnet.addrMatch(src, srcAddr[i], srcLength[i])) {
+                    if (weight[i] < minWeight) {
+                        minWeight = weight[i];
+                        count = 1;
+                    } else if (weight[i] == minWeight) {
+                        count++;
+                    }
+                }
+            }
+            if (count == 0)
+                return null;
+
+            List<Route> ret = new ArrayList<>(count);
+            for (int i = groupStart[group]; i < groupEnd[group]; i++) {
+                if (weight[i] == minWeight &&
+                    IPv4Subnet.addrMatch(src, srcAddr[i], srcLength[i]))
+                    ret.add(routes[i]);
+            }
+            return ret;
+        }
+
+        private static List<Route> bestOf(List<Route> group) {
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : group)
+                minWeight = Math.min(minWeight, rt.weight);
+            List<Route> best = new ArrayList<>();
+            for (Route rt : group) {
+                if (rt.weight == minWeight)
+                    best.add(rt);
+            }
+            return Collections.unmodifiableList(best);
+        }
+    }
+
+    /**
+     * Builds the trie array. Prefixes must be inserted in increasing order of
+     * length, so that a leaf never needs to be pushed below an existing child
+     * chunk.
+     */
+    private static final class Builder {
+        private int[] trie = new int[CHUNK_SIZE];
+        private int size = CHUNK_SIZE;
+
+        int lookup(int dst) {
+            int cell = trie[dst >>> 24];
+            int shift = 24;
+            while (cell < 0) {
+                shift -= STRIDE;
+                cell = trie[~cell + ((dst >>> shift) & (CHUNK_SIZE - 1))];
+            }
+            return cell;
+        }
+
+        void insert(int dst, int length, int value) {
+            int base = 0;
+            int shift = 24;
+            while (length > 32 - shift) {
+                int index = base + ((dst >>> shift) & (CHUNK_SIZE - 1));
+                int cell = trie[index];
+                if (cell >= 0) {
+                    int child = allocate(cell);
+                    trie[index] = ~child;
+                    base = child;
+                } else {
+                    base = ~cell;
+                }
+                shift -= STRIDE;
+            }
+            int span = 1 << (32 - shift - length);
+            int start = base + (((dst >>> shift) & (CHUNK_SIZE - 1)) & -span);
+            Arrays.fill(trie, start, start + span, value);
+        }
+
+        private int allocate(int fill) {
+            if (size + CHUNK_SIZE > trie.length)
+                trie = Arrays.copyOf(trie, trie.length * 2);
+            int chunk = size;
+            size += CHUNK_SIZE;
+            Arrays.fill(trie, chunk, size, fill);
+            return chunk;
+        }
+
+        int[] build() {
+            return Arrays.copyOf(trie, size);
+        }
+    }
+
+    private static int mask(int addr, int length) {
+        return length == 0 ? 0 : addr & (~0 << (32 - length));
+    }
+
+    private volatile Snapshot snapshot;
+
+    public MultibitIPv4RoutingTable() {
+        this(Collections.<Route>emptyList());
+    }
+
+    public MultibitIPv4RoutingTable(Collection<Route> routes) {
+        snapshot = new Snapshot(routes.toArray(new Route[routes.size()]));
+    }
+
+    /**
+     * Adds a route by rebuilding the table, which is linear in the number of
+     * routes. Not thread-safe with respect to other writers.
+     */
+    @Override
+    public void addRoute(Route rt) {
+        Route[] current = snapshot.allRoutes;
+        Route[] routes = Arrays.copyOf(current, current.length + 1);
+        routes[current.length] = rt;
+        snapshot = new Snapshot(routes);
+    }
+
+    public int numRoutes() {
+        return snapshot.allRoutes.length;
+    }
+
+    @Override
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt(), log);
+    }
+
+    @Override
+    public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
+        return lookup(src.toInt(), dst.toInt(), logger);
+    }
+
+    /**
+     * Returns the routes with the minimum weight among those with the longest
+     * destination prefix that match the source address. The returned list
+     * must not be modified.
+     */
+    public List<Route> lookup(int src, int dst, Logger logger) {
+        List<Route> ret = snapshot.lookup(src, dst);
+        if (logger.isDebugEnabled()) {
+            logger.debug("lookup: return {} for src {} dst {}", ret,
+                         IPv4Addr.intToString(src), IPv4Addr.intToString(dst));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.midonet.odp.FlowMatch;
+
+/**
+ * A classifier compiled from the rules of a chain, which tells which rules
+ * may match a packet without evaluating their conditions.
+ *
+ * The classifier is a decision tree over three primitive fields of the flow
+ * match: the ether type, the network protocol and the transport destination
+ * port, where the last level splits the port space in the intervals delimited
+ * by the port ranges of the rules. Every leaf is a bitset with the rules whose
+ * conditions are compatible with the path to the leaf, such that a chain only
+ * needs to evaluate the conditions of the rules in the bitset.
+ *
+ * Only the non-inverted fields of non-inverted conditions are used to build
+ * the tree: the rules with any other condition are candidates for every
+ * packet, except those with the FALSE condition, which never are. The rules
+ * matching the forward or return flows are always candidates as well, because
+ * evaluating their condition tracks the connection of the packet.
+ *
+ * The classifier is immutable and may be shared by the simulation threads.
+ */
+public final class RuleClassifier {
+
+    /** Chains with fewer rules are evaluated linearly. */
+    public static final int MIN_RULES = 16;
+
+    /** The maximum number of bitset words of a classifier. */
+    public static final int MAX_WORDS = 1 << 18;
+
+    public static final int ETHER_TYPE = 1;
+    public static final int NW_PROTO = 1 << 1;
+    public static final int TP_DST = 1 << 2;
+
+    private static final class ProtoNode {
+        final int[] protos;
+        final PortNode[] nodes;
+
+        ProtoNode(int[] protos, PortNode[] nodes) {
+            this.protos = protos;
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class PortNode {
+        final long[] bounds;
+        final long[][] leaves;
+
+        PortNode(long[] bounds, long[][] leaves) {
+            this.bounds = bounds;
+            this.leaves = leaves;
+        }
+    }
+
+    /** The primitive form of the rule conditions used to build the tree. */
+    private static final class Rules {
+        final int size;
+        final int words;
+        final boolean[] never;
+        final int[] fields;
+        final int[] etherType;
+        final int[] nwProto;
+        final long[] tpDstStart;
+        final long[] tpDstEnd;
+        int totalWords = 0;
+
+        Rules(List<Rule> rules) {
+            size = rules.size();
+            words = (size + 63) >>> 6;
+            never = new boolean[size];
+            fields = new int[size];
+            etherType = new int[size];
+            nwProto = new int[size];
+            tpDstStart = new long[size];
+            tpDstEnd = new long[size];
+
+            for (int i = 0; i < size; i++) {
+                Condition c = rules.get(i).getCondition();
+                if (c == Condition.FALSE) {
+                    never[i] = true;
+                } else if (c != null && !c.conjunctionInv &&
+                           !c.matchForwardFlow && !c.matchReturnFlow) {
+                    if (c.etherType != null && !c.invDlType) {
+                        fields[i] |= ETHER_TYPE;
+                        etherType[i] = Condition.unsignShort(c.etherType);
+                    }
+                    if (c.nwProto != null && !c.nwProtoInv) {
+                        fields[i] |= NW_PROTO;
+                        nwProto[i] = c.nwProto & 0xff;
+                    }
+                    if (c.tpDst != null && !c.tpDstInv) {
+                        fields[i] |= TP_DST;
+                        tpDstStart[i] = c.tpDst.start() == null
+                                        ? Long.MIN_VALUE : c.tpDst.start();
+                        tpDstEnd[i] = c.tpDst.end() == null
+                                      ? Long.MAX_VALUE : c.tpDst.end();
+                    }
+                }
+            }
+        }
+    }
+
+    private final int[] fields;
+    private final int[] etherTypes;
+    private final ProtoNode[] etherNodes;
+
+    private RuleClassifier(int[] fields, int[] etherTypes,
+                           ProtoNode[] etherNodes) {
+        this.fields = fields;
+        this.etherTypes = etherTypes;
+        this.etherNodes = etherNodes;
+    }
+
+    /**
+     * Compiles the classifier for the given rules. Returns null when the
+     * rules are better evaluated linearly, because there are only a few of
+     * them or because the classifier would exceed its maximum size.
+     */
+    public static RuleClassifier compile(List<Rule> rules) {
+        if (rules.size() < MIN_RULES)
+            return null;
+
+        Rules r = new Rules(rules);
+        List<Integer> all = new ArrayList<>(r.size);
+        for (int i = 0; i < r.size; i++) {
+            if (!r.never[i])
+                all.add(i);
+        }
+
+        int[] etherTypes = distinct(r, all, ETHER_TYPE, r.etherType);
+        ProtoNode[] etherNodes = new ProtoNode[etherTypes.length + 1];
+        for (int e = 0; e <= etherTypes.length; e++) {
+            List<Integer> s1 = select(r, all, ETHER_TYPE, r.etherType,
+                                      etherTypes, e);
+            int[] protos = distinct(r, s1, NW_PROTO, r.nwProto);
+            PortNode[] protoNodes = new PortNode[protos.length + 1];
+            for (int p = 0; p <= protos.length; p++) {
+                List<Integer> s2 = select(r, s1, NW_PROTO, r.nwProto,
+                                          protos, p);
+                protoNodes[p] = buildPortNode(r, s2);
+                if (r.totalWords > MAX_WORDS)
+                    return null;
+            }
+            etherNodes[e] = new ProtoNode(protos, protoNodes);
+        }
+        return new RuleClassifier(r.fields, etherTypes, etherNodes);
+    }
+
+    private static int[] distinct(Rules r, List<Integer> rules, int field,
+                                  int[] values) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for (int i : rules) {
+            if ((r.fields[i] & field) != 0)
+                set.add(values[i]);
+        }
+        int[] result = new int[set.size()];
+        int index = 0;
+        for (int value : set)
+            result[index++] = value;
+        return result;
+    }
+
+    /**
+     * Selects the rules compatible with the branch at the given index, where
+     * the last branch stands for the values not used by any rule.
+     */
+    private static List<Integer> select(Rules r, List<Integer> rules,
+                                        int field, int[] values,
+                                        int[] branches, int branch) {
+        List<Integer> result = new ArrayList<>(rules.size());
+        for (int i : rules) {
+            if ((r.fields[i] & field) == 0 ||
+                (branch < branches.length && values[i] == branches[branch]))
+                result.add(i);
+        }
+        return result;
+    }
+
+    private static PortNode buildPortNode(Rules r, List<Integer> rules) {
+        TreeSet<Long> set = new TreeSet<>();
+        for (int i : rules) {
+            if ((r.fields[i] & TP_DST) != 0) {
+                if (r.tpDstStart[i] != Long.MIN_VALUE)
+                    set.add(r.tpDstStart[i]);
+                if (r.tpDstEnd[i] != Long.MAX_VALUE)
+                    set.add(r.tpDstEnd[i] + 1);
+            }
+        }
+        long[] bounds = new long[set.size()];
+        int index = 0;
+        for (long bound : set)
+            bounds[index++] = bound;
+
+        // Every interval is either contained in the range of a rule or
+        // disjoint from it, so testing the lower bound of the interval is
+        // enough.
+        long[][] leaves = new long[bounds.length + 1][];
+        for (int n = 0; n <= bounds.length; n++) {
+            long lower = n == 0 ? Long.MIN_VALUE : bounds[n - 1];
+            long[] leaf = new long[r.words];
+            for (int i : rules) {
+                if ((r.fields[i] & TP_DST) == 0 ||
+                    (r.tpDstStart[i] <= lower && lower <= r.tpDstEnd[i]))
+                    leaf[i >>> 6] |= 1L << i;
+            }
+            leaves[n] = leaf;
+        }
+        r.totalWords += leaves.length * r.words;
+        return new PortNode(bounds, leaves);
+    }
+
+    private static int branch(int[] values, int value) {
+        int index = Arrays.binarySearch(values, value);
+        return index >= 0 ? index : values.length;
+    }
+
+    private static int interval(long[] bounds, int port) {
+        int index = Arrays.binarySearch(bounds, port);
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+
+    /**
+     * Returns the bitset of the rules that may match the given flow match.
+     * This method does not mark the fields of the match as seen: for every
+     * rule that is skipped, the caller must mark the fields returned by
+     * fields(int) with markSeen(FlowMatch, int).
+     */
+    public long[] candidates(FlowMatch match) {
+        match.doNotTrackSeenFields();
+        int etherType = match.getEtherType() & 0xffff;
+        int nwProto = match.getNetworkProto() & 0xff;
+        int tpDst = match.getDstPort();
+        match.doTrackSeenFields();
+
+        ProtoNode protoNode = etherNodes[branch(etherTypes, etherType)];
+        PortNode portNode = protoNode.nodes[branch(protoNode.protos, nwProto)];
+        return portNode.leaves[interval(portNode.bounds, tpDst)];
+    }
+
+    public static boolean isCandidate(long[] candidates, int rule) {
+        return (candidates[rule >>> 6] & (1L << rule)) != 0;
+    }
+
+    /** The fields that can exclude the rule at the given index. */
+    public int fields(int rule) {
+        return fields[rule];
+    }
+
+    public static void markSeen(FlowMatch match, int fields) {
+        if ((fields & ETHER_TYPE) != 0)
+            match.fieldSeen(FlowMatch.Field.EtherType);
+        if ((fields & NW_PROTO) != 0)
+            match.fieldSeen(FlowMatch.Field.NetworkProto);
+        if ((fields & TP_DST) != 0)
+            match.fieldSeen(FlowMatch.Field.DstPort);
+    }
+}
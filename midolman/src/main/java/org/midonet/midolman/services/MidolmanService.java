@@ -88,6 +88,12 @@ public class MidolmanService extends AbstractService {
 
     @Override
     protected void doStart() {
+        try {
+            virtualTopology.snapshots().start();
+        } catch (Exception e) {
+            log.error("Cannot start the topology snapshot", e);
+        }
+
         for (Service service : services()) {
             log.info("Starting service: {}", service);
             try {
@@ -150,6 +156,12 @@ public class MidolmanService extends AbstractService {
             }
         }
 
+        try {
+            virtualTopology.snapshots().stop();
+        } catch (Exception e) {
+            log.error("Could not stop the topology snapshot", e);
+        }
+
         log.info("Stopping executors");
         try {
             virtualTopology.vtExecutor().shutdown();
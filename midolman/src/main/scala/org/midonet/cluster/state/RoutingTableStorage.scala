@@ -16,8 +16,13 @@
 
 package org.midonet.cluster.state
 
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, IOException}
 import java.nio.{BufferUnderflowException, ByteBuffer}
-import java.util.UUID
+import java.util.zip.{Deflater, DeflaterOutputStream, Inflater, InflaterInputStream}
+import java.util.{Base64, UUID}
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
 
 import org.apache.commons.codec.DecoderException
 import org.apache.commons.codec.binary.Hex
@@ -36,6 +41,31 @@ import org.midonet.util.functors._
 object RoutingTableStorage {
 
     private final val NoRoutes = Set.empty[Route]
+    private final val RouteSize = 50
+
+    /**
+     * The maximum number of routes of a chunk: a larger chunk is decoded as
+     * no routes.
+     */
+    final val MaxChunkRoutes = 65536
+
+    private[state] final val SnapshotChunk = 's'
+    private[state] final val AddChunk = 'a'
+    private[state] final val RemoveChunk = 'r'
+
+    /**
+     * The routes added and removed by an update of a port routing table.
+     */
+    case class RouteTableUpdate(added: Set[Route], removed: Set[Route]) {
+        def nonEmpty = added.nonEmpty || removed.nonEmpty
+    }
+
+    /**
+     * A chunk of a routing table, parsed from a state value.
+     */
+    private[state] case class Chunk(kind: Char, generation: Long,
+                                    sequence: Int, index: Int, count: Int,
+                                    value: String)
 
     implicit def asRoutingTable(store: StateStorage): RoutingTableStorage = {
         new RoutingTableStorage(store)
@@ -55,7 +85,12 @@ object RoutingTableStorage {
      */
     @inline private def serialize(route: Route, addNextHopPort: Boolean)
     : String = {
-        val buffer = ByteBuffer.allocate(50)
+        val buffer = ByteBuffer.allocate(RouteSize)
+        writeRoute(buffer, route)
+        Hex.encodeHexString(buffer.array())
+    }
+
+    @inline private def writeRoute(buffer: ByteBuffer, route: Route): Unit = {
         buffer.putInt(route.dstNetworkAddr)
         buffer.put(route.dstNetworkLength.toByte)
         buffer.putInt(route.srcNetworkAddr)
@@ -66,7 +101,20 @@ object RoutingTableStorage {
         buffer.putLong(route.routerId.getLeastSignificantBits)
         buffer.putLong(route.nextHopPort.getMostSignificantBits)
         buffer.putLong(route.nextHopPort.getLeastSignificantBits)
-        Hex.encodeHexString(buffer.array())
+    }
+
+    @inline private def readRoute(buffer: ByteBuffer): Route = {
+        val dstNetworkAddr = buffer.getInt()
+        val dstNetworkLength = buffer.get()
+        val srcNetworkAddr = buffer.getInt()
+        val srcNetworkLength = buffer.get()
+        val nextHopGateway = buffer.getInt()
+        val weight = buffer.getInt()
+        val routerId = new UUID(buffer.getLong(), buffer.getLong())
+        val nhPortId = new UUID(buffer.getLong(), buffer.getLong())
+        new Route(srcNetworkAddr, srcNetworkLength, dstNetworkAddr,
+                  dstNetworkLength, NextHop.PORT, nhPortId, nextHopGateway,
+                  weight, "", routerId, true)
     }
 
     /**
@@ -104,6 +152,232 @@ object RoutingTableStorage {
             case e @ (_: DecoderException | _: BufferUnderflowException) => None
         }
     }
+
+    /**
+     * Encodes the given routes as chunk state values of the specified kind,
+     * generation and sequence, with at most `chunkSize` routes per chunk. A
+     * snapshot is encoded as at least one chunk, such that an empty routing
+     * table has a complete generation.
+     */
+    private[state] def encodeChunks(kind: Char, generation: Long,
+                                    sequence: Int, routes: Iterable[Route],
+                                    chunkSize: Int): Seq[String] = {
+        val groups = routes.grouped(chunkSize).toVector
+        val chunks =
+            if (groups.isEmpty && kind == SnapshotChunk) Vector(Iterable.empty)
+            else groups
+        for ((group, index) <- chunks.zipWithIndex) yield {
+            s"$kind.${generation.toHexString}.${sequence.toHexString}." +
+            s"${index.toHexString}.${chunks.size.toHexString}." +
+            encodePayload(group)
+        }
+    }
+
+    /**
+     * Parses a chunk state value, returning `null` if the value is not a
+     * chunk.
+     */
+    private[state] def parseChunk(value: String): Chunk = {
+        val parts = value.split("\\.", 6)
+        if (parts.length != 6 || parts(0).length != 1) {
+            return null
+        }
+        try {
+            val chunk = Chunk(parts(0).charAt(0),
+                              java.lang.Long.parseLong(parts(1), 16),
+                              Integer.parseInt(parts(2), 16),
+                              Integer.parseInt(parts(3), 16),
+                              Integer.parseInt(parts(4), 16),
+                              value)
+            chunk.kind match {
+                case SnapshotChunk | AddChunk | RemoveChunk => chunk
+                case _ => null
+            }
+        } catch {
+            case e: NumberFormatException => null
+        }
+    }
+
+    /**
+     * Decodes the routes of a chunk state value. Invalid chunks are decoded
+     * as no routes.
+     */
+    private[state] def decodeChunk(value: String): Array[Route] = {
+        val inflater = new Inflater()
+        try {
+            val payload = value.substring(value.lastIndexOf('.') + 1)
+            val input = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder.decode(payload)),
+                inflater))
+            val count = input.readInt()
+            if (count < 0 || count > MaxChunkRoutes) {
+                return Array.empty
+            }
+            val bytes = new Array[Byte](count * RouteSize)
+            input.readFully(bytes)
+            val buffer = ByteBuffer.wrap(bytes)
+            Array.fill(count)(readRoute(buffer))
+        } catch {
+            case e @ (_: IOException | _: IllegalArgumentException) =>
+                Array.empty
+        } finally {
+            inflater.end()
+        }
+    }
+
+    /**
+     * Returns the greatest generation of the given state values, or -1 if
+     * there are no chunk values.
+     */
+    private[state] def lastGeneration(values: Iterable[String]): Long = {
+        var generation = -1L
+        for (value <- values) {
+            val chunk = parseChunk(value)
+            if ((chunk ne null) && chunk.generation > generation) {
+                generation = chunk.generation
+            }
+        }
+        generation
+    }
+
+    private def encodePayload(routes: Iterable[Route]): String = {
+        val buffer = ByteBuffer.allocate(4 + RouteSize * routes.size)
+        buffer.putInt(routes.size)
+        for (route <- routes) {
+            writeRoute(buffer, route)
+        }
+        val output = new ByteArrayOutputStream(buffer.capacity() / 2)
+        val deflater = new Deflater()
+        try {
+            val stream = new DeflaterOutputStream(output, deflater)
+            stream.write(buffer.array())
+            stream.close()
+        } finally {
+            deflater.end()
+        }
+        Base64.getUrlEncoder.withoutPadding().encodeToString(output.toByteArray)
+    }
+
+    /**
+     * Reads the routing table of a port from the values of its routes key,
+     * and computes the routes added and removed by every update of the
+     * values.
+     *
+     * Chunks are decoded once and cached while their values exist. When the
+     * snapshot of the current generation does not change, an update applies
+     * only the delta chunks that were not yet applied, in sequence order,
+     * such that a batch of route changes costs in proportion to the batch
+     * rather than to the routing table. Otherwise, for instance after a
+     * compaction, the table is rebuilt from the snapshot and deltas, and the
+     * update is the difference with the previous table.
+     *
+     * This class is not thread-safe.
+     */
+    private[state] final class RoutingTableReader(portId: UUID) {
+
+        private val decoded = new mutable.HashMap[String, Array[Route]]
+        private val applied = new mutable.HashSet[String]
+        private var current = new mutable.HashSet[Route]
+        private var snapshot = Set.empty[String]
+        private var legacy = Set.empty[String]
+
+        /** The current routes of the table. */
+        def routes: Set[Route] = current.toSet
+
+        /** Updates the routing table with the current state values, and
+          * returns the routes added and removed since the previous update. */
+        def update(values: Set[String]): RouteTableUpdate = {
+            val legacyValues = Set.newBuilder[String]
+            val chunks = new ArrayBuffer[Chunk]
+            for (value <- values) {
+                if (value.indexOf('.') < 0) {
+                    legacyValues += value
+                } else {
+                    val chunk = parseChunk(value)
+                    if (chunk ne null) chunks += chunk
+                }
+            }
+
+            val generation = completeGeneration(chunks)
+            val snapshotValues = chunks.collect {
+                case chunk if chunk.generation == generation &&
+                              chunk.kind == SnapshotChunk => chunk.value
+            }.toSet
+            val deltas = chunks.filter { chunk =>
+                chunk.generation == generation && chunk.kind != SnapshotChunk
+            }.sortBy(_.sequence)
+            val newLegacy = legacyValues.result()
+
+            val added = new mutable.HashSet[Route]
+            val removed = new mutable.HashSet[Route]
+
+            if (snapshotValues == snapshot && newLegacy == legacy &&
+                applied.forall(values.contains)) {
+                for (delta <- deltas if applied.add(delta.value)) {
+                    if (delta.kind == AddChunk) {
+                        for (route <- decode(delta.value)
+                             if current.add(route) && !removed.remove(route)) {
+                            added += route
+                        }
+                    } else {
+                        for (route <- decode(delta.value)
+                             if current.remove(route) && !added.remove(route)) {
+                            removed += route
+                        }
+                    }
+                }
+            } else {
+                val table = new mutable.HashSet[Route]
+                for (value <- newLegacy; route <- deserialize(value, portId)) {
+                    table += route
+                }
+                for (value <- snapshotValues) {
+                    table ++= decode(value)
+                }
+                applied.clear()
+                for (delta <- deltas) {
+                    applied += delta.value
+                    if (delta.kind == AddChunk) table ++= decode(delta.value)
+                    else table --= decode(delta.value)
+                }
+                for (route <- table if !current.contains(route)) {
+                    added += route
+                }
+                for (route <- current if !table.contains(route)) {
+                    removed += route
+                }
+                current = table
+                snapshot = snapshotValues
+                legacy = newLegacy
+            }
+
+            decoded.retain((value, _) => values.contains(value))
+            RouteTableUpdate(added.toSet, removed.toSet)
+        }
+
+        private def decode(value: String): Array[Route] = {
+            decoded.getOrElseUpdate(value, decodeChunk(value))
+        }
+
+        /** Returns the greatest generation whose snapshot chunks are all
+          * present, or -1 if there is none. */
+        private def completeGeneration(chunks: Seq[Chunk]): Long = {
+            val snapshots = new mutable.HashMap[Long, mutable.Set[Int]]
+            val counts = new mutable.HashMap[Long, Int]
+            for (chunk <- chunks if chunk.kind == SnapshotChunk) {
+                snapshots.getOrElseUpdate(chunk.generation,
+                                          new mutable.HashSet[Int]) +=
+                    chunk.index
+                counts(chunk.generation) = chunk.count
+            }
+            var generation = -1L
+            for ((gen, indices) <- snapshots
+                 if gen > generation && indices.size == counts(gen)) {
+                generation = gen
+            }
+            generation
+        }
+    }
 }
 
 /**
@@ -180,6 +454,27 @@ object RoutingTableStorage {
  *
  * TODO: Asynchronous addition with parallel read via observable
  *
+ * Because every route is a z-node, publishing a large routing table learned
+ * from a BGP peer with the per-route format above produces one write and one
+ * watch notification per route. Routing tables may therefore also be
+ * published by a [[RoutingTableWriter]] in a chunked format, where the state
+ * values are chunks of up to several thousand routes each:
+ *
+ *   <kind>.<generation>.<sequence>.<index>.<count>.<payload>
+ *
+ * where the kind is `s` for a snapshot chunk, `a` for a delta chunk of added
+ * routes, and `r` for a delta chunk of removed routes; the generation,
+ * sequence, index and count are hexadecimal numbers; and the payload is the
+ * base64url encoding of the deflated route count and the routes in the
+ * 100-character format above. A generation is complete when all `count`
+ * snapshot chunks of the generation exist. Readers use the latest complete
+ * generation, applying its delta chunks in sequence order. The writer bounds
+ * the number of delta chunks by writing a new snapshot generation and
+ * removing the previous one. Readers support both formats, and tables written
+ * in the per-route format are converted on the first write of a writer.
+ *
+ * The `RoutingTableStorageBenchmark` compares both formats for routing tables
+ * of up to 500,000 routes.
  */
 class RoutingTableStorage(val store: StateStorage) extends AnyVal {
 
@@ -228,7 +523,9 @@ class RoutingTableStorage(val store: StateStorage) extends AnyVal {
         store.getKey(hostId.asNullableString, classOf[Port], portId,
                      RoutesKey) map makeFunc1 {
             case MultiValueKey(_, values) =>
-                values.flatMap(deserialize(_, portId))
+                val reader = new RoutingTableReader(portId)
+                reader.update(values)
+                reader.routes
             case _ => NoRoutes
         }
     }
@@ -237,11 +534,37 @@ class RoutingTableStorage(val store: StateStorage) extends AnyVal {
       * the state for the last host emitted by the `hostIds` observable. */
     def portRoutesObservable(portId: UUID, hostIds: Observable[UUID])
     : Observable[Set[Route]] = {
+        Observable.defer[Set[Route]](makeFunc0 {
+            val reader = new RoutingTableReader(portId)
+            routeValuesObservable(portId, hostIds).map[Set[Route]](makeFunc1 {
+                values: Set[String] =>
+                    reader.update(values)
+                    reader.routes
+            })
+        })
+    }
+
+    /** Provides an observable for the routes added and removed for a given
+      * port using the state for the last host emitted by the `hostIds`
+      * observable. The first notification adds all current routes, and each
+      * following notification contains only the routes changed since the
+      * previous one, such that subscribers apply the changes in bulk without
+      * comparing the full routing tables. */
+    def portRouteUpdatesObservable(portId: UUID, hostIds: Observable[UUID])
+    : Observable[RouteTableUpdate] = {
+        Observable.defer[RouteTableUpdate](makeFunc0 {
+            val reader = new RoutingTableReader(portId)
+            routeValuesObservable(portId, hostIds).map[RouteTableUpdate](
+                makeFunc1 { values: Set[String] => reader.update(values) })
+        })
+    }
+
+    private def routeValuesObservable(portId: UUID, hostIds: Observable[UUID])
+    : Observable[Set[String]] = {
         store.keyObservable(hostIds.map[String](makeFunc1 { _.asNullableString }),
                             classOf[Port], portId, RoutesKey) map makeFunc1 {
-            case MultiValueKey(_, values) =>
-                values.flatMap(deserialize(_, portId))
-            case _ => NoRoutes
+            case MultiValueKey(_, values) => values
+            case _ => Set.empty[String]
         }
     }
 
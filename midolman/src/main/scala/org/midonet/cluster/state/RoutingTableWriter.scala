@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.state
+
+import java.util.UUID
+import java.util.concurrent.{ScheduledExecutorService, TimeUnit}
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.{Failure, Success}
+
+import org.midonet.cluster.data.storage.{MultiValueKey, StateResult, StateStorage}
+import org.midonet.cluster.models.Topology.Port
+import org.midonet.cluster.services.MidonetBackend.RoutesKey
+import org.midonet.cluster.state.RoutingTableStorage._
+import org.midonet.midolman.layer3.Route
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.util.functors.makeRunnable
+import org.midonet.util.reactivex._
+
+/**
+ * Publishes the routing table of a port in the chunked format of the
+ * [[RoutingTableStorage]].
+ *
+ * The routes added and removed are accumulated for `batchInterval`
+ * milliseconds, or until `chunkSize` changes are pending, and every batch is
+ * written as one delta chunk of added routes and one delta chunk of removed
+ * routes per `chunkSize` routes. When the number of delta chunks of the
+ * current generation would exceed `maxDeltas`, the writer compacts the table
+ * instead: it writes the snapshot chunks of a new generation, and then removes
+ * all previous values of the routes key, including any values in the
+ * per-route format. The first write of a writer, the first write after a
+ * failure, and the first write after the writer detects a new storage
+ * session, are always compactions.
+ *
+ * The futures returned by [[addRoute]] and [[removeRoute]] complete when the
+ * batch containing the route change is written. All state is confined to the
+ * given executor, which must be single-threaded, such that only one batch is
+ * written at a time.
+ */
+class RoutingTableWriter(store: StateStorage, portId: UUID,
+                         executor: ScheduledExecutorService,
+                         batchInterval: Long, chunkSize: Int, maxDeltas: Int) {
+
+    private implicit val ec = ExecutionContext.fromExecutor(executor)
+
+    private val routes = new mutable.HashSet[Route]
+    private var pendingAdds = new mutable.HashSet[Route]
+    private var pendingRemoves = new mutable.HashSet[Route]
+    private var promises = new ArrayBuffer[(Route, Promise[Route])]
+
+    private var generation = 0L
+    private var sequence = 0
+    private var deltaChunks = 0
+    private var ownerId = 0L
+    private var resync = true
+    private var scheduled = false
+    private var writing = false
+
+    /** Adds a [[NextHop.PORT]] route to the routing table. */
+    def addRoute(route: Route): Future[Route] = {
+        submit(route, add = true)
+    }
+
+    /** Removes a [[NextHop.PORT]] route from the routing table. */
+    def removeRoute(route: Route): Future[Route] = {
+        submit(route, add = false)
+    }
+
+    private def submit(route: Route, add: Boolean): Future[Route] = {
+        if (route.nextHop != NextHop.PORT) {
+            throw new IllegalArgumentException(
+                s"Route next hop ${route.nextHop} not supported")
+        }
+        val promise = Promise[Route]()
+        executor.execute(makeRunnable {
+            if (add) {
+                pendingRemoves -= route
+                pendingAdds += route
+            } else {
+                pendingAdds -= route
+                pendingRemoves += route
+            }
+            promises += ((route, promise))
+            if (pendingAdds.size + pendingRemoves.size >= chunkSize) {
+                flush()
+            } else {
+                schedule()
+            }
+        })
+        promise.future
+    }
+
+    private def schedule(): Unit = {
+        if (!scheduled && !writing) {
+            scheduled = true
+            executor.schedule(makeRunnable {
+                scheduled = false
+                flush()
+            }, batchInterval, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private def flush(): Unit = {
+        if (writing || (promises.isEmpty && !resync)) {
+            return
+        }
+
+        val batch = promises
+        val added = pendingAdds.filterNot(routes.contains)
+        val removed = pendingRemoves.filter(routes.contains)
+        promises = new ArrayBuffer[(Route, Promise[Route])]
+        pendingAdds = new mutable.HashSet[Route]
+        pendingRemoves = new mutable.HashSet[Route]
+        routes ++= added
+        routes --= removed
+
+        writing = true
+        val chunks = chunkCount(added.size) + chunkCount(removed.size)
+        val write =
+            if (resync || deltaChunks + chunks > maxDeltas) compact()
+            else if (chunks == 0) Future.successful(())
+            else writeDeltas(added, removed)
+
+        write.onComplete { result =>
+            writing = false
+            result match {
+                case Success(_) =>
+                    for ((route, promise) <- batch) promise.trySuccess(route)
+                case Failure(e) =>
+                    resync = true
+                    for ((route, promise) <- batch) promise.tryFailure(e)
+            }
+            if (promises.nonEmpty || (resync && result.isSuccess)) {
+                schedule()
+            }
+        }
+    }
+
+    private def writeDeltas(added: Iterable[Route], removed: Iterable[Route])
+    : Future[Unit] = {
+        sequence += 1
+        val values =
+            encodeChunks(AddChunk, generation, sequence, added, chunkSize) ++
+            encodeChunks(RemoveChunk, generation, sequence, removed, chunkSize)
+        deltaChunks += values.size
+        Future.sequence(values.map(addValue)).map { results =>
+            // The values were written in a new storage session, whose state
+            // does not contain the snapshot of the current generation.
+            if (results.exists(_.ownerId != ownerId)) {
+                resync = true
+            }
+        }
+    }
+
+    private def compact(): Future[Unit] = {
+        store.getKey(classOf[Port], portId, RoutesKey).asFuture.flatMap { key =>
+            val existing = key match {
+                case MultiValueKey(_, values) => values
+                case _ => Set.empty[String]
+            }
+            generation = math.max(generation, lastGeneration(existing)) + 1
+            sequence = 0
+            deltaChunks = 0
+            val values = encodeChunks(SnapshotChunk, generation, sequence,
+                                      routes, chunkSize)
+            Future.sequence(values.map(addValue)).flatMap { results =>
+                ownerId = results.head.ownerId
+                resync = false
+                Future.sequence(existing.toSeq.map(removeValue))
+            }.map(_ => ())
+        }
+    }
+
+    private def addValue(value: String): Future[StateResult] = {
+        store.addValue(classOf[Port], portId, RoutesKey, value).asFuture
+    }
+
+    private def removeValue(value: String): Future[StateResult] = {
+        store.removeValue(classOf[Port], portId, RoutesKey, value).asFuture
+    }
+
+    private def chunkCount(routes: Int): Int = {
+        (routes + chunkSize - 1) / chunkSize
+    }
+
+}
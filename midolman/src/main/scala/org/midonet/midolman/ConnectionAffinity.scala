@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+import org.midonet.Util
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.IPAddr
+import org.midonet.packets.NatState.{FWD_DNAT, FWD_SNAT, KeyType}
+
+object ConnectionAffinity {
+    val DefaultSlots = 1 << 16
+
+    /** An affinity table that never overrides the hash based dispatch. */
+    val Disabled = new ConnectionAffinity(0)
+
+    /**
+     * Returns the symmetric hash of the connection that results from applying
+     * a forward NAT binding to the given key, that is, the hash of the packets
+     * as they look after translation. Returns 0 for reverse keys and for sticky
+     * keys, whose source port is wildcarded.
+     */
+    def translatedHash(keyType: KeyType, src: IPAddr, srcPort: Int,
+                       dst: IPAddr, dstPort: Int, proto: Byte,
+                       natIp: IPAddr, natPort: Int): Int = keyType match {
+        case FWD_SNAT =>
+            FlowMatch.symmetricConnectionHash(natIp, natPort, dst, dstPort, proto)
+        case FWD_DNAT =>
+            FlowMatch.symmetricConnectionHash(src, srcPort, natIp, natPort, proto)
+        case _ => 0
+    }
+}
+
+/**
+ * Decides which packet worker handles a connection. By default, packets are
+ * dispatched according to the symmetric connection hash of their flow match,
+ * such that both directions of a connection land on the same worker. When a
+ * connection is NAT'ed, the packets after translation hash differently, so the
+ * worker that owns the connection registers the translated hash here and the
+ * upcall dispatcher keeps sending those packets to it.
+ *
+ * The table is a direct-mapped array of (hash, worker) pairs packed in a
+ * long. Collisions simply overwrite older entries: an affinity is a hint to
+ * improve locality, not a correctness requirement, since the flow state tables
+ * are readable from all workers.
+ *
+ * Writes are performed by the packet workers and the upcall dispatcher, reads
+ * by the upcall threads.
+ */
+final class ConnectionAffinity(slotsHint: Int) {
+
+    private val mask =
+        if (slotsHint > 0) Util.findNextPositivePowerOfTwo(slotsHint) - 1
+        else -1
+    private val entries = new AtomicLongArray(mask + 1)
+
+    def this() = this(ConnectionAffinity.DefaultSlots)
+
+    /** Records that the connection with the given symmetric hash is handled by
+      * the given worker. */
+    def register(hash: Int, worker: Int): Unit = {
+        if (mask >= 0 && hash != 0) {
+            entries.lazySet(hash & mask,
+                            (hash.toLong << 32) | ((worker + 1) & 0xFFFFFFFFL))
+        }
+    }
+
+    /** Returns the worker for the connection with the given symmetric hash. */
+    def workerFor(hash: Int, numWorkers: Int): Int = {
+        if (mask >= 0) {
+            val entry = entries.get(hash & mask)
+            val worker = entry.toInt - 1
+            if ((entry >>> 32).toInt == hash && worker >= 0 &&
+                worker < numWorkers)
+                return worker
+        }
+        (hash & Int.MaxValue) % numWorkers
+    }
+}
@@ -64,6 +64,9 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         Util.findNextPositivePowerOfTwo(maxFlows))
     private var mask = indexToFlow.length - 1
 
+    protected override val idleExpiration =
+        config.datapath.flowIdleExpiration
+
     val meters = new MeterRegistry(maxFlows)
     Metering.registerAsMXBean(meters)
 
@@ -72,10 +75,16 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private val oversubscriptionFlowPool = new NoOpPool[ManagedFlow](
         new ManagedFlow(_))
 
+    // The flow statistics requests take their operations from a smaller,
+    // separate pool, such that they cannot exhaust the operations needed to
+    // delete flows.
+    private val maxPendingFlowStats = Math.max(flowProcessor.capacity / 4, 1)
     private val completedFlowOperations = new SpscArrayQueue[FlowOperation](
-        flowProcessor.capacity)
+        flowProcessor.capacity + maxPendingFlowStats)
     private val pooledFlowOperations = new ArrayObjectPool[FlowOperation](
         flowProcessor.capacity, new FlowOperation(_, completedFlowOperations))
+    private val pooledFlowStatsOperations = new ArrayObjectPool[FlowOperation](
+        maxPendingFlowStats, new FlowOperation(_, completedFlowOperations))
     private val flowRemoveCommandsToRetry = new ArrayList[FlowOperation](
         flowProcessor.capacity)
 
@@ -113,9 +122,13 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         val flow = indexToFlow(mark & mask)
         if ((flow ne null) && flow.mark == mark && !flow.removed) {
             log.debug(s"Removing duplicate flow $flow")
+            // The duplicate is not deleted from the datapath, such that its
+            // meters are not forgotten when a delete operation completes.
+            meters.forgetFlow(flow.mark)
             forgetFlow(flow)
             var flowsRemoved = 1
             if (flow.linkedFlow ne null) {
+                meters.forgetFlow(flow.linkedFlow.mark)
                 removeFlowFromDatapath(flow.linkedFlow)
                 forgetFlow(flow.linkedFlow)
                 flowsRemoved += 1
@@ -124,7 +137,11 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         }
     }
 
-    override def shouldProcess = completedFlowOperations.size > 0
+    override def shouldProcess =
+        completedFlowOperations.size > 0 || hasPendingInvalidations
+
+    protected override def flowForMark(mark: Int): ManagedFlow =
+        indexToFlow(mark & mask)
 
     override def process(): Unit = {
         processCompletedFlowOperations()
@@ -132,15 +149,16 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     }
 
     override def registerFlow(flow: ManagedFlow): Unit = {
-        super.registerFlow(flow)
+        // Index the flows first, since the tag indexer needs their marks.
         indexFlow(flow)
-        meters.trackFlow(flow.flowMatch, flow.tags)
         var flowsAdded = 1
         if (flow.linkedFlow ne null) {
             indexFlow(flow.linkedFlow)
             flow.linkedFlow.ref()
             flowsAdded += 1
         }
+        super.registerFlow(flow)
+        meters.trackFlow(flow.mark, flow.tags)
         metrics.dpFlowsMetric.mark(flowsAdded)
         flow.ref()
     }
@@ -169,7 +187,9 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
-            if (req.isFailed) {
+            if (req.opId == FlowOperation.GET) {
+                flowGetCompleted(req)
+            } else if (req.isFailed) {
                 flowDeleteFailed(req)
             } else {
                 flowDeleteSucceeded(req)
@@ -202,7 +222,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
             case _ =>
                 log.error(s"Failed to delete ${req.managedFlow}", req.failure)
         }
-        meters.forgetFlow(req.managedFlow.flowMatch)
+        meters.forgetFlow(req.managedFlow.mark)
         req.clear()
     }
 
@@ -215,10 +235,44 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
 
     private def flowDeleteSucceeded(req: FlowOperation): Unit = {
         val flowMetadata = req.flowMetadata
-        val flowMatch = req.managedFlow.flowMatch
+        val mark = req.managedFlow.mark
         log.debug(s"DP confirmed removal of ${req.managedFlow}")
-        meters.updateFlow(flowMatch, flowMetadata.getStats)
-        meters.forgetFlow(flowMatch)
+        meters.updateFlow(mark, flowMetadata.getStats)
+        meters.forgetFlow(mark)
+        req.clear()
+    }
+
+    protected override def requestFlowStats(flow: ManagedFlow): Boolean = {
+        val flowOp = pooledFlowStatsOperations.take
+        if (flowOp eq null)
+            return false
+        flowOp.reset(FlowOperation.GET, flow, retries = 0)
+        if (flowProcessor.tryGet(datapathId, flow.flowMatch, flowOp)) {
+            true
+        } else {
+            flowOp.clear()
+            false
+        }
+    }
+
+    private def flowGetCompleted(req: FlowOperation): Unit = {
+        val flow = req.managedFlow
+        if (req.isFailed) {
+            req.netlinkErrorCode match {
+                case ENODEV | ENOENT =>
+                    // The flow is no longer in the datapath.
+                    log.debug(s"$flow is no longer in the datapath")
+                    removeFlow(flow)
+                case _ =>
+                    log.debug(s"Failed to get the statistics of $flow: " +
+                              "retrying", req.failure)
+                    flowStatsFailed(flow, clock.tick)
+            }
+        } else {
+            val stats = req.flowMetadata.getStats
+            meters.updateFlow(flow.mark, stats)
+            flowUsed(flow, stats.packets, clock.tick)
+        }
         req.clear()
     }
 
@@ -235,7 +289,7 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
                 flowOperationParkable.park()
             }
         }
-        flowOp.reset(flow, retries = 10)
+        flowOp.reset(FlowOperation.DELETE, flow, retries = 10)
         flowOp
     }
 
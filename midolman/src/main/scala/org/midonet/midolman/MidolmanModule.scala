@@ -165,7 +165,7 @@ class MidolmanModule(injector: Injector,
         bind(classOf[PacketWorkersService]).toInstance(workersService)
 
         val dpConnectionManager = upcallDatapathConnectionManager(
-            policy, workersService.workers)
+            policy, workersService.workers, workersService.affinity)
         bind(classOf[UpcallDatapathConnectionManager]).toInstance(
             dpConnectionManager)
         bind(classOf[DatapathInterface]).toInstance(
@@ -237,7 +237,9 @@ class MidolmanModule(injector: Injector,
             SelectorProvider.provider,
             backChannel,
             new DatapathMetrics(metricRegistry),
-            NanoClock.DEFAULT)
+            NanoClock.DEFAULT,
+            config.datapath.flowCreateBatchSize,
+            config.datapath.flowCreateBatchLatency)
 
     protected def createProcessors(
             ringBuffer: RingBuffer[PacketContextHolder],
@@ -254,7 +256,8 @@ class MidolmanModule(injector: Injector,
                 new EventPollerHandlerAdapter(
                     new PacketExecutor(
                         dpState, families, 1, 0, channelFactory,
-                        new PacketExecutorMetrics(metricRegistry, 0))))
+                        new PacketExecutorMetrics(metricRegistry, 0),
+                        config.datapath.packetExecuteBatchSize)))
             processors(0) = new BackChannelEventProcessor(
                 ringBuffer, fpHandler, flowProcessor)
         } else {
@@ -262,7 +265,8 @@ class MidolmanModule(injector: Injector,
             for (i <- 0 until numPacketHandlers) {
                 val pexec = new PacketExecutor(
                     dpState, families, numPacketHandlers, i, channelFactory,
-                    new PacketExecutorMetrics(metricRegistry, i))
+                    new PacketExecutorMetrics(metricRegistry, i),
+                    config.datapath.packetExecuteBatchSize)
                 processors(i) = new BatchEventProcessor(ringBuffer, barrier, pexec)
             }
             processors(numPacketHandlers) = new BackChannelEventProcessor(
@@ -295,14 +299,15 @@ class MidolmanModule(injector: Injector,
 
     protected def upcallDatapathConnectionManager(
             tbPolicy: TokenBucketPolicy,
-            workers: IndexedSeq[PacketWorker]) =
+            workers: IndexedSeq[PacketWorker],
+            affinity: ConnectionAffinity) =
         config.inputChannelThreading match {
             case "one_to_many" =>
                 new OneToManyDpConnManager(config, workers,
-                                           tbPolicy, metricRegistry)
+                                           tbPolicy, metricRegistry, affinity)
             case "one_to_one" =>
                 new OneToOneDpConnManager(config, workers,
-                                          tbPolicy, metricRegistry)
+                                          tbPolicy, metricRegistry, affinity)
             case s =>
                 throw new IllegalArgumentException(
                     "Unknown value for input_channel_threading: " + s)
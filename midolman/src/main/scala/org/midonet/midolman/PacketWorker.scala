@@ -22,6 +22,7 @@ import com.lmax.disruptor._
 
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.topology.DeviceSnapshot
 import org.midonet.odp.Packet
 import org.midonet.Util
 
@@ -37,14 +38,19 @@ object DisruptorPacketWorker {
 
 class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
                             metrics: PacketPipelineMetrics,
-                            index: Int)
+                            index: Int,
+                            deviceSnapshotSize: Int = 0)
         extends Thread(s"packet-worker-${index}")
         with ExceptionHandler
-        with PacketWorker with MidolmanLogging {
+        with PacketWorker with DeviceSnapshot.Owner with MidolmanLogging {
     override def logSource = s"org.midonet.packet-worker.packet-worker-$index"
 
     setDaemon(true)
 
+    override val deviceSnapshot =
+        if (deviceSnapshotSize > 0) new DeviceSnapshot(deviceSnapshotSize)
+        else null
+
     val ringBuffer = RingBuffer
         .createMultiProducer(PacketWorkflow.PacketRefFactory,
                              DisruptorPacketWorker.RingBufferCapacity,
@@ -64,6 +70,7 @@ class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
             } finally {
                 ringBuffer.publish(seq)
             }
+            metrics.packetsDispatched.mark()
             true
         } catch {
             case ice: InsufficientCapacityException =>
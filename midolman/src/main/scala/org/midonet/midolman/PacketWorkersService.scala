@@ -32,12 +32,12 @@ import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.midolman.monitoring.{FlowRecorder, FlowSenderWorker}
-import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.monitoring.metrics.{ArpResolutionMetrics, NatLeaserMetrics, PacketPipelineMetrics}
 import org.midonet.midolman.services.HostIdProvider
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
-import org.midonet.midolman.state.{NatBlockAllocator, NatLeaser, PeerResolver}
+import org.midonet.midolman.state.{ArpResolutions, NatBlockAllocator, NatLeaser, PeerResolver}
 import org.midonet.midolman.topology.VirtualTopology
 import org.midonet.packets.NatState.NatBinding
 import org.midonet.sdn.state.ShardedFlowStateTable
@@ -47,6 +47,7 @@ import org.midonet.util.logging.Logger
 
 abstract class PacketWorkersService extends AbstractService {
     def workers: IndexedSeq[PacketWorker]
+    def affinity: ConnectionAffinity = ConnectionAffinity.Disabled
 }
 
 class PacketWorkersServiceImpl(config: MidolmanConfig,
@@ -77,14 +78,27 @@ class PacketWorkersServiceImpl(config: MidolmanConfig,
             n
     }
 
-    val connTrackStateTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock)
-    val natStateTable = new ShardedFlowStateTable[NatKey, NatBinding](clock)
+    private val ownerIndexSlots = config.datapath.maxFlowCount
+
+    override val affinity = new ConnectionAffinity(config.datapath.maxFlowCount)
+
+    val connTrackStateTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+        clock, ShardedFlowStateTable.Storage(config.conntrackTableStorage),
+        ownerIndexSlots)
+    val natStateTable = new ShardedFlowStateTable[NatKey, NatBinding](
+        clock, ShardedFlowStateTable.Storage(config.natTableStorage),
+        ownerIndexSlots)
     val natLeaser: NatLeaser = new NatLeaser {
         val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
         val allocator = natBlockAllocator
         val clock = PacketWorkersServiceImpl.this.clock
+        val metrics = new NatLeaserMetrics(metricsRegistry)
     }
-    val traceStateTable = new ShardedFlowStateTable[TraceKey, TraceContext](clock)
+    val arpResolutions = new ArpResolutions(
+        new ArpResolutionMetrics(metricsRegistry), clock)
+    val traceStateTable = new ShardedFlowStateTable[TraceKey, TraceContext](
+        clock, ShardedFlowStateTable.Storage(config.traceTableStorage),
+        ownerIndexSlots)
 
     val supervisorThread = new Thread(this, "packet-worker-supervisor")
     supervisorThread.setDaemon(true)
@@ -156,8 +170,10 @@ class PacketWorkersServiceImpl(config: MidolmanConfig,
             connTrackShard, natShard, traceShard,
             peerResolver, natLeaser,
             metrics, flowRecorder,
-            vt, counter.addAndGet(index, _: Int))
+            vt, counter.addAndGet(index, _: Int),
+            affinity, arpResolutions)
 
-        new DisruptorPacketWorker(workflow, metrics, index)
+        new DisruptorPacketWorker(workflow, metrics, index,
+                                  config.deviceSnapshotSize)
     }
 }
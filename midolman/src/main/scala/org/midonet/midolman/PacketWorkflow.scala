@@ -50,7 +50,7 @@ import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatKey, releaseBinding}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.state.{FlowStateReplicator, NatLeaser, _}
-import org.midonet.midolman.topology.RouterMapper.InvalidateFlows
+import org.midonet.midolman.topology.RouterMapper.{InvalidateFlows, InvalidateIPv6Flows}
 import org.midonet.midolman.topology.{VirtualTopology, VxLanPortMappingService}
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.odp._
@@ -60,7 +60,8 @@ import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger._
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction}
-import org.midonet.util.collection.{IPv4InvalidationArray, Reducer}
+import org.midonet.util.UnixClock
+import org.midonet.util.collection.{IPv4InvalidationArray, IPv6InvalidationArray, Reducer}
 import org.midonet.util.concurrent._
 import org.midonet.util.logging.Logger
 
@@ -237,7 +238,9 @@ class PacketWorkflow(
             val metrics: PacketPipelineMetrics,
             val flowRecorder: FlowRecorder,
             val vt: VirtualTopology,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val affinity: ConnectionAffinity = ConnectionAffinity.Disabled,
+            val arpResolutions: ArpResolutions = ArpResolutions.unshared())
         extends EventHandler[PacketWorkflow.PacketRef]
         with TimeoutHandler
         with DisruptorBackChannel
@@ -272,11 +275,20 @@ class PacketWorkflow(
             peerResolver,
             dpState,
             this,
-            config)
+            config) {
+        // State messages are delivered to a single worker, but flows for the
+        // imported keys may have been installed by any of them.
+        override protected def invalidateImported(tag: FlowTag): Unit = {
+            invalidateFlowsFor(tag)
+            if (numWorkers > 1)
+                backChannel.tell(tag)
+        }
+    }
 
     protected val datapathId = dpState.datapath.getIndex
 
-    protected val arpBroker = new ArpRequestBroker(config, backChannel)
+    protected val arpBroker = new ArpRequestBroker(config, backChannel,
+                                                   UnixClock(), arpResolutions)
 
     private val invalidateExpiredConnTrackKeys =
         new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
@@ -343,8 +355,25 @@ class PacketWorkflow(
         }
     }
 
+    private def invalidateRoutedIPv6Flows(msg: InvalidateIPv6Flows) {
+        val InvalidateIPv6Flows(id, prefixes) = msg
+
+        for (prefix <- prefixes) {
+            log.debug(s"Calculate IPv6 flows invalidated by route $prefix")
+
+            val deletions = IPv6InvalidationArray.current.deletePrefix(
+                prefix.getAddress.upperWord, prefix.getPrefixLen).iterator()
+            while (deletions.hasNext) {
+                val ip = IPv6Addr(deletions.next, 0L)
+                log.debug(s"Got the following destination to invalidate $ip/64")
+                invalidateFlowsFor(FlowTagger.tagForDestinationIp(id, ip))
+            }
+        }
+    }
+
     private def handle(msg: BackChannelMessage): Unit = msg match {
         case m: InvalidateFlows => invalidateRoutedFlows(m)
+        case m: InvalidateIPv6Flows => invalidateRoutedIPv6Flows(m)
         case tag: FlowTag => invalidateFlowsFor(tag)
         case RestartWorkflow(cookie, pktCtx, error) => restart(cookie, pktCtx, error)
         case m: GeneratedPacket => startWorkflow(generatedPacketContext(m))
@@ -357,6 +386,7 @@ class PacketWorkflow(
         super.process()
         while (backChannel.hasMessages)
             handle(backChannel.poll())
+        processInvalidations()
         connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
         natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
         natLeaser.obliterateUnusedBlocks()
@@ -476,6 +506,18 @@ class PacketWorkflow(
             metrics.packetsDropped.mark()
         }
 
+    /**
+     * Drops a packet whose frame cannot be deserialized without installing a
+     * flow, like the frames that are dropped at upcall time.
+     */
+    private def dropMalformed(context: PacketContext, waiting: Boolean): Unit = {
+        if (waiting)
+            waitingRoom leave context
+        context.prepareForDrop()
+        returnContext(context)
+        metrics.packetsDropped.mark()
+    }
+
     private def complete(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
         pktCtx.log.debug("Packet processed")
         if (pktCtx.runs > 1)
@@ -548,6 +590,9 @@ class PacketWorkflow(
             case NotYetException(f, msg) =>
                 pktCtx.log.debug(s"Postponing simulation because: $msg")
                 postponeOn(pktCtx, f)
+            case e: Packet.MalformedFrameException =>
+                pktCtx.log.warn("Dropping malformed packet", e)
+                dropMalformed(pktCtx, pktCtx.runs > 1)
             case NonFatal(ex) =>
                 handleErrorOn(pktCtx, ex, pktCtx.runs > 1)
         }
@@ -600,11 +645,23 @@ class PacketWorkflow(
 
     private def applyState(context: PacketContext): Unit = {
         context.log.debug("Applying connection state")
+        if (context.natTx.size > 0)
+            pinTranslatedConnection(context)
         replicator.accumulateNewKeys(context)
         replicator.touchState(context)
         context.commitStateTransactions()
     }
 
+    /* The packets of a NAT'ed connection hash differently on each side of the
+     * translation. Pin the translated side to this worker, so that the return
+     * traffic is processed where the connection state was created.
+     */
+    private def pinTranslatedConnection(context: PacketContext): Unit = {
+        val hash = context.wcmatch.symmetricConnectionHash
+        if (hash != context.origMatch.symmetricConnectionHash)
+            affinity.register(hash, workerId)
+    }
+
     private def handlePacketIngress(context: PacketContext): SimulationResult = {
         if (!context.origMatch.isUsed(Field.InputPortNumber)) {
             context.log.error("packet had no inPort number")
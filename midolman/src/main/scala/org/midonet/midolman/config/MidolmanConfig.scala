@@ -25,6 +25,7 @@ import com.typesafe.scalalogging.Logger
 
 import org.slf4j.LoggerFactory
 
+import org.midonet.cluster.state.RoutingTableStorage
 import org.midonet.cluster.storage.{CassandraConfig, MidonetBackendConfig}
 import org.midonet.conf.{HostIdGenerator, MidoNodeConfigurator, MidoTestConfigurator}
 import org.midonet.minion.{ExecutorsConfig, MinionConfig}
@@ -82,10 +83,18 @@ class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
     def dhcpMtu = Math.min(getInt(s"$PREFIX.midolman.dhcp_mtu"), 0xffff)
     def simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
     def maxPooledContexts = getInt(s"$PREFIX.midolman.max_pooled_contexts")
+    def deviceSnapshotSize = getInt(s"$PREFIX.midolman.device_snapshot_size")
+    def topologySnapshotFile = getString(s"$PREFIX.midolman.topology_snapshot_file")
+    def topologySnapshotInterval =
+        getDuration(s"$PREFIX.midolman.topology_snapshot_interval", TimeUnit.MILLISECONDS)
     def outputChannels = getInt(s"$PREFIX.midolman.output_channels")
     def inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
     def datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
 
+    def conntrackTableStorage = getString(s"$PREFIX.midolman.conntrack_table_storage")
+    def natTableStorage = getString(s"$PREFIX.midolman.nat_table_storage")
+    def traceTableStorage = getString(s"$PREFIX.midolman.trace_table_storage")
+
     def lockMemory = getBoolean(s"$PREFIX.midolman.lock_memory")
 
     val bridge = new BridgeConfig(conf, schema)
@@ -122,6 +131,13 @@ class RouterConfig(val conf: Config, val schema: Config) extends TypeFailureFall
     val PREFIX = "agent.router"
     def maxBgpPeerRoutes = conf.getInt(s"$PREFIX.max_bgp_peer_routes")
     def bgpZookeeperHoldtime = conf.getDuration(s"$PREFIX.bgp_zookeeper_holdtime", TimeUnit.SECONDS)
+    def routingTable = getString(s"$PREFIX.routing_table")
+    def bgpRouteChunkSize =
+        Math.min(Math.max(getInt(s"$PREFIX.bgp_route_chunk_size"), 0),
+                 RoutingTableStorage.MaxChunkRoutes)
+    def bgpRouteMaxDeltas = getInt(s"$PREFIX.bgp_route_max_deltas")
+    def bgpRouteBatchInterval =
+        getDuration(s"$PREFIX.bgp_route_batch_interval", TimeUnit.MILLISECONDS)
 }
 
 class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -132,6 +148,12 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def sendBufferPoolBufSizeKb = getInt(s"$PREFIX.send_buffer_pool_buf_size_kb")
 
     def maxFlowCount = getInt(s"$PREFIX.max_flow_count")
+    def flowIdleExpiration =
+        getDuration(s"$PREFIX.flow_idle_expiration", TimeUnit.NANOSECONDS)
+    def flowCreateBatchSize = getInt(s"$PREFIX.flow_create_batch_size")
+    def flowCreateBatchLatency =
+        getDuration(s"$PREFIX.flow_create_batch_latency", TimeUnit.NANOSECONDS)
+    def packetExecuteBatchSize = getInt(s"$PREFIX.packet_execute_batch_size")
 
     def vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
     def vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
@@ -210,6 +232,9 @@ class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailur
     def queueSize = getInt("agent.flow_history.queue_size")
     def connectionInterval = getDuration("agent.flow_history.connection_interval",
                                          TimeUnit.MILLISECONDS) millis
+    def spoolDirectory = getString("agent.flow_history.spool_directory")
+    def spoolSegmentSize = getInt("agent.flow_history.spool_segment_size")
+    def spoolMaxSegments = getInt("agent.flow_history.spool_max_segments")
 }
 
 class ContainerConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
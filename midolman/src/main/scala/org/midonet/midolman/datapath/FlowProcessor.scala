@@ -20,6 +20,7 @@ import java.nio.channels._
 import java.nio.channels.spi.SelectorProvider
 import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util.ArrayList
+import java.util.concurrent.TimeUnit
 
 import scala.util.control.NonFatal
 
@@ -56,6 +57,13 @@ object FlowProcessor {
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
 
+    /**
+     * The capacity of the buffer batching the flow create messages. It is
+     * below the default socket send buffer, such that a batch is never
+     * rejected for its size.
+     */
+    private val BATCH_BUF_CAPACITY = 64 * 1024
+
     /**
       * A flow back-channel message.
       */
@@ -79,7 +87,9 @@ class FlowProcessor(dpState: DatapathState,
                     selectorProvider: SelectorProvider,
                     backChannel: SimulationBackChannel,
                     datapathMetrics: DatapathMetrics,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    maxBatchFlows: Int = 1,
+                    maxBatchLatency: Long = 0L)
     extends EventPoller.Handler[PacketContextHolder]
     with DisruptorBackChannel
     with LifecycleAware {
@@ -93,6 +103,11 @@ class FlowProcessor(dpState: DatapathState,
     private val supportsMegaflow = dpState.datapath.supportsMegaflow()
 
     private var writeBuf = BytesUtil.instance.allocateDirect(64 * 1024)
+    private val batchBuf = BytesUtil.instance.allocateDirect(BATCH_BUF_CAPACITY)
+    private val batchMaxFlows = Math.max(maxBatchFlows, 1)
+    private var batchFlows = 0
+    private var batchStartNanos = 0L
+    private var batchSequence = Sequencer.INITIAL_CURSOR_VALUE
     private val selector = selectorProvider.openSelector()
     private val createChannel = channelFactory.create(blocking = false)
     private val createChannelPid = createChannel.getLocalAddress.getPid
@@ -122,6 +137,15 @@ class FlowProcessor(dpState: DatapathState,
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    /**
+     * Serializes the flow create messages in the batch buffer, which is
+     * written to the datapath in a single system call at the end of every
+     * disruptor batch, when it holds the maximum number of flows or bytes, or
+     * when its first flow has waited for longer than the maximum batch
+     * latency. The sequence of the last written event is only published after
+     * writing the batch, such that flows are never deleted before they are
+     * created.
+     */
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         val context = event.flowCreateRef
@@ -145,9 +169,13 @@ class FlowProcessor(dpState: DatapathState,
                 context.log.error("Failed to create datapath flow", t)
             }
 
-            lastSequence = sequence
+            batchSequence = sequence
         }
         context.setFlowProcessed()
+        if (endOfBatch || batchFlows == 0 ||
+            clock.tick - batchStartNanos >= maxBatchLatency) {
+            flushFlows()
+        }
         true
     }
 
@@ -173,7 +201,7 @@ class FlowProcessor(dpState: DatapathState,
             createProtocol.prepareFlowCreate(
                 datapathId, keys, actions, mask, writeBuf)
             writeBuf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, index)
-            writer.write(writeBuf)
+            batchFlow(writeBuf)
             writeBuf.rewind()
             sixwind.processFlow(writeBuf, writeBuf.limit())
         } catch { case e: BufferOverflowException =>
@@ -188,6 +216,62 @@ class FlowProcessor(dpState: DatapathState,
             writeBuf.clear()
         }
 
+    /**
+     * Appends a flow create message to the batch buffer, writing the batch
+     * first if the message does not fit. A message larger than the batch
+     * buffer is written on its own.
+     */
+    private def batchFlow(message: ByteBuffer): Unit = {
+        val length = NetlinkMessage.align(message.remaining())
+        if (length > batchBuf.remaining()) {
+            writeBatch()
+        }
+        if (length > batchBuf.capacity()) {
+            writeFlows(message, 1, clock.tick)
+            return
+        }
+        if (batchFlows == 0) {
+            batchStartNanos = clock.tick
+        }
+        val position = batchBuf.position()
+        batchBuf.put(message)
+        batchBuf.position(position + length)
+        batchFlows += 1
+        if (batchFlows >= batchMaxFlows) {
+            writeBatch()
+        }
+    }
+
+    /**
+     * Writes the batched flows and publishes the sequence of the last event
+     * whose flows have been written.
+     */
+    private def flushFlows(): Unit = {
+        writeBatch()
+        lastSequence = batchSequence
+    }
+
+    private def writeBatch(): Unit = {
+        if (batchFlows > 0) {
+            batchBuf.flip()
+            writeFlows(batchBuf, batchFlows, batchStartNanos)
+            batchBuf.clear()
+            batchFlows = 0
+        }
+    }
+
+    private def writeFlows(buf: ByteBuffer, flows: Int,
+                           startNanos: Long): Unit =
+        try {
+            writer.write(buf)
+            datapathMetrics.flowsPerWrite.update(flows)
+            datapathMetrics.flowWriteLatency.update(clock.tick - startNanos,
+                                                    TimeUnit.NANOSECONDS)
+        } catch { case NonFatal(e) =>
+            datapathMetrics.flowCreateErrors.mark(flows)
+            log.error(s"Failed to write $flows datapath flows", e)
+        }
+
     def capacity = broker.capacity
 
     /**
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.datapath
 
-import java.nio.BufferOverflowException
+import java.nio.{BufferOverflowException, ByteBuffer}
 import java.nio.channels.AsynchronousCloseException
 import java.util.concurrent.TimeUnit
 import java.util.{ArrayList => JArrayList}
@@ -67,18 +67,46 @@ trait StatePacketExecutor {
 object PacketExecutor {
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
 
+    /**
+     * The capacity of the buffer batching the packet execute messages. It is
+     * below the default socket send buffer, such that a batch is never
+     * rejected for its size.
+     */
+    private val BATCH_BUF_CAPACITY = 128 * 1024
+
     private[datapath] def clampMss(ctx: PacketContext, log: Logger): Unit = {
         // Don't do MSS clamping on packet tunneled here from another Midolman
         // node, since the other node already did it if needed.
-        if (ctx.inputPort != null) {
+        if (ctx.inputPort != null && mayCarryTcpSyn(ctx)) {
             try clampMss(ctx.packet.getEthernet, 0, log) catch {
                 case ex: ArrayIndexOutOfBoundsException =>
                     log.debug(
                         "Could not parse TCP options for packet " + ctx.packet)
+                case ex: Packet.MalformedFrameException =>
+                    log.debug("Could not parse packet " + ctx.packet)
             }
         }
     }
 
+    /**
+     * Checks with the packet view whether the packet may contain a TCP SYN
+     * segment, such that the packets received from the datapath are only
+     * deserialized when their MSS may need clamping.
+     */
+    private def mayCarryTcpSyn(ctx: PacketContext): Boolean = {
+        if (ctx.packet.isDeserialized)
+            return true
+        val view = ctx.view
+        view.networkProtocol match {
+            case TCP.PROTOCOL_NUMBER =>
+                !view.isTcp || (view.tcpFlags & TCP.Flag.Syn.bit) != 0
+            case UDP.PROTOCOL_NUMBER =>
+                !view.isUdp || view.destinationPort == UDP.VXLAN
+            case GRE.PROTOCOL_NUMBER => true
+            case _ => false
+        }
+    }
+
     @tailrec
     private def clampMss(pkt: IPacket, wrapperSize: Int, log: Logger)
     : Unit = pkt match {
@@ -141,7 +169,8 @@ sealed class PacketExecutor(dpState: DatapathState,
                             families: OvsNetlinkFamilies,
                             numHandlers: Int, index: Int,
                             channelFactory: NetlinkChannelFactory,
-                            metrics: PacketExecutorMetrics)
+                            metrics: PacketExecutorMetrics,
+                            maxBatchPackets: Int = 1)
     extends EventHandler[PacketContextHolder]
     with LifecycleAware with StatePacketExecutor {
     import PacketExecutor._
@@ -151,6 +180,11 @@ sealed class PacketExecutor(dpState: DatapathState,
     private val datapathId = dpState.datapath.getIndex
 
     private var writeBuf = BytesUtil.instance.allocateDirect(64 * 1024)
+    private val batchBuf = BytesUtil.instance.allocateDirect(BATCH_BUF_CAPACITY)
+    private val batchMaxPackets = Math.max(maxBatchPackets, 1)
+    private val batchStartTimes = new Array[Long](batchMaxPackets)
+    private var batchMessages = 0
+    private var batchPackets = 0
     private val readBuf = BytesUtil.instance.allocateDirect(8 * 1024)
     private val channel = channelFactory.create(blocking = true)
     private val pid = channel.getLocalAddress.getPid
@@ -164,6 +198,12 @@ sealed class PacketExecutor(dpState: DatapathState,
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
+    /**
+     * Serializes the packet execute messages in the batch buffer, which is
+     * written to the datapath in a single system call at the end of every
+     * disruptor batch, or when it holds the maximum number of packets or
+     * bytes. Flow state packets are batched with the packets they precede.
+     */
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Unit = {
         val context = event.packetExecRef
@@ -176,9 +216,10 @@ sealed class PacketExecutor(dpState: DatapathState,
                     clampMss(context, log)
                     maybeExecuteStatePacket(datapathId, context)
                     executePacket(datapathId, packet, actions)
-                    val latency = NanoClock.DEFAULT.tick - packet.startTimeNanos
-                    metrics.packetsExecuted.update(latency.toInt,
-                                                   TimeUnit.NANOSECONDS)
+                    batchStartTimes(batchPackets) = packet.startTimeNanos
+                    batchPackets += 1
+                    if (batchPackets == batchMaxPackets)
+                        writeBatch()
                     context.log.debug(s"Executed packet")
                 } catch { case t: Throwable =>
                     context.log.error(s"Failed to execute packet", t)
@@ -186,6 +227,9 @@ sealed class PacketExecutor(dpState: DatapathState,
             }
             context.setPacketProcessed()
         }
+        if (endOfBatch) {
+            writeBatch()
+        }
     }
 
     private def maybeExecuteStatePacket(datapathId: Int, context: PacketContext): Unit = {
@@ -207,7 +251,7 @@ sealed class PacketExecutor(dpState: DatapathState,
                               actions: JArrayList[FlowAction]): Unit =
         try {
             protocol.preparePacketExecute(datapathId, packet, actions, writeBuf)
-            writer.write(writeBuf)
+            batchMessage(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= PacketExecutor.MAX_BUF_CAPACITY)
@@ -220,6 +264,53 @@ sealed class PacketExecutor(dpState: DatapathState,
             writeBuf.clear()
         }
 
+    /**
+     * Appends a packet execute message to the batch buffer, writing the batch
+     * first if the message does not fit. A message larger than the batch
+     * buffer is written on its own.
+     */
+    private def batchMessage(message: ByteBuffer): Unit = {
+        val length = NetlinkMessage.align(message.remaining())
+        if (length > batchBuf.remaining()) {
+            writeBatch()
+        }
+        if (length > batchBuf.capacity()) {
+            writer.write(message)
+            metrics.messagesPerWrite.update(1)
+            metrics.bytesPerWrite.update(length)
+        } else {
+            val position = batchBuf.position()
+            batchBuf.put(message)
+            batchBuf.position(position + length)
+            batchMessages += 1
+        }
+    }
+
+    private def writeBatch(): Unit = {
+        if (batchMessages > 0) {
+            batchBuf.flip()
+            val bytes = batchBuf.limit()
+            try {
+                writer.write(batchBuf)
+                metrics.messagesPerWrite.update(batchMessages)
+                metrics.bytesPerWrite.update(bytes)
+            } catch { case NonFatal(e) =>
+                log.error(s"Failed to execute $batchMessages packets", e)
+            } finally {
+                batchBuf.clear()
+                batchMessages = 0
+            }
+        }
+        val now = NanoClock.DEFAULT.tick
+        var i = 0
+        while (i < batchPackets) {
+            metrics.packetsExecuted.update((now - batchStartTimes(i)).toInt,
+                                           TimeUnit.NANOSECONDS)
+            i += 1
+        }
+        batchPackets = 0
+    }
+
     private def processError(): Unit =
         try {
            if (reader.read(readBuf) > 0) {
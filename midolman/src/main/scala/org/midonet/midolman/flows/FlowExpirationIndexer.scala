@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayDeque
+import java.util.ArrayList
 
 import scala.concurrent.duration._
 
@@ -44,85 +44,173 @@ object FlowExpirationIndexer {
         def value = FLOW_EXPIRATION.value * 5
         val typeId = 3
     }
-
-    private final val maxType = 4
 }
 
 /**
  * This trait deals with flow expiration. It registers all new flows and removes
- * them when the specified expiration time has elapsed. Note that a flow may
- * be removed from the kernel via another mechanism (such as flow invalidation),
- * but it is still kept in these data structures until it expires. This is to
- * avoid linear remove operations or smarter, more expensive data structures.
+ * them when their hard expiration time has elapsed or, when an idle expiration
+ * is set, when they have not been used for that long.
+ *
+ * The flows are scheduled in a hierarchical timer wheel, from which they are
+ * removed in constant time when they are removed from the kernel via another
+ * mechanism, such as flow invalidation. A flow with an idle expiration is
+ * scheduled at its next idle deadline: when the deadline elapses, the trait
+ * requests the flow statistics from the datapath and the flow is removed if
+ * its packet count has not changed since the previous check.
+ *
+ * The flows are also kept in a list ordered by their last use, such that
+ * when the number of flows exceeds the maximum, the least recently used flows
+ * are evicted first. Without an idle expiration, the last use of a flow is its
+ * creation time.
  */
 trait FlowExpirationIndexer extends FlowIndexer with MidolmanLogging {
-    import FlowExpirationIndexer._
 
     protected val maxFlows: Int
 
-    private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
-
-    {
-        expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-        expirationQueues(FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(STATEFUL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(TUNNEL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-    }
+    private val timerWheel = new FlowTimerWheel
+    private val expiredFlows = new ArrayList[ManagedFlow]()
+    private var lruHead: ManagedFlow = null
+    private var lruTail: ManagedFlow = null
+    private var numFlows = 0
+
+    /**
+     * The idle expiration of the flows in nanoseconds, or zero if the flows
+     * only expire with their hard expiration.
+     */
+    protected def idleExpiration: Long = 0L
+
+    /**
+     * Requests the statistics of the given flow from the datapath, which
+     * must be passed to `flowUsed` when they are received. Returns false if
+     * the request could not be sent.
+     */
+    protected def requestFlowStats(flow: ManagedFlow): Boolean = false
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        expirationQueues(flow.expirationType).addLast(flow)
+        flow.expiring = true
         flow.ref()
+        lruAppend(flow)
+        numFlows += 1
+        timerWheel.schedule(flow, nextDeadline(flow), flow.lastUsedNanos)
+    }
+
+    abstract override def removeFlow(flow: ManagedFlow): Unit = {
+        if (flow.expiring) {
+            timerWheel.cancel(flow)
+            lruRemove(flow)
+            numFlows -= 1
+            flow.expiring = false
+            flow.unref()
+        }
+        super.removeFlow(flow)
     }
 
     def checkFlowsExpiration(now: Long): Unit = {
-        checkHardTimeOutExpiration(now)
+        checkTimeOutExpiration(now)
         manageFlowTableSize()
     }
 
-    private def checkHardTimeOutExpiration(now: Long): Unit = {
+    /**
+     * Updates the last use of a flow with its packet count read from the
+     * datapath, and removes the flow if it has been idle for longer than the
+     * idle expiration.
+     */
+    def flowUsed(flow: ManagedFlow, packets: Long, now: Long): Unit = {
+        if (!flow.expiring || flow.timerSlot != FlowTimerWheel.Unscheduled)
+            return
+
+        if (packets != flow.lastPackets) {
+            flow.lastPackets = packets
+            flow.lastUsedNanos = now
+            lruRemove(flow)
+            lruAppend(flow)
+        }
+        if (now - flow.lastUsedNanos >= idleExpiration) {
+            log.debug(s"Removing flow $flow for idle expiration")
+            removeFlow(flow)
+        } else {
+            timerWheel.schedule(flow, nextDeadline(flow), now)
+        }
+    }
+
+    /**
+     * Handles a transient failure to read the statistics of a flow, by
+     * requesting them again on the next tick.
+     */
+    def flowStatsFailed(flow: ManagedFlow, now: Long): Unit = {
+        if (flow.expiring && flow.timerSlot == FlowTimerWheel.Unscheduled)
+            timerWheel.schedule(flow, now + (1L << FlowTimerWheel.TickShift),
+                                now)
+    }
+
+    private def nextDeadline(flow: ManagedFlow): Long = {
+        val idle = idleExpiration
+        if (idle > 0)
+            Math.min(flow.absoluteExpirationNanos, flow.lastUsedNanos + idle)
+        else
+            flow.absoluteExpirationNanos
+    }
+
+    private def checkTimeOutExpiration(now: Long): Unit = {
+        timerWheel.advance(now, expiredFlows)
         var i = 0
-        while (i < maxType) {
-            var flow: ManagedFlow = null
-            val queue = expirationQueues(i)
-            while (({ flow = queue.peekFirst(); flow } ne null) &&
-                   now >= flow.absoluteExpirationNanos) {
+        while (i < expiredFlows.size()) {
+            val flow = expiredFlows.get(i)
+            if (!flow.expiring || flow.timerSlot != FlowTimerWheel.Unscheduled) {
+                // Removed or rescheduled while removing a previous flow.
+            } else if (now >= flow.absoluteExpirationNanos) {
                 log.debug(s"Removing flow $flow for hard expiration")
-                flow.unref()
-                removeFlow(queue.pollFirst())
+                removeFlow(flow)
+            } else if (!requestFlowStats(flow)) {
+                // Retry on the next tick.
+                timerWheel.schedule(flow, now + (1L << FlowTimerWheel.TickShift),
+                                    now)
             }
             i += 1
         }
+        expiredFlows.clear()
     }
 
     private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
-        var i = 0
-        while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
-            i += 1
-        }
-        excessFlows -= maxFlows
-
+        val excessFlows = numFlows - maxFlows
         if (excessFlows > 0) {
             log.debug(s"Evicting $excessFlows excess flows")
-            removeOldestDpFlows(excessFlows)
+            removeLeastRecentlyUsedFlows(excessFlows)
         }
     }
 
-    private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
-        var i = 0
+    private def removeLeastRecentlyUsedFlows(numFlowsToEvict: Int): Unit = {
         var evicted = 0
-        while (i < maxType) {
-            val queue = expirationQueues(i)
-            var flow: ManagedFlow = null
-            while (evicted < numFlowsToEvict &&
-                   ({ flow = queue.pollFirst(); flow } ne null)) {
-                flow.unref()
-                removeFlow(flow)
-                evicted += 1
-            }
-            i += 1
+        while (evicted < numFlowsToEvict && (lruHead ne null)) {
+            removeFlow(lruHead)
+            evicted += 1
+        }
+    }
+
+    private def lruAppend(flow: ManagedFlow): Unit = {
+        flow.lruPrev = lruTail
+        flow.lruNext = null
+        if (lruTail ne null) {
+            lruTail.lruNext = flow
+        } else {
+            lruHead = flow
+        }
+        lruTail = flow
+    }
+
+    private def lruRemove(flow: ManagedFlow): Unit = {
+        if (flow.lruPrev ne null) {
+            flow.lruPrev.lruNext = flow.lruNext
+        } else {
+            lruHead = flow.lruNext
+        }
+        if (flow.lruNext ne null) {
+            flow.lruNext.lruPrev = flow.lruPrev
+        } else {
+            lruTail = flow.lruPrev
         }
+        flow.lruPrev = null
+        flow.lruNext = null
     }
 }
@@ -22,55 +22,184 @@ import org.midonet.midolman.logging.MidolmanLogging
 
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
+object FlowTagIndexer {
+
+    /** The maximum number of flows removed synchronously by an invalidation,
+      * and by every slice of the pending invalidations. */
+    final val InvalidationBudget = 1024
+
+    /**
+     * The flows of a tag, as a list of flow marks. The list is not updated
+     * when a flow is removed, which only decrements the number of live flows:
+     * the marks of the removed flows are compacted away when the list grows.
+     * A mark belongs to a live flow as long as it resolves to a flow with the
+     * same mark.
+     */
+    private[flows] final class TagFlows(val tag: FlowTag) {
+        var marks = new Array[Int](4)
+        var size = 0
+        var live = 0
+        var cursor = 0
+    }
+}
+
+/**
+ * Indexes the flows by their tags, such that all flows with a given tag can be
+ * invalidated. Every tag is interned to a [[FlowTagIndexer.TagFlows]] instance
+ * holding a primitive list with the marks of its flows, and the flows keep a
+ * reference to the lists they were added to.
+ *
+ * Invalidating a tag with more flows than the [[FlowTagIndexer.InvalidationBudget]]
+ * detaches its list from the index and removes its flows incrementally, a
+ * budget at a time, when calling `processInvalidations`. This prevents a
+ * popular tag from stalling the packet processing. The new flows for an
+ * invalidated tag are added to a new list and are not affected by the pending
+ * invalidation.
+ */
 trait FlowTagIndexer extends FlowIndexer with MidolmanLogging {
-    private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+    import FlowTagIndexer._
+
+    private val tagToFlows = new HashMap[FlowTag, TagFlows]()
+    private val pendingInvalidations = new ArrayDeque[TagFlows]()
+
+    /**
+     * Returns the flow for the given mark, or null if there is no such flow.
+     * The marks of the flows must be assigned before they are registered.
+     */
+    protected def flowForMark(mark: Int): ManagedFlow
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
         val numTags = flow.tags.size()
         var i = 0
         while (i < numTags) {
-            getOrAdd(flow.tags.get(i)).add(flow)
+            val flows = getOrAdd(flow.tags.get(i))
+            add(flows, flow.mark)
+            flow.tagFlows.add(flows)
             i += 1
         }
     }
 
     abstract override def removeFlow(flow: ManagedFlow): Unit = {
         super.removeFlow(flow)
-        val numTags = flow.tags.size()
+        val numTags = flow.tagFlows.size()
         var i = 0
         while (i < numTags) {
-            val tag = flow.tags.get(i)
-            val flows = tagToFlows.get(tag)
-            if (flows ne null) {
-                flows.remove(flow)
-                if (flows.size() == 0)
-                    tagToFlows.remove(tag)
-            }
+            val flows = flow.tagFlows.get(i)
+            flows.live -= 1
+            if (flows.live == 0 && (tagToFlows.get(flows.tag) eq flows))
+                tagToFlows.remove(flows.tag)
             i += 1
         }
+        flow.tagFlows.clear()
     }
 
     def invalidateFlowsFor(tag: FlowTag): Unit = {
         val flows = tagToFlows.remove(tag)
-        log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
+        log.debug(s"Invalidating ${if (flows ne null) flows.live else 0} " +
+                  s"flows for tag $tag")
         if (flows ne null) {
-            val it = flows.iterator()
-            while (it.hasNext) {
-                removeFlow(it.next())
+            if (flows.live <= InvalidationBudget) {
+                invalidate(flows, Int.MaxValue)
+            } else {
+                pendingInvalidations.addLast(flows)
             }
         }
     }
 
-    def flowsFor(tag: FlowTag): Set[ManagedFlow] =
-        tagToFlows.get(tag)
+    def hasPendingInvalidations: Boolean = !pendingInvalidations.isEmpty
 
-    private def getOrAdd(tag: FlowTag): Set[ManagedFlow] = {
-        var set = tagToFlows.get(tag)
-        if (set eq null) {
-            set = Collections.newSetFromMap(new IdentityHashMap())
-            tagToFlows.put(tag, set)
+    /**
+     * Removes up to [[FlowTagIndexer.InvalidationBudget]] flows of the
+     * invalidated tags whose removal is pending.
+     */
+    def processInvalidations(): Unit = {
+        var budget = InvalidationBudget
+        var flows: TagFlows = null
+        while (budget > 0 &&
+               ({ flows = pendingInvalidations.peekFirst(); flows } ne null)) {
+            budget -= invalidate(flows, budget)
+            if (flows.cursor == flows.size) {
+                pendingInvalidations.pollFirst()
+            }
+        }
+        if (!pendingInvalidations.isEmpty) {
+            log.debug(s"${pendingInvalidations.size()} tag invalidations " +
+                      "pending")
+        }
+    }
+
+    def flowsFor(tag: FlowTag): Set[ManagedFlow] = {
+        val flows = tagToFlows.get(tag)
+        if (flows eq null)
+            return null
+        val set = Collections.newSetFromMap(new IdentityHashMap[ManagedFlow,
+                                                                java.lang.Boolean]())
+        var i = 0
+        while (i < flows.size) {
+            val flow = liveFlow(flows.marks(i))
+            if (flow ne null)
+                set.add(flow)
+            i += 1
         }
         set
     }
+
+    /**
+     * Removes the live flows of the list starting at its cursor, until the
+     * given number of flows is removed. Returns the number of flows removed.
+     */
+    private def invalidate(flows: TagFlows, budget: Int): Int = {
+        var removed = 0
+        while (removed < budget && flows.cursor < flows.size) {
+            val flow = liveFlow(flows.marks(flows.cursor))
+            flows.cursor += 1
+            if (flow ne null) {
+                removeFlow(flow)
+                removed += 1
+            }
+        }
+        removed
+    }
+
+    private def liveFlow(mark: Int): ManagedFlow = {
+        val flow = flowForMark(mark)
+        if ((flow ne null) && flow.mark == mark) flow else null
+    }
+
+    private def add(flows: TagFlows, mark: Int): Unit = {
+        if (flows.size == flows.marks.length) {
+            if (flows.live < flows.size / 2) {
+                compact(flows)
+            } else {
+                flows.marks = Arrays.copyOf(flows.marks, flows.size * 2)
+            }
+        }
+        flows.marks(flows.size) = mark
+        flows.size += 1
+        flows.live += 1
+    }
+
+    private def compact(flows: TagFlows): Unit = {
+        var size = 0
+        var i = 0
+        while (i < flows.size) {
+            val mark = flows.marks(i)
+            if (liveFlow(mark) ne null) {
+                flows.marks(size) = mark
+                size += 1
+            }
+            i += 1
+        }
+        flows.size = size
+    }
+
+    private def getOrAdd(tag: FlowTag): TagFlows = {
+        var flows = tagToFlows.get(tag)
+        if (flows eq null) {
+            flows = new TagFlows(tag)
+            tagToFlows.put(tag, flows)
+        }
+        flows
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.ArrayList
+
+object FlowTimerWheel {
+    /** A tick lasts 2^TickShift nanoseconds, about 16 milliseconds. */
+    final val TickShift = 24
+    final val SlotBits = 6
+    final val Slots = 1 << SlotBits
+    final val SlotMask = Slots - 1
+    final val Levels = 4
+    /** The slot of the flows beyond the range of the last level. */
+    final val Overflow = Levels * Slots
+    final val Unscheduled = -1
+}
+
+/**
+ * A hierarchical timer wheel for the expiration of the flows. The wheel has
+ * four levels of 64 slots, where a slot of level N spans 64^N ticks, and an
+ * overflow list for the flows expiring beyond the range of the last level.
+ * A flow is placed at the lowest level whose current rotation includes its
+ * deadline, and moves down a level every time the wheel enters the rotation
+ * of its slot.
+ *
+ * The slots are intrusive doubly-linked lists of flows, such that scheduling
+ * and cancelling a flow take constant time and allocate nothing. Advancing the
+ * wheel skips the rotations of the levels without flows, so that a large clock
+ * jump takes at most a few steps per level.
+ *
+ * This class is not thread-safe.
+ */
+private[flows] final class FlowTimerWheel {
+    import FlowTimerWheel._
+
+    private val heads = new Array[ManagedFlow](Overflow + 1)
+    private val counts = new Array[Int](Levels + 1)
+    private var currentTick = 0L
+    private var started = false
+    private var size = 0
+
+    def count: Int = size
+
+    /**
+     * Schedules the flow to expire at the given deadline, where `now` is the
+     * current time, and only used to start the wheel.
+     */
+    def schedule(flow: ManagedFlow, deadline: Long, now: Long): Unit = {
+        if (!started) {
+            currentTick = now >> TickShift
+            started = true
+        }
+        val tick = Math.max(deadline >> TickShift, currentTick)
+        var level = 0
+        while (level < Levels &&
+               (tick >> (SlotBits * (level + 1))) !=
+               (currentTick >> (SlotBits * (level + 1)))) {
+            level += 1
+        }
+        val slot =
+            if (level == Levels) Overflow
+            else level * Slots + ((tick >> (SlotBits * level)) & SlotMask).toInt
+        flow.timerDeadline = deadline
+        link(flow, slot)
+    }
+
+    def cancel(flow: ManagedFlow): Unit = {
+        if (flow.timerSlot != Unscheduled) {
+            unlink(flow)
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time, adding the flows whose deadline
+     * has elapsed to the `expired` list.
+     */
+    def advance(now: Long, expired: ArrayList[ManagedFlow]): Unit = {
+        if (!started) {
+            return
+        }
+        val nowTick = now >> TickShift
+        expireSlot(now, expired)
+        while (currentTick < nowTick) {
+            var level = 0
+            while (level <= Levels && counts(level) == 0) {
+                level += 1
+            }
+            currentTick =
+                if (level == 0) currentTick + 1
+                else if (level > Levels) nowTick
+                else Math.min(((currentTick >> (SlotBits * level)) + 1) <<
+                              (SlotBits * level), nowTick)
+            cascade()
+            expireSlot(now, expired)
+        }
+    }
+
+    /** Moves down the flows of the slots whose rotation starts at the
+      * current tick, starting with the highest level. */
+    private def cascade(): Unit = {
+        var level = Levels
+        while (level > 0) {
+            if ((currentTick & ((1L << (SlotBits * level)) - 1)) == 0) {
+                val slot =
+                    if (level == Levels) Overflow
+                    else level * Slots +
+                         ((currentTick >> (SlotBits * level)) & SlotMask).toInt
+                var flow = heads(slot)
+                while (flow ne null) {
+                    val next = flow.timerNext
+                    unlink(flow)
+                    schedule(flow, flow.timerDeadline, 0L)
+                    flow = next
+                }
+            }
+            level -= 1
+        }
+    }
+
+    private def expireSlot(now: Long, expired: ArrayList[ManagedFlow]): Unit = {
+        var flow = heads((currentTick & SlotMask).toInt)
+        while (flow ne null) {
+            val next = flow.timerNext
+            if (flow.timerDeadline <= now) {
+                unlink(flow)
+                expired.add(flow)
+            }
+            flow = next
+        }
+    }
+
+    private def link(flow: ManagedFlow, slot: Int): Unit = {
+        val head = heads(slot)
+        flow.timerSlot = slot
+        flow.timerPrev = null
+        flow.timerNext = head
+        if (head ne null) {
+            head.timerPrev = flow
+        }
+        heads(slot) = flow
+        counts(slot / Slots) += 1
+        size += 1
+    }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val slot = flow.timerSlot
+        if (flow.timerPrev ne null) {
+            flow.timerPrev.timerNext = flow.timerNext
+        } else {
+            heads(slot) = flow.timerNext
+        }
+        if (flow.timerNext ne null) {
+            flow.timerNext.timerPrev = flow.timerPrev
+        }
+        flow.timerPrev = null
+        flow.timerNext = null
+        flow.timerSlot = Unscheduled
+        counts(slot / Slots) -= 1
+        size -= 1
+    }
+}
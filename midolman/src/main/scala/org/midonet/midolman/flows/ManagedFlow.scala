@@ -34,6 +34,8 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
 
     val callbacks = new ArrayList[Callback0]()
     val tags = new ArrayList[FlowTag]
+    // The tag lists this flow was added to by the FlowTagIndexer
+    private[flows] val tagFlows = new ArrayList[FlowTagIndexer.TagFlows]
     val flowMatch = new FlowMatch()
     var expirationType = 0
     var absoluteExpirationNanos = 0L
@@ -43,6 +45,18 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     var mark = 0
     var removed = true
     var linkedFlow: ManagedFlow = null
+    // The last time the flow was seen in use, and its packet count then
+    var lastUsedNanos = 0L
+    var lastPackets = 0L
+
+    // Expiration state, managed by the FlowExpirationIndexer
+    private[flows] var expiring = false
+    private[flows] var timerDeadline = 0L
+    private[flows] var timerSlot = FlowTimerWheel.Unscheduled
+    private[flows] var timerPrev: ManagedFlow = null
+    private[flows] var timerNext: ManagedFlow = null
+    private[flows] var lruPrev: ManagedFlow = null
+    private[flows] var lruNext: ManagedFlow = null
 
     def reset(flowMatch: FlowMatch, flowTags: ArrayList[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
@@ -50,6 +64,8 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         this.flowMatch.resetWithoutIcmpData(flowMatch)
         expirationType = expiration.typeId
         absoluteExpirationNanos = now + expiration.value
+        lastUsedNanos = now
+        lastPackets = 0L
         ArrayListUtil.addAll(flowTags, tags)
         ArrayListUtil.addAll(flowRemovedCallbacks, callbacks)
         this.sequence = sequence
@@ -68,6 +84,7 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         flowMatch.clear()
         callbacks.clear()
         tags.clear()
+        tagFlows.clear()
     }
 
     override def toString: String =
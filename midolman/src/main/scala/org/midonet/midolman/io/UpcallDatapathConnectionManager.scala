@@ -20,6 +20,7 @@ import java.util.concurrent.locks.ReentrantLock
 
 import scala.collection.IndexedSeq
 import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 import akka.actor.ActorSystem
@@ -30,11 +31,13 @@ import com.codahale.metrics.MetricRegistry
 import org.midonet.ErrorCode.{EBUSY, EEXIST, EADDRINUSE}
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.state.FlowState
-import org.midonet.midolman.{PacketWorker, NetlinkCallbackDispatcher}
+import org.midonet.midolman.state.FlowStateAgentPackets._
+import org.midonet.midolman.{ConnectionAffinity, PacketWorker, NetlinkCallbackDispatcher}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
 import org.midonet.odp.protos.OvsDatapathConnection
+import org.midonet.packets.SbeEncoder
 import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.{BatchCollector, Bucket}
 import org.midonet.util.eventloop.SelectLoop
@@ -151,11 +154,14 @@ abstract class UpcallDatapathConnectionManagerBase(
                 }
         }
 
-    protected def makeUpcallHandler(workers: IndexedSeq[PacketWorker]) =
+    protected def makeUpcallHandler(workers: IndexedSeq[PacketWorker],
+                                    affinity: ConnectionAffinity =
+                                        ConnectionAffinity.Disabled) =
         new BatchCollector[Packet] {
 
             val NUM_WORKERS = workers.length
             val log = LoggerFactory.getLogger("PacketInHook")
+            val stateEncoder = new SbeEncoder
 
             override def endBatch() {
                 // noop
@@ -166,28 +172,62 @@ abstract class UpcallDatapathConnectionManagerBase(
 
                 data.startTimeNanos = NanoClock.DEFAULT.tick
 
-                if (FlowState.isStateMessage(data.getMatch)) {
-                    var i = 0
-
-                    /* This code is problematic for the HTB. The HTB will take
-                     * one token for a flow state message, but each worker will
-                     * return one token for the flow state message.
-                     * This can potentially cause the number of HTB messages
-                     * available to explode.
-                     * MI-1273 should fix this by only sending flow state to
-                     * the correct thread.
-                     */
-                    var submitted = false
-                    while (i < workers.length) {
-                        // order is important here, we want submit to run, even
-                        // if submitted is already true
-                        submitted = workers(i).submit(data) || submitted
-                        i += 1
+                val hash =
+                    if (FlowState.isStateMessage(data.getMatch))
+                        stateMessageHash(data)
+                    else
+                        data.getMatch.symmetricConnectionHash
+                workers(affinity.workerFor(hash, NUM_WORKERS)).submit(data)
+            }
+
+            /* Flow state messages are handled by a single worker, the one that
+             * owns the connection described by the first key in the message,
+             * so that its return traffic finds the state in the local shard.
+             * The translated connections of forward NAT bindings are pinned
+             * to the same worker.
+             */
+            private def stateMessageHash(data: Packet): Int = {
+                val payload = parseDatagram(data.getEthernet)
+                if (payload eq null)
+                    return data.getMatch.connectionHash
+                try {
+                    val msg = stateEncoder.decodeFrom(payload.getData)
+                    var hash = 0
+                    val conntrackIter = msg.conntrack
+                    while (conntrackIter.hasNext) {
+                        val ct = conntrackIter.next()
+                        if (hash == 0) {
+                            hash = FlowMatch.symmetricConnectionHash(
+                                ipFromSbe(ct.srcIpType, ct.srcIp), ct.srcPort,
+                                ipFromSbe(ct.dstIpType, ct.dstIp), ct.dstPort,
+                                ct.protocol.toByte)
+                        }
+                    }
+                    val natIter = msg.nat
+                    while (natIter.hasNext) {
+                        val nat = natIter.next()
+                        val src = ipFromSbe(nat.keySrcIpType, nat.keySrcIp)
+                        val dst = ipFromSbe(nat.keyDstIpType, nat.keyDstIp)
+                        val proto = nat.keyProtocol.toByte
+                        if (hash == 0) {
+                            hash = FlowMatch.symmetricConnectionHash(
+                                src, nat.keySrcPort, dst, nat.keyDstPort, proto)
+                        }
+                        val translated = ConnectionAffinity.translatedHash(
+                            natKeyTypeFromSbe(nat.keyType), src, nat.keySrcPort,
+                            dst, nat.keyDstPort, proto,
+                            ipFromSbe(nat.valueIpType, nat.valueIp),
+                            nat.valuePort)
+                        if (translated != 0) {
+                            affinity.register(translated,
+                                              affinity.workerFor(hash, NUM_WORKERS))
+                        }
                     }
-                    submitted
-                } else {
-                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                    workers(worker).submit(data)
+                    if (hash != 0) hash else data.getMatch.connectionHash
+                } catch {
+                    case NonFatal(e) =>
+                        log.debug("Failed to decode flow state message", e)
+                        data.getMatch.connectionHash
                 }
             }
         }
@@ -200,7 +240,9 @@ abstract class UpcallDatapathConnectionManagerBase(
 class OneToOneDpConnManager(c: MidolmanConfig,
                             workers: IndexedSeq[PacketWorker],
                             tbPolicy: TokenBucketPolicy,
-                            metrics: MetricRegistry)
+                            metrics: MetricRegistry,
+                            affinity: ConnectionAffinity =
+                                ConnectionAffinity.Disabled)
         extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
 
     protected override val log = LoggerFactory.getLogger(this.getClass)
@@ -215,7 +257,7 @@ class OneToOneDpConnManager(c: MidolmanConfig,
     }
 
     protected override def setUpcallHandler(conn: OvsDatapathConnection) {
-        conn.datapathsSetNotificationHandler(makeUpcallHandler(workers))
+        conn.datapathsSetNotificationHandler(makeUpcallHandler(workers, affinity))
     }
 }
 
@@ -226,7 +268,9 @@ class OneToOneDpConnManager(c: MidolmanConfig,
 class OneToManyDpConnManager(c: MidolmanConfig,
                              workers: IndexedSeq[PacketWorker],
                              tbPolicy: TokenBucketPolicy,
-                             metrics: MetricRegistry)
+                             metrics: MetricRegistry,
+                             affinity: ConnectionAffinity =
+                                 ConnectionAffinity.Disabled)
         extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
 
     val threadPair = new SelectorThreadPair("upcall", config, false, metrics)
@@ -261,7 +305,7 @@ class OneToManyDpConnManager(c: MidolmanConfig,
         lock.lock()
         try {
             if (upcallHandler == null) {
-                upcallHandler = makeUpcallHandler(workers)
+                upcallHandler = makeUpcallHandler(workers, affinity)
                 threadPair.getReadLoop.setEndOfLoopCallback(new Runnable {
                     override def run() {
                         upcallHandler.endBatch()
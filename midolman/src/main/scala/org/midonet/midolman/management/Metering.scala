@@ -17,6 +17,7 @@ package org.midonet.midolman.management
 
 import java.lang.management._
 import java.util
+import java.util.concurrent.TimeUnit
 
 import javax.management._
 
@@ -26,12 +27,16 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.management.{FlowMeters, FlowStats, MeteringMXBean}
 import org.midonet.midolman.monitoring.MeterRegistry
+import org.midonet.util.concurrent.Executors
+import org.midonet.util.functors.makeRunnable
 
 object Metering extends MeteringMXBean {
     private val Log =
         Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
 
-    private var registries = List[MeterRegistry]()
+    private final val AggregationIntervalMillis = 1000L
+
+    @volatile private var registries = List[MeterRegistry]()
     @volatile private var flowMeters: Array[FlowMeters] = _
 
     override def listMeters = {
@@ -88,6 +93,7 @@ object Metering extends MeteringMXBean {
         try {
             registries :+= meters
             if (registries.size == 1) {
+                startAggregation()
                 ManagementFactory.getPlatformMBeanServer.registerMBean(this,
                     new ObjectName(MeteringMXBean.NAME))
             }
@@ -96,4 +102,17 @@ object Metering extends MeteringMXBean {
                 Log.error("Failed to register metering JMX bean", e)
         }
     }
+
+    /**
+     * Periodically aggregates the meter counters of the packet workers into
+     * the JMX-visible meters of every registry.
+     */
+    private def startAggregation(): Unit = {
+        val executor = Executors.singleThreadScheduledExecutor(
+            "meter-aggregator", isDaemon = true, Executors.CallerRunsPolicy)
+        executor.scheduleWithFixedDelay(makeRunnable {
+            registries foreach { _.aggregate() }
+        }, AggregationIntervalMillis, AggregationIntervalMillis,
+           TimeUnit.MILLISECONDS)
+    }
 }
@@ -19,6 +19,7 @@ import java.io.IOException
 import java.net.{InetSocketAddress, StandardSocketOptions}
 import java.nio.ByteBuffer
 import java.nio.channels.SocketChannel
+import java.nio.file.Paths
 import java.util.concurrent.atomic.AtomicReference
 import java.util.concurrent.{Executors, TimeUnit}
 
@@ -26,7 +27,7 @@ import scala.concurrent.duration.Duration
 import scala.util.control.NonFatal
 import scala.util.{Random, Try}
 
-import com.google.common.util.concurrent.{AbstractService, RateLimiter}
+import com.google.common.util.concurrent.{AbstractService, RateLimiter, Service}
 import com.google.protobuf.CodedOutputStream
 import com.lmax.disruptor._
 import com.typesafe.scalalogging.Logger
@@ -51,7 +52,11 @@ object FlowSenderWorker {
     def apply(config: MidolmanConfig, backend: MidonetBackend) = {
         if (config.flowHistory.enabled &&
             config.flowHistory.endpointService.nonEmpty) {
-            new DisruptorFlowSenderWorker(config.flowHistory, backend)
+            if (config.flowHistory.spoolDirectory.nonEmpty) {
+                new SpoolFlowSenderWorker(config.flowHistory, backend)
+            } else {
+                new DisruptorFlowSenderWorker(config.flowHistory, backend)
+            }
         } else {
             NullFlowSenderWorker
         }
@@ -76,9 +81,12 @@ object NullFlowSenderWorker extends FlowSenderWorker {
   * Class responsible for sending flow records via TCP.
   */
 class DisruptorFlowSenderWorker(config: FlowHistoryConfig,
-                                backend: MidonetBackend)
+                                handler: EventHandler[ByteBuffer] with Service)
     extends FlowSenderWorker {
 
+    def this(config: FlowHistoryConfig, backend: MidonetBackend) =
+        this(config, new FlowSender(config, backend))
+
     private val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
 
     private val executor = Executors.newSingleThreadExecutor(
@@ -89,10 +97,8 @@ class DisruptorFlowSenderWorker(config: FlowHistoryConfig,
         Util.findNextPositivePowerOfTwo(config.queueSize),
         new BlockingWaitStrategy)
 
-    private val flowSender = new FlowSender(config, backend)
-
     private val eventProcessor = new BatchEventProcessor(
-        ringBuffer, ringBuffer.newBarrier(), flowSender)
+        ringBuffer, ringBuffer.newBarrier(), handler)
 
     ringBuffer.addGatingSequences(eventProcessor.getSequence)
 
@@ -116,7 +122,7 @@ class DisruptorFlowSenderWorker(config: FlowHistoryConfig,
     }
 
     override def doStart(): Unit = {
-        flowSender.startAsync().awaitRunning()
+        handler.startAsync().awaitRunning()
         executor.submit(makeRunnable {
             eventProcessor.run()
         })
@@ -132,11 +138,23 @@ class DisruptorFlowSenderWorker(config: FlowHistoryConfig,
             executor.shutdownNow()
         }
 
-        flowSender.stopAsync().awaitTerminated()
+        handler.stopAsync().awaitTerminated()
         notifyStopped()
     }
 }
 
+/**
+  * Flow sender worker that appends the flow records to a local [[FlowSpool]],
+  * from where they are shipped to the endpoint, such that the records are not
+  * dropped while the endpoint is slow or unavailable.
+  */
+class SpoolFlowSenderWorker(config: FlowHistoryConfig, backend: MidonetBackend)
+    extends DisruptorFlowSenderWorker(
+        config, new FlowSpool(Paths.get(config.spoolDirectory),
+                              config.spoolSegmentSize,
+                              config.spoolMaxSegments,
+                              new FlowSender(config, backend)))
+
 class FlowSender(config: FlowHistoryConfig, backend: MidonetBackend)
     extends AbstractService with EventHandler[ByteBuffer] {
 
@@ -177,6 +195,28 @@ class FlowSender(config: FlowHistoryConfig, backend: MidonetBackend)
         }
     }
 
+    /**
+      * Sends a record to the current endpoint, and returns false if there is
+      * no endpoint or if sending the record failed, such that the caller may
+      * retry sending the record later.
+      */
+    def trySend(buffer: ByteBuffer): Boolean = {
+        if (endpoint.orElse(maybeChangeEndpoint()).isEmpty) {
+            return false
+        }
+        try {
+            sendRecord(buffer)
+            true
+        } catch {
+            case ex: IOException =>
+                close()
+                invalidateEndpoint()
+                log.info("Error sending flow record to endpoint: {}",
+                         ex.getMessage)
+                false
+        }
+    }
+
     override def doStart(): Unit = {
         clioDiscoveryClient =
             backend.discovery.getClient[MidonetServiceHostAndPort](
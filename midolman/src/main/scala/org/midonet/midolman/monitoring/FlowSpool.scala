@@ -0,0 +1,451 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring
+
+import java.io._
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.file._
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util.concurrent.{Executors, TimeUnit}
+import java.util.zip.{Deflater, DeflaterOutputStream, InflaterInputStream}
+
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+import com.google.common.util.concurrent.AbstractService
+import com.lmax.disruptor.EventHandler
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.makeRunnable
+
+object FlowSpool {
+    final val Magic = 0x4d4e4653 // MNFS
+    final val Version = 1
+    final val HeaderSize = 8
+
+    final val SegmentSuffix = ".seg"
+    final val CompressedSuffix = ".seg.z"
+    final val CheckpointFile = "checkpoint"
+
+    private final val IdleIntervalMillis = 100L
+    private final val CheckpointIntervalMillis = 1000L
+
+    private def segmentName(segment: Int, suffix: String): String =
+        f"$segment%010d$suffix"
+
+    private def segmentOf(path: Path): Int = {
+        val name = path.getFileName.toString
+        val end = name.indexOf('.')
+        if (end > 0 && (name.endsWith(SegmentSuffix) ||
+                        name.endsWith(CompressedSuffix))) {
+            try name.substring(0, end).toInt
+            catch { case _: NumberFormatException => -1 }
+        } else -1
+    }
+}
+
+/**
+  * A local spool for the flow records, used as the event handler of the flow
+  * sender ring buffer instead of sending the records directly to the flow
+  * history endpoint.
+  *
+  * The ring buffer consumer appends the records to memory-mapped segment files
+  * of fixed size in the spool directory, such that the packet workers never
+  * wait for the endpoint. Each record is written as its length followed by
+  * its bytes, and a zero length marks the end of the written records. When a
+  * segment is full, it is sealed and a new segment is created. At most
+  * `maxSegments` segments are retained, and the oldest segments are discarded
+  * when the endpoint cannot keep up.
+  *
+  * A shipper thread drains the segments in order to the endpoint with the
+  * given [[FlowSender]]. A record that cannot be sent is retried until the
+  * endpoint accepts it, while the records accumulate in the spool. While
+  * waiting for the endpoint, the shipper compresses the sealed segments. The
+  * position of the shipper is saved periodically to a checkpoint file, such
+  * that an agent restart resumes shipping from the last checkpoint: records
+  * shipped after the checkpoint may be sent again.
+  */
+class FlowSpool(directory: Path, segmentSize: Int, maxSegments: Int,
+                sender: FlowSender)
+    extends AbstractService with EventHandler[ByteBuffer] {
+
+    import FlowSpool._
+
+    private val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
+
+    private val executor = Executors.newSingleThreadExecutor(
+        new NamedThreadFactory("flow-history-shipper", true))
+
+    // Writer state, accessed only by the ring buffer consumer.
+    private var segment = -1
+    private var buffer: MappedByteBuffer = null
+
+    // The current segment in the upper 32 bits, and the position of the
+    // written records in the lower 32 bits.
+    @volatile private var published = 0L
+
+    // Shipper state, accessed only by the shipper thread.
+    private var readSegment = -1
+    private var readBuffer: ByteBuffer = null
+    private var checkpointOffset = HeaderSize
+    private var lastCheckpoint = 0L
+
+    @volatile private var running = false
+
+    override def onEvent(event: ByteBuffer, sequence: Long,
+                         endOfBatch: Boolean): Unit = {
+        try {
+            append(event)
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Failed to spool flow record", e)
+        }
+    }
+
+    override def doStart(): Unit = {
+        Files.createDirectories(directory)
+        segment = segments().lastOption.getOrElse(0)
+        rotate()
+        readCheckpoint()
+        running = true
+        sender.startAsync().awaitRunning()
+        executor.submit(makeRunnable { ship() })
+        notifyStarted()
+    }
+
+    override def doStop(): Unit = {
+        running = false
+        executor.shutdown()
+        if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            executor.shutdownNow()
+        }
+        if (buffer ne null) {
+            buffer.force()
+        }
+        sender.stopAsync().awaitTerminated()
+        notifyStopped()
+    }
+
+    /**
+      * Appends a record to the current segment, rotating the segment if the
+      * record does not fit.
+      */
+    private def append(record: ByteBuffer): Unit = {
+        val length = record.remaining()
+        if (HeaderSize + length + 8 > segmentSize) {
+            log.warn(s"Flow record of $length bytes exceeds the spool " +
+                     "segment size: record dropped")
+            return
+        }
+        // Leave room for the zero length that ends the records.
+        if (buffer.remaining() < length + 8) {
+            rotate()
+        }
+        val position = buffer.position()
+        buffer.position(position + 4)
+        buffer.put(record)
+        // The length is written last, such that the shipper never reads a
+        // partially written record.
+        buffer.putInt(position, length)
+        published = (segment.toLong << 32) | buffer.position()
+    }
+
+    private def rotate(): Unit = {
+        if (buffer ne null) {
+            buffer.force()
+        }
+        segment += 1
+        val channel = FileChannel.open(path(segment, SegmentSuffix),
+                                       StandardOpenOption.CREATE_NEW,
+                                       StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE)
+        try buffer = channel.map(MapMode.READ_WRITE, 0, segmentSize)
+        finally channel.close()
+        buffer.putInt(Magic)
+        buffer.putInt(Version)
+        published = (segment.toLong << 32) | buffer.position()
+
+        // Discard the oldest segments beyond the retention limit.
+        val all = segments()
+        if (all.size > maxSegments) {
+            for (discarded <- all.take(all.size - maxSegments)) {
+                log.warn(s"Flow history spool full: discarding segment " +
+                         s"$discarded")
+                delete(discarded)
+            }
+        }
+    }
+
+    /**
+      * The shipper loop: sends the spooled records in order, and compresses
+      * the sealed segments while there are no records to send or while the
+      * endpoint is not available.
+      */
+    private def ship(): Unit = try {
+        while (running) {
+            try {
+                val record = nextRecord()
+                if (record eq null) {
+                    idle()
+                } else {
+                    while (running && !sender.trySend(record.duplicate())) {
+                        idle()
+                    }
+                    if (running) {
+                        readBuffer.position(record.limit())
+                        maybeCheckpoint()
+                    }
+                }
+            } catch {
+                case _: InterruptedException =>
+                    running = false
+                case NonFatal(e) =>
+                    log.warn("Failed to ship spooled flow records", e)
+                    readBuffer = null
+                    Thread.sleep(IdleIntervalMillis)
+            }
+        }
+    } finally {
+        writeCheckpoint()
+    }
+
+    private def idle(): Unit = {
+        if (!compressNext()) {
+            Thread.sleep(IdleIntervalMillis)
+        }
+    }
+
+    /**
+      * Returns a buffer with the next record to ship, or null if there are no
+      * records available. The record is consumed by advancing the read buffer
+      * to the limit of the returned buffer.
+      */
+    private def nextRecord(): ByteBuffer = {
+        while (true) {
+            val current = published
+            val writeSegment = (current >>> 32).toInt
+            if (readBuffer eq null) {
+                if (!openSegment(writeSegment)) {
+                    return null
+                }
+            }
+            val limit =
+                if (readSegment < writeSegment) readBuffer.limit()
+                else current.toInt
+            val position = readBuffer.position()
+            val length =
+                if (position + 4 <= limit) readBuffer.getInt(position) else 0
+            if (length > 0) {
+                val record = readBuffer.duplicate()
+                record.position(position + 4)
+                record.limit(position + 4 + length)
+                return record
+            }
+            if (readSegment >= writeSegment) {
+                return null
+            }
+            // The sealed segment was shipped: move to the next segment.
+            val shipped = readSegment
+            readSegment += 1
+            readBuffer = null
+            writeCheckpoint()
+            delete(shipped)
+        }
+        null
+    }
+
+    /**
+      * Opens the first available segment starting with the current read
+      * segment, positioned at the checkpoint offset if any.
+      */
+    private def openSegment(writeSegment: Int): Boolean = {
+        // Only the segments whose header was published can be read.
+        val available =
+            segments().filter(s => s >= readSegment && s <= writeSegment)
+        if (available.isEmpty) {
+            return false
+        }
+        val offset =
+            if (available.head == readSegment) checkpointOffset else HeaderSize
+        readSegment = available.head
+        checkpointOffset = HeaderSize
+
+        val compressed = path(readSegment, CompressedSuffix)
+        val data =
+            if (Files.exists(compressed)) {
+                inflate(compressed)
+            } else {
+                val channel = FileChannel.open(path(readSegment, SegmentSuffix),
+                                               StandardOpenOption.READ)
+                try channel.map(MapMode.READ_ONLY, 0, channel.size())
+                finally channel.close()
+            }
+        if (data.limit() < HeaderSize || data.getInt(0) != Magic ||
+            data.getInt(4) != Version) {
+            log.warn(s"Discarding invalid flow history segment $readSegment")
+            if (readSegment < writeSegment) {
+                delete(readSegment)
+                readSegment += 1
+            }
+            return false
+        }
+        data.position(Math.min(offset, data.limit()))
+        readBuffer = data
+        true
+    }
+
+    private def maybeCheckpoint(): Unit = {
+        val now = System.currentTimeMillis()
+        if (now - lastCheckpoint >= CheckpointIntervalMillis) {
+            writeCheckpoint()
+            lastCheckpoint = now
+        }
+    }
+
+    private def readCheckpoint(): Unit = {
+        val file = directory.resolve(CheckpointFile)
+        readSegment = segments().headOption.getOrElse(segment)
+        if (Files.exists(file)) try {
+            val in = new DataInputStream(Files.newInputStream(file))
+            try {
+                val savedSegment = in.readInt()
+                val savedOffset = in.readInt()
+                if (savedSegment >= readSegment) {
+                    readSegment = savedSegment
+                    checkpointOffset = Math.max(savedOffset, HeaderSize)
+                }
+            } finally {
+                in.close()
+            }
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Failed to read the flow history spool checkpoint", e)
+        }
+    }
+
+    private def writeCheckpoint(): Unit = {
+        val file = directory.resolve(CheckpointFile)
+        val temp = directory.resolve(CheckpointFile + ".tmp")
+        try {
+            val out = new DataOutputStream(Files.newOutputStream(temp))
+            try {
+                out.writeInt(readSegment)
+                out.writeInt(if (readBuffer ne null) readBuffer.position()
+                             else HeaderSize)
+            } finally {
+                out.close()
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE)
+        } catch {
+            case NonFatal(e) =>
+                log.warn("Failed to write the flow history spool checkpoint", e)
+        }
+    }
+
+    /**
+      * Compresses the oldest sealed segment that is not compressed and that
+      * is not being shipped, and returns false if there is no such segment.
+      */
+    private def compressNext(): Boolean = {
+        val writeSegment = (published >>> 32).toInt
+        val candidate = segments().find { s =>
+            s < writeSegment && s != readSegment &&
+            !Files.exists(path(s, CompressedSuffix))
+        }
+        candidate match {
+            case Some(s) => compress(s); true
+            case None => false
+        }
+    }
+
+    private def compress(s: Int): Unit = {
+        val source = path(s, SegmentSuffix)
+        val target = path(s, CompressedSuffix)
+        val temp = directory.resolve(segmentName(s, ".tmp"))
+        try {
+            val channel = FileChannel.open(source, StandardOpenOption.READ)
+            val data = try channel.map(MapMode.READ_ONLY, 0, channel.size())
+                       finally channel.close()
+            // Compress only the written records.
+            var end = HeaderSize
+            while (end + 4 <= data.limit() && data.getInt(end) > 0) {
+                end += 4 + data.getInt(end)
+            }
+            val bytes = new Array[Byte](end)
+            data.get(bytes)
+
+            val out = new DeflaterOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)),
+                new Deflater(Deflater.BEST_SPEED))
+            try out.write(bytes) finally out.close()
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE)
+            // If the retention discarded the segment before the move, the
+            // compressed segment would outlive it: discard it as well.
+            if (Files.deleteIfExists(source)) {
+                log.debug(s"Compressed flow history segment $s")
+            } else {
+                Files.deleteIfExists(target)
+                log.debug(s"Flow history segment $s discarded while " +
+                          "compressing")
+            }
+        } catch {
+            case _: NoSuchFileException =>
+                // The segment was discarded while compressing.
+                Files.deleteIfExists(temp)
+                Files.deleteIfExists(target)
+            case NonFatal(e) =>
+                log.warn(s"Failed to compress flow history segment $s", e)
+                Files.deleteIfExists(temp)
+        }
+    }
+
+    private def inflate(file: Path): ByteBuffer = {
+        val in = new InflaterInputStream(
+            new BufferedInputStream(Files.newInputStream(file)))
+        try {
+            val out = new ByteArrayOutputStream(segmentSize / 4)
+            val chunk = new Array[Byte](8192)
+            var read = 0
+            while ({ read = in.read(chunk); read } >= 0) {
+                out.write(chunk, 0, read)
+            }
+            ByteBuffer.wrap(out.toByteArray)
+        } finally {
+            in.close()
+        }
+    }
+
+    /** The sorted numbers of the segments in the spool directory. */
+    private def segments(): Seq[Int] = {
+        val stream = Files.newDirectoryStream(directory)
+        try stream.asScala.map(segmentOf).filter(_ >= 0).toSeq.distinct.sorted
+        finally stream.close()
+    }
+
+    private def delete(s: Int): Unit = {
+        Files.deleteIfExists(path(s, SegmentSuffix))
+        Files.deleteIfExists(path(s, CompressedSuffix))
+    }
+
+    private def path(s: Int, suffix: String): Path =
+        directory.resolve(segmentName(s, suffix))
+}
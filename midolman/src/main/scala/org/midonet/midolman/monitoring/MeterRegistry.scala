@@ -15,30 +15,100 @@
  */
 package org.midonet.midolman.monitoring
 
+import java.util.ArrayList
 import java.util.concurrent.ConcurrentHashMap
-import java.util.{ArrayList, HashMap => JHashMap}
 
 import com.typesafe.scalalogging.Logger
 
 import org.slf4j.LoggerFactory
 
-import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows.FlowStats
 import org.midonet.sdn.flows.FlowTagger.{FlowTag, MeterTag}
 import org.midonet.util.collection.ArrayObjectPool
 import org.midonet.management.{FlowStats => JmxFlowStats}
 
+object MeterRegistry {
+
+    private val ids = new ConcurrentHashMap[String, Integer]()
+    @volatile private var names = new Array[String](64)
+    private var count = 0
+
+    /**
+     * Returns the integer identifier of the meter for the given tag. The
+     * identifiers are global to all registries, and they are cached in the
+     * meter tags, such that a meter name is interned only once.
+     */
+    def meterId(meter: MeterTag): Int = {
+        var id = meter.meterId
+        if (id < 0) {
+            id = intern(meter.meterName)
+            meter.meterId = id
+        }
+        id
+    }
+
+    /** Returns the name of the meter with the given identifier. */
+    def meterName(id: Int): String = {
+        val current = names
+        if (id < current.length) current(id) else null
+    }
+
+    private def intern(name: String): Int = {
+        val id = ids.get(name)
+        if (id ne null) {
+            return id
+        }
+        synchronized {
+            val id = ids.get(name)
+            if (id ne null) {
+                return id
+            }
+            var current = names
+            if (count == current.length) {
+                current = java.util.Arrays.copyOf(current, count * 2)
+            }
+            current(count) = name
+            names = current
+            ids.put(name, count)
+            count += 1
+            count - 1
+        }
+    }
+
+}
+
+/**
+ * Accounts the packets and bytes of the meters of the flows installed by a
+ * packet worker. The meters are interned to integer identifiers when the
+ * flows are created, and the worker accumulates their counters in a primitive
+ * array, such that the per-packet cost is a couple of array increments. The
+ * counters are copied to the JMX-visible [[meters]] by [[aggregate]], which
+ * is called periodically from a background thread.
+ *
+ * The tracked flows are keyed by their mark, which is unique per worker.
+ */
 class MeterRegistry(val maxFlows: Int) {
+    import MeterRegistry._
+
     val log = Logger(LoggerFactory.getLogger("org.midonet.metering"))
 
     class FlowData {
-        val meters = new ArrayList[MeterTag](8)
+        var meterIds = new Array[Int](8)
+        var meterCount = 0
         val stats = new FlowStats()
 
+        def add(id: Int): Unit = {
+            if (meterCount == meterIds.length) {
+                meterIds = java.util.Arrays.copyOf(meterIds, meterCount * 2)
+            }
+            meterIds(meterCount) = id
+            meterCount += 1
+        }
+
         def reset() {
             stats.bytes = 0
             stats.packets = 0
-            meters.clear()
+            meterCount = 0
         }
     }
 
@@ -46,11 +116,20 @@ class MeterRegistry(val maxFlows: Int) {
                                                               pool => new FlowData())
 
     val meters = new ConcurrentHashMap[String, JmxFlowStats]()
-    private val trackedFlows = new JHashMap[FlowMatch, FlowData]()
+
+    // The packets and bytes of every meter, at the indices 2 * id and
+    // 2 * id + 1, written only by the worker thread.
+    @volatile private var counters = new Array[Long](128)
+
+    // An open-addressing table of the tracked flows, keyed by the flow mark.
+    private var flowMarks = new Array[Int](tableSize(maxFlows))
+    private var flows = new Array[FlowData](flowMarks.length)
+    private var trackedFlows = 0
+
     private val DELTA = new FlowStats()
 
-    def trackFlow(flowMatch: FlowMatch, tags: ArrayList[FlowTag]): Unit = {
-        if (trackedFlows.containsKey(flowMatch))
+    def trackFlow(mark: Int, tags: ArrayList[FlowTag]): Unit = {
+        if (indexOf(mark) >= 0)
             return
 
         var metadata = metadataPool.take
@@ -63,68 +142,179 @@ class MeterRegistry(val maxFlows: Int) {
         while (i < tags.size()) {
             tags.get(i) match {
                 case meter: MeterTag =>
-                    metadata.meters add meter
-                    if (meters.containsKey(meter.meterName)) {
-                        log.debug(s"tracking a new flow for meter ${meter.meterName}")
-                    } else {
-                        meters.put(meter.meterName, new JmxFlowStats())
-                        log.debug(s"discovered a new meter: ${meter.meterName}")
+                    val id = meterId(meter)
+                    metadata.add(id)
+                    ensureCounters(id)
+                    if (!meters.containsKey(meter.meterName)) {
+                        meters.putIfAbsent(meter.meterName, new JmxFlowStats())
+                        log.debug("discovered a new meter: {}", meter.meterName)
                     }
                 case _ => // Do nothing
             }
             i += 1
         }
 
-        log.debug(s"new flow is associated with ${metadata.meters.size} meters")
-        if (metadata.meters.size() > 0)
-            trackedFlows.put(flowMatch, metadata)
+        if (metadata.meterCount > 0)
+            put(mark, metadata)
         else
             metadataPool.offer(metadata)
     }
 
     def recordPacket(packetLen: Int, tags: ArrayList[FlowTag]): Unit = {
-        DELTA.packets = 1
-        DELTA.bytes = packetLen
-
         var i = 0
         while (i < tags.size()) {
             tags.get(i) match {
                 case meter: MeterTag =>
-                    if (meters.containsKey(meter.meterName)) {
-                        log.debug(s"adding a packet to meter: ${meter.meterName}")
-                        meters.get(meter.meterName).add(DELTA.packets, DELTA.bytes)
-                    } else {
-                        meters.put(meter.meterName, new JmxFlowStats(DELTA.packets, DELTA.bytes))
-                        log.debug(s"discovered a new meter: ${meter.meterName}")
-                    }
+                    val id = meterId(meter)
+                    val c = ensureCounters(id)
+                    c(2 * id) += 1
+                    c(2 * id + 1) += packetLen
                 case _ => // Do nothing
             }
             i += 1
         }
     }
 
-    def updateFlow(flowMatch: FlowMatch, stats: FlowStats): Unit = {
-        val metadata = trackedFlows.get(flowMatch)
-        if (metadata ne null) {
+    def updateFlow(mark: Int, stats: FlowStats): Unit = {
+        val index = indexOf(mark)
+        if (index >= 0) {
+            val metadata = flows(index)
             metadata.stats.updateAndGetDelta(stats, DELTA)
             if (DELTA.packets < 0) {
                 metadata.stats.packets = 0
                 metadata.stats.bytes = 0
                 metadata.stats.updateAndGetDelta(stats, DELTA)
             }
+            val c = counters
             var i = 0
-            while (i < metadata.meters.size()) {
-                val meterName = metadata.meters.get(i).meterName
-                log.debug(s"meter $meterName got ${DELTA.bytes} bytes / ${DELTA.packets} packets")
-                meters.get(meterName).add(DELTA.packets, DELTA.bytes)
+            while (i < metadata.meterCount) {
+                val id = metadata.meterIds(i)
+                c(2 * id) += DELTA.packets
+                c(2 * id + 1) += DELTA.bytes
                 i += 1
             }
         }
     }
 
-    def forgetFlow(flowMatch: FlowMatch) {
-        val metadata = trackedFlows.remove(flowMatch)
-        if (metadata ne null)
-            metadataPool.offer(metadata)
+    /** Whether the meters of the flow with the given mark are tracked. */
+    def isTracked(mark: Int): Boolean = indexOf(mark) >= 0
+
+    def forgetFlow(mark: Int) {
+        val index = indexOf(mark)
+        if (index >= 0) {
+            metadataPool.offer(flows(index))
+            remove(index)
+        }
+    }
+
+    /**
+     * Copies the meter counters accumulated by the worker to the JMX-visible
+     * meters. The copy may miss the latest increments of the worker, which
+     * are published by the next aggregation.
+     */
+    def aggregate(): Unit = synchronized {
+        val c = counters
+        var id = 0
+        while (2 * id < c.length) {
+            val packets = c(2 * id)
+            if (packets != 0) {
+                val name = meterName(id)
+                var stats = meters.get(name)
+                if (stats eq null) {
+                    meters.putIfAbsent(name, new JmxFlowStats())
+                    stats = meters.get(name)
+                }
+                stats.packets = packets
+                stats.bytes = c(2 * id + 1)
+            }
+            id += 1
+        }
+    }
+
+    private def ensureCounters(id: Int): Array[Long] = {
+        val c = counters
+        if (2 * id + 1 < c.length) {
+            c
+        } else {
+            var length = c.length
+            while (2 * id + 1 >= length) {
+                length *= 2
+            }
+            val grown = java.util.Arrays.copyOf(c, length)
+            counters = grown
+            grown
+        }
+    }
+
+    private def tableSize(entries: Int): Int = {
+        var size = 16
+        while (size < entries * 2) {
+            size *= 2
+        }
+        size
+    }
+
+    @inline private def slotOf(mark: Int, mask: Int): Int = {
+        val hash = mark * 0x9e3779b9
+        (hash ^ (hash >>> 16)) & mask
+    }
+
+    private def indexOf(mark: Int): Int = {
+        val mask = flows.length - 1
+        var index = slotOf(mark, mask)
+        while (flows(index) ne null) {
+            if (flowMarks(index) == mark)
+                return index
+            index = (index + 1) & mask
+        }
+        -1
+    }
+
+    private def put(mark: Int, metadata: FlowData): Unit = {
+        if (2 * (trackedFlows + 1) > flows.length) {
+            resize(flows.length * 2)
+        }
+        val mask = flows.length - 1
+        var index = slotOf(mark, mask)
+        while (flows(index) ne null) {
+            index = (index + 1) & mask
+        }
+        flowMarks(index) = mark
+        flows(index) = metadata
+        trackedFlows += 1
+    }
+
+    private def remove(index: Int): Unit = {
+        // Shifts back the entries following the removed entry, such that the
+        // probe sequences of the remaining entries have no gaps.
+        val mask = flows.length - 1
+        var hole = index
+        var next = (index + 1) & mask
+        while (flows(next) ne null) {
+            val slot = slotOf(flowMarks(next), mask)
+            if (((next - slot) & mask) >= ((next - hole) & mask)) {
+                flowMarks(hole) = flowMarks(next)
+                flows(hole) = flows(next)
+                hole = next
+            }
+            next = (next + 1) & mask
+        }
+        flows(hole) = null
+        trackedFlows -= 1
+    }
+
+    private def resize(size: Int): Unit = {
+        val oldMarks = flowMarks
+        val oldFlows = flows
+        flowMarks = new Array[Int](size)
+        flows = new Array[FlowData](size)
+        trackedFlows = 0
+        var index = 0
+        while (index < oldFlows.length) {
+            if (oldFlows(index) ne null) {
+                put(oldMarks(index), oldFlows(index))
+            }
+            index += 1
+        }
     }
 }
@@ -38,5 +38,11 @@ class DatapathMetrics(val registry: MetricRegistry) {
     val flowDeleteErrors = registry.meter(
         name(classOf[DatapathMeter], "flows", "deleteErrors"))
 
+    val flowsPerWrite = registry.histogram(
+        name(classOf[DatapathMeter], "flows", "createsPerWrite"))
+
+    val flowWriteLatency = registry.timer(
+        name(classOf[DatapathMeter], "flows", "createWriteLatency"))
+
 }
 
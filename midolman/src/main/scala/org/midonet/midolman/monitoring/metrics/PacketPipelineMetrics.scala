@@ -18,12 +18,22 @@ package org.midonet.midolman.monitoring.metrics
 
 import java.util.concurrent.TimeUnit
 
-import com.codahale.metrics.{Clock, Gauge, MetricRegistry, Timer}
+import com.codahale.metrics.{Clock, Gauge, Metric, MetricFilter, MetricRegistry, Timer}
 import com.codahale.metrics.MetricRegistry.name
 
 import org.midonet.util.metrics.HdrHistogramSlidingTimeWindowReservoir
 
+object PacketPipelineMetrics {
+    private val DispatchedFilter = new MetricFilter {
+        override def matches(name: String, metric: Metric): Boolean =
+            name.startsWith(classOf[PacketPipelineMeter].getName) &&
+            name.endsWith(".packetsDispatched")
+    }
+}
+
 class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
+    import PacketPipelineMetrics._
+
     val workerTag = s"worker-$workerId"
 
     val packetsOnHold = registry.counter(
@@ -69,6 +79,30 @@ class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
     val workerQueueOverflow = registry.meter(
         name(classOf[PacketPipelineMeter], workerTag, "packetQueue", "overflow"))
 
+    val packetsDispatched = registry.meter(
+        name(classOf[PacketPipelineMeter], workerTag, "packetsDispatched"))
+
+    /* Ratio between the rate of packets dispatched to this worker and the
+     * mean rate across all workers: 1.0 means a perfectly balanced load, and
+     * it is also reported when no packets are being dispatched.
+     */
+    val loadImbalance = registry.register(
+        name(classOf[PacketPipelineGauge], workerTag, "loadImbalance"),
+        new Gauge[Double] {
+            override def getValue: Double = {
+                val meters = registry.getMeters(DispatchedFilter).values.iterator
+                var total = 0.0
+                var count = 0
+                while (meters.hasNext) {
+                    total += meters.next().getOneMinuteRate
+                    count += 1
+                }
+                val mean = if (count > 0) total / count else 0.0
+                if (mean > 0.0) packetsDispatched.getOneMinuteRate / mean
+                else 1.0
+            }
+    })
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
@@ -83,4 +117,56 @@ class PacketExecutorMetrics(val registry: MetricRegistry, executorId: Int) {
         new Timer(new HdrHistogramSlidingTimeWindowReservoir(
                       5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
                       Clock.defaultClock)))
+
+    val messagesPerWrite = registry.histogram(
+        name(classOf[PacketPipelineHistogram], executorTag, "messagesPerWrite"))
+
+    val bytesPerWrite = registry.histogram(
+        name(classOf[PacketPipelineHistogram], executorTag, "bytesPerWrite"))
+}
+
+class NatLeaserMetrics(val registry: MetricRegistry) {
+
+    val bindingsPostponed = registry.meter(
+        name(classOf[PacketPipelineMeter], "nat", "bindingsPostponed"))
+
+    val blocksPrefetched = registry.meter(
+        name(classOf[PacketPipelineMeter], "nat", "blocksPrefetched"))
+
+    val prefetchHits = registry.meter(
+        name(classOf[PacketPipelineMeter], "nat", "prefetchHits"))
+
+    val prefetchesExpired = registry.meter(
+        name(classOf[PacketPipelineMeter], "nat", "prefetchesExpired"))
+
+    /* Ratio between the prefetched NAT blocks that were used before they
+     * expired and all the prefetched NAT blocks.
+     */
+    val prefetchHitRatio = registry.register(
+        name(classOf[PacketPipelineGauge], "nat", "prefetchHitRatio"),
+        new Gauge[Double] {
+            override def getValue: Double = {
+                val prefetched = blocksPrefetched.getCount
+                if (prefetched > 0) prefetchHits.getCount.toDouble / prefetched
+                else 0.0
+            }
+    })
+}
+
+class ArpResolutionMetrics(val registry: MetricRegistry) {
+
+    val requestsSent = registry.meter(
+        name(classOf[PacketPipelineMeter], "arp", "requestsSent"))
+
+    /* ARP request loops that were not started because another worker was
+     * already resolving the same address for the same router.
+     */
+    val requestsSaved = registry.meter(
+        name(classOf[PacketPipelineMeter], "arp", "requestsSaved"))
+
+    val resolutionLatency = registry.register(
+        name(classOf[PacketPipelineHistogram], "arp", "resolutionLatency"),
+        new Timer(new HdrHistogramSlidingTimeWindowReservoir(
+                      5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
+                      Clock.defaultClock)))
 }
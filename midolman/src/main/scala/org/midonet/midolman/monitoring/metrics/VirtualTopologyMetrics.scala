@@ -159,3 +159,53 @@ class VirtualTopologyMetrics(registry: MetricRegistry,
     }
 
 }
+
+class TopologySnapshotMetrics(registry: MetricRegistry) {
+
+    @volatile private var age = -1L
+    @volatile private var objects = 0L
+    @volatile private var reconciliationTime = -1L
+
+    /* Age in milliseconds of the topology snapshot read when the agent
+     * started, or -1 if no snapshot was read.
+     */
+    val snapshotAgeGauge =
+        registry.register(name(classOf[VirtualTopologyGauge], "snapshotAge"),
+                          gauge(age))
+    val snapshotObjectsGauge =
+        registry.register(name(classOf[VirtualTopologyGauge],
+                               "snapshotObjects"),
+                          gauge(objects))
+    /* Time in milliseconds to reconcile all objects of the topology snapshot
+     * with storage, or -1 while the reconciliation is in progress.
+     */
+    val reconciliationTimeGauge =
+        registry.register(name(classOf[VirtualTopologyGauge],
+                               "snapshotReconciliationTime"),
+                          gauge(reconciliationTime))
+
+    val staleObjectsCounter =
+        registry.counter(name(classOf[VirtualTopologyCounter],
+                              "snapshotStaleObjects"))
+    val snapshotWriteHistogram =
+        registry.histogram(name(classOf[VirtualTopologyHistogram],
+                                "snapshotWrite"))
+
+    def snapshotRead(snapshotObjects: Int, snapshotAge: Long): Unit = {
+        objects = snapshotObjects
+        age = snapshotAge
+    }
+
+    def snapshotReconciled(time: Long): Unit = {
+        reconciliationTime = time
+    }
+
+    def snapshotWritten(latency: Long): Unit = {
+        snapshotWriteHistogram.update(latency)
+    }
+
+    private def gauge(f: => Long): Gauge[Long] = {
+        new Gauge[Long] { override def getValue = f }
+    }
+
+}
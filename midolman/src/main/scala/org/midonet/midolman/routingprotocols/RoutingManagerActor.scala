@@ -33,8 +33,9 @@ import org.midonet.cluster.models.Topology.{Port, ServiceContainer}
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.services.MidonetBackend.BgpKey
 import org.midonet.cluster.state.RoutingTableStorage._
+import org.midonet.cluster.state.RoutingTableWriter
 import org.midonet.containers.Containers
-import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.config.{MidolmanConfig, RouterConfig}
 import org.midonet.midolman.io.UpcallDatapathConnectionManager
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.logging.ActorLogWithoutPath
@@ -46,7 +47,7 @@ import org.midonet.midolman.topology.devices._
 import org.midonet.midolman.topology.{VirtualToPhysicalMapper, VirtualTopology}
 import org.midonet.midolman.{DatapathState, Referenceable, SimulationBackChannel}
 import org.midonet.util.concurrent.ReactiveActor.{OnCompleted, OnError}
-import org.midonet.util.concurrent.{ReactiveActor, toFutureOps}
+import org.midonet.util.concurrent.{Executors, ReactiveActor, toFutureOps}
 import org.midonet.util.eventloop.SelectLoop
 import org.midonet.util.functors._
 import org.midonet.util.reactivex._
@@ -66,28 +67,64 @@ object RoutingManagerActor extends Referenceable {
         : Future[Set[Route]]
     }
 
-    private[routingprotocols] class RoutingStorageImpl(storage: StateStorage)
+    /**
+     * Stores the routes learned by the routing handlers. If the configured
+     * chunk size is positive, the routes of every port are published in
+     * batches by a [[RoutingTableWriter]] in the chunked routing table format.
+     * Otherwise, every route is published as a separate state value, which is
+     * the format read by agents of previous versions.
+     */
+    private[routingprotocols] class RoutingStorageImpl(storage: StateStorage,
+                                                       config: RouterConfig)
         extends RoutingStorage {
+
+        private val executor =
+            if (config.bgpRouteChunkSize > 0)
+                Executors.singleThreadScheduledExecutor(
+                    "bgp-routes", isDaemon = true, Executors.CallerRunsPolicy)
+            else null
+        private val writers = new mutable.HashMap[UUID, RoutingTableWriter]
+
         override def setStatus(portId: UUID, status: String): Future[UUID] = {
             storage.addValue(classOf[Port], portId, BgpKey, status)
                    .map[UUID](makeFunc1(_ => portId))
                    .asFuture
         }
         override def addRoute(route: Route, portId: UUID): Future[Route] = {
-            storage.addRoute(route, Some(portId))
-                   .map[Route](makeFunc1(_ => route))
-                   .asFuture
+            if (executor ne null) {
+                writer(portId).addRoute(route)
+            } else {
+                storage.addRoute(route, Some(portId))
+                       .map[Route](makeFunc1(_ => route))
+                       .asFuture
+            }
         }
         override def removeRoute(route: Route, portId: UUID): Future[Route] = {
-            storage.removeRoute(route, Some(portId))
-                   .map[Route](makeFunc1(_ => route))
-                   .asFuture
+            if (executor ne null) {
+                writer(portId).removeRoute(route)
+            } else {
+                storage.removeRoute(route, Some(portId))
+                       .map[Route](makeFunc1(_ => route))
+                       .asFuture
+            }
         }
         override def learnedRoutes(routerId: UUID, portId: UUID, hostId: UUID)
         : Future[Set[Route]] = {
             storage.getPortRoutes(portId, hostId)
                    .asFuture
         }
+
+        def close(): Unit = {
+            if (executor ne null) {
+                executor.shutdownNow()
+            }
+        }
+
+        private def writer(portId: UUID): RoutingTableWriter = writers.synchronized {
+            writers.getOrElseUpdate(portId, new RoutingTableWriter(
+                storage, portId, executor, config.bgpRouteBatchInterval,
+                config.bgpRouteChunkSize, config.bgpRouteMaxDeltas))
+        }
     }
 
     private case class HandlerStop(portId: UUID, value: Boolean)
@@ -128,7 +165,7 @@ class RoutingManagerActor extends ReactiveActor[AnyRef]
     var flowInvalidator: SimulationBackChannel = null
     @Inject
     var dpState: DatapathState = null
-    var routingStorage: RoutingStorage = null
+    var routingStorage: RoutingStorageImpl = null
 
     private var bgpPortIdx = 0
 
@@ -229,13 +266,17 @@ class RoutingManagerActor extends ReactiveActor[AnyRef]
     override def preStart(): Unit = {
         super.preStart()
         selfRefPromise trySuccess self
-        routingStorage = new RoutingStorageImpl(backend.stateStore)
+        routingStorage = new RoutingStorageImpl(backend.stateStore,
+                                                config.router)
 
         portsSubscription add VirtualToPhysicalMapper.portsActive.subscribe(this)
     }
 
     override def postStop(): Unit = {
         portsSubscription.unsubscribe()
+        if (routingStorage ne null) {
+            routingStorage.close()
+        }
     }
 
     /** Stops the routing handler for the specified port identifier. Upon
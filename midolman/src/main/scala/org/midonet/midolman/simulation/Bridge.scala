@@ -279,10 +279,9 @@ class Bridge(val id: UUID,
             return tryGet(classOf[Port], toPort).action
         }
 
-        val vlanInFrame: Option[JShort] = context.ethernet.getVlanIDs match {
-            case l: java.util.List[_] if !l.isEmpty => Some(l.get(0))
-            case _ => None
-        }
+        val vlanInFrame: Option[JShort] =
+            if (context.view.vlanCount > 0) Some(context.view.vlanId(0))
+            else None
 
         vlanToPort.getVlan(toPort) match {
             case null => // the outbound port has no vlan assigned
@@ -352,8 +351,9 @@ class Bridge(val id: UUID,
 
         case p: BridgePort if p.isExterior =>
             // multicast from trunk, goes only to designated log. port
-            val vlanIds = context.ethernet.getVlanIDs
-            val vlanId = if (vlanIds.isEmpty) null else vlanIds.get(0)
+            val vlanId: JShort =
+                if (context.view.vlanCount == 0) null
+                else context.view.vlanId(0)
             // get interior port tagged with frame's vlan id
             vlanToPort.getPort(vlanId) match {
                 case null => // none, ordinary flood
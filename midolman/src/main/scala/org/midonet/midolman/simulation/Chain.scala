@@ -20,7 +20,7 @@ import java.util.{UUID, List => JList, Map => JMap}
 
 import com.google.common.annotations.VisibleForTesting
 
-import org.midonet.midolman.rules.{JumpRule, Rule, RuleResult}
+import org.midonet.midolman.rules.{Rule, RuleClassifier, RuleResult}
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
 import org.midonet.sdn.flows.FlowTagger
@@ -43,7 +43,8 @@ case class Chain(id: UUID,
                  jumpTargets: JMap[UUID, Chain],
                  name: String,
                  metadata: Array[Byte] = Chain.NoMetadata,
-                 ruleLoggers: Seq[RuleLogger] = Seq())
+                 ruleLoggers: Seq[RuleLogger] = Seq(),
+                 classifier: RuleClassifier = null)
     extends VirtualDevice with SimDevice {
     import Chain._
 
@@ -74,12 +75,29 @@ case class Chain(id: UUID,
 
         context.addFlowTag(deviceTag)
         traversedChains.add(id)
+        // When the chain is compiled, the rules that cannot match the packet
+        // are skipped without evaluating their conditions, but they are
+        // still recorded as traversed.
+        var candidates =
+            if (classifier ne null) classifier.candidates(context.wcmatch)
+            else null
+        var evaluated = false
+        var skippedFields = 0
         var i = 0
         var res = Continue
         while ((i < rules.size()) && (res.action eq Action.CONTINUE)) {
             val rule = rules.get(i)
+            if ((candidates eq null) ||
+                RuleClassifier.isCandidate(candidates, i)) {
+                res = rule.process(context)
+                evaluated = true
+            } else {
+                skippedFields |= classifier.fields(i)
+                context.recordMatchedRule(rule.id, false)
+                context.recordAppliedRule(rule.id, false)
+                res = Continue
+            }
             i += 1
-            res = rule.process(context)
 
             res.action match {
                 case Action.ACCEPT | Action.RETURN =>
@@ -105,8 +123,19 @@ case class Chain(id: UUID,
 
             if (res.action eq Action.JUMP)
                 res = jump(context, res.jumpToChain, traversedChains)
+
+            // A rule that continues may have rewritten the match, such as a
+            // NAT rule or the rules of a jump chain: the remaining rules are
+            // classified against the current header values.
+            if (evaluated && (candidates ne null) &&
+                (res.action eq Action.CONTINUE)) {
+                candidates = classifier.candidates(context.wcmatch)
+            }
+            evaluated = false
         }
         assert(res.action ne Action.JUMP)
+        if (skippedFields != 0)
+            RuleClassifier.markSeen(context.wcmatch, skippedFields)
         res
     }
 
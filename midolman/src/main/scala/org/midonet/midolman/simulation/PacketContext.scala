@@ -162,6 +162,7 @@ trait FlowContext extends Clearable { this: PacketContext =>
                               { udp src srcPort.toShort dst dstPort.toShort } <<
                               { vxlan vni vni setPayload recircPayload }
         packet.setEthernet(outer)
+        invalidateView()
         recircPayload.setParent(outer)
         // Forget original flow keys, and reset the original match to
         // the encapsulation headers
@@ -186,6 +187,7 @@ trait FlowContext extends Clearable { this: PacketContext =>
 
         recircPayload = packet.getEthernet
         packet.setEthernet(inner)
+        invalidateView()
 
         // Reset the original match to the inner packet headers
         origMatch.clear()
@@ -435,6 +437,29 @@ class PacketContext extends Clearable
 
     def ethernet = packet.getEthernet
 
+    private val packetView = new PacketView
+    private var packetViewValid = false
+
+    /**
+     * A view over the frame of the packet, which reads its header fields
+     * without deserializing the Ethernet object of a packet received from the
+     * datapath. The view reflects the frame when the simulation started, or
+     * after its last encapsulation or decapsulation, and does not reflect the
+     * changes made to the Ethernet object.
+     */
+    def view: PacketView = {
+        if (!packetViewValid) {
+            val data = packet.getData
+            packetView.wrap(data, 0, data.length)
+            packetViewValid = true
+        }
+        packetView
+    }
+
+    private[simulation] def invalidateView(): Unit = {
+        packetViewValid = false
+    }
+
     def isGenerated = (egressPort ne null) || (egressPortNo ne null)
     def ingressed = !isGenerated
     def isStateMessage = origMatch.getTunnelKey == FlowStatePackets.TUNNEL_KEY
@@ -450,6 +475,7 @@ class PacketContext extends Clearable
         resetContext()
         this.cookie = cookie
         this.packet = packet
+        invalidateView()
 
         this.origMatch.reset(origMatch)
         this.preRoutingMatch.reset(origMatch)
@@ -518,8 +544,10 @@ class PacketContext extends Clearable
     def postpone() {
         // reset the payload and its original flow match in case it was
         // encapsulated or decapsulated during this try of the simulation.
-        if (recircPayload ne null)
+        if (recircPayload ne null) {
             packet.setEthernet(recircPayload)
+            invalidateView()
+        }
         idle = true
         inputPort = null
         clear()
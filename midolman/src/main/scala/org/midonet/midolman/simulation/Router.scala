@@ -65,6 +65,8 @@ object Router {
     trait TagManager {
         def addIPv4Tag(dstIp: IPv4Addr, matchLength: Int)
         def getFlowRemovalCallback(dstIp: IPv4Addr): Callback0
+        def addIPv6Tag(dstIp: IPv6Addr, matchLength: Int)
+        def getFlowRemovalCallback(dstIp: IPv6Addr): Callback0
     }
 
     trait RoutingTable {
@@ -156,11 +158,24 @@ class Router(override val id: UUID,
                     matchLen = route.dstNetworkLength
                 }
 
-                val dstIp = context.wcmatch.getNetworkDstIP.asInstanceOf[IPv4Addr]
-                context.addFlowTag(FlowTagger.tagForDestinationIp(id, dstIp))
-                routerMgrTagger.addIPv4Tag(dstIp, matchLen)
-                context.addFlowRemovedCallback(
-                        routerMgrTagger.getFlowRemovalCallback(dstIp))
+                context.wcmatch.getNetworkDstIP match {
+                    case dstIp: IPv6Addr =>
+                        // The route does not store the IPv6 prefix, and its
+                        // zero length makes any covering route invalidate
+                        // the destination.
+                        context.addFlowTag(
+                            FlowTagger.tagForDestinationIp(id, dstIp))
+                        routerMgrTagger.addIPv6Tag(dstIp, matchLen)
+                        context.addFlowRemovedCallback(
+                            routerMgrTagger.getFlowRemovalCallback(dstIp))
+                    case ip =>
+                        val dstIp = ip.asInstanceOf[IPv4Addr]
+                        context.addFlowTag(
+                            FlowTagger.tagForDestinationIp(id, dstIp))
+                        routerMgrTagger.addIPv4Tag(dstIp, matchLen)
+                        context.addFlowRemovedCallback(
+                            routerMgrTagger.getFlowRemovalCallback(dstIp))
+                }
         }
     }
 
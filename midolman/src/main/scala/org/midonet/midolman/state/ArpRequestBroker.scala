@@ -72,15 +72,19 @@ object ArpRequestBroker {
  * those calls, it sends ARP requests as appropriate and manages expiration
  * of the entries it writes.
  *
- * ARP requests are generated with no coordination with other threads or
- * agents. This means that, specially when a MAC is unknown, two threads or
- * agents may decide to ARP at the same time for the IP address. To reduce
- * this effect outside of the 1st ARP request, the implementation introduces
- * jitter to the staleness and ARP retry intervals.
+ * The simulation threads of an agent coordinate their ARP requests through
+ * the shared [[ArpResolutions]], such that only one thread ARPs at a time for
+ * an IP address of a router, while the other threads wait for the resolution
+ * of that thread. ARP requests are generated with no coordination with other
+ * agents. This means that, specially when a MAC is unknown, two agents may
+ * decide to ARP at the same time for the IP address. To reduce this effect
+ * outside of the 1st ARP request, the implementation introduces jitter to the
+ * staleness and ARP retry intervals.
  */
 class ArpRequestBroker(config: MidolmanConfig,
                        backChannel: SimulationBackChannel,
-                       clock: UnixClock = UnixClock())
+                       clock: UnixClock = UnixClock(),
+                       resolutions: ArpResolutions = ArpResolutions.unshared())
     extends MidolmanLogging {
 
     override def logSource = "org.midonet.devices.router.arptable"
@@ -94,7 +98,8 @@ class ArpRequestBroker(config: MidolmanConfig,
             case null =>
                 log.debug(s"Building new ARP request broker for router ${router.id}")
                 val broker = new SingleRouterArpRequestBroker(router.id,
-                        router.arpCache, config, backChannel, clock)
+                        router.arpCache, config, backChannel, clock,
+                        resolutions)
                 brokers.put(router.id, broker)
                 broker
             case broker => broker
@@ -155,7 +160,9 @@ class SingleRouterArpRequestBroker(id: UUID,
                                    arpCache: ArpCache,
                                    config: MidolmanConfig,
                                    backChannel: SimulationBackChannel,
-                                   clock: UnixClock = UnixClock())
+                                   clock: UnixClock = UnixClock(),
+                                   resolutions: ArpResolutions =
+                                       ArpResolutions.unshared())
     extends MidolmanLogging {
 
     import ArpRequestBroker._
@@ -175,6 +182,12 @@ class SingleRouterArpRequestBroker(id: UUID,
      */
     private val arpLoops = new util.HashSet[IPv4Addr]()
 
+    /*
+     * Resolutions owned by the brokers of other threads that this broker is
+     * waiting for, instead of ARP'ing itself.
+     */
+    private val sharedLoops = new util.HashMap[IPv4Addr, Future[MAC]]()
+
     /*
      * Priority queue of currently active ARP request loops, ordered by
      * time to their next retry. It will be checked periodically to emit
@@ -246,6 +259,7 @@ class SingleRouterArpRequestBroker(id: UUID,
         processNewMacs()
         processArpLoops()
         processExpirations()
+        processSharedLoops()
     }
 
     @volatile
@@ -269,9 +283,11 @@ class SingleRouterArpRequestBroker(id: UUID,
         val cacheEntry = arpCache.get(ip)
 
         if (shouldArp(cacheEntry)) {
-            arpForAddress(ip, port, cookie)
+            val shared = arpForAddress(ip, port, cookie)
             if ((cacheEntry ne null) && (cacheEntry.mac ne null))
                 cacheEntry.mac
+            else if (shared ne null)
+                throw new NotYetException(shared, s"MAC for IP $ip unknown, suspending during ARP by another thread")
             else
                 throw new NotYetException(waitForArpEntry(ip), s"MAC for IP $ip unknown, suspending during ARP")
         } else {
@@ -285,11 +301,26 @@ class SingleRouterArpRequestBroker(id: UUID,
         promise.future
     }
 
-    private def arpForAddress(ip: IPv4Addr, port: RouterPort, cookie: Long): Unit = {
+    /*
+     * Starts an ARP request loop for the IP address, unless this broker or
+     * the broker of another thread is already ARP'ing for it. Returns the
+     * future of the resolution if it is owned by another thread, or null.
+     */
+    private def arpForAddress(ip: IPv4Addr, port: RouterPort, cookie: Long): Future[MAC] = {
         if (arpLoops.contains(ip))
-            return
+            return null
         if (port.portAddress4 eq null)
-            return
+            return null
+
+        val shared = sharedLoops.get(ip)
+        if ((shared ne null) && !shared.isCompleted)
+            return shared
+        val resolution = resolutions.claim(id, ip, this)
+        if (resolution.owner ne this) {
+            sharedLoops.put(ip, resolution.future)
+            return resolution.future
+        }
+        sharedLoops.remove(ip)
 
         val loop = new ArpLoop(ip, port, cookie)
 
@@ -299,6 +330,7 @@ class SingleRouterArpRequestBroker(id: UUID,
         arpLoops.add(ip)
         arpLoopQ.add(loop)
         updateNextEvent()
+        null
     }
 
     /**
@@ -354,9 +386,11 @@ class SingleRouterArpRequestBroker(id: UUID,
 
             if (upToDate(entry)) {
                 arpLoops.remove(loop.ip)
+                resolutions.resolve(id, loop.ip, entry.mac)
                 keepPromises(loop.ip, entry.mac)
             } else if (loop.timedOut) {
                 arpLoops.remove(loop.ip)
+                resolutions.fail(id, loop.ip, this, ArpTimeoutException(id, loop.ip))
                 breakPromises(loop.ip)
             } else {
                 val arp = makeArpRequest(loop.port.portMac,
@@ -371,6 +405,16 @@ class SingleRouterArpRequestBroker(id: UUID,
         updateNextEvent()
     }
 
+    private def processSharedLoops(): Unit = {
+        if (!sharedLoops.isEmpty) {
+            val loops = sharedLoops.values.iterator()
+            while (loops.hasNext) {
+                if (loops.next().isCompleted)
+                    loops.remove()
+            }
+        }
+    }
+
     private def breakPromises(ip: IPv4Addr) {
         val waiters = arpWaiters.removeAll(ip).iterator()
         while (waiters.hasNext)
@@ -393,6 +437,8 @@ class SingleRouterArpRequestBroker(id: UUID,
                     log.debug("Invalidating flows for {} in router {}", ip, id)
                     backChannel.tell(FlowTagger.tagForArpEntry(id, ip))
                 }
+                resolutions.resolve(id, ip, newMac)
+                sharedLoops.remove(ip)
                 keepPromises(ip, newMac)
                 processNewMacs()
             case _ =>
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.concurrent.{Future, Promise}
+
+import com.codahale.metrics.MetricRegistry
+
+import org.midonet.midolman.monitoring.metrics.ArpResolutionMetrics
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.util.concurrent.NanoClock
+
+object ArpResolutions {
+
+    case class Key(router: UUID, ip: IPv4Addr)
+
+    /**
+     * An outstanding ARP resolution for a router and IP address. The
+     * resolution is owned by the ARP request broker that sends the ARP
+     * requests, and its future completes with the resolved MAC or fails when
+     * the ARP requests time out.
+     */
+    final class Resolution private[ArpResolutions](val owner: AnyRef,
+                                                   val startTime: Long) {
+        private[ArpResolutions] val promise = Promise[MAC]()
+
+        def future: Future[MAC] = promise.future
+    }
+
+    /**
+     * Returns resolutions that are not shared with other brokers, with
+     * unregistered metrics.
+     */
+    def unshared(): ArpResolutions =
+        new ArpResolutions(new ArpResolutionMetrics(new MetricRegistry))
+}
+
+/**
+ * Coalesces the ARP resolutions of the routers across the packet workers.
+ *
+ * Each packet worker has its own [[ArpRequestBroker]], and without
+ * coordination, a burst of packets to an unresolved next hop spread across
+ * workers makes every worker ARP for the same address. Instead, the first
+ * broker that claims the resolution of a router and IP address owns it and
+ * sends the ARP requests, while the other brokers wait on the future of the
+ * resolution. The owner completes the resolution when the MAC is learned, or
+ * fails it when its ARP requests time out.
+ *
+ * This class is thread-safe, and the resolutions are kept in a concurrent
+ * map such that the workers do not contend on a lock.
+ */
+class ArpResolutions(metrics: ArpResolutionMetrics,
+                     clock: NanoClock = NanoClock.DEFAULT) {
+
+    import ArpResolutions._
+
+    private val resolutions = new ConcurrentHashMap[Key, Resolution]()
+
+    /** The number of outstanding resolutions. */
+    def size: Int = resolutions.size()
+
+    /**
+     * Returns the outstanding resolution for the given router and IP address,
+     * starting a new resolution owned by the given owner if there is none.
+     */
+    def claim(router: UUID, ip: IPv4Addr, owner: AnyRef): Resolution = {
+        val key = Key(router, ip)
+        var resolution = resolutions.get(key)
+        if (resolution eq null) {
+            val created = new Resolution(owner, clock.tick)
+            resolution = resolutions.putIfAbsent(key, created)
+            if (resolution eq null) {
+                metrics.requestsSent.mark()
+                return created
+            }
+        }
+        if (resolution.owner ne owner) {
+            metrics.requestsSaved.mark()
+        }
+        resolution
+    }
+
+    /**
+     * Completes the outstanding resolution, if any, for the given router and
+     * IP address with the resolved MAC. May be called by any broker that
+     * learns the MAC.
+     */
+    def resolve(router: UUID, ip: IPv4Addr, mac: MAC): Unit = {
+        val resolution = resolutions.remove(Key(router, ip))
+        if (resolution ne null) {
+            metrics.resolutionLatency.update(clock.tick - resolution.startTime,
+                                             TimeUnit.NANOSECONDS)
+            resolution.promise.trySuccess(mac)
+        }
+    }
+
+    /**
+     * Fails the outstanding resolution for the given router and IP address,
+     * if it is owned by the given owner.
+     */
+    def fail(router: UUID, ip: IPv4Addr, owner: AnyRef, e: Throwable): Unit = {
+        val key = Key(router, ip)
+        val resolution = resolutions.get(key)
+        if ((resolution ne null) && (resolution.owner eq owner) &&
+            resolutions.remove(key, resolution)) {
+            resolution.promise.tryFailure(e)
+        }
+    }
+}
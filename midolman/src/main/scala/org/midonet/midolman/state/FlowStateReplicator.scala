@@ -82,13 +82,16 @@ import org.midonet.util.functors.Callback0
  *     expirations, making use of the internal state that keeps track of which
  *     hosts received what.
  *
- *   3 Received state will always be processed by the same packet processing
- *     thread, because state packets have all the same flow match. It will be
- *     written to its local shard.
+ *   3 Received state will always be processed by the packet processing
+ *     thread that owns the connection of the first key in the message, as
+ *     chosen by the upcall dispatcher. It will be written to its local shard,
+ *     and the flows of the other threads depending on the received keys are
+ *     invalidated through the back channel.
  *
  *   4 Received deletion notifications will also be processed by the same
- *     packet processing thread, because of the flow match. This guarantees
- *     that the deletion operation will not cross over to other shards.
+ *     packet processing thread, because they carry the same keys. This
+ *     guarantees that the deletion operation will not cross over to other
+ *     shards.
  *
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
@@ -291,6 +294,13 @@ class FlowStateReplicator(
         flowStateSocket.send(flowStatePacket)
     }
 
+    /**
+     * Invalidates the local flows that depend on a state key received from a
+     * peer. Subclasses may extend the invalidation to other packet workers.
+     */
+    protected def invalidateImported(tag: FlowTag): Unit =
+        flowInvalidation.invalidateFlowsFor(tag)
+
     private def acceptNewState(encoder: SbeEncoder) {
         val msg = encoder.flowStateMessage
         val sender = uuidFromSbe(msg.sender)
@@ -301,7 +311,7 @@ class FlowStateReplicator(
             val k = connTrackKeyFromSbe(conntrackIter.next(), ConnTrackKey)
             log.debug("got new conntrack key: {}", k)
             conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
-            flowInvalidation.invalidateFlowsFor(k)
+            invalidateImported(k)
         }
 
         val natIter = msg.nat
@@ -311,7 +321,7 @@ class FlowStateReplicator(
             val v = natBindingFromSbe(nat)
             log.debug("Got new nat mapping: {} -> {}", k, v)
             natTable.touch(k, v)
-            flowInvalidation.invalidateFlowsFor(k)
+            invalidateImported(k)
         }
 
         val traceIter = msg.trace
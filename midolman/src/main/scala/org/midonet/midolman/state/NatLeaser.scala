@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.state
 
-import java.lang.{Integer => JInt, Long => JLong}
+import java.lang.{Integer => JInt}
 import java.util.UUID
 import java.util.concurrent.{ConcurrentHashMap, ThreadLocalRandom}
 
@@ -25,11 +25,12 @@ import scala.concurrent.duration._
 import scala.util.Success
 
 import org.midonet.midolman.NotYetException
+import org.midonet.midolman.monitoring.metrics.NatLeaserMetrics
 import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.state.NatBlockAllocator.NoFreeNatBlocksException
 import org.midonet.packets.NatState.NatBinding
 import org.midonet.packets.{IPAddr, IPv4Addr}
-import org.midonet.util.collection.Reducer
+import org.midonet.util.collection.{ConcurrentLongSet, Reducer}
 import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
 import org.midonet.util.concurrent.ExecutionContextOps
 import org.midonet.util.logging.Logger
@@ -40,9 +41,20 @@ object NatLeaser {
     private val BLOCK_MASK = BLOCK_SIZE - 1
     val BLOCK_EXPIRATION = 5 minutes
     private val OBLITERATION_CYCLE = (1 minute).toNanos
+    /**
+     * An allocation that skips this many leased ports of a block before
+     * finding a free one marks the block as crowded, which prefetches the
+     * next block for its device and IP.
+     */
+    val PREFETCH_SKIPPED_PORTS = 16
 
+    /**
+     * Combines the destination IP and port in the 48 least significant bits
+     * of a long, such that it can be combined with a port offset in the key
+     * of a leased block.
+     */
     private def blend(ip: IPv4Addr, port: Int): Long =
-        (ip.toInt.toLong << 32) | port
+        ((ip.toInt & 0xffffffffL) << 16) | (port & 0xffff)
 
     def blockOf(port: Int) = port >> BLOCK_MULT
 
@@ -50,22 +62,49 @@ object NatLeaser {
 
     /**
      * This type represents a block of BLOCK_SIZE ports. Each port, identified
-     * by the NatBlock's tpPortStart plus the offset given by the position in
-     * the leasedPorts array, can be oversubscribed based on a unique number,
-     * a combination of the destination IP and port.
+     * by the NatBlock's tpPortStart plus an offset, can be oversubscribed
+     * based on a unique number, a combination of the destination IP and port.
+     * The leases of all the ports are kept in a single set of primitive keys,
+     * combining the unique number with the port offset, which is only
+     * allocated when the first port is leased.
      * It also holds a port index to enable round-robin allocation
      * of the ports in the block.
+     * A prefetched block keeps the range it was prefetched for until its
+     * first lease.
      */
     sealed class LeasedBlock(val block: NatBlock) {
-        val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
+        @volatile private var leases: ConcurrentLongSet = null
         var portIndex = ThreadLocalRandom.current().nextLong()
+        @volatile var crowded = false
+        @volatile var prefetchedFor: NatRange = null
+
+        /**
+         * Leases the port at the given offset for the unique number, and
+         * returns false if the port is already leased for it.
+         */
+        def lease(portOffset: Int, uniquefier: Long): Boolean =
+            leaseSet.add(key(portOffset, uniquefier))
+
+        def release(portOffset: Int, uniquefier: Long): Boolean = {
+            val set = leases
+            (set ne null) && set.remove(key(portOffset, uniquefier))
+        }
 
-        {
-            var i = 0
-            while (i < BLOCK_SIZE) {
-                leasedPorts(i) = new ConcurrentHashMap[JLong, AnyRef]
-                i += 1
+        private def key(portOffset: Int, uniquefier: Long): Long =
+            (uniquefier << BLOCK_MULT) | portOffset
+
+        private def leaseSet: ConcurrentLongSet = {
+            var set = leases
+            if (set eq null) {
+                synchronized {
+                    set = leases
+                    if (set eq null) {
+                        set = new ConcurrentLongSet(BLOCK_SIZE)
+                        leases = set
+                    }
+                }
             }
+            set
         }
     }
 
@@ -94,6 +133,13 @@ object NatLeaser {
     type DeviceLeases = ConcurrentHashMap[UUID, IpLeases]
 
     type OutstandingRequests = ConcurrentHashMap[NatRange, Future[NatBlock]]
+
+    /**
+     * This type is a map of the ranges of the NatTargets to the prefetched
+     * block not yet used for each of them.
+     */
+    type SpareBlocks = ConcurrentHashMap[NatRange, LeasedBlock]
+
     object NoNatBindingException extends Exception {
         override def fillInStackTrace(): Throwable = this
     }
@@ -103,6 +149,12 @@ object NatLeaser {
  * Allocates a particular NatBinding for an SNAT operation. NatBindings are
  * scoped by device and by NatTarget IP and they are oversubscribed based on
  * both destination IP and destination port.
+ *
+ * When an allocation finds a block crowded, the leaser fetches a spare block
+ * for the same device, IP and port range in the background, such that the
+ * following allocations do not wait for the allocator once the leased blocks
+ * are exhausted. A spare block that is not used expires like any other idle
+ * block, returning to the allocator.
  */
 trait NatLeaser {
     import NatLeaser._
@@ -110,8 +162,13 @@ trait NatLeaser {
     val log: Logger
     val allocator: NatBlockAllocator
     val clock: NanoClock
+    val metrics: NatLeaserMetrics
     private val deviceLeases = new DeviceLeases
     private val outstandingBlockRequests = new OutstandingRequests
+    private val spareBlocks = new SpareBlocks
+
+    /** The number of leased ports skipped that marks a block as crowded. */
+    protected def prefetchSkippedPorts: Int = PREFETCH_SKIPPED_PORTS
 
     private var lastObliterated = 0L
 
@@ -133,8 +190,8 @@ trait NatLeaser {
             var ip = target.nwStart
             while (ip <= target.nwEnd) {
                 val leasedBlocks = getLeasedBlocks(deviceId, ip)
-                val binding = allocateInPortRange(leasedBlocks, uniquefier, ip,
-                                                  target.tpStart, target.tpEnd)
+                val binding = allocateInPortRange(leasedBlocks, uniquefier,
+                                                  deviceId, natTargets, i, ip)
                 if (binding ne null) {
                     return binding
                 }
@@ -143,8 +200,10 @@ trait NatLeaser {
             i += 1
         }
 
+        metrics.bindingsPostponed.mark()
         throw new NotYetException(
-            fetchNatBlock(deviceId, natTargets, natTargets(0).nwStart, 0))
+            fetchNatBlock(deviceId, natTargets, natTargets(0).nwStart, 0,
+                          prefetchFor = null))
     }
 
     /**
@@ -169,7 +228,7 @@ trait NatLeaser {
         if (leasedBlock ne null) {
             val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
             val uniquefier = blend(destinationIp, destinationPort)
-            leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+            leasedBlock.release(portOffset, uniquefier)
         }
     }
 
@@ -177,6 +236,10 @@ trait NatLeaser {
         override def apply(acc: NatBlockAllocator, key: JInt,
                            value: LeasedBlock): NatBlockAllocator = {
             val block = value.block
+            val range = value.prefetchedFor
+            if ((range ne null) && spareBlocks.remove(range, value)) {
+                metrics.prefetchesExpired.mark()
+            }
             log.debug("Releasing NAT block {}", block)
             acc.freeBlock(block)
             acc
@@ -204,8 +267,11 @@ trait NatLeaser {
     }
 
     private def allocateInPortRange(leasedBlocks: LeasedBlocks, uniquefier: Long,
-                                    targetIp: IPv4Addr, targetPortStart: Int,
-                                    targetPortEnd: Int): NatBinding = {
+                                    deviceId: UUID, targets: Array[NatTarget],
+                                    targetIndex: Int, targetIp: IPv4Addr)
+    : NatBinding = {
+        val targetPortStart = targets(targetIndex).tpStart
+        val targetPortEnd = targets(targetIndex).tpEnd
         var port = targetPortStart
         while (port <= targetPortEnd) {
             val block = blockOf(port)
@@ -216,6 +282,13 @@ trait NatLeaser {
                 val binding = allocateInPortBlock(leasedBlock, uniquefier,
                                                   targetIp, port, endPort)
                 if (binding ne null) {
+                    if (leasedBlock.prefetchedFor ne null) {
+                        usePrefetchedBlock(leasedBlock)
+                    }
+                    if (leasedBlock.crowded) {
+                        prefetchNatBlock(deviceId, targets, targetIndex,
+                                         targetIp)
+                    }
                     return binding
                 }
 
@@ -231,24 +304,56 @@ trait NatLeaser {
     : NatBinding = {
         val index = lease.portIndex
         val firstPortInBlock = lease.block.tpPortStart
+        var skipped = 0
         var i = 0
         while (i < BLOCK_SIZE) { // Search all ports
             val portOffset = (index + i).toInt & BLOCK_MASK
             val port = firstPortInBlock + portOffset
             if (port >= tpStart && port <= tpEnd) {
-                val sharedBinding = lease.leasedPorts(portOffset)
-                if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
+                if (lease.lease(portOffset, uniquefier)) {
                     lease.portIndex += i + 31
+                    val crowded = skipped >= prefetchSkippedPorts
+                    if (lease.crowded != crowded) {
+                        lease.crowded = crowded
+                    }
                     return NatBinding(ip, port)
                 }
+                skipped += 1
             }
             i += 1
         }
         null
     }
 
+    /**
+     * Fetches a spare block for the device, IP and port range of the target,
+     * unless there is already one or a request for one.
+     */
+    private def prefetchNatBlock(deviceId: UUID, targets: Array[NatTarget],
+                                 targetIndex: Int, targetIp: IPv4Addr): Unit = {
+        val target = targets(targetIndex)
+        val range = new NatRange(deviceId, targetIp, target.tpStart, target.tpEnd)
+        if (!spareBlocks.containsKey(range) &&
+            !outstandingBlockRequests.containsKey(range)) {
+            log.debug("Prefetching NAT block for {}", range)
+            fetchNatBlock(deviceId, targets, targetIp, targetIndex,
+                          prefetchFor = range)
+        }
+    }
+
+    private def usePrefetchedBlock(lease: LeasedBlock): Unit = {
+        val range = lease.prefetchedFor
+        if (range ne null) {
+            lease.prefetchedFor = null
+            if (spareBlocks.remove(range, lease)) {
+                metrics.prefetchHits.mark()
+            }
+        }
+    }
+
     private def fetchNatBlock(deviceId: UUID, targets: Array[NatTarget],
-                                targetIp: IPv4Addr, targetIndex: Int): Future[NatBlock] = {
+                              targetIp: IPv4Addr, targetIndex: Int,
+                              prefetchFor: NatRange): Future[NatBlock] = {
         val target = targets(targetIndex)
         val range = new NatRange(deviceId, targetIp, target.tpStart, target.tpEnd)
 
@@ -259,16 +364,17 @@ trait NatLeaser {
             preexistingRequest
         } else {
             val newRequest = allocator.allocateBlockInRange(range) andThen {
-                case Success(data) => registerNewBlock(data)
+                case Success(data) => registerNewBlock(data, prefetchFor)
             } recoverWith {
                 case NoFreeNatBlocksException =>
                     val nextIp = targetIp.next
                     if (nextIp <= targets(targetIndex).nwEnd) {
-                        fetchNatBlock(deviceId, targets, nextIp, targetIndex)
+                        fetchNatBlock(deviceId, targets, nextIp, targetIndex,
+                                      prefetchFor)
                     } else if (targetIndex + 1 < targets.length) {
                         fetchNatBlock(deviceId, targets,
                                       targets(targetIndex + 1).nwStart,
-                                      targetIndex + 1)
+                                      targetIndex + 1, prefetchFor)
                     } else {
                         Future.failed(NoNatBindingException)
                     }
@@ -288,10 +394,15 @@ trait NatLeaser {
         }
     }
 
-    private def registerNewBlock(block: NatBlock): Unit = {
+    private def registerNewBlock(block: NatBlock, prefetchFor: NatRange): Unit = {
         log.debug("Acquiring NAT block {}", block)
         val leasedBlocks = getLeasedBlocks(block.deviceId, block.ip)
         val leasedBlock = new LeasedBlock(block)
+        if (prefetchFor ne null) {
+            leasedBlock.prefetchedFor = prefetchFor
+            spareBlocks.put(prefetchFor, leasedBlock)
+            metrics.blocksPrefetched.mark()
+        }
         leasedBlocks.putAndRef(block.blockIndex, leasedBlock)
         leasedBlocks.unref(block.blockIndex, clock.tick)
     }
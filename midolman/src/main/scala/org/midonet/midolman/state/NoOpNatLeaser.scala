@@ -18,6 +18,7 @@ package org.midonet.midolman.state
 
 import java.util.UUID
 
+import org.midonet.midolman.monitoring.metrics.NatLeaserMetrics
 import org.midonet.midolman.rules.NatTarget
 import org.midonet.packets.IPv4Addr
 import org.midonet.packets.NatState.NatBinding
@@ -29,6 +30,7 @@ object NoOpNatLeaser extends NatLeaser {
     override val allocator: NatBlockAllocator = null
     override val log: Logger = null
     override val clock: NanoClock = null
+    override val metrics: NatLeaserMetrics = null
 
     private val binding = NatBinding(IPv4Addr.fromString("0.0.0.0"), 0)
 
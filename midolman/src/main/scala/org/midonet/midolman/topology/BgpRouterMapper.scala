@@ -64,8 +64,8 @@ object BgpRouterMapper {
         // The output observable for this BGP network state. It emits
         // notifications with distinct BGP networks for the given network
         // identifier, while filtering all errors.
-        val observable: Observable[NetworkState] = vt.store
-            .observable(classOf[BgpNetwork], networkId)
+        val observable: Observable[NetworkState] = vt
+            .storeObservable(classOf[BgpNetwork], networkId)
             .distinctUntilChanged()
             .observeOn(vt.vtScheduler)
             .map[NetworkState](makeFunc1(networkUpdated))
@@ -131,8 +131,8 @@ object BgpRouterMapper {
         // The output observable for this BGP peer state. It emits notifications
         // with distinct BGP peers for the given peer identifier, while
         // filtering all errors.
-        val observable = vt.store
-            .observable(classOf[BgpPeer], peerId)
+        val observable = vt
+            .storeObservable(classOf[BgpPeer], peerId)
             .distinctUntilChanged()
             .observeOn(vt.vtScheduler)
             .map[PeerState](makeFunc1(peerUpdated))
@@ -224,8 +224,8 @@ final class BgpRouterMapper(routerId: UUID,
     private val peersById = new mutable.HashMap[UUID, BgpNeighbor]
     private val peersByAddress = new mutable.HashMap[IPv4Addr, BgpNeighbor]
 
-    private lazy val routerObservable = vt.store
-        .observable(classOf[Router], routerId)
+    private lazy val routerObservable = vt
+        .storeObservable(classOf[Router], routerId)
         .distinctUntilChanged()
         .observeOn(vt.vtScheduler)
         .flatMap[BgpRouter](makeFunc1(routerUpdated))
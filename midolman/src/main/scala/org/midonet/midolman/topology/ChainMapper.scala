@@ -31,7 +31,7 @@ import org.midonet.cluster.data.storage.NotFoundException
 import org.midonet.cluster.models.Topology.{Chain => TopologyChain, Rule => TopologyRule}
 import org.midonet.cluster.util.UUIDUtil.asRichProtoUuid
 import org.midonet.midolman.logging.MidolmanLogging
-import org.midonet.midolman.rules.{JumpRule, Rule => SimRule}
+import org.midonet.midolman.rules.{JumpRule, RuleClassifier, Rule => SimRule}
 import org.midonet.midolman.simulation.{RuleLogger, Chain => SimChain, IPAddrGroup => SimIPAddrGroup}
 import org.midonet.midolman.topology.ChainMapper.{IpAddressGroupState, RuleState}
 import org.midonet.util.functors.{makeAction0, makeAction1, makeFunc1}
@@ -68,7 +68,7 @@ object ChainMapper {
             })
 
         /** The observable emitting Rule updates. */
-        val observable = vt.store.observable(classOf[TopologyRule],ruleId)
+        val observable = vt.storeObservable(classOf[TopologyRule],ruleId)
             .observeOn(vt.vtScheduler)
             .onErrorResumeNext(notFoundHandler)
             .takeUntil(mark)
@@ -386,16 +386,20 @@ final class ChainMapper(chainId: UUID, vt: VirtualTopology,
         val metadata = encodeMetadata(
             chainProto.getMetadataList.asScala.map(e => (e.getKey, e.getValue)))
 
-        ruleLoggerTracker.currentRefs.values.toSeq
+        // Compile the rules on the topology thread, such that the packet
+        // workers only evaluate the rules that may match a packet.
+        val classifier = RuleClassifier.compile(ruleList)
+
         val chain = new SimChain(chainId, ruleList, chainMap,
                                  chainProto.getName, metadata,
-                                 ruleLoggerTracker.currentRefs.values.toSeq)
+                                 ruleLoggerTracker.currentRefs.values.toSeq,
+                                 classifier)
         log.debug("Emitting {}", chain)
         chain
     }
 
     private lazy val chainObservable =
-        vt.store.observable(classOf[TopologyChain], chainId)
+        vt.storeObservable(classOf[TopologyChain], chainId)
             .observeOn(vt.vtScheduler)
             .map[TopologyChain](makeFunc1(chainUpdated))
             .doOnCompleted(makeAction0(chainDeleted()))
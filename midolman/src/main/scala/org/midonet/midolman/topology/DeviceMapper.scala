@@ -172,7 +172,7 @@ abstract class DeviceMapper[D <: Device](val clazz: Class[D], val id: UUID,
         assertThread()
         log.debug(s"Device ${clazz.getSimpleName}:$id deleted")
         state = MapperState.Completed
-        val device = vt.devices.remove(id)
+        val device = vt.removeDevice(id)
         vt.observables.remove(key)
 
         if ((device ne null) && device.getClass == clazz) {
@@ -195,7 +195,7 @@ abstract class DeviceMapper[D <: Device](val clazz: Class[D], val id: UUID,
 
         error = e
         state = MapperState.Error
-        val device = vt.devices.remove(id)
+        val device = vt.removeDevice(id)
         vt.observables.remove(key)
 
         if ((device ne null) && device.getClass == clazz) {
@@ -209,7 +209,7 @@ abstract class DeviceMapper[D <: Device](val clazz: Class[D], val id: UUID,
     override final def onNext(device: D) = {
         assertThread()
         log.debug(s"Device ${clazz.getSimpleName}:$id updated: $device")
-        vt.devices.put(id, device)
+        vt.putDevice(id, device)
         vt.metrics.deviceUpdate(clazz)
         if (!initialized) {
             initialized = true
@@ -293,8 +293,8 @@ abstract class DeviceMapper[D <: Device](val clazz: Class[D], val id: UUID,
             deviceIds: Set[UUID], devices: mutable.Map[UUID, DeviceState[T]],
             devicesObserver: Observer[Observable[T]], vt: VirtualTopology): Unit = {
         updateDeviceState(deviceIds, devices, devicesObserver) { id =>
-            new DeviceState[T](id, vt.store
-                .observable(uClass, id)
+            new DeviceState[T](id, vt
+                .storeObservable(uClass, id)
                 .distinctUntilChanged()
                 .observeOn(vt.vtScheduler)
                 .map[T](makeFunc1(fromProto[T, U](_, tClass))))
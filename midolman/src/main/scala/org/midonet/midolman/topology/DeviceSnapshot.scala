@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import org.midonet.Util
+import org.midonet.midolman.topology.VirtualTopology.Device
+
+object DeviceSnapshot {
+
+    /**
+     * Implemented by the threads owning a device snapshot, such as the packet
+     * workers. The [[VirtualTopology]] looks up the devices in the snapshot
+     * of the current thread, when the snapshot is not null.
+     */
+    trait Owner {
+        def deviceSnapshot: DeviceSnapshot
+    }
+
+}
+
+/**
+ * A thread-confined, direct-mapped cache of the devices of the
+ * [[VirtualTopology]]. A device is cached in the slot selected by the low bits
+ * of its identifier, such that a lookup reads two arrays and does not share
+ * any cache line with the other threads.
+ *
+ * Every entry is tagged with the device version of the virtual topology at the
+ * time the device was read from the topology cache. Because the version is
+ * incremented whenever a device is added, updated or removed, an entry is
+ * valid only while its version is the current version, and the snapshot is
+ * never cleared explicitly.
+ *
+ * This class is not thread-safe, and it must only be used by its owner thread.
+ */
+final class DeviceSnapshot(size: Int) {
+
+    private val mask = Util.findNextPositivePowerOfTwo(size) - 1
+    private val ids = new Array[UUID](mask + 1)
+    private val devices = new Array[Device](mask + 1)
+    private val versions = new Array[Long](mask + 1)
+
+    /**
+     * Returns the device with the specified identifier if it was cached at
+     * the given version, or null otherwise.
+     */
+    def get(id: UUID, version: Long): Device = {
+        val index = indexOf(id)
+        val cached = ids(index)
+        if ((cached ne null) && versions(index) == version && cached == id) {
+            devices(index)
+        } else {
+            null
+        }
+    }
+
+    /**
+     * Caches the device with the specified identifier, replacing the device
+     * that shares the same slot. The version must have been read before the
+     * device was read from the topology cache.
+     */
+    def put(id: UUID, device: Device, version: Long): Unit = {
+        val index = indexOf(id)
+        ids(index) = id
+        devices(index) = device
+        versions(index) = version
+    }
+
+    @inline
+    private def indexOf(id: UUID): Int = {
+        val bits = id.getLeastSignificantBits ^ id.getMostSignificantBits
+        (bits ^ (bits >>> 32)).toInt & mask
+    }
+
+}
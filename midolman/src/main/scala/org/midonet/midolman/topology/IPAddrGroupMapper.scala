@@ -41,7 +41,7 @@ class IPAddrGroupMapper(addrGroupId: UUID, vt: VirtualTopology) extends
     }
 
     protected override lazy val observable =
-        vt.store.observable(classOf[TopologyIPAddrGroup], addrGroupId)
+        vt.storeObservable(classOf[TopologyIPAddrGroup], addrGroupId)
             .map[SimIPAddrGroup](makeFunc1(build))
             .observeOn(vt.vtScheduler)
 }
@@ -50,8 +50,8 @@ final class LoadBalancerMapper(loadBalancerId: UUID, vt: VirtualTopology)
             loadBalancer
         })
 
-    private lazy val loadBalancerObservable = vt.store
-        .observable[TopologyLb](classOf[TopologyLb], loadBalancerId)
+    private lazy val loadBalancerObservable = vt
+        .storeObservable[TopologyLb](classOf[TopologyLb], loadBalancerId)
         .observeOn(vt.vtScheduler)
         .doOnCompleted(makeAction0(loadBalancerDeleted()))
         .doOnNext(makeAction1(loadBalancerUpdated))
@@ -94,7 +94,7 @@ final class MirrorMapper(id: UUID, vt: VirtualTopology)
     }
 
     private lazy val mirrorObservable =
-        vt.store.observable(classOf[TopologyMirror], id)
+        vt.storeObservable(classOf[TopologyMirror], id)
             .observeOn(vt.vtScheduler)
             .map[TopologyMirror](makeFunc1(mirrorUpdated))
             .doOnCompleted(makeAction0(mirrorDeleted()))
@@ -159,7 +159,7 @@ class StoreObjectState[D >: Null](val clazz: Class[D],
                                   val id: UUID,
                                   val vt: VirtualTopology)
         extends ObjectStateBase[D] {
-    override val observable = vt.store.observable(clazz, id)
+    override val observable = vt.storeObservable(clazz, id)
         .observeOn(vt.vtScheduler)
         .doOnNext(makeAction1(currentObj = _))
         .takeUntil(mark)
@@ -90,8 +90,8 @@ class PoolHealthMonitorMapper(vt: VirtualTopology)
         /** The health monitor observable */
         val observable: Observable[HealthMonitor] =
             if (healthMonitorId == null) Observable.empty()
-            else vt.store
-                .observable(classOf[Proto.HealthMonitor], healthMonitorId)
+            else vt
+                .storeObservable(classOf[Proto.HealthMonitor], healthMonitorId)
                 .observeOn(vt.vtScheduler)
                 .map[HealthMonitor](updateHealthMonitor)
                 .takeUntil(mark)
@@ -232,7 +232,7 @@ class PoolHealthMonitorMapper(vt: VirtualTopology)
 
     /** An observable on pool ids */
     private lazy val poolIdObservable = Observable.merge[UUID](
-        vt.store.observable(classOf[Proto.Pool])
+        vt.storeObservable(classOf[Proto.Pool])
             .map[Observable[UUID]](makeFunc1(obs => {
                 obs.take(1).map[UUID](makeFunc1(p => {fromProto(p.getId)}))
             }))
@@ -86,8 +86,8 @@ final class PoolMapper(poolId: UUID, vt: VirtualTopology)
             pool
         })
 
-    private lazy val poolObservable = vt.store
-        .observable(classOf[TopologyPool], poolId)
+    private lazy val poolObservable = vt
+        .storeObservable(classOf[TopologyPool], poolId)
         .observeOn(vt.vtScheduler)
         .doOnCompleted(makeAction0(poolDeleted()))
         .doOnNext(makeAction1(poolUpdated))
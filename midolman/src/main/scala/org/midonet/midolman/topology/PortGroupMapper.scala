@@ -34,7 +34,7 @@ class PortGroupMapper(id: UUID, vt: VirtualTopology)
     override def logMark = s"port-group:$id"
 
     protected override def observable =
-        vt.store.observable(classOf[TopologyPortGroup], id)
+        vt.storeObservable(classOf[TopologyPortGroup], id)
             .distinctUntilChanged
             .map[SimulationPortGroup](makeFunc1(toSimPortGroup))
             .doOnNext(makeAction1(
@@ -114,7 +114,7 @@ final class PortMapper(id: UUID, vt: VirtualTopology,
     }
 
     private lazy val portObservable =
-        vt.store.observable(classOf[TopologyPort], id)
+        vt.storeObservable(classOf[TopologyPort], id)
             .observeOn(vt.vtScheduler)
             .doOnNext(makeAction1(topologyPortUpdated))
             .doOnCompleted(makeAction0(portDeleted()))
@@ -49,7 +49,7 @@ class QosPolicyMapper(id: UUID, vt: VirtualTopology)
 
     private var qosPolicy: QosPolicy = _
     private val qosPolicyObservable =
-        vt.store.observable(classOf[QosPolicy], id)
+        vt.storeObservable(classOf[QosPolicy], id)
             .observeOn(vt.vtScheduler)
             .doOnCompleted(makeAction0(qosPolicyDeleted()))
             .doOnNext(makeAction1(qosPolicyUpdated))
@@ -49,7 +49,7 @@ class RouterBgpMapper(routerId: UUID, vt: VirtualTopology) extends MidolmanLoggi
     private val bgpTracker =
         new StoreObjectReferenceTracker(vt, classOf[BgpPeer], log)
 
-    private val routerObservable = vt.store.observable(classOf[Router], routerId)
+    private val routerObservable = vt.storeObservable(classOf[Router], routerId)
         .observeOn(vt.vtScheduler)
         .doOnCompleted(makeAction0(routerDeleted()))
         .filter(makeFunc1(routerUpdated))
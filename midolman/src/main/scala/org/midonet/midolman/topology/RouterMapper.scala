@@ -31,24 +31,26 @@ import org.midonet.cluster.data.ZoomConvert
 import org.midonet.cluster.models.Commons.IPVersion
 import org.midonet.cluster.models.Topology.{Route => TopologyRoute, Router => TopologyRouter}
 import org.midonet.cluster.state.RoutingTableStorage._
+import org.midonet.cluster.util.IPSubnetUtil
 import org.midonet.cluster.util.UUIDUtil._
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{IPv4RoutingTable, IPv6RoutingTable, MultibitIPv4RoutingTable, Route, RoutingTableIfc}
 import org.midonet.midolman.simulation.Router.{Config, RoutingTable, TagManager}
 import org.midonet.midolman.simulation.{Chain, LoadBalancer, Mirror, RouterPort, Router => SimulationRouter}
 import org.midonet.midolman.SimulationBackChannel.{BackChannelMessage, Broadcast}
 import org.midonet.midolman.state.ArpCache
 import org.midonet.midolman.topology.RouterMapper._
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{IPAddr, IPv4Addr}
-import org.midonet.util.collection.IPv4InvalidationArray
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, IPv6Subnet}
+import org.midonet.util.collection.{IPv4InvalidationArray, IPv6InvalidationArray}
 import org.midonet.util.functors._
 import org.midonet.util.logging.Logger
 
 object RouterMapper {
 
-    private val Route6 = new Route
+    private val AnyIPv6Subnet = new IPv6Subnet(IPv6Addr(0L, 0L), 0)
 
     private val EmptyRouteSet = Set.empty[Route]
+    private val EmptyRoute6Set = Set.empty[IPv6Route]
     private val EmptyRouteUpdates = RouteUpdates(EmptyRouteSet, EmptyRouteSet)
 
     case class InvalidateFlows(routerId: UUID,
@@ -56,11 +58,32 @@ object RouterMapper {
                                deletedRoutes: Set[Route])
         extends BackChannelMessage with Broadcast
 
+    /**
+     * Invalidates the IPv6 flows of a router whose destination is covered by
+     * the given prefixes, which are the destinations of the IPv6 routes added
+     * to or removed from the router.
+     */
+    case class InvalidateIPv6Flows(routerId: UUID, prefixes: Set[IPv6Subnet])
+        extends BackChannelMessage with Broadcast
+
     case class RouterInvTrieTagCountModified(dstIp: IPAddr, count: Int)
 
-    case class RouteUpdates(added: Set[Route], removed: Set[Route]) {
-        def nonEmpty = added.nonEmpty || removed.nonEmpty
-        override def toString = s"[added=$added removed=$removed]"
+    /**
+     * An IPv6 route. The [[Route]] only stores IPv4 prefixes, such that the
+     * IPv6 source and destination prefixes are kept alongside.
+     */
+    case class IPv6Route(route: Route, srcSubnet: IPv6Subnet,
+                         dstSubnet: IPv6Subnet) {
+        override def toString = s"$srcSubnet,$dstSubnet,$route"
+    }
+
+    case class RouteUpdates(added: Set[Route], removed: Set[Route],
+                            added6: Set[IPv6Route] = EmptyRoute6Set,
+                            removed6: Set[IPv6Route] = EmptyRoute6Set) {
+        def nonEmpty = added.nonEmpty || removed.nonEmpty ||
+                       added6.nonEmpty || removed6.nonEmpty
+        override def toString =
+            s"[added=$added removed=$removed added6=$added6 removed6=$removed6]"
     }
 
     /**
@@ -86,6 +109,7 @@ object RouterMapper {
         // cache merge these updates into the set of current routes for this
         // port.
         private val routesCache = new mutable.HashSet[Route]
+        private val routes6Cache = new mutable.HashSet[IPv6Route]
 
         private val portStateSubject = PublishSubject.create[UUID]
         private var portStateReady = false
@@ -97,7 +121,7 @@ object RouterMapper {
             .merge(routesSubject)
             .map[RouteUpdates](makeFunc1(routeUpdated))
         private val learnedRoutesObservable = vt.stateStore
-            .portRoutesObservable(portId, portStateSubject)
+            .portRouteUpdatesObservable(portId, portStateSubject)
             .observeOn(vt.vtScheduler)
             .map[RouteUpdates](makeFunc1(learnedRoutesUpdated))
 
@@ -121,7 +145,9 @@ object RouterMapper {
                                           learnedRoutesObservable,
                                           portObservable)
             .onErrorResumeNext(Observable.just(RouteUpdates(EmptyRouteSet,
-                                                            publishedRoutes)))
+                                                            publishedRoutes,
+                                                            EmptyRoute6Set,
+                                                            publishedRoutes6)))
             .takeUntil(mark)
 
         /** Completes the observable corresponding to this port state, and to
@@ -134,7 +160,8 @@ object RouterMapper {
             routesSubject.onCompleted()
             mark.onCompleted()
 
-            RouteUpdates(EmptyRouteSet, publishedRoutes)
+            RouteUpdates(EmptyRouteSet, publishedRoutes, EmptyRoute6Set,
+                         publishedRoutes6)
         }
         /** Indicates whether the port state has received the port data. */
         def isReady: Boolean = {
@@ -174,17 +201,23 @@ object RouterMapper {
             currentPort = port
 
             val removedRoutes = new mutable.HashSet[Route]
+            val removedRoutes6 = new mutable.HashSet[IPv6Route]
             val currentRoutesSet = routesCache.toSet
+            val currentRoutes6Set = routes6Cache.toSet
 
             // Remove the state for the routes that are no longer part of this
             // port.
             for ((routeId, routeState) <- routes.toList
                  if !port.routeIds.contains(routeId)) {
                 routes -= routeId
-                if (routeState.isReady && (routeState.route ne Route6)) {
+                if (routeState.route ne null) {
                     removedRoutes += routeState.route
                     routesCache -= routeState.route
                 }
+                if (routeState.route6 ne null) {
+                    removedRoutes6 += routeState.route6
+                    routes6Cache -= routeState.route6
+                }
                 routeState.complete()
             }
 
@@ -203,16 +236,20 @@ object RouterMapper {
             if (oldPublish && newPublish) {
                 // If the port previously published the updates, publish only
                 // the difference.
-                RouteUpdates(EmptyRouteSet, removedRoutes.toSet)
+                RouteUpdates(EmptyRouteSet, removedRoutes.toSet,
+                             EmptyRoute6Set, removedRoutes6.toSet)
             } else if (!oldPublish && newPublish) {
                 // If the port did not previously publish routes, but does so
                 // now publish all routes.
-                RouteUpdates(currentRoutesSet, EmptyRouteSet)
+                RouteUpdates(currentRoutesSet, EmptyRouteSet,
+                             currentRoutes6Set, EmptyRoute6Set)
             } else if (oldPublish && !newPublish) {
                 // If the port did previously publish routes, but does not now,
                 // remove all routes.
                 RouteUpdates(EmptyRouteSet,
-                             currentRoutesSet ++ removedRoutes.toSet)
+                             currentRoutesSet ++ removedRoutes.toSet,
+                             EmptyRoute6Set,
+                             currentRoutes6Set ++ removedRoutes6.toSet)
             } else {
                 // The port does not publishes routes.
                 EmptyRouteUpdates
@@ -231,37 +268,30 @@ object RouterMapper {
 
                 routesCache ++= updates.added
                 routesCache --= updates.removed
+                routes6Cache ++= updates.added6
+                routes6Cache --= updates.removed6
 
                 if (isPublishingRoutes) updates else EmptyRouteUpdates
             }
         }
 
-        /** A method called when the set of learned routes is updated. It
-          * computes the difference between the previous learned routes update
-          * and this one, and returns a [[RouteUpdates]] instance with the
-          * difference. */
-        private def learnedRoutesUpdated(routes: Set[Route]): RouteUpdates = {
+        /** A method called when the learned routes are updated. The routing
+          * table storage emits the routes added and removed since the previous
+          * update, such that the method applies them in bulk, without
+          * comparing the full set of learned routes, and returns a
+          * [[RouteUpdates]] instance with the same changes. */
+        private def learnedRoutesUpdated(update: RouteTableUpdate)
+        : RouteUpdates = {
             vt.assertThread()
-            log.debug("Learned port routes updated: {} routes",
-                      Int.box(routes.size))
+            log.debug("Learned port routes updated: {} added {} removed",
+                      Int.box(update.added.size), Int.box(update.removed.size))
             portStateReady = true
 
-            val added = new mutable.HashSet[Route]
-            val removed = new mutable.HashSet[Route]
-
-            for (route <- routes if !routesCache.contains(route)) {
-                added += route
-            }
+            routesCache ++= update.added
+            routesCache --= update.removed
 
-            for (route <- routesCache
-                 if route.learned && !routes.contains(route)) {
-                removed += route
-            }
-
-            routesCache ++= added
-            routesCache --= removed
-
-            if (isPublishingRoutes) RouteUpdates(added.toSet, removed.toSet)
+            if (isPublishingRoutes && update.nonEmpty)
+                RouteUpdates(update.added, update.removed)
             else EmptyRouteUpdates
         }
 
@@ -276,6 +306,11 @@ object RouterMapper {
         private def publishedRoutes: Set[Route] = {
             if (isPublishingRoutes) routesCache.toSet else EmptyRouteSet
         }
+
+        /** Gets the IPv6 routes currently published by the port. */
+        private def publishedRoutes6: Set[IPv6Route] = {
+            if (isPublishingRoutes) routes6Cache.toSet else EmptyRoute6Set
+        }
     }
 
     /**
@@ -288,9 +323,11 @@ object RouterMapper {
                              log: Logger) {
 
         @Nullable private var currentRoute: Route = null
+        @Nullable private var currentRoute6: IPv6Route = null
+        private var ready = false
         private val mark = PublishSubject.create[RouteUpdates]
 
-        val observable = vt.store.observable(classOf[TopologyRoute], routeId)
+        val observable = vt.storeObservable(classOf[TopologyRoute], routeId)
             .observeOn(vt.vtScheduler)
             .flatMap[RouteUpdates](makeFunc1(routeUpdated))
             .onErrorResumeNext(makeFunc1(routeError))
@@ -298,29 +335,44 @@ object RouterMapper {
 
         /** Completes the observable corresponding to this route state. */
         def complete(): Unit = mark.onCompleted()
-        /** Gets the last route published by this route state. */
+        /** Gets the last IPv4 route published by this route state. */
         @Nullable def route: Route = currentRoute
+        /** Gets the last IPv6 route published by this route state. */
+        @Nullable def route6: IPv6Route = currentRoute6
         /** Indicates whether the route state has received the route data. */
-        def isReady: Boolean = currentRoute ne null
+        def isReady: Boolean = ready
+        /** Gets the route update removing the routes published by this
+          * route state. */
+        def removal: RouteUpdates =
+            RouteUpdates(EmptyRouteSet, routeAsSet(currentRoute),
+                         EmptyRoute6Set, route6AsSet(currentRoute6))
 
         /** Generates a route update when the route changes. */
         private def routeUpdated(tr: TopologyRoute): Observable[RouteUpdates] = {
-            if (!isIp4(tr)) {
-                log.debug(s"Route $routeId is IPv6: ignoring")
-                currentRoute = Route6
-                return Observable.just(EmptyRouteUpdates)
-            }
-
-            val route = ZoomConvert.fromProto(tr, classOf[Route])
-            log.debug("Route updated: {}", route)
+            val (route, route6): (Route, IPv6Route) =
+                if (isIp4(tr)) {
+                    (ZoomConvert.fromProto(tr, classOf[Route]), null)
+                } else if (isIp6(tr)) {
+                    (null, toIPv6Route(tr))
+                } else {
+                    log.debug(s"Route $routeId mixes IPv4 and IPv6 " +
+                              "addresses: ignoring")
+                    (null, null)
+                }
+            log.debug("Route updated: {}", if (route ne null) route else route6)
 
             val updateObservable =
-                if (route != currentRoute)
+                if (route != currentRoute || route6 != currentRoute6)
                     Observable.just(RouteUpdates(routeAsSet(route),
-                                                 routeAsSet(currentRoute)))
+                                                 routeAsSet(currentRoute),
+                                                 route6AsSet(route6),
+                                                 route6AsSet(currentRoute6)))
+                else if (!ready) Observable.just(EmptyRouteUpdates)
                 else Observable.empty[RouteUpdates]
 
             currentRoute = route
+            currentRoute6 = route6
+            ready = true
 
             updateObservable
         }
@@ -331,8 +383,7 @@ object RouterMapper {
         private def routeError(e: Throwable): Observable[RouteUpdates] = {
             log.warn(s"Update stream emitted error for route $routeId: the " +
                      s"route will be ignored", e)
-            if (isReady) Observable.just(RouteUpdates(EmptyRouteSet,
-                                                      routeAsSet(currentRoute)))
+            if (isReady) Observable.just(removal)
             else Observable.empty()
         }
 
@@ -347,6 +398,35 @@ object RouterMapper {
             (!route.hasNextHopGateway ||
                 route.getNextHopGateway.getVersion == IPVersion.V4)
         }
+
+        /**
+          * @return True if the route is an IPv6 route.
+          */
+        private def isIp6(route: TopologyRoute): Boolean = {
+            (!route.hasSrcSubnet ||
+                route.getSrcSubnet.getVersion == IPVersion.V6) &&
+            (!route.hasDstSubnet ||
+                route.getDstSubnet.getVersion == IPVersion.V6) &&
+            (!route.hasNextHopGateway ||
+                route.getNextHopGateway.getVersion == IPVersion.V6)
+        }
+
+        /** Converts an IPv6 topology route, where the [[Route]] gets all but
+          * the IPv6 addresses. */
+        private def toIPv6Route(tr: TopologyRoute): IPv6Route = {
+            val route = ZoomConvert.fromProto(tr.toBuilder
+                                                .clearSrcSubnet()
+                                                .clearDstSubnet()
+                                                .clearNextHopGateway()
+                                                .build(), classOf[Route])
+            IPv6Route(route,
+                      if (tr.hasSrcSubnet)
+                          IPSubnetUtil.fromV6Proto(tr.getSrcSubnet)
+                      else AnyIPv6Subnet,
+                      if (tr.hasDstSubnet)
+                          IPSubnetUtil.fromV6Proto(tr.getDstSubnet)
+                      else AnyIPv6Subnet)
+        }
     }
 
     /**
@@ -380,28 +460,56 @@ object RouterMapper {
 
     /**
      * Provides an implementation for a router's [[RoutingTable]], wrapping an
-     * underlying IPv4 routing table.
+     * underlying IPv4 routing table, and an IPv6 routing table for the
+     * destinations that are IPv6 addresses. The `multibit` routing table is
+     * built once with all the routes, and it is replaced with a new router on
+     * every route change.
      */
-    private class RouterRoutingTable(routes: mutable.Set[Route])
+    private class RouterRoutingTable(routes: mutable.Set[Route],
+                                     routes6: mutable.Set[IPv6Route],
+                                     engine: String)
         extends RoutingTable {
 
-        private val ipv4RoutingTable = new IPv4RoutingTable()
+        private val ipv4RoutingTable: RoutingTableIfc[IPv4Addr] = engine match {
+            case "multibit" =>
+                new MultibitIPv4RoutingTable(routes.asJavaCollection)
+            case _ =>
+                val table = new IPv4RoutingTable()
+                for (route <- routes) {
+                    table.addRoute(route)
+                }
+                table
+        }
 
-        for (route <- routes) {
-            ipv4RoutingTable.addRoute(route)
+        private val ipv6RoutingTable = new IPv6RoutingTable()
+        for (route6 <- routes6) {
+            ipv6RoutingTable.addRoute(route6.route, route6.srcSubnet,
+                                      route6.dstSubnet)
         }
 
         override def lookup(flowMatch: FlowMatch): java.util.List[Route] = {
-            ipv4RoutingTable.lookup(
-                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr])
+            flowMatch.getNetworkDstIP match {
+                case dst: IPv6Addr =>
+                    ipv6RoutingTable.lookup(
+                        flowMatch.getNetworkSrcIP.asInstanceOf[IPv6Addr], dst)
+                case dst =>
+                    ipv4RoutingTable.lookup(
+                        flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
+                        dst.asInstanceOf[IPv4Addr])
+            }
         }
 
         override def lookup(flowMatch: FlowMatch, log: Logger): java.util.List[Route] = {
-            ipv4RoutingTable.lookup(
-                flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
-                flowMatch.getNetworkDstIP.asInstanceOf[IPv4Addr],
-                log.underlying)
+            flowMatch.getNetworkDstIP match {
+                case dst: IPv6Addr =>
+                    ipv6RoutingTable.lookup(
+                        flowMatch.getNetworkSrcIP.asInstanceOf[IPv6Addr], dst,
+                        log.underlying)
+                case dst =>
+                    ipv4RoutingTable.lookup(
+                        flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
+                        dst.asInstanceOf[IPv4Addr], log.underlying)
+            }
         }
     }
 
@@ -410,6 +518,12 @@ object RouterMapper {
     private def routeAsSet(route: Route) = {
         if (route ne null) Set(route) else EmptyRouteSet
     }
+
+    /** Converts a nullable IPv6 route to a [[Set]]. */
+    @inline
+    private def route6AsSet(route6: IPv6Route) = {
+        if (route6 ne null) Set(route6) else EmptyRoute6Set
+    }
 }
 
 /**
@@ -431,6 +545,13 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         }
     }
 
+    private class RemoveIPv6TagCallback(dst: IPv6Addr) extends Callback0 {
+        override def call(): Unit = {
+            log.debug(s"Remove tag for destination address prefix $dst/64")
+            IPv6InvalidationArray.current.unref(dst.upperWord)
+        }
+    }
+
     private var config: Config = null
     private var ready: Boolean = false
     private val ports = new mutable.HashMap[UUID, PortState]
@@ -438,6 +559,7 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
     // Stores all routes received via notifications from the replicated routing
     // table.
     private val routes = new mutable.HashSet[Route]
+    private val routes6 = new mutable.HashSet[IPv6Route]
     // Stores routes received via the router's configuration in storage.
     private val localRoutes = new mutable.HashMap[UUID, RouteState]
     private var arpCache: ArpCache = null
@@ -453,6 +575,14 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         override def getFlowRemovalCallback(dst: IPv4Addr): Callback0 = {
             new RemoveTagCallback(dst)
         }
+        override def addIPv6Tag(dst: IPv6Addr, matchLength: Int): Unit = {
+            val refs = IPv6InvalidationArray.current.ref(dst.upperWord,
+                                                         matchLength)
+            log.debug(s"Increased ref count ip prefix $dst/64 to $refs")
+        }
+        override def getFlowRemovalCallback(dst: IPv6Addr): Callback0 = {
+            new RemoveIPv6TagCallback(dst)
+        }
     }
 
     private val chainsTracker = new ObjectReferenceTracker(vt, classOf[Chain], log)
@@ -468,7 +598,7 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         PublishSubject.create[Observable[LoadBalancer]]
 
     private lazy val routerObservable =
-        vt.store.observable(classOf[TopologyRouter], routerId)
+        vt.storeObservable(classOf[TopologyRouter], routerId)
             .observeOn(vt.vtScheduler)
             .doOnCompleted(makeAction0(routerDeleted()))
             .map[Config](makeFunc1(routerUpdated))
@@ -662,8 +792,7 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
              if !routeIds.contains(routeId)) {
             localRoutes -= routeId
             if (routeState.isReady) {
-                routingTableUpdated(RouteUpdates(EmptyRouteSet,
-                                                 Set(routeState.route)))
+                routingTableUpdated(routeState.removal)
             }
             routeState.complete()
         }
@@ -706,8 +835,15 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         // Update the current routes.
         routes ++= routeUpdates.added
         routes --= routeUpdates.removed
+        routes6 ++= routeUpdates.added6
+        routes6 --= routeUpdates.removed6
         vt.tellBackChannel(InvalidateFlows(
             id, routeUpdates.added, routeUpdates.removed))
+        if (routeUpdates.added6.nonEmpty || routeUpdates.removed6.nonEmpty) {
+            vt.tellBackChannel(InvalidateIPv6Flows(
+                id, (routeUpdates.added6 ++ routeUpdates.removed6)
+                        .map(_.dstSubnet)))
+        }
         config
     }
 
@@ -756,7 +892,8 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology,
         val device = new SimulationRouter(
             routerId,
             config2,
-            new RouterRoutingTable(routes),
+            new RouterRoutingTable(routes, routes6,
+                                   vt.config.router.routingTable),
             tagManager,
             vniToPort.asJava,
             arpCache,
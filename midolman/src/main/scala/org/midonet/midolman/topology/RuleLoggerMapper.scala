@@ -42,7 +42,7 @@ class RuleLoggerMapper(id: UUID, vt: VirtualTopology)
 
     private var ruleLogger: RuleLogger = null
     private val ruleLoggerObservable =
-        vt.store.observable(classOf[RuleLogger], id)
+        vt.storeObservable(classOf[RuleLogger], id)
             .observeOn(vt.vtScheduler)
             .doOnCompleted(makeAction0(ruleLoggerDeleted()))
             .doOnNext(makeAction1(ruleLoggerUpdated))
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.io.{BufferedOutputStream, DataOutputStream, IOException}
+import java.nio.channels.{Channels, FileChannel}
+import java.nio.channels.FileChannel.MapMode
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.nio.{BufferUnderflowException, ByteBuffer}
+import java.util.UUID
+
+import scala.collection.mutable
+
+import com.google.protobuf.{Message, Parser}
+
+import org.midonet.midolman.topology.TopologySnapshot.{Entry, Key}
+
+object TopologySnapshot {
+
+    final val Magic = 0x4d4e5453 // MNTS
+    final val Version = 1
+
+    /** Identifies a topology object in the snapshot. */
+    case class Key(clazz: Class[_], id: UUID)
+
+    private[topology] case class Entry(clazz: Int, offset: Int, length: Int)
+
+    /**
+     * Writes a snapshot with the given topology objects to the specified
+     * file. The snapshot is written to a temporary file in the same directory
+     * and then moved over the previous snapshot, such that a reader never
+     * sees a partially written snapshot.
+     *
+     * The snapshot starts with a header holding the magic number, the format
+     * version, the time when the snapshot was taken in milliseconds and the
+     * names of the object classes. The header is followed by the objects,
+     * each with the index of its class, its identifier and its length.
+     */
+    @throws[IOException]
+    def write(path: Path, timestamp: Long,
+              objects: Seq[(Key, Message)]): Unit = {
+        val classes = new mutable.LinkedHashMap[Class[_], Int]
+        for ((key, _) <- objects) {
+            classes.getOrElseUpdate(key.clazz, classes.size)
+        }
+
+        val parent = path.toAbsolutePath.getParent
+        Files.createDirectories(parent)
+        val temp = Files.createTempFile(parent, path.getFileName.toString,
+                                        ".tmp")
+        try {
+            val channel = FileChannel.open(temp, StandardOpenOption.WRITE)
+            try {
+                val out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)))
+                out.writeInt(Magic)
+                out.writeInt(Version)
+                out.writeLong(timestamp)
+                out.writeInt(classes.size)
+                for ((clazz, _) <- classes) {
+                    out.writeUTF(clazz.getName)
+                }
+                out.writeInt(objects.size)
+                for ((key, obj) <- objects) {
+                    val data = obj.toByteArray
+                    out.writeShort(classes(key.clazz))
+                    out.writeLong(key.id.getMostSignificantBits)
+                    out.writeLong(key.id.getLeastSignificantBits)
+                    out.writeInt(data.length)
+                    out.write(data)
+                }
+                out.flush()
+                channel.force(true)
+            } finally {
+                channel.close()
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+    }
+
+    /**
+     * Memory-maps the snapshot from the specified file, and reads its index.
+     * The objects are parsed only when requested. The method throws an
+     * [[IOException]] if the file cannot be read or if its format is not
+     * supported.
+     */
+    @throws[IOException]
+    def read(path: Path): TopologySnapshot = {
+        val channel = FileChannel.open(path, StandardOpenOption.READ)
+        val buffer = try channel.map(MapMode.READ_ONLY, 0, channel.size())
+                     finally channel.close()
+        try {
+            if (buffer.getInt() != Magic)
+                throw new IOException(s"File $path is not a topology snapshot")
+            val version = buffer.getInt()
+            if (version != Version)
+                throw new IOException(s"Topology snapshot $path has " +
+                                      s"unsupported version $version")
+            val timestamp = buffer.getLong()
+
+            val classes = new Array[Class[_]](buffer.getInt())
+            for (index <- classes.indices) {
+                classes(index) = readClass(buffer)
+            }
+
+            val count = buffer.getInt()
+            val index = new java.util.HashMap[Key, Entry](count * 2)
+            for (_ <- 0 until count) {
+                val clazz = buffer.getShort()
+                val id = new UUID(buffer.getLong(), buffer.getLong())
+                val length = buffer.getInt()
+                index.put(Key(classes(clazz), id),
+                          Entry(clazz, buffer.position(), length))
+                buffer.position(buffer.position() + length)
+            }
+            new TopologySnapshot(buffer, timestamp, classes, index)
+        } catch {
+            case e @ (_: BufferUnderflowException |
+                      _: IllegalArgumentException |
+                      _: ClassNotFoundException) =>
+                throw new IOException(s"Topology snapshot $path is corrupted", e)
+        }
+    }
+
+    private def readClass(buffer: ByteBuffer): Class[_] = {
+        val data = new Array[Byte](buffer.getShort() & 0xffff)
+        buffer.get(data)
+        // The class names are written with the modified UTF-8 encoding, which
+        // matches UTF-8 for the Java identifiers.
+        Class.forName(new String(data, "UTF-8"))
+    }
+
+}
+
+/**
+ * A read-only, memory-mapped snapshot of the topology objects loaded by the
+ * agent, written by [[TopologySnapshot.write]].
+ */
+final class TopologySnapshot private(buffer: ByteBuffer,
+                                     val timestamp: Long,
+                                     classes: Array[Class[_]],
+                                     index: java.util.Map[Key, Entry]) {
+
+    private val parsers = new Array[Parser[_ <: Message]](classes.length)
+
+    /** Number of objects in the snapshot. */
+    def size: Int = index.size()
+
+    /** The keys of the objects in the snapshot. */
+    def keys: java.util.Set[Key] = index.keySet()
+
+    /**
+     * Parses the object with the specified key from the snapshot, and returns
+     * null if the snapshot does not contain the object.
+     */
+    @throws[IOException]
+    def get(key: Key): Message = {
+        val entry = index.get(key)
+        if (entry eq null) {
+            return null
+        }
+        val data = new Array[Byte](entry.length)
+        val slice = buffer.duplicate()
+        slice.position(entry.offset)
+        slice.get(data)
+        parserOf(entry.clazz).parseFrom(data)
+    }
+
+    private def parserOf(clazz: Int): Parser[_ <: Message] = {
+        var parser = parsers(clazz)
+        if (parser eq null) {
+            parser = classes(clazz).getMethod("getDefaultInstance")
+                .invoke(null).asInstanceOf[Message].getParserForType
+            parsers(clazz) = parser
+        }
+        parser
+    }
+
+}
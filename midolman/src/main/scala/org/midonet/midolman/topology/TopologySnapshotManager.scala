@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.nio.file.{Files, Paths}
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, ScheduledExecutorService, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.MetricRegistry
+import com.google.protobuf.Message
+
+import rx.{Observable, Observer}
+
+import org.midonet.cluster.data.ObjId
+import org.midonet.cluster.models.{Commons, Topology}
+import org.midonet.cluster.util.UUIDUtil.asRichProtoUuid
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.midolman.monitoring.metrics.TopologySnapshotMetrics
+import org.midonet.midolman.simulation
+import org.midonet.midolman.topology.TopologySnapshot.Key
+import org.midonet.midolman.topology.VirtualTopology.Device
+import org.midonet.util.concurrent.Executors
+import org.midonet.util.functors.{makeAction0, makeAction1, makeRunnable}
+
+object TopologySnapshotManager {
+
+    /**
+     * The topology classes whose objects are loaded as virtual devices when
+     * the agent starts from a snapshot.
+     */
+    private val DeviceClasses = Map[Class[_], Class[_ <: Device]](
+        classOf[Topology.Chain] -> classOf[simulation.Chain],
+        classOf[Topology.IPAddrGroup] -> classOf[simulation.IPAddrGroup],
+        classOf[Topology.LoadBalancer] -> classOf[simulation.LoadBalancer],
+        classOf[Topology.Mirror] -> classOf[simulation.Mirror],
+        classOf[Topology.Network] -> classOf[simulation.Bridge],
+        classOf[Topology.Pool] -> classOf[simulation.Pool],
+        classOf[Topology.Port] -> classOf[simulation.Port],
+        classOf[Topology.PortGroup] -> classOf[simulation.PortGroup],
+        classOf[Topology.QosPolicy] -> classOf[simulation.QosPolicy],
+        classOf[Topology.Router] -> classOf[simulation.Router])
+
+}
+
+/**
+ * Maintains an on-disk snapshot of the topology objects loaded by the
+ * [[VirtualTopology]], such that a restarting agent does not wait for the
+ * storage to load the devices of the first packets.
+ *
+ * The device mappers read the topology objects through the [[observable]]
+ * method, which records the latest version of every object and which, until
+ * the object is reconciled, emits the snapshot version of the object before
+ * the storage notifications. The recorded objects are written periodically to
+ * the snapshot file, and when the agent stops.
+ *
+ * When started, the manager memory-maps the snapshot, requests the devices of
+ * the snapshot objects from the virtual topology, and reconciles every object
+ * by reading it once from storage. A device loaded from a stale object is
+ * updated by the storage notification that follows. The snapshot is not
+ * written until all objects are reconciled, such that an agent that cannot
+ * reach the storage preserves the previous snapshot.
+ */
+class TopologySnapshotManager(vt: VirtualTopology, file: String,
+                              interval: Long, registry: MetricRegistry)
+    extends MidolmanLogging {
+
+    import TopologySnapshotManager._
+
+    override def logSource = "org.midonet.devices.topology-snapshot"
+
+    private[topology] val metrics = new TopologySnapshotMetrics(registry)
+
+    private val loaded = new ConcurrentHashMap[Key, Message]()
+    private val pending = ConcurrentHashMap.newKeySet[Key]()
+    private val remaining = new AtomicInteger
+
+    @volatile private var snapshot: TopologySnapshot = null
+    @volatile private var readTime = 0L
+    private var executor: ScheduledExecutorService = null
+
+    def isEnabled: Boolean = file.nonEmpty
+
+    /**
+     * Reads the snapshot file, if any, and schedules the periodic writes of
+     * the snapshot.
+     */
+    def start(): Unit = {
+        if (!isEnabled) {
+            return
+        }
+        read()
+        executor = Executors.singleThreadScheduledExecutor(
+            "topology-snapshot", isDaemon = true, Executors.CallerRunsPolicy)
+        executor.scheduleWithFixedDelay(makeRunnable { write() }, interval,
+                                        interval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Stops the periodic writes, and writes the snapshot a last time.
+     */
+    def stop(): Unit = {
+        if (executor eq null) {
+            return
+        }
+        Executors.shutdown(executor) { e =>
+            log.warn("Stopping the topology snapshot executor failed", e)
+        }
+        executor = null
+        write()
+    }
+
+    /**
+     * Returns an observable for the topology object of the specified class
+     * and identifier. The observable records the object for the snapshot,
+     * and it emits first the snapshot version of the object, if the object
+     * is not yet reconciled.
+     */
+    def observable[T](clazz: Class[T], id: ObjId): Observable[T] = {
+        val live = vt.store.observable(clazz, id)
+        val key = keyOf(clazz, id)
+        if (!isEnabled || (key eq null)) {
+            return live
+        }
+
+        val recorded = live
+            .doOnNext(makeAction1 { obj: T =>
+                loaded.put(key, obj.asInstanceOf[Message])
+            })
+            .doOnCompleted(makeAction0 { loaded.remove(key) })
+            .doOnError(makeAction1 { _: Throwable => loaded.remove(key) })
+
+        val current = snapshot
+        if ((current ne null) && pending.contains(key)) {
+            val obj = try current.get(key) catch {
+                case NonFatal(e) =>
+                    log.warn(s"Cannot read ${clazz.getSimpleName}:$id from " +
+                             "the topology snapshot", e)
+                    null
+            }
+            if (obj ne null) {
+                return recorded.startWith(obj.asInstanceOf[T])
+            }
+        }
+        recorded
+    }
+
+    private def read(): Unit = {
+        val path = Paths.get(file)
+        if (!Files.exists(path)) {
+            log.info(s"No topology snapshot at $file")
+            return
+        }
+
+        val current = try TopologySnapshot.read(path) catch {
+            case NonFatal(e) =>
+                log.warn(s"Cannot read the topology snapshot $file", e)
+                return
+        }
+
+        readTime = System.currentTimeMillis()
+        val age = readTime - current.timestamp
+        metrics.snapshotRead(current.size, age)
+        log.info(s"Read topology snapshot $file with ${current.size} " +
+                 s"objects taken $age milliseconds ago")
+
+        val keys = current.keys.asScala.toList
+        remaining.set(keys.size)
+        pending.addAll(current.keys)
+        snapshot = current
+        if (keys.isEmpty) {
+            reconciled()
+            return
+        }
+
+        for (key <- keys) {
+            reconcile(current, key)
+        }
+        for (key <- keys; deviceClass <- DeviceClasses.get(key.clazz)) {
+            vt.prefetch(deviceClass, key.id)
+        }
+    }
+
+    /**
+     * Reads the object with the given key once from storage, and compares it
+     * with the snapshot version of the object.
+     */
+    private def reconcile(current: TopologySnapshot, key: Key): Unit = {
+        vt.store.observable(key.clazz, key.id).take(1).subscribe(
+            new Observer[Any] {
+                override def onNext(obj: Any): Unit = {
+                    val stale = try obj != current.get(key) catch {
+                        case NonFatal(_) => true
+                    }
+                    if (stale) {
+                        metrics.staleObjectsCounter.inc()
+                    }
+                    reconciled(key)
+                }
+                override def onError(e: Throwable): Unit = {
+                    // The object was deleted or cannot be read from storage.
+                    metrics.staleObjectsCounter.inc()
+                    reconciled(key)
+                }
+                override def onCompleted(): Unit = { }
+            })
+    }
+
+    private def reconciled(key: Key): Unit = {
+        if (pending.remove(key) && remaining.decrementAndGet() == 0) {
+            reconciled()
+        }
+    }
+
+    private def reconciled(): Unit = {
+        val time = System.currentTimeMillis() - readTime
+        metrics.snapshotReconciled(time)
+        log.info(s"Reconciled the topology snapshot in $time milliseconds " +
+                 s"with ${metrics.staleObjectsCounter.getCount} stale objects")
+        snapshot = null
+    }
+
+    private def write(): Unit = {
+        if (snapshot ne null) {
+            log.debug("Topology snapshot not written until reconciled")
+            return
+        }
+        val start = System.nanoTime()
+        val objects = loaded.asScala.toList
+        try {
+            TopologySnapshot.write(Paths.get(file), System.currentTimeMillis(),
+                                   objects)
+            metrics.snapshotWritten(System.nanoTime() - start)
+            log.debug(s"Wrote topology snapshot with ${objects.size} objects")
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Cannot write the topology snapshot $file", e)
+        }
+    }
+
+    private def keyOf(clazz: Class[_], id: ObjId): Key = {
+        if (!classOf[Message].isAssignableFrom(clazz)) {
+            return null
+        }
+        id match {
+            case uuid: UUID => Key(clazz, uuid)
+            case uuid: Commons.UUID => Key(clazz, uuid.asJava)
+            case _ => null
+        }
+    }
+
+}
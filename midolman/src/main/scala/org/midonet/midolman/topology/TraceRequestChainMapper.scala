@@ -67,7 +67,7 @@ trait TraceRequestChainMapper[D <: VirtualDevice] {
 
     class TraceRequestState(id: UUID) {
         private val mark = PublishSubject.create[TraceRequest]()
-        val observable = vt.store.observable(classOf[TraceRequest], id)
+        val observable = vt.storeObservable(classOf[TraceRequest], id)
             .observeOn(vt.vtScheduler)
             .takeUntil(mark)
             .map[TraceRequest](makeFunc1(makeRule))
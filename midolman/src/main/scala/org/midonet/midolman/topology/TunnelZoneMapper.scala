@@ -34,7 +34,7 @@ final class TunnelZoneMapper(id: UUID, vt: VirtualTopology)
     override def logMark = s"tunnel-zone:$id"
 
     protected override val observable =
-        vt.store.observable(classOf[TunnelZone], id)
+        vt.storeObservable(classOf[TunnelZone], id)
             .map[SimTunnelZone](
                 makeFunc1(ZoomConvert.fromProto(_, classOf[SimTunnelZone])))
             .observeOn(vt.vtScheduler)
@@ -16,7 +16,7 @@
 package org.midonet.midolman.topology
 
 import java.util.UUID
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicLong, LongAdder}
 import java.util.concurrent.{ConcurrentHashMap, ExecutorService}
 
 import scala.collection.mutable
@@ -31,6 +31,7 @@ import rx.Observable.OnSubscribe
 import rx.schedulers.Schedulers
 import rx.subjects.Subject
 
+import org.midonet.cluster.data.ObjId
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.logging.MidolmanLogging
@@ -93,6 +94,7 @@ object VirtualTopology {
     @VisibleForTesting
     private[midonet] def clear(): Unit = {
         self.devices.clear()
+        self.deviceVersion.incrementAndGet()
     }
 
     /**
@@ -100,7 +102,7 @@ object VirtualTopology {
      */
     @VisibleForTesting
     private[midonet] def add[D <: Device](id: UUID, device: D): Unit = {
-        self.devices.put(id, device)
+        self.putDevice(id, device)
     }
 
     /**
@@ -140,6 +142,14 @@ object VirtualTopology {
  * device notification from storage, and cleared when the device stream
  * completes (normally when the device is deleted) or issues an error.
  *
+ * The threads implementing [[DeviceSnapshot.Owner]], such as the packet
+ * workers, may also cache the devices in a thread-confined [[DeviceSnapshot]].
+ * Since every change to the device map increments the device version, which
+ * tags the snapshot entries, a snapshot never returns a device that is no
+ * longer in the device map. The cache statistics are striped to prevent
+ * contention between the packet workers, and they are summed only when the
+ * metrics are read.
+ *
  *                         |
  *   get() + cache hit     | get() + cache miss / observable()
  *         +---------------+--------------+
@@ -177,15 +187,21 @@ class VirtualTopology(val backend: MidonetBackend,
     private[topology] val observables =
         new ConcurrentHashMap[Key, Observable[_]]()
 
-    private val cacheHits = new AtomicLong(0L)
-    private val cacheMisses = new AtomicLong(0L)
+    private[topology] val deviceVersion = new AtomicLong(0L)
+
+    private val cacheHits = new LongAdder
+    private val cacheMisses = new LongAdder
 
     private[topology] val metrics = new VirtualTopologyMetrics(
         metricRegistry, { devices.size() }, { observables.size() },
-        { cacheHits.get() }, {  cacheMisses.get() })
+        { cacheHits.sum() }, { cacheMisses.sum() })
 
     private val traceChains = mutable.Map[UUID, Subject[Chain, Chain]]()
 
+    private[midolman] val snapshots = new TopologySnapshotManager(
+        this, config.topologySnapshotFile, config.topologySnapshotInterval,
+        metricRegistry)
+
     private val factories = Map[Class[_], DeviceFactory](
         classOf[BgpPort] -> DeviceFactory(
             classOf[BgpPort], new BgpPortMapper(_, this)),
@@ -235,6 +251,25 @@ class VirtualTopology(val backend: MidonetBackend,
 
     def stateTables = backend.stateTableStore
 
+    /**
+     * Returns an observable for a topology object from storage, which the
+     * device mappers use instead of the storage observable such that the
+     * object can be served from the topology snapshot.
+     */
+    private[topology] def storeObservable[T](clazz: Class[T], id: ObjId)
+    : Observable[T] = {
+        snapshots.observable(clazz, id)
+    }
+
+    /**
+     * Requests the virtual device with the specified identifier without
+     * waiting for it, such that the device is cached before it is needed.
+     */
+    private[topology] def prefetch[D <: Device](clazz: Class[D], id: UUID)
+    : Unit = {
+        observableOf(clazz, id).asFuture
+    }
+
     private def observableOf[D <: Device](clazz: Class[D], id: UUID)
     : Observable[D] = {
         val factory = factories.getOrElse(
@@ -262,6 +297,47 @@ class VirtualTopology(val backend: MidonetBackend,
             }))
     }
 
+    /**
+     * Adds or updates a device in the device map, invalidating the device
+     * snapshots of all threads.
+     */
+    private[topology] def putDevice(id: UUID, device: Device): Unit = {
+        devices.put(id, device)
+        deviceVersion.incrementAndGet()
+    }
+
+    /**
+     * Removes a device from the device map, invalidating the device
+     * snapshots of all threads.
+     */
+    private[topology] def removeDevice(id: UUID): Device = {
+        val device = devices.remove(id)
+        deviceVersion.incrementAndGet()
+        device
+    }
+
+    /**
+     * Looks up the device in the given device snapshot, if any, and otherwise
+     * in the device map. The device version is read before the device map,
+     * such that a device cached in the snapshot is invalidated by any
+     * concurrent change.
+     */
+    @inline
+    private def deviceOf(id: UUID, snapshot: DeviceSnapshot): Device = {
+        if (snapshot eq null) {
+            return devices.get(id)
+        }
+        val version = deviceVersion.get()
+        var device = snapshot.get(id, version)
+        if (device eq null) {
+            device = devices.get(id)
+            if (device ne null) {
+                snapshot.put(id, device, version)
+            }
+        }
+        device
+    }
+
     private[topology] def invalidate(tag: FlowTag): Unit = tellBackChannel(tag)
 
     private[topology] def tellBackChannel(msg: BackChannelMessage): Unit =
@@ -316,10 +392,10 @@ class VirtualTopology(val backend: MidonetBackend,
     def get[D <: Device](clazz: Class[D], id: UUID): Future[D] = {
         val device = devices.get(id).asInstanceOf[D]
         if (device eq null) {
-            cacheMisses.incrementAndGet()
+            cacheMisses.increment()
             observableOf(clazz, id).asFuture
         } else {
-            cacheHits.incrementAndGet()
+            cacheHits.increment()
             Future.successful(device)
         }
     }
@@ -334,14 +410,29 @@ class VirtualTopology(val backend: MidonetBackend,
     @throws[NotYetException]
     @throws[Exception]
     def tryGet[D <: Device](clazz: Class[D], id: UUID): D = {
-        val device = devices.get(id).asInstanceOf[D]
+        val snapshot = Thread.currentThread() match {
+            case owner: DeviceSnapshot.Owner => owner.deviceSnapshot
+            case _ => null
+        }
+        tryGet(clazz, id, snapshot)
+    }
+
+    /**
+     * Tries to get the virtual device with the specified identifier, looking
+     * it up first in the given device snapshot, which may be null.
+     */
+    @throws[NotYetException]
+    @throws[Exception]
+    private[midolman] def tryGet[D <: Device](clazz: Class[D], id: UUID,
+                                              snapshot: DeviceSnapshot): D = {
+        val device = deviceOf(id, snapshot).asInstanceOf[D]
         if (device eq null) {
-            cacheMisses.incrementAndGet()
+            cacheMisses.increment()
             throw new NotYetException(observableOf(clazz, id).asFuture,
                                       s"Device ${clazz.getSimpleName}/$id " +
                                       "not yet available")
         }
-        cacheHits.incrementAndGet()
+        cacheHits.increment()
         device
     }
 }
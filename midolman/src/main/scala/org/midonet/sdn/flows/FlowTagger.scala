@@ -37,6 +37,8 @@ object FlowTagger {
 
     trait MeterTag extends FlowTag {
         private[this] var _meterName: String = null
+        // The meter identifier interned by the MeterRegistry, or -1.
+        private[midonet] var meterId = -1
         def meterName: String = {
             if (_meterName eq null)
                 _meterName = s"meters:$toString"
@@ -378,11 +380,12 @@ object FlowTagger {
     }
 
     def tagForDestinationIp(routerId: UUID, ipDestination: IPv6Addr): FlowTag = {
+        val ip = IPv6Addr(ipDestination.upperWord, 0L)
         val segment = cachedDestinationIpTags.get().getOrAddSegment(routerId)
-                                                   .getOrAddSegment(ipDestination)
+                                                   .getOrAddSegment(ip)
         var tag = segment.value
         if (tag eq null) {
-            tag = new DestinationIpTag(routerId, ipDestination)
+            tag = new DestinationIpTag(routerId, ip)
             segment.value = tag
         }
         tag
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+object FlowStateOwnerIndex {
+    /** The maximum number of shards tracked by the index. */
+    final val MaxShards = 16
+
+    final val DefaultSlots = 1 << 12
+
+    private def tableSizeFor(slots: Int): Int = {
+        val n = Math.max(slots, 2)
+        Integer.highestOneBit(n - 1) << 1
+    }
+}
+
+/**
+ * A concurrent index of the shards of a [[ShardedFlowStateTable]] that own
+ * the keys of the table, used to avoid probing every shard on a local miss.
+ *
+ * Keys are hashed into a fixed number of slots and each slot keeps one counter
+ * per shard, tracking how many keys hashing to that slot are stored in the
+ * shard. The 16 counters of a slot take exactly one cache line, so finding
+ * the candidate owners of a key is a single memory access. A zero counter is
+ * a definitive miss, while a non-zero counter may be a false positive caused
+ * by a hash collision. Counters are incremented before a key is inserted into
+ * a shard and decremented when it expires, so the index never reports a false
+ * negative for a key stored in a shard.
+ *
+ * Shards with an identifier equal or greater than [[FlowStateOwnerIndex.MaxShards]]
+ * are not tracked, and are always reported as candidate owners.
+ */
+final class FlowStateOwnerIndex(slotsHint: Int) {
+
+    import FlowStateOwnerIndex._
+
+    val slots = tableSizeFor(slotsHint)
+    private val mask = slots - 1
+    private val counters = new AtomicIntegerArray(slots * MaxShards)
+
+    @inline def slotOf(key: AnyRef): Int = {
+        val h = key.hashCode * 0x9E3779B9
+        (h ^ (h >>> 16)) & mask
+    }
+
+    /**
+     * Records that the given shard is storing a new key hashing to the slot.
+     */
+    def increment(slot: Int, shard: Int): Unit = {
+        if (shard < MaxShards)
+            counters.incrementAndGet(slot * MaxShards + shard)
+    }
+
+    /**
+     * Records that the given shard no longer stores a key hashing to the slot.
+     */
+    def decrement(slot: Int, shard: Int): Unit = {
+        if (shard < MaxShards)
+            counters.decrementAndGet(slot * MaxShards + shard)
+    }
+
+    /**
+     * Returns a bit mask with the shards among the first `shardCount` that
+     * may store a key hashing to the given slot.
+     */
+    def owners(slot: Int, shardCount: Int): Long = {
+        val base = slot * MaxShards
+        val tracked = Math.min(shardCount, MaxShards)
+        var mask =
+            if (shardCount > MaxShards)
+                ~((1L << MaxShards) - 1) & (if (shardCount >= 64) -1L
+                                            else (1L << shardCount) - 1)
+            else 0L
+        var shard = 0
+        while (shard < tracked) {
+            if (counters.get(base + shard) > 0)
+                mask |= 1L << shard
+            shard += 1
+        }
+        mask
+    }
+}
@@ -23,15 +23,42 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.packets.FlowStateStore.IdleExpiration
 import org.midonet.util.collection.Reducer
-import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+import org.midonet.util.concurrent.{ExpirationMap, NanoClock, OpenAddressingExpirationMap, TimedExpirationMap}
 import org.midonet.util.logging.Logger
 
 object ShardedFlowStateTable {
+
+    /**
+     * The storage backing the shards of a [[ShardedFlowStateTable]].
+     */
+    sealed trait Storage
+    /** Shards backed by a [[TimedExpirationMap]]. */
+    case object TimedExpirationStorage extends Storage
+    /** Shards backed by an [[OpenAddressingExpirationMap]]. */
+    case object OpenAddressingStorage extends Storage
+
+    object Storage {
+        def apply(name: String): Storage = name match {
+            case "timed_expiration_map" => TimedExpirationStorage
+            case "open_addressing" => OpenAddressingStorage
+            case _ => throw new IllegalArgumentException(
+                s"Unknown flow state table storage: $name")
+        }
+    }
+
+    /** The maximum number of shards in a table. */
+    final val MaxShards = 64
+
     def create[K <: IdleExpiration, V >: Null](): ShardedFlowStateTable[K, V] =
             new ShardedFlowStateTable[K, V]()
 
     def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
             ShardedFlowStateTable[K, V] = new ShardedFlowStateTable[K, V](clock)
+
+    def create[K <: IdleExpiration, V >: Null](clock: NanoClock,
+                                               storage: Storage):
+            ShardedFlowStateTable[K, V] =
+        new ShardedFlowStateTable[K, V](clock, storage)
 }
 
 /**
@@ -49,21 +76,48 @@ object ShardedFlowStateTable {
  * distribute shards among threads in a way that results in no keyspace overlap.
  *
  * Gets, on the other hand, will fall back to the parent and the other shards
- * if a key is not found locally.
+ * if a key is not found locally. A shared [[FlowStateOwnerIndex]] tracks which
+ * shards may store a key, such that cross-shard operations only probe the
+ * shards that own it instead of every shard in the table.
  *
  * unref() calls may require coordination, but they are meant to happen in an
  * external thread or pool, not a shard-owning thread.
+ *
+ * The owner index is sized with `ownerIndexSlots`, which should be in the
+ * order of the expected number of keys in the table to keep false positives
+ * low.
+ *
+ * The storage of each shard is selected with the `storage` argument, either
+ * a [[TimedExpirationMap]] or a primitive, open addressing
+ * [[OpenAddressingExpirationMap]] that avoids the per-entry allocations of the
+ * former.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock, val storage: ShardedFlowStateTable.Storage,
+         ownerIndexSlots: Int)
+    extends FlowStateTable[K, V] {
+
+    import ShardedFlowStateTable._
+
+    def this(clock: NanoClock, storage: ShardedFlowStateTable.Storage) =
+        this(clock, storage, FlowStateOwnerIndex.DefaultSlots)
+
+    def this(clock: NanoClock) = this(clock, ShardedFlowStateTable.TimedExpirationStorage)
+
+    def this() = this(NanoClock.DEFAULT)
 
     private val shards = new ArrayList[FlowStateShard]()
     private val SHARD_NONE: Int = -1
 
+    private val owners = new FlowStateOwnerIndex(ownerIndexSlots)
+
     private val defaultLogger =
         Logger(LoggerFactory.getLogger("org.midonet.state.table"))
 
     def addShard(log: Logger = defaultLogger) = {
+        if (shards.size >= MaxShards)
+            throw new IllegalStateException(
+                s"A flow state table supports up to $MaxShards shards")
         val s: FlowStateShard = new FlowStateShard(shards.size, log)
         shards.add(s)
         s
@@ -71,20 +125,22 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 
     /**
      * Fetches a the value associated with a key, skipping the given shard
-     * index.
+     * index. Only the shards that the owner index reports as candidates for
+     * the key are probed.
      */
     private[state] def get(key: K, shardToSkip: Int): V = {
         assert(shardToSkip == SHARD_NONE ||
                 (shardToSkip >= 0 && shardToSkip < shards.size))
 
-        var i = 0
-        while (i < shards.size) {
-            if (i != shardToSkip) {
-                val v: V = shards.get(i).shallowGet(key)
-                if (v != null)
-                    return v
-            }
-            i += 1
+        var candidates = owners.owners(owners.slotOf(key), shards.size)
+        if (shardToSkip != SHARD_NONE)
+            candidates &= ~(1L << shardToSkip)
+        while (candidates != 0L) {
+            val i = java.lang.Long.numberOfTrailingZeros(candidates)
+            val v: V = shards.get(i).shallowGet(key)
+            if (v != null)
+                return v
+            candidates &= candidates - 1
         }
         null
     }
@@ -94,12 +150,13 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     override def get(key: K): V = get(key, SHARD_NONE)
 
     override def ref(key: K): V = {
-        var i = 0
-        while (i < shards.size) {
+        var candidates = owners.owners(owners.slotOf(key), shards.size)
+        while (candidates != 0L) {
+            val i = java.lang.Long.numberOfTrailingZeros(candidates)
             val v = shards.get(i).ref(key)
             if (v != null)
                 return v
-            i += 1
+            candidates &= candidates - 1
         }
         null
     }
@@ -114,21 +171,23 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 
     override def getRefCount(key: K): Int = {
         var count = 0
-        var i = 0
-        while (i < shards.size) {
+        var candidates = owners.owners(owners.slotOf(key), shards.size)
+        while (candidates != 0L) {
+            val i = java.lang.Long.numberOfTrailingZeros(candidates)
             count += shards.get(i).getRefCount(key)
-            i += 1
+            candidates &= candidates - 1
         }
         count
     }
 
     override def unref(key: K) {
-        var i: Int = 0
-        while (i < shards.size) {
+        var candidates = owners.owners(owners.slotOf(key), shards.size)
+        while (candidates != 0L) {
+            val i = java.lang.Long.numberOfTrailingZeros(candidates)
             val v: V = shards.get(i).shallowGet(key)
             if (v != null)
                 shards.get(i).unref(key)
-            i += 1
+            candidates &= candidates - 1
         }
     }
 
@@ -167,10 +226,38 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
      * aggregation. Reference counting is also delegated on the parent.
      */
     class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
-        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+        private val map: ExpirationMap[K, V] = storage match {
+            case TimedExpirationStorage =>
+                new TimedExpirationMap[K, V](log, _.expiresAfter)
+            case OpenAddressingStorage =>
+                new OpenAddressingExpirationMap[K, V](log, _.expiresAfter)
+        }
 
-        override def putAndRef(key: K, value: V): V =
-            map.putAndRef(key, value)
+        /* Releases the owner index entry of the expired keys, before calling
+         * into the reducer supplied by the caller. */
+        private class OwnerReleaser[U](func: Reducer[K, V, U])
+            extends Reducer[K, V, U] {
+            override def apply(acc: U, key: K, value: V): U = {
+                owners.decrement(owners.slotOf(key), workerId)
+                func(acc, key, value)
+            }
+        }
+
+        private val identityReleaser = new OwnerReleaser[Unit](
+            new Reducer[K, V, Unit] {
+                override def apply(acc: Unit, key: K, value: V): Unit = ()
+            })
+
+        override def putAndRef(key: K, value: V): V = {
+            // The owner index is updated before the insertion, such that
+            // readers never miss a key present in this shard.
+            val slot = owners.slotOf(key)
+            owners.increment(slot, workerId)
+            val oldValue = map.putAndRef(key, value)
+            if (oldValue != null)
+                owners.decrement(slot, workerId)
+            oldValue
+        }
 
         override def get(key: K) = {
             val v = map.get(key)
@@ -202,10 +289,10 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         override def fold[U](seed: U, func: Reducer[K, V, U]): U =
             map.fold(seed, func)
 
-        override def expireIdleEntries() =
-            map.obliterateIdleEntries(tickMillis)
+        override def expireIdleEntries(): Unit =
+            map.obliterateIdleEntries(tickMillis, (), identityReleaser)
 
         override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
-            map.obliterateIdleEntries(tickMillis, seed, func)
+            map.obliterateIdleEntries(tickMillis, seed, new OwnerReleaser(func))
     }
 }
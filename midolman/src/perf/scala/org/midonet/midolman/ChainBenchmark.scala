@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, HashMap, Random, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleClassifier, RuleResult}
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4, IPv4Addr, IPv4Subnet, TCP, UDP}
+import org.midonet.util.Range
+
+object ChainBenchmark {
+    val Packets = 1 << 10
+}
+
+/**
+ * Measures the latency of evaluating a security group like chain, where every
+ * rule accepts the traffic to a TCP or UDP port from a subnet, and the chain
+ * drops everything else.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class ChainBenchmark {
+
+    import ChainBenchmark._
+
+    @Param(Array("100", "1000"))
+    var ruleCount: Int = _
+
+    @Param(Array("false", "true"))
+    var compiled: Boolean = _
+
+    var chain: Chain = _
+    val contexts = new Array[PacketContext](Packets)
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(1)
+        val chainId = UUID.randomUUID()
+        val rules = new ArrayList[Rule](ruleCount + 1)
+        var i = 0
+        while (i < ruleCount) {
+            val cond = new Condition()
+            cond.etherType = IPv4.ETHERTYPE.toInt
+            cond.nwProto =
+                if (random.nextBoolean()) TCP.PROTOCOL_NUMBER
+                else UDP.PROTOCOL_NUMBER
+            cond.nwSrcIp = new IPv4Subnet(random.nextInt(), 16)
+            cond.tpDst = new Range[Integer](1024 + i)
+            rules.add(newRule(cond, Action.ACCEPT, chainId))
+            i += 1
+        }
+        rules.add(newRule(Condition.TRUE, Action.DROP, chainId))
+
+        chain = new Chain(chainId, rules, new HashMap[UUID, Chain](), "chain",
+                          classifier =
+                              if (compiled) RuleClassifier.compile(rules)
+                              else null)
+
+        i = 0
+        while (i < Packets) {
+            val fmatch = new FlowMatch()
+                .setEtherType(IPv4.ETHERTYPE)
+                .setNetworkSrc(IPv4Addr.random)
+                .setNetworkDst(IPv4Addr.random)
+                .setNetworkProto(TCP.PROTOCOL_NUMBER)
+                .setSrcPort(random.nextInt(65536))
+                .setDstPort(1024 + random.nextInt(2 * ruleCount))
+            contexts(i) = PacketContext.generated(1, null, fmatch)
+            i += 1
+        }
+    }
+
+    private def newRule(cond: Condition, action: Action,
+                        chainId: UUID): Rule = {
+        val rule = new LiteralRule(cond, action, chainId)
+        rule.id = UUID.randomUUID()
+        rule
+    }
+
+    @Benchmark
+    def process(): RuleResult = {
+        val context = contexts(index)
+        index = (index + 1) & (Packets - 1)
+        context.resetRecordedContext()
+        context.resetFlowContext()
+        chain.process(context)
+    }
+}
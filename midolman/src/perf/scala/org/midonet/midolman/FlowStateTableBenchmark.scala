@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.packets.FlowStateStore.IdleExpiration
+import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.util.concurrent.MockClock
+
+object FlowStateTableBenchmark {
+    val KeysPerShard = 100000
+
+    class Key(val id: Int) extends IdleExpiration {
+        override def hashCode: Int = id
+        override def equals(o: Any): Boolean = o match {
+            case k: Key => k.id == id
+            case _ => false
+        }
+    }
+}
+
+/**
+ * Measures the latency of cross-shard lookups in a sharded flow state table,
+ * as performed by the return flow of a connection whose forward flow was
+ * processed by a different packet worker. The `linearScan` benchmarks
+ * replicate the former behaviour of probing every shard on a local miss, to
+ * compare against the owner index lookups.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class FlowStateTableBenchmark {
+
+    import FlowStateTableBenchmark._
+
+    @Param(Array("1", "4", "8", "16"))
+    var shardCount: Int = _
+
+    @Param(Array("timed_expiration_map", "open_addressing"))
+    var storage: String = _
+
+    var table: ShardedFlowStateTable[Key, AnyRef] = _
+    var shards: Array[ShardedFlowStateTable[Key, AnyRef]#FlowStateShard] = _
+    val value = new Object
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        table = new ShardedFlowStateTable[Key, AnyRef](
+            new MockClock,
+            ShardedFlowStateTable.Storage(storage),
+            shardCount * KeysPerShard)
+        shards = Array.fill(shardCount)(table.addShard())
+        var i = 0
+        while (i < shardCount * KeysPerShard) {
+            shards(i % shardCount).putAndRef(new Key(i), value)
+            i += 1
+        }
+    }
+
+    /* Keys owned by the last shard, looked up from the first one. */
+    private def remoteKey(): Key = {
+        index = (index + 1) % KeysPerShard
+        new Key(index * shardCount + shardCount - 1)
+    }
+
+    /* Keys owned by no shard. */
+    private def missingKey(): Key = {
+        index = (index + 1) % KeysPerShard
+        new Key(shardCount * KeysPerShard + index)
+    }
+
+    private def linearScan(key: Key): AnyRef = {
+        var i = 0
+        while (i < shards.length) {
+            val v = shards(i).shallowGet(key)
+            if (v ne null)
+                return v
+            i += 1
+        }
+        null
+    }
+
+    @Benchmark
+    def ownerIndexHit(bh: Blackhole): Unit =
+        bh.consume(shards(0).get(remoteKey()))
+
+    @Benchmark
+    def ownerIndexMiss(bh: Blackhole): Unit =
+        bh.consume(shards(0).get(missingKey()))
+
+    @Benchmark
+    def linearScanHit(bh: Blackhole): Unit =
+        bh.consume(linearScan(remoteKey()))
+
+    @Benchmark
+    def linearScanMiss(bh: Blackhole): Unit =
+        bh.consume(linearScan(missingKey()))
+}
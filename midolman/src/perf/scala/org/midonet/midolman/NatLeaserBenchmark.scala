@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.concurrent.Future
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import com.codahale.metrics.MetricRegistry
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.monitoring.metrics.NatLeaserMetrics
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.NatBlockAllocator.NoFreeNatBlocksException
+import org.midonet.midolman.state.{NatBlock, NatBlockAllocator, NatLeaser, NatRange}
+import org.midonet.packets.IPv4Addr
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.logging.Logger
+
+object NatLeaserBenchmark {
+    final val Bindings = 1000000
+    final val DestinationPort = 80
+    /** The destinations of each benchmark thread. */
+    final val ThreadRange = 1 << 24
+
+    private val threads = new AtomicInteger
+
+    @State(Scope.Thread)
+    class ThreadState {
+        var index = Bindings + threads.incrementAndGet() * ThreadRange
+    }
+
+    private def destination(i: Int): IPv4Addr = IPv4Addr.fromInt(i)
+}
+
+/**
+ * Measures the SNAT port allocation while the leaser holds a million
+ * concurrent bindings to distinct destinations. Run with the GC profiler
+ * (-prof gc) to compare the allocation per binding.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+class NatLeaserBenchmark {
+    import NatLeaserBenchmark._
+
+    private val deviceId = UUID.randomUUID()
+    private val targetIp = IPv4Addr.fromString("192.168.0.1")
+    private val targets = Array(new NatTarget(targetIp, 1024, 65535))
+
+    private val natLeaser = new NatLeaser {
+        private val allocated = ConcurrentHashMap.newKeySet[NatBlock]()
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val clock = NanoClock.DEFAULT
+        override val metrics = new NatLeaserMetrics(new MetricRegistry)
+        override val allocator = new NatBlockAllocator {
+            override def allocateBlockInRange(range: NatRange) = {
+                var block = NatLeaser.blockOf(range.tpPortStart)
+                while (block <= NatLeaser.blockOf(range.tpPortEnd)) {
+                    val natBlock = new NatBlock(range.deviceId, range.ip, block)
+                    if (allocated.add(natBlock))
+                        return Future.successful(natBlock)
+                    block += 1
+                }
+                Future.failed(NoFreeNatBlocksException)
+            }
+
+            override def freeBlock(natBlock: NatBlock): Unit =
+                allocated.remove(natBlock)
+        }
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        var i = 0
+        while (i < Bindings) {
+            allocate(destination(i))
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def allocateAndFree(state: ThreadState, bh: Blackhole): Unit = {
+        state.index += 1
+        val destinationIp = destination(state.index)
+        val binding = allocate(destinationIp)
+        natLeaser.freeNatBinding(deviceId, destinationIp, DestinationPort,
+                                 binding)
+        bh.consume(binding)
+    }
+
+    private def allocate(destinationIp: IPv4Addr): NatBinding = {
+        var binding: NatBinding = null
+        while (binding eq null) {
+            try {
+                binding = natLeaser.allocateNatBinding(deviceId, destinationIp,
+                                                       DestinationPort, targets)
+            } catch {
+                case _: NotYetException => // The block is now leased
+            }
+        }
+        binding
+    }
+}
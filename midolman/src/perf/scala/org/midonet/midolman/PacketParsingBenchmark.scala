@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC, PacketView, TCP}
+
+/**
+ * Compares the cost of building the packet of an upcall by deserializing the
+ * full Ethernet object, as done before the lazy packets, with copying the
+ * frame and reading the L2 to L4 fields with a packet view. Run with the GC
+ * profiler (-prof gc) to compare the allocation per packet, reported as
+ * gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class PacketParsingBenchmark {
+
+    private val ethernet: Ethernet =
+        { eth addr MAC.random() -> MAC.random() } <<
+        { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+        { tcp ports 4000 ---> 80 flags TCP.Flag.Syn.bit.toShort } <<
+        payload(new Array[Byte](64))
+
+    private val flowMatch = FlowMatches.fromEthernetPacket(ethernet)
+    private val frame = ethernet.serialize()
+    private val upcall = ByteBuffer.allocateDirect(frame.length)
+    private val view = new PacketView
+
+    upcall.put(frame).flip()
+
+    @Benchmark
+    def eagerEthernet(bh: Blackhole): Unit = {
+        upcall.rewind()
+        val parsed = new Ethernet()
+        parsed.deserialize(upcall)
+        val packet = new Packet(parsed, flowMatch, frame.length)
+        bh.consume(packet.getEthernet.getVlanIDs.isEmpty)
+        bh.consume(packet)
+    }
+
+    @Benchmark
+    def lazyView(bh: Blackhole): Unit = {
+        upcall.rewind()
+        val data = new Array[Byte](upcall.remaining())
+        upcall.get(data)
+        val packet = new Packet(data, flowMatch)
+        view.wrap(data, 0, data.length)
+        bh.consume(view.vlanCount == 0)
+        bh.consume(view.tcpFlags)
+        bh.consume(packet)
+    }
+
+    @Benchmark
+    def viewOnly(bh: Blackhole): Unit = {
+        view.wrap(frame, 0, frame.length)
+        bh.consume(view.vlanCount)
+        bh.consume(view.ipv4Destination)
+        bh.consume(view.destinationPort)
+        bh.consume(view.tcpFlags)
+    }
+}
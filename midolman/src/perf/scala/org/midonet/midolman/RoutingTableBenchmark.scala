@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, Random, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.layer3.{IPv4RoutingTable, MultibitIPv4RoutingTable, Route, RoutingTableIfc}
+import org.midonet.packets.IPv4Addr
+
+object RoutingTableBenchmark {
+    val Addresses = 1 << 16
+}
+
+/**
+ * Measures the latency of routing table lookups for tables with a number of
+ * BGP-like routes, mostly /16 to /24 prefixes with a few ECMP next hops, plus
+ * a default route.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+
+    import RoutingTableBenchmark._
+
+    @Param(Array("100", "10000", "100000"))
+    var routeCount: Int = _
+
+    @Param(Array("trie", "multibit"))
+    var engine: String = _
+
+    var table: RoutingTableIfc[IPv4Addr] = _
+    val src = IPv4Addr.fromString("10.0.0.1")
+    val addresses = new Array[IPv4Addr](Addresses)
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(1)
+        val routes = new ArrayList[Route](routeCount + 1)
+        routes.add(new Route(0, 0, 0, 0, NextHop.PORT, UUID.randomUUID(),
+                             Route.NO_GATEWAY, 100, null, null))
+        var i = 0
+        while (i < routeCount) {
+            val length = 16 + random.nextInt(9)
+            val dst = random.nextInt()
+            routes.add(new Route(0, 0, dst, length, NextHop.PORT,
+                                 UUID.randomUUID(), random.nextInt(), 100,
+                                 null, null))
+            if (i % 10 == 0) {
+                // An ECMP next hop for the same prefix.
+                routes.add(new Route(0, 0, dst, length, NextHop.PORT,
+                                     UUID.randomUUID(),
+                                     random.nextInt(), 100, null, null))
+            }
+            i += 1
+        }
+
+        table = engine match {
+            case "multibit" => new MultibitIPv4RoutingTable(routes)
+            case _ =>
+                val t = new IPv4RoutingTable()
+                val it = routes.iterator()
+                while (it.hasNext) t.addRoute(it.next())
+                t
+        }
+
+        i = 0
+        while (i < Addresses) {
+            // Half of the lookups hit a learned prefix.
+            addresses(i) =
+                if (i % 2 == 0) IPv4Addr.fromInt(random.nextInt())
+                else IPv4Addr.fromInt(
+                    routes.get(1 + random.nextInt(routes.size - 1))
+                        .dstNetworkAddr)
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def lookup(bh: Blackhole): Unit = {
+        bh.consume(table.lookup(src, addresses(index & (Addresses - 1))))
+        index += 1
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.simulation.{Bridge, Port}
+import org.midonet.midolman.topology.{DeviceSnapshot, VirtualTopology}
+
+object VirtualTopologyBenchmark {
+    final val Ports = 64
+    /** The ingress and egress ports looked up for every packet. */
+    final val PortsPerPacket = 2
+
+    @State(Scope.Thread)
+    class ThreadState {
+        val snapshot = new DeviceSnapshot(4096)
+        var index = 0
+    }
+}
+
+/**
+ * Measures the device lookups of the packet simulations from many packet
+ * workers concurrently. Every operation looks up a bridge and two of its
+ * ports, as when simulating a packet crossing the bridge.
+ *
+ * The striped benchmark looks up the devices in the device map of the
+ * virtual topology, which counts the cache hits with striped counters. The
+ * shared benchmark also increments a shared atomic long for every lookup, as
+ * the virtual topology did before striping its counters. The snapshot
+ * benchmark looks up the devices in a per-thread device snapshot.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+class VirtualTopologyBenchmark extends MidolmanBenchmark {
+    import VirtualTopologyBenchmark._
+
+    private var vt: VirtualTopology = _
+    private var bridgeId: UUID = _
+    private val portIds = new Array[UUID](Ports)
+
+    private val sharedHits = new AtomicLong
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        bridgeId = newBridge("bridge")
+        for (index <- 0 until Ports) {
+            portIds(index) = newBridgePort(bridgeId)
+        }
+        fetchPorts(portIds: _*)
+        fetchDevice[Bridge](bridgeId)
+        vt = injector.getInstance(classOf[VirtualTopology])
+    }
+
+    @Benchmark
+    def shared(state: ThreadState, bh: Blackhole): Unit = {
+        bh.consume(VirtualTopology.tryGet(classOf[Bridge], bridgeId))
+        sharedHits.incrementAndGet()
+        var port = 1
+        while (port <= PortsPerPacket) {
+            bh.consume(VirtualTopology.tryGet(classOf[Port],
+                                              portId(state, port)))
+            sharedHits.incrementAndGet()
+            port += 1
+        }
+        state.index += 1
+    }
+
+    @Benchmark
+    def striped(state: ThreadState, bh: Blackhole): Unit = {
+        bh.consume(vt.tryGet(classOf[Bridge], bridgeId, null))
+        var port = 1
+        while (port <= PortsPerPacket) {
+            bh.consume(vt.tryGet(classOf[Port], portId(state, port), null))
+            port += 1
+        }
+        state.index += 1
+    }
+
+    @Benchmark
+    def snapshot(state: ThreadState, bh: Blackhole): Unit = {
+        bh.consume(vt.tryGet(classOf[Bridge], bridgeId, state.snapshot))
+        var port = 1
+        while (port <= PortsPerPacket) {
+            bh.consume(vt.tryGet(classOf[Port], portId(state, port),
+                                 state.snapshot))
+            port += 1
+        }
+        state.index += 1
+    }
+
+    /** Returns the ingress or the egress port of the current packet. */
+    @inline
+    private def portId(state: ThreadState, port: Int): UUID =
+        portIds((state.index + port) & (Ports - 1))
+}
@@ -43,6 +43,7 @@ import org.midonet.cluster.data.storage.{StateResult, ZookeeperObjectMapper}
 import org.midonet.cluster.models.Topology.Port
 import org.midonet.cluster.services.MidonetBackend._
 import org.midonet.cluster.state.RoutingTableStorage._
+import org.midonet.cluster.state.RoutingTableWriter
 import org.midonet.cluster.storage.{CuratorZkConnection, MidonetBackendConfig}
 import org.midonet.cluster.topology.TopologyBuilder
 import org.midonet.cluster.util.UUIDUtil._
@@ -81,10 +82,15 @@ class RoutingTableStorageBenchmark extends TopologyBuilder {
     private final val timeout = 5 seconds
     private final val benchmarkTimeout = 1800 seconds
     private final val count = 10000
+    private final val largeCount = 500000
+    private final val chunkSize = 4096
+    private final val maxDeltas = 64
+    private final val batchInterval = 200L
 
     private val executor = Executors.newSingleThreadExecutor()
     private implicit val executionContext =
         ExecutionContext.fromExecutorService(executor)
+    private val writerExecutor = Executors.newSingleThreadScheduledExecutor()
 
     private class RoutesObserver(count: Int) extends Observer[Set[Route]] {
 
@@ -106,6 +112,29 @@ class RoutingTableStorageBenchmark extends TopologyBuilder {
         }
     }
 
+    private class RouteUpdatesObserver(count: Int)
+        extends Observer[RouteTableUpdate] {
+
+        private val latch = new CountDownLatch(1)
+        private var size = 0
+
+        override def onNext(update: RouteTableUpdate): Unit = {
+            size += update.added.size - update.removed.size
+            if (size == count) {
+                latch.countDown()
+            }
+        }
+        override def onCompleted(): Unit = {
+            latch.countDown()
+        }
+        override def onError(e: Throwable): Unit = {
+            latch.countDown()
+        }
+        def await(duration: Duration): Boolean = {
+            latch.await(duration.toMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+
     @Setup
     def setup(): Unit = {
         System.setProperty("jute.maxbuffer", Integer.toString(40 * 1024 * 1024))
@@ -129,6 +158,7 @@ class RoutingTableStorageBenchmark extends TopologyBuilder {
 
     @TearDown
     def tearDown(): Unit = {
+        writerExecutor.shutdownNow()
         curator.close()
     }
 
@@ -236,6 +266,76 @@ class RoutingTableStorageBenchmark extends TopologyBuilder {
         storage.delete(classOf[Port], port.getId)
     }
 
+    @Benchmark
+    def addRoutesBatched(blackhole: Blackhole): Unit = {
+        val port = createRouterPort()
+        storage.create(port)
+
+        val writer = createWriter(port.getId)
+        val futures = new mutable.ArrayBuffer[Future[Route]](largeCount)
+
+        for (index <- 1 to largeCount) {
+            val route = createPortRoute(portId = port.getId)
+            futures += writer.addRoute(route)
+        }
+
+        Future.sequence(futures).await(benchmarkTimeout)
+
+        storage.delete(classOf[Port], port.getId)
+    }
+
+    @Benchmark
+    def addRemoveRoutesBatched(blackhole: Blackhole): Unit = {
+        val port = createRouterPort()
+        storage.create(port)
+
+        val writer = createWriter(port.getId)
+        val futuresAdd = new mutable.ArrayBuffer[Future[Route]](largeCount)
+        val futuresRem = new mutable.ArrayBuffer[Future[Route]](largeCount)
+        val routes = new mutable.ArrayBuffer[Route](largeCount)
+
+        for (index <- 1 to largeCount) {
+            val route = createPortRoute(portId = port.getId)
+            futuresAdd += writer.addRoute(route)
+            routes += route
+        }
+
+        Future.sequence(futuresAdd).await(benchmarkTimeout)
+
+        for (route <- routes) {
+            futuresRem += writer.removeRoute(route)
+        }
+
+        Future.sequence(futuresRem).await(benchmarkTimeout)
+
+        storage.delete(classOf[Port], port.getId)
+    }
+
+    @Benchmark
+    def addRoutesBatchedAndObserver(blackhole: Blackhole): Unit = {
+        val port = createRouterPort()
+        storage.create(port)
+
+        val obs = new RouteUpdatesObserver(largeCount)
+        storage.portRouteUpdatesObservable(port.getId, Observable.just(hostId))
+               .subscribe(obs)
+
+        val writer = createWriter(port.getId)
+        for (index <- 1 to largeCount) {
+            val route = createPortRoute(portId = port.getId)
+            writer.addRoute(route)
+        }
+
+        obs.await(benchmarkTimeout)
+
+        storage.delete(classOf[Port], port.getId)
+    }
+
+    private def createWriter(portId: UUID): RoutingTableWriter = {
+        new RoutingTableWriter(storage, portId, writerExecutor, batchInterval,
+                               chunkSize, maxDeltas)
+    }
+
     private def createPortRoute(portId: UUID = UUID.randomUUID) = {
         new Route(random.nextInt(), 24, random.nextInt(), 24, NextHop.PORT,
                   portId, random.nextInt(), random.nextInt(), "",
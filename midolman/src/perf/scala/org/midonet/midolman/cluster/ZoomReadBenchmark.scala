@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.cluster
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.concurrent.Future
+import scala.concurrent.duration._
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.ConfigFactory
+
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryNTimes
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations._
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.data.storage.metrics.StorageMetrics
+import org.midonet.cluster.data.storage.{CreateOp, ZookeeperObjectMapper}
+import org.midonet.cluster.models.Topology.Port
+import org.midonet.cluster.storage.MidonetBackendConfig
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.util.concurrent._
+import org.midonet.util.eventloop.CallingThreadReactor
+
+import ch.qos.logback.classic.Logger
+
+/**
+ * Measures the time to load all ports of a large topology from an embedded
+ * ZooKeeper server, with the batched reads of the object mapper for several
+ * read windows, and with one independent read per port.
+ */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomReadBenchmark extends TopologyBuilder {
+
+    private final val zkRoot = "/midonet/benchmark"
+    private final val timeout = 300 seconds
+    private final val batchSize = 1000
+    private implicit val ec = CallingThreadExecutionContext
+
+    @Param(Array("20000"))
+    var portCount: Int = _
+
+    @Param(Array("1", "16", "256", "1024"))
+    var readWindow: Int = _
+
+    private var zkServer: TestingServer = _
+    private var curator: CuratorFramework = _
+    private var storage: ZookeeperObjectMapper = _
+    private var portIds: Seq[UUID] = _
+
+    @Setup
+    def setup(): Unit = {
+        System.setProperty("jute.maxbuffer", Integer.toString(40 * 1024 * 1024))
+        LoggerFactory.getLogger("org.midonet").asInstanceOf[Logger]
+            .setLevel(ch.qos.logback.classic.Level.OFF)
+
+        zkServer = new TestingServer
+        zkServer.start()
+        curator = CuratorFrameworkFactory.newClient(zkServer.getConnectString,
+                                                    10000, 2000,
+                                                    new RetryNTimes(2, 1000))
+        curator.start()
+
+        val config = new MidonetBackendConfig(ConfigFactory.parseString(
+            s"""
+               |zookeeper.root_key : "$zkRoot"
+               |zookeeper.read_window : $readWindow
+            """.stripMargin))
+        storage = new ZookeeperObjectMapper(config, UUID.randomUUID().toString,
+                                            curator, curator, null,
+                                            new CallingThreadReactor,
+                                            new StorageMetrics(new MetricRegistry))
+        storage.registerClass(classOf[Port])
+        storage.build()
+
+        val ports = for (index <- 0 until portCount)
+            yield createBridgePort()
+        for (batch <- ports.grouped(batchSize)) {
+            storage.multi(batch.map(CreateOp))
+        }
+        portIds = ports.map(_.getId.asJava)
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        curator.close()
+        zkServer.close()
+    }
+
+    @Benchmark
+    def getAllByClass(): Seq[Port] = {
+        storage.getAll(classOf[Port]).await(timeout)
+    }
+
+    @Benchmark
+    def getAllByIds(): Seq[Port] = {
+        storage.getAll(classOf[Port], portIds).await(timeout)
+    }
+
+    @Benchmark
+    def getEach(): Seq[Port] = {
+        Future.sequence(portIds.map(storage.get(classOf[Port], _)))
+            .await(timeout)
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+public class TestIPv6RoutingTable {
+
+    private static final IPv6Subnet ANY = new IPv6Subnet("::", 0);
+
+    private static Route route(int weight) {
+        return new Route(0, 0, 0, 0, NextHop.PORT, UUID.randomUUID(), 0,
+                         weight, null, null);
+    }
+
+    private static IPv6Addr ip(String s) {
+        return IPv6Addr.fromString(s);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Assert.assertTrue(table.lookup(ip("::1"), ip("2001:db8::1")).isEmpty());
+        Assert.assertEquals(0, table.numRoutes());
+    }
+
+    @Test
+    public void testLongestPrefixAndMinimumWeight() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Route def = route(100);
+        Route rt32 = route(100);
+        Route rt64a = route(100);
+        Route rt64b = route(100);
+        Route rt64c = route(200);
+        Route rt128 = route(100);
+        table.addRoute(rt128, ANY, new IPv6Subnet("2001:db8:0:1::5", 128));
+        table.addRoute(rt64c, ANY, new IPv6Subnet("2001:db8:0:1::", 64));
+        table.addRoute(rt32, ANY, new IPv6Subnet("2001:db8::", 32));
+        table.addRoute(rt64a, ANY, new IPv6Subnet("2001:db8:0:1::", 64));
+        table.addRoute(def, ANY, ANY);
+        table.addRoute(rt64b, ANY, new IPv6Subnet("2001:db8:0:1::", 64));
+        Assert.assertEquals(6, table.numRoutes());
+
+        IPv6Addr src = ip("fe80::1");
+        Assert.assertEquals(1, table.lookup(src, ip("2001:db9::1")).size());
+        Assert.assertTrue(table.lookup(src, ip("2001:db9::1")).contains(def));
+        Assert.assertTrue(table.lookup(src, ip("2001:db8:0:2::1"))
+                               .contains(rt32));
+        Assert.assertTrue(table.lookup(src, ip("2001:db8:0:1::5"))
+                               .contains(rt128));
+
+        List<Route> ecmp = table.lookup(src, ip("2001:db8:0:1::6"));
+        Assert.assertEquals(2, ecmp.size());
+        Assert.assertTrue(ecmp.contains(rt64a));
+        Assert.assertTrue(ecmp.contains(rt64b));
+    }
+
+    @Test
+    public void testSourceFiltering() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Route rt32 = route(100);
+        Route rt64 = route(100);
+        table.addRoute(rt32, ANY, new IPv6Subnet("2001:db8::", 32));
+        table.addRoute(rt64, new IPv6Subnet("fd00::", 8),
+                       new IPv6Subnet("2001:db8:0:1::", 64));
+
+        IPv6Addr dst = ip("2001:db8:0:1::1");
+        Assert.assertTrue(table.lookup(ip("fd00::1"), dst).contains(rt64));
+        // The source does not match the /64, so the lookup falls back to the
+        // less specific route.
+        Assert.assertTrue(table.lookup(ip("fe80::1"), dst).contains(rt32));
+    }
+
+    @Test
+    public void testDeleteRoute() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Route rt32 = route(100);
+        Route rt48 = route(100);
+        Route rt64 = route(100);
+        IPv6Subnet dst48 = new IPv6Subnet("2001:db8:1::", 48);
+        IPv6Subnet dst64 = new IPv6Subnet("2001:db8:1:2::", 64);
+        table.addRoute(rt32, ANY, new IPv6Subnet("2001:db8::", 32));
+        table.addRoute(rt48, ANY, dst48);
+        table.addRoute(rt64, ANY, dst64);
+
+        IPv6Addr src = ip("::1");
+        IPv6Addr dst = ip("2001:db8:1:2::1");
+        Assert.assertTrue(table.lookup(src, dst).contains(rt64));
+        table.deleteRoute(rt64, dst64);
+        Assert.assertTrue(table.lookup(src, dst).contains(rt48));
+        table.deleteRoute(rt48, dst48);
+        Assert.assertTrue(table.lookup(src, dst).contains(rt32));
+        Assert.assertEquals(1, table.numRoutes());
+
+        // Deleting an unknown route does nothing.
+        table.deleteRoute(rt48, dst48);
+        Assert.assertEquals(1, table.numRoutes());
+    }
+
+    @Test
+    public void testIPv4MappedRoutes() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Route rt = new Route(0, 0, 0x0a010100, 24, NextHop.PORT,
+                             UUID.randomUUID(), 0, 100, null, null);
+        table.addRoute(rt);
+
+        IPv6Addr src = ip("::ffff:c0a8:1");
+        Assert.assertTrue(table.lookup(src, ip("::ffff:a01:105"))
+                               .contains(rt));
+        Assert.assertTrue(table.lookup(src, ip("::ffff:a01:205")).isEmpty());
+        Assert.assertTrue(table.lookup(src, ip("2001:db8::1")).isEmpty());
+
+        table.deleteRoute(rt);
+        Assert.assertTrue(table.lookup(src, ip("::ffff:a01:105")).isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+
+public class TestMultibitIPv4RoutingTable {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(TestMultibitIPv4RoutingTable.class);
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    private static List<Route> lookup(MultibitIPv4RoutingTable table,
+                                      int src, int dst) {
+        return table.lookup(src, dst, log);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        MultibitIPv4RoutingTable table = new MultibitIPv4RoutingTable();
+        Assert.assertTrue(lookup(table, 0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(lookup(table, 0x00000009, 0xfffffffe).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixAndMinimumWeight() {
+        Route def = route(0, 0, 0, 0, 100);
+        Route rt8 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt24a = route(0, 0, 0x0a010100, 24, 100);
+        Route rt24b = route(0, 0, 0x0a010100, 24, 100);
+        Route rt24c = route(0, 0, 0x0a010100, 24, 200);
+        Route rt32 = route(0, 0, 0x0a010105, 32, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt32);
+        routes.add(rt24c);
+        routes.add(rt8);
+        routes.add(rt24a);
+        routes.add(def);
+        routes.add(rt24b);
+        MultibitIPv4RoutingTable table = new MultibitIPv4RoutingTable(routes);
+
+        Assert.assertEquals(1, lookup(table, 0, 0x0b000001).size());
+        Assert.assertTrue(lookup(table, 0, 0x0b000001).contains(def));
+        Assert.assertTrue(lookup(table, 0, 0x0a020001).contains(rt8));
+        Assert.assertTrue(lookup(table, 0, 0x0a010105).contains(rt32));
+
+        List<Route> ecmp = lookup(table, 0, 0x0a010106);
+        Assert.assertEquals(2, ecmp.size());
+        Assert.assertTrue(ecmp.contains(rt24a));
+        Assert.assertTrue(ecmp.contains(rt24b));
+        // Routes without source prefixes return the same precomputed set.
+        Assert.assertSame(ecmp, lookup(table, 0, 0x0a0101ff));
+    }
+
+    @Test
+    public void testSourceFilterFallsBackToShorterPrefix() {
+        Route rt16 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt28 = route(0x80c00304, 10, 0x0a14009f, 28, 100);
+        MultibitIPv4RoutingTable table = new MultibitIPv4RoutingTable();
+        table.addRoute(rt28);
+        table.addRoute(rt16);
+        Assert.assertEquals(2, table.numRoutes());
+
+        List<Route> matches = lookup(table, 0x80c00001, 0x0a140090);
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt28));
+
+        matches = lookup(table, 0x12345678, 0x0a140090);
+        Assert.assertEquals(1, matches.size());
+        Assert.assertTrue(matches.contains(rt16));
+    }
+
+    @Test
+    public void testMatchesLegacyTable() {
+        Random random = new Random(7);
+        List<Route> routes = new ArrayList<>();
+        RoutingTable legacy = new RoutingTable();
+        for (int i = 0; i < 2000; i++) {
+            // Cluster the destinations so that prefixes overlap.
+            int dst = 0x0a000000 | random.nextInt(1 << 20);
+            int srcLength = random.nextInt(8) == 0 ? 8 : 0;
+            Route rt = route(random.nextInt(), srcLength, dst,
+                             random.nextInt(33), 100 * random.nextInt(3));
+            routes.add(rt);
+            legacy.addRoute(rt);
+        }
+        MultibitIPv4RoutingTable table = new MultibitIPv4RoutingTable(routes);
+
+        for (int i = 0; i < 20000; i++) {
+            int src = random.nextInt();
+            int dst = random.nextBoolean() ? random.nextInt()
+                                           : 0x0a000000 | random.nextInt(1 << 20);
+            Assert.assertEquals(new HashSet<>(legacy.lookup(src, dst)),
+                                new HashSet<>(lookup(table, src, dst)));
+        }
+    }
+}
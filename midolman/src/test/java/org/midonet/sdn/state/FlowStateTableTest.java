@@ -81,13 +81,16 @@ public class FlowStateTableTest {
     private final TestKey[] keys =  { key("A"), key("B"), key("C"),
                                       key("D"), key("E"), key("F") };
     private final Integer[] vals = {100, 200, 300, 400, 500, 600};
-    private final MockClock clock = new MockClock();
+    protected final MockClock clock = new MockClock();
 
+    protected ShardedFlowStateTable<TestKey, Integer> newTable() {
+        return new ShardedFlowStateTable<>(clock);
+    }
 
     @Before
     @SuppressWarnings("unchecked")
     public void before() {
-        global = new ShardedFlowStateTable<>(clock);
+        global = newTable();
         for (int i = 0; i < SHARDS; i++) {
             shards.add((FlowStateTable)
                     global.addShard(Logger$.MODULE$.apply(NOPLogger.NOP_LOGGER)));
@@ -132,6 +135,27 @@ public class FlowStateTableTest {
         }
     }
 
+    @Test
+    public void testMultiShardAfterExpiration() {
+        shards.get(1).putAndRef(keys[0], vals[0]);
+        assertThat(shards.get(0).get(keys[0]), equalTo(vals[0]));
+        assertThat(global.getRefCount(keys[0]), equalTo(1));
+
+        shards.get(1).unref(keys[0]);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        shards.get(1).expireIdleEntries();
+
+        assertThat(global.get(keys[0]), nullValue());
+        assertThat(global.ref(keys[0]), nullValue());
+        assertThat(shards.get(0).get(keys[0]), nullValue());
+
+        shards.get(2).putAndRef(keys[0], vals[1]);
+        assertThat(shards.get(0).get(keys[0]), equalTo(vals[1]));
+        assertThat(shards.get(2).get(keys[0]), equalTo(vals[1]));
+        assertThat(global.ref(keys[0]), equalTo(vals[1]));
+        assertThat(global.getRefCount(keys[0]), equalTo(2));
+    }
+
     @Test
     public void testTransactionSetGet() {
         FlowStateTable<TestKey, Integer> shard = shards.get(0);
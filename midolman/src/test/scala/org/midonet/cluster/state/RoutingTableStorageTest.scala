@@ -17,7 +17,10 @@
 package org.midonet.cluster.state
 
 import java.util.UUID
+import java.util.concurrent.ScheduledExecutorService
 
+import scala.concurrent.Future
+import scala.concurrent.ExecutionContext.Implicits.global
 import scala.concurrent.duration._
 import scala.util.Random
 
@@ -32,7 +35,7 @@ import rx.observers.TestObserver
 
 import org.midonet.cluster.data.storage.KeyType._
 import org.midonet.cluster.data.storage.metrics.StorageMetrics
-import org.midonet.cluster.data.storage.{StateResult, ZookeeperObjectMapper}
+import org.midonet.cluster.data.storage.{MultiValueKey, StateResult, ZookeeperObjectMapper}
 import org.midonet.cluster.models.Topology.Port
 import org.midonet.cluster.services.MidonetBackend.RoutesKey
 import org.midonet.cluster.state.RoutingTableStorage._
@@ -41,6 +44,7 @@ import org.midonet.cluster.util.MidonetBackendTest
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.util.concurrent.{Executors, toFutureOps}
 import org.midonet.util.reactivex._
 
 @RunWith(classOf[JUnitRunner])
@@ -51,6 +55,7 @@ class RoutingTableStorageTest extends FlatSpec with MidonetBackendTest
     private var storage: ZookeeperObjectMapper = _
     private val hostId = UUID.randomUUID
     private var ownerId: Long = _
+    private var executor: ScheduledExecutorService = _
     private val random = new Random
     private final val timeout = 5 seconds
 
@@ -60,6 +65,12 @@ class RoutingTableStorageTest extends FlatSpec with MidonetBackendTest
                                             new StorageMetrics(new MetricRegistry))
         ownerId = curator.getZookeeperClient.getZooKeeper.getSessionId
         initAndBuildStorage(storage)
+        executor = Executors.singleThreadScheduledExecutor(
+            "routing-table-test", isDaemon = true, Executors.CallerRunsPolicy)
+    }
+
+    protected override def teardown(): Unit = {
+        executor.shutdownNow()
     }
 
     private def initAndBuildStorage(storage: ZookeeperObjectMapper): Unit = {
@@ -74,6 +85,19 @@ class RoutingTableStorageTest extends FlatSpec with MidonetBackendTest
                   UUID.randomUUID, true)
     }
 
+    private def createWriter(portId: UUID, chunkSize: Int = 4096,
+                             maxDeltas: Int = 64) = {
+        new RoutingTableWriter(storage, portId, executor, 10L, chunkSize,
+                               maxDeltas)
+    }
+
+    private def routeValues(portId: UUID): Set[String] = {
+        storage.getKey(classOf[Port], portId, RoutesKey).await(timeout) match {
+            case MultiValueKey(_, values) => values
+            case _ => Set.empty
+        }
+    }
+
     "Store" should "add a port route to the routing table" in {
         val port = createRouterPort()
         storage.create(port)
@@ -146,4 +170,98 @@ class RoutingTableStorageTest extends FlatSpec with MidonetBackendTest
         obs.getOnCompletedEvents should have size 1
         obs.getOnErrorEvents shouldBe empty
     }
+
+    "Writer" should "publish the routes in chunks" in {
+        val port = createRouterPort()
+        storage.create(port)
+        val writer = createWriter(port.getId, chunkSize = 100)
+
+        val routes = for (index <- 0 until 250)
+            yield createPortRoute(portId = port.getId)
+        Future.sequence(routes.map(writer.addRoute)).await(timeout)
+
+        storage.getPortRoutes(port.getId, hostId).await(timeout) shouldBe
+            routes.toSet
+        routeValues(port.getId).size should be < routes.size
+    }
+
+    "Writer" should "remove routes from the chunks" in {
+        val port = createRouterPort()
+        storage.create(port)
+        val writer = createWriter(port.getId)
+
+        val routes = for (index <- 0 until 100)
+            yield createPortRoute(portId = port.getId)
+        Future.sequence(routes.map(writer.addRoute)).await(timeout)
+        Future.sequence(routes.take(50).map(writer.removeRoute)).await(timeout)
+
+        storage.getPortRoutes(port.getId, hostId).await(timeout) shouldBe
+            routes.drop(50).toSet
+    }
+
+    "Writer" should "compact the delta chunks" in {
+        val port = createRouterPort()
+        storage.create(port)
+        val writer = createWriter(port.getId, chunkSize = 10, maxDeltas = 2)
+
+        val routes = for (index <- 0 until 10)
+            yield createPortRoute(portId = port.getId)
+        for (route <- routes) {
+            writer.addRoute(route).await(timeout)
+        }
+
+        storage.getPortRoutes(port.getId, hostId).await(timeout) shouldBe
+            routes.toSet
+
+        val chunks = routeValues(port.getId).map(parseChunk)
+        chunks.map(_.generation) should have size 1
+        chunks.count(_.kind != SnapshotChunk) should be <= 2
+    }
+
+    "Writer" should "replace the routes in the per-route format" in {
+        val port = createRouterPort()
+        storage.create(port)
+        val writer = createWriter(port.getId)
+
+        val route1 = createPortRoute(portId = port.getId)
+        storage.addRoute(route1).await(timeout)
+
+        val route2 = createPortRoute(portId = port.getId)
+        writer.addRoute(route2).await(timeout)
+
+        storage.getPortRoutes(port.getId, hostId).await(timeout) shouldBe
+            Set(route2)
+        routeValues(port.getId).forall(parseChunk(_) ne null) shouldBe true
+    }
+
+    "Store observable" should "emit the changes of chunked routes" in {
+        val port = createRouterPort()
+        storage.create(port)
+        val writer = createWriter(port.getId, chunkSize = 10, maxDeltas = 2)
+
+        val obs = new TestObserver[RouteTableUpdate]
+                      with AwaitableObserver[RouteTableUpdate]
+        storage.portRouteUpdatesObservable(port.getId, Observable.just(hostId))
+               .subscribe(obs)
+
+        obs.awaitOnNext(1, timeout) shouldBe true
+        obs.getOnNextEvents.get(0) shouldBe RouteTableUpdate(Set(), Set())
+
+        val routes = for (index <- 0 until 30)
+            yield createPortRoute(portId = port.getId)
+        for (route <- routes) {
+            writer.addRoute(route).await(timeout)
+        }
+        writer.removeRoute(routes.head).await(timeout)
+
+        val expected = routes.tail.toSet
+        var current = Set.empty[Route]
+        var index = 0
+        while (current != expected && obs.awaitOnNext(index + 1, timeout)) {
+            val update = obs.getOnNextEvents.get(index)
+            current = current -- update.removed ++ update.added
+            index += 1
+        }
+        current shouldBe expected
+    }
 }
@@ -425,4 +425,58 @@ class ArpRequestBrokerTest extends Suite
         }
         arps should be ('empty)
     }
+
+    def testCoalescesArpLoopsAcrossBrokers(): Unit = {
+        val resolutions = ArpResolutions.unshared()
+        val broker1 = new ArpRequestBroker(config, backChannel, clock,
+                                           resolutions)
+        val broker2 = new ArpRequestBroker(config, backChannel, clock,
+                                           resolutions)
+
+        val NotYetException(future1, _) = intercept[NotYetException] {
+            broker1.get(THEIR_IP, port, router, -1)
+        }
+        expectEmitArp()
+
+        // the second broker waits for the resolution of the first one
+        val NotYetException(future2, _) = intercept[NotYetException] {
+            broker2.get(THEIR_IP, port, router, -1)
+        }
+        arps should be ('empty)
+        resolutions.size should be (1)
+
+        ArpCacheHelper.feedArpCache(remoteArpCache, THEIR_IP, THEIR_MAC)
+        eventually(ZK_RTT_TIMEOUT) {
+            broker1.shouldProcess() should be (true)
+        }
+        broker1.process()
+
+        future1.value should be (Some(Success(THEIR_MAC)))
+        future2.value should be (Some(Success(THEIR_MAC)))
+        resolutions.size should be (0)
+    }
+
+    def testCoalescedArpLoopsTimeOut(): Unit = {
+        val resolutions = ArpResolutions.unshared()
+        val broker1 = new ArpRequestBroker(config, backChannel, clock,
+                                           resolutions)
+        val broker2 = new ArpRequestBroker(config, backChannel, clock,
+                                           resolutions)
+
+        intercept[NotYetException] { broker1.get(THEIR_IP, port, router, -1) }
+        expectEmitArp()
+        val NotYetException(future, _) = intercept[NotYetException] {
+            broker2.get(THEIR_IP, port, router, -1)
+        }
+
+        clock.time += ARP_TIMEOUT * 2
+        broker2.process()
+        arps should be ('empty)
+        future should not be 'completed
+
+        broker1.process()
+        future should be ('completed)
+        future.value.get should be ('failure)
+        resolutions.size should be (0)
+    }
 }
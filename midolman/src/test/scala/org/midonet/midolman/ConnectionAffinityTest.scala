@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, TCP}
+import org.midonet.packets.NatState.{FWD_SNAT, REV_SNAT}
+
+@RunWith(classOf[JUnitRunner])
+class ConnectionAffinityTest extends FeatureSpec with Matchers {
+
+    val numWorkers = 4
+
+    feature("Connections are dispatched to workers") {
+
+        scenario("Unregistered connections use the hash") {
+            val affinity = new ConnectionAffinity(16)
+            for (hash <- Seq(0, 1, 7, -1, Int.MinValue, Int.MaxValue)) {
+                affinity.workerFor(hash, numWorkers) shouldBe
+                    (hash & Int.MaxValue) % numWorkers
+            }
+        }
+
+        scenario("Registered connections use their worker") {
+            val affinity = new ConnectionAffinity(16)
+            val hash = 5
+            val worker = ((hash % numWorkers) + 1) % numWorkers
+            affinity.register(hash, worker)
+            affinity.workerFor(hash, numWorkers) shouldBe worker
+        }
+
+        scenario("Colliding connections overwrite each other") {
+            val affinity = new ConnectionAffinity(16)
+            affinity.register(5, 2)
+            affinity.register(5 + 16, 3)
+            affinity.workerFor(5 + 16, numWorkers) shouldBe 3
+            affinity.workerFor(5, numWorkers) shouldBe 5 % numWorkers
+        }
+
+        scenario("Workers out of range are ignored") {
+            val affinity = new ConnectionAffinity(16)
+            affinity.register(5, numWorkers)
+            affinity.workerFor(5, numWorkers) shouldBe 5 % numWorkers
+        }
+
+        scenario("The disabled affinity ignores registrations") {
+            ConnectionAffinity.Disabled.register(5, 2)
+            ConnectionAffinity.Disabled.workerFor(5, numWorkers) shouldBe
+                5 % numWorkers
+        }
+    }
+
+    feature("Translated connection hashes") {
+
+        val src = IPv4Addr.fromString("10.0.0.1")
+        val dst = IPv4Addr.fromString("192.168.0.1")
+        val natIp = IPv4Addr.fromString("172.16.0.1")
+
+        scenario("SNAT translates the source") {
+            val hash = ConnectionAffinity.translatedHash(
+                FWD_SNAT, src, 1000, dst, 80, TCP.PROTOCOL_NUMBER, natIp, 2000)
+            val reply = new FlowMatch()
+                .setNetworkSrc(dst).setNetworkDst(natIp)
+                .setNetworkProto(TCP.PROTOCOL_NUMBER)
+                .setSrcPort(80).setDstPort(2000)
+            hash shouldBe reply.symmetricConnectionHash
+        }
+
+        scenario("Reverse keys are not translated") {
+            ConnectionAffinity.translatedHash(
+                REV_SNAT, dst, 80, natIp, 2000, TCP.PROTOCOL_NUMBER,
+                src, 1000) shouldBe 0
+        }
+    }
+}
@@ -16,9 +16,12 @@
 
 package org.midonet.midolman
 
+import java.util.UUID
+
 import akka.actor.Actor
 import akka.testkit.{TestActorRef, TestProbe}
 import org.midonet.packets.Ethernet
+import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
 import org.slf4j.helpers.NOPLogger
@@ -30,7 +33,7 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.odp.FlowMatch
+import org.midonet.odp.{Flow, FlowMatch}
 import org.midonet.util.functors.Callback0
 
 @RunWith(classOf[JUnitRunner])
@@ -38,7 +41,7 @@ class FlowControllerTest extends MidolmanSpec {
     val flowTimeout: Int = 1000
     val tagCount: Int = 10
 
-    var flowController: FlowController = _
+    var flowController: TestableFlowController = _
 
     override def beforeTest(): Unit =
         flowController = TestActorRef(new {
@@ -51,7 +54,7 @@ class FlowControllerTest extends MidolmanSpec {
              val datapathId = 0
              implicit val system = FlowControllerTest.this.actorSystem
              val actor = TestProbe()(system).ref
-        } with FlowController with Actor { def receive: Receive = { case _ => } }).underlyingActor
+        } with TestableFlowController with Actor { def receive: Receive = { case _ => } }).underlyingActor
 
     feature("The flow controller processes flows") {
         scenario("A flow is added") {
@@ -107,6 +110,21 @@ class FlowControllerTest extends MidolmanSpec {
             flow.linkedCallbackCalled should be (true)
         }
 
+        scenario("A duplicate flow does not leave meters behind") {
+            Given("A metered flow in the flow controller")
+            val flow = new TestableFlow(linked = new FlowMatch)
+            val managedFlow = flow.add(FlowTagger.tagForPort(UUID.randomUUID()))
+            managedFlow should not be null
+            flowController.meters.isTracked(managedFlow.mark) shouldBe true
+
+            When("Marking the flow as duplicate")
+            val mark = managedFlow.mark
+            flowController.duplicateFlow(mark)
+
+            Then("The meters of the flow should be forgotten")
+            flowController.meters.isTracked(mark) shouldBe false
+        }
+
         scenario("both flows are removed if marked as duplicate") {
             Given("2 linked flows in the flow controller")
             val flow = new TestableFlow(linked = new FlowMatch)
@@ -149,8 +167,8 @@ class FlowControllerTest extends MidolmanSpec {
             And("The flow was removed")
             managedFlow.removed should be (true)
 
-            And("The flow is referenced by the in-progress deletion")
-            managedFlow.currentRefCount should be (2)
+            And("The flow is only referenced by the in-progress deletion")
+            managedFlow.currentRefCount should be (1)
 
             When("We expire the flow")
             clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value + 1
@@ -162,6 +180,34 @@ class FlowControllerTest extends MidolmanSpec {
             managedFlow.removed should be (true)
             managedFlow.currentRefCount should be (1)
         }
+
+        scenario("Pending flow stats requests do not block flow removals") {
+            Given("A flow in the flow controller and the datapath")
+            val flow = new TestableFlow()
+            val managedFlow = flow.add()
+            flowProcessor.flowsTable.put(flow.fmatch, new Flow(flow.fmatch))
+
+            When("Requesting its statistics until the requests are refused")
+            var requests = 0
+            while (requests <= flowProcessor.capacity &&
+                   flowController.requestStats(managedFlow)) {
+                requests += 1
+            }
+
+            Then("The pending requests are fewer than the flow processor capacity")
+            requests should be > 0
+            requests should be < flowProcessor.capacity
+
+            When("The flow is removed from the flow controller")
+            flow.remove(managedFlow)
+
+            Then("The flow was removed")
+            managedFlow.removed should be (true)
+        }
+    }
+
+    trait TestableFlowController extends FlowController {
+        def requestStats(flow: ManagedFlow): Boolean = requestFlowStats(flow)
     }
 
     final class TestableFlow(val fmatch: FlowMatch = new FlowMatch(),
@@ -17,13 +17,14 @@
 package org.midonet.midolman
 
 import scala.collection.mutable.Queue
+import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import org.slf4j.helpers.NOPLogger
 
-import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer, FlowIndexer}
+import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer, FlowIndexer, FlowTimerWheel}
 import org.midonet.midolman.util.MidolmanSpec
 
 @RunWith(classOf[JUnitRunner])
@@ -37,8 +38,23 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             flowsRemoved += flow
     }
 
+    class IdleFlowExpiration(flowsRemoved: Queue[ManagedFlow])
+        extends FlowAddRemover(flowsRemoved) with FlowExpirationIndexer {
+        val statsRequests = Queue[ManagedFlow]()
+
+        protected override def idleExpiration: Long = IdleExpiration
+
+        protected override def requestFlowStats(flow: ManagedFlow): Boolean = {
+            statsRequests += flow
+            true
+        }
+    }
+
+    val IdleExpiration = (10 seconds).toNanos
+
     val removedFlows = Queue[ManagedFlow]()
     val flowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer
+    val idleExpiration = new IdleFlowExpiration(removedFlows)
 
     feature ("Flows are expired with a hard timeout") {
 
@@ -56,19 +72,33 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             flow.currentRefCount should be (1)
         }
 
-        scenario ("The removal of a flow is delayed") {
+        scenario ("The expiration of a removed flow is cancelled") {
             val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
             flowExpiration.registerFlow(flow)
             flow.currentRefCount should be (2)
             flowExpiration.removeFlow(flow)
-            flow.unref()
             flow.currentRefCount should be (1)
             removedFlows.clear()
             clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value + 1
             flowExpiration.checkFlowsExpiration(clock.tick)
-            removedFlows should have size 1
-            removedFlows.dequeue() should be (flow)
-            flow.currentRefCount should be (0)
+            removedFlows should be (empty)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("Flows expire after a large clock jump") {
+            val flows = for (i <- 1 to 100) yield {
+                val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+                flow.absoluteExpirationNanos = i * (1L << 34)
+                flowExpiration.registerFlow(flow)
+                flow
+            }
+            clock.time = 50 * (1L << 34)
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should contain theSameElementsInOrderAs flows.take(50)
+            removedFlows.clear()
+            clock.time = Long.MaxValue
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should contain theSameElementsInOrderAs flows.drop(50)
         }
 
         scenario ("There are multiple expiration types") {
@@ -82,6 +112,118 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
         }
     }
 
+    feature ("Flows are expired with an idle timeout") {
+
+        scenario ("The statistics of a flow are requested when idle") {
+            Given("A flow")
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            When("The idle expiration elapses")
+            clock.time = IdleExpiration - 1
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+
+            Then("The statistics of the flow are requested")
+            idleExpiration.statsRequests should contain only flow
+            removedFlows should be (empty)
+
+            When("The flow did not match any packet")
+            idleExpiration.flowUsed(flow, 0L, clock.tick)
+
+            Then("The flow is removed")
+            removedFlows should contain only flow
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("A flow in use is checked again after the idle expiration") {
+            Given("A flow")
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            When("The flow matched packets during the idle expiration")
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.flowUsed(flow, 10L, clock.tick)
+
+            Then("The flow is not removed")
+            removedFlows should be (empty)
+            idleExpiration.statsRequests.clear()
+
+            And("The flow is checked again after the idle expiration")
+            clock.time = 2 * IdleExpiration - 1
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should be (empty)
+            clock.time = 2 * IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests should contain only flow
+
+            When("The flow did not match more packets")
+            idleExpiration.flowUsed(flow, 10L, clock.tick)
+
+            Then("The flow is removed")
+            removedFlows should contain only flow
+        }
+
+        scenario ("The hard expiration applies to flows in use") {
+            Given("A flow with a hard expiration shorter than the idle one")
+            val flow = createFlow(
+                FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+
+            When("The hard expiration elapses")
+            clock.time = FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION.value
+            idleExpiration.checkFlowsExpiration(clock.tick)
+
+            Then("The flow is removed without requesting its statistics")
+            idleExpiration.statsRequests should be (empty)
+            removedFlows should contain only flow
+        }
+
+        scenario ("A removed flow ignores its statistics") {
+            Given("A flow whose statistics are requested")
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+
+            When("The flow is removed")
+            idleExpiration.removeFlow(flow)
+            removedFlows.clear()
+
+            And("The statistics are received")
+            idleExpiration.flowUsed(flow, 0L, clock.tick)
+
+            Then("The flow is not removed again")
+            removedFlows should be (empty)
+        }
+
+        scenario ("The statistics are requested again after a failure") {
+            Given("A flow whose statistics are requested")
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+            idleExpiration.registerFlow(flow)
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.statsRequests.dequeue() should be (flow)
+
+            When("The statistics cannot be read")
+            idleExpiration.flowStatsFailed(flow, clock.tick)
+
+            Then("The flow is not removed")
+            removedFlows should be (empty)
+
+            When("The next tick elapses")
+            clock.time = IdleExpiration + (1L << FlowTimerWheel.TickShift)
+            idleExpiration.checkFlowsExpiration(clock.tick)
+
+            Then("The statistics of the flow are requested again")
+            idleExpiration.statsRequests should contain only flow
+            removedFlows should be (empty)
+        }
+    }
+
     feature ("Oversubscription results in removal of excess flows") {
 
         scenario ("The oldest flows are removed") {
@@ -98,6 +240,33 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             removedFlows.dequeue() should be (flows(0))
             removedFlows.dequeue() should be (flows(1))
         }
+
+        scenario ("The least recently used flows are removed") {
+            Given("Four flows")
+            val flows = for (i <- 0 until 4) yield {
+                val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+                idleExpiration.registerFlow(flow)
+                flow
+            }
+
+            When("Only the two oldest flows are in use")
+            clock.time = IdleExpiration
+            idleExpiration.checkFlowsExpiration(clock.tick)
+            idleExpiration.flowUsed(flows(0), 1L, clock.tick)
+            idleExpiration.flowUsed(flows(1), 1L, clock.tick)
+
+            And("Adding more flows than the maximum")
+            for (i <- 0 until 2) {
+                val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
+                flow.lastUsedNanos = clock.tick
+                idleExpiration.registerFlow(flow)
+            }
+            idleExpiration.checkFlowsExpiration(clock.tick)
+
+            Then("The least recently used flows are removed")
+            removedFlows should contain theSameElementsInOrderAs
+                Seq(flows(2), flows(3))
+        }
     }
 
     private def createFlow(exp: FlowExpirationIndexer.Expiration) = {
@@ -16,7 +16,8 @@
 
 package org.midonet.midolman
 
-import scala.collection.mutable.Queue
+import scala.collection.JavaConversions._
+import scala.collection.mutable.{HashMap, Queue}
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -27,18 +28,41 @@ import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.flows.{ManagedFlow, FlowTagIndexer, FlowIndexer}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 
 @RunWith(classOf[JUnitRunner])
 class FlowTagIndexerTest extends MidolmanSpec {
 
     class FlowAddRemover(flowsRemoved: Queue[ManagedFlow]) extends FlowIndexer {
-        override def removeFlow(flow: ManagedFlow): Unit =
+        private val flows = new HashMap[Int, ManagedFlow]
+        private var nextMark = 0
+
+        override def registerFlow(flow: ManagedFlow): Unit = {
+            nextMark += 1
+            flow.mark = nextMark
+            flows.put(flow.mark, flow)
+        }
+
+        override def removeFlow(flow: ManagedFlow): Unit = {
+            flows.remove(flow.mark)
             flowsRemoved += flow
+        }
+
+        protected def flowForMark(mark: Int): ManagedFlow =
+            flows.getOrElse(mark, null)
     }
 
     val removedFlows = Queue[ManagedFlow]()
     val flowInvalidation = new FlowAddRemover(removedFlows) with FlowTagIndexer
 
+    private def registerFlows(count: Int, tags: FlowTag*): Seq[ManagedFlow] =
+        for (i <- 0 until count) yield {
+            val flow = new ManagedFlow(null)
+            tags.foreach(flow.tags.add)
+            flowInvalidation.registerFlow(flow)
+            flow
+        }
+
     val tag1 = FlowTagger.tagForDpPort(1)
     val tag2 = FlowTagger.tagForDpPort(2)
 
@@ -92,6 +116,70 @@ class FlowTagIndexerTest extends MidolmanSpec {
         }
     }
 
+    feature ("Large invalidations are incremental") {
+        scenario ("A tag with many flows is invalidated in slices") {
+            Given("More flows for a tag than the invalidation budget")
+            val count = FlowTagIndexer.InvalidationBudget * 2 + 10
+            val flows = registerFlows(count, tag1, tag2)
+
+            When("Invalidating the tag")
+            flowInvalidation.invalidateFlowsFor(tag1)
+
+            Then("No flows are removed yet")
+            removedFlows should be (empty)
+            flowInvalidation.hasPendingInvalidations shouldBe true
+
+            And("New flows for the tag are not affected by the invalidation")
+            val newFlow = registerFlows(1, tag1).head
+
+            When("Processing the invalidations")
+            flowInvalidation.processInvalidations()
+
+            Then("A budget of flows is removed")
+            removedFlows.size shouldBe FlowTagIndexer.InvalidationBudget
+
+            When("Processing the invalidations until they complete")
+            while (flowInvalidation.hasPendingInvalidations)
+                flowInvalidation.processInvalidations()
+
+            Then("All flows for the tag are removed")
+            removedFlows should contain theSameElementsAs flows
+            flowInvalidation.flowsFor(tag2) should be (null)
+            flowInvalidation.flowsFor(tag1).toSeq shouldBe Seq(newFlow)
+        }
+
+        scenario ("Removed flows are skipped by a pending invalidation") {
+            Given("More flows for a tag than the invalidation budget")
+            val flows = registerFlows(FlowTagIndexer.InvalidationBudget + 1,
+                                      tag1, tag2)
+
+            When("Invalidating the tag")
+            flowInvalidation.invalidateFlowsFor(tag1)
+
+            And("Removing the flows")
+            flows.foreach(flowInvalidation.removeFlow)
+            removedFlows.clear()
+
+            Then("The pending invalidation does not remove any flow")
+            flowInvalidation.processInvalidations()
+            removedFlows should be (empty)
+            flowInvalidation.hasPendingInvalidations shouldBe false
+        }
+
+        scenario ("The flow lists are compacted") {
+            Given("A tag with flows that are removed")
+            val flows = registerFlows(100, tag1)
+            flows.take(90).foreach(flowInvalidation.removeFlow)
+
+            When("Adding more flows for the tag")
+            val newFlows = registerFlows(100, tag1)
+
+            Then("The tag only has the live flows")
+            flowInvalidation.flowsFor(tag1) should contain theSameElementsAs
+                (flows.drop(90) ++ newFlows)
+        }
+    }
+
     feature ("Flows can be removed") {
         scenario ("A flow is removed from the tag lists") {
             val flow1 = new ManagedFlow(null)
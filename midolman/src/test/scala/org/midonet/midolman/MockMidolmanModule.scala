@@ -148,7 +148,8 @@ class MockMidolmanModule(override val hostId: UUID,
         new MockNetlinkChannelFactory
 
     protected override def upcallDatapathConnectionManager(
-            tbPolicy: TokenBucketPolicy, workers: IndexedSeq[PacketWorker]) =
+            tbPolicy: TokenBucketPolicy, workers: IndexedSeq[PacketWorker],
+            affinity: ConnectionAffinity) =
         new MockUpcallDatapathConnectionManager(config)
 
     protected override def datapathStateDriver(
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman
 
-import java.util.UUID
+import java.util.{Arrays, UUID}
 
 import scala.collection.JavaConverters._
 import scala.concurrent.Promise
@@ -27,8 +27,9 @@ import org.midonet.midolman.PacketWorkflow._
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.flows.ManagedFlow
+import org.midonet.midolman.layer3.Route.NextHop
 import org.midonet.midolman.monitoring.NullFlowRecorder
-import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.simulation.{PacketContext, Router => SimRouter}
 import org.midonet.midolman.simulation.Simulator.Fip64Action
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.NatKey
@@ -41,12 +42,14 @@ import org.midonet.odp.flows.FlowKeys.tunnel
 import org.midonet.odp.flows.{FlowAction, FlowActions}
 import org.midonet.odp.ports.{GreTunnelPort, VxLanTunnelPort}
 import org.midonet.odp.{Datapath, FlowMatches, Packet}
-import org.midonet.packets.{Ethernet, TunnelKeys}
+import org.midonet.packets.{Ethernet, IPv6Addr, TunnelKeys}
 import org.midonet.packets.NatState.NatBinding
 import org.midonet.packets.util.EthBuilder
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.util.collection.IPv6InvalidationArray
 import org.midonet.util.functors.Callback0
 
 @RunWith(classOf[JUnitRunner])
@@ -355,6 +358,25 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsOut shouldBe 1
 
         }
+
+        scenario("Workflow drops malformed packets without a flow") {
+            Given("A packet whose frame is truncated in its Ethernet header")
+            val frame: Ethernet = makeFrame(1)
+            val packet = new Packet(Arrays.copyOf(frame.serialize(), 10),
+                                    FlowMatches.fromEthernetPacket(frame))
+                .setReason(Packet.Reason.FlowTableMiss)
+
+            When("Simulating the packet")
+            packetWorkflow.handlePackets(packet)
+
+            Then("The packet is dropped")
+            packetsOut shouldBe 1
+            metrics.packetsDropped.getCount shouldBe 1
+
+            And("The context is returned without installing a flow")
+            mockDpChannel.contextsSeen shouldBe empty
+            metrics.contextsPooled.getCount shouldBe 1
+        }
     }
 
     feature("Packet Context pooling") {
@@ -510,6 +532,35 @@ class PacketWorkflowTest extends MidolmanSpec {
         }
     }
 
+    feature("Packet workflow invalidates routed flows") {
+        scenario("Adding an IPv6 route invalidates the flows it covers") {
+            Given("A router with flows to two IPv6 destinations")
+            val router = newRouter("router")
+            val simRouter = fetchDevice[SimRouter](router)
+            val covered = IPv6Addr.fromString("2001:db8:0:1::2")
+            val uncovered = IPv6Addr.fromString("2001:db8:0:2::2")
+            simRouter.routerMgrTagger.addIPv6Tag(covered, 0)
+            simRouter.routerMgrTagger.addIPv6Tag(uncovered, 0)
+            packetWorkflow.process()
+            packetWorkflow.invalidatedTags = Nil
+
+            When("Adding a route covering one of the destinations")
+            newRoute(router, "::", 0, "2001:db8:0:1::", 64, NextHop.BLACKHOLE,
+                     null, null, 0)
+            packetWorkflow.process()
+
+            Then("The flows to the covered destination are invalidated")
+            packetWorkflow.invalidatedTags should contain (
+                FlowTagger.tagForDestinationIp(router, covered))
+            packetWorkflow.invalidatedTags should not contain (
+                FlowTagger.tagForDestinationIp(router, uncovered))
+
+            And("Only the uncovered destination is tracked")
+            IPv6InvalidationArray.current.countRefs(covered.upperWord) shouldBe 0
+            IPv6InvalidationArray.current.countRefs(uncovered.upperWord) shouldBe 1
+        }
+    }
+
     private def isCleared(context: PacketContext): Unit = {
         context.flowTags should be (empty)
         context.flowRemovedCallbacks should be (empty)
@@ -731,6 +782,12 @@ class PacketWorkflowTest extends MidolmanSpec {
         var exception: Exception = _
         var result: SimulationResult = _
         var flow: ManagedFlow = _
+        var invalidatedTags = List[FlowTag]()
+
+        override def invalidateFlowsFor(tag: FlowTag): Unit = {
+            invalidatedTags = invalidatedTags :+ tag
+            super.invalidateFlowsFor(tag)
+        }
 
         def completeWithGenerated(actions: List[FlowAction],
                                   generatedPacket: GeneratedPacket): Unit = {
@@ -773,6 +830,9 @@ class PacketWorkflowTest extends MidolmanSpec {
                 return result
             }
 
+            // The simulation deserializes the frames received as bytes.
+            if (!pktCtx.packet.isDeserialized)
+                pktCtx.ethernet
             pktCtx.runs += 1
             pktCtx.addFlowTag(FlowTagger.tagForDpPort(1))
             pktCtx.addFlowRemovedCallback(new Callback0 {
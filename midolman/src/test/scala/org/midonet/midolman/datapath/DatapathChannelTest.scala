@@ -241,6 +241,159 @@ class DatapathChannelTest extends MidolmanSpec {
         }
     }
 
+    feature ("FlowProcessor batches flow creation") {
+        scenario ("Flows are written when the batch is full or at its end") {
+            Given("A flow processor batching up to three flows")
+            val batchFp = batchingFlowProcessor()
+
+            When("Creating two flows")
+            createFlow(batchFp, 0, endOfBatch = false)
+            createFlow(batchFp, 1, endOfBatch = false)
+
+            Then("The flows are not written")
+            nlChannel.packetsWritten.get() should be (0)
+
+            And("The flows cannot be deleted")
+            val managedFlow = new ManagedFlow(null)
+            batchFp.tryEject(sequence = 0, datapathId, managedFlow.flowMatch,
+                             batchFp.handleDeleteError) should be (false)
+
+            When("Creating a third flow")
+            createFlow(batchFp, 2, endOfBatch = false)
+
+            Then("The three flows are written at once with their indices")
+            nlChannel.packetsWritten.get() should be (1)
+            flowIndices(nlChannel.written.poll()) should be (Seq(0, 1, 2))
+
+            When("Creating a flow at the end of the disruptor batch")
+            createFlow(batchFp, 3, endOfBatch = true)
+
+            Then("The flow is written")
+            nlChannel.packetsWritten.get() should be (2)
+            flowIndices(nlChannel.written.poll()) should be (Seq(3))
+
+            And("The metrics record the flows per write")
+            val metrics = new DatapathMetrics(metricRegistry)
+            metrics.flowsPerWrite.getCount should be (2)
+            metrics.flowsPerWrite.getSnapshot.getMax should be (3)
+        }
+
+        scenario ("Flows are written when the batch latency elapses") {
+            Given("A flow processor batching up to three flows")
+            val batchFp = batchingFlowProcessor()
+
+            When("Creating a flow")
+            createFlow(batchFp, 0, endOfBatch = false)
+            nlChannel.packetsWritten.get() should be (0)
+
+            And("Creating another flow after the batch latency")
+            clock.time += 1000000L
+            createFlow(batchFp, 1, endOfBatch = false)
+
+            Then("Both flows are written")
+            nlChannel.packetsWritten.get() should be (1)
+            flowIndices(nlChannel.written.poll()) should be (Seq(0, 1))
+        }
+    }
+
+    feature ("PacketExecutor batches packet execution") {
+        scenario ("Packets are executed with one write per packet") {
+            Given("A packet executor without batching")
+            val executor = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0, factory,
+                new PacketExecutorMetrics(metricRegistry, 1))
+
+            When("Executing a batch of ten packets")
+            executePackets(executor, 10)
+
+            Then("The executor writes ten times")
+            nlChannel.packetsWritten.get() should be (10)
+        }
+
+        scenario ("Packets are executed with one write per batch") {
+            Given("A packet executor batching up to 64 packets")
+            val metrics = new PacketExecutorMetrics(metricRegistry, 1)
+            val executor = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0, factory,
+                metrics, maxBatchPackets = 64)
+
+            When("Executing a batch of ten packets")
+            executePackets(executor, 10)
+
+            Then("The executor writes once")
+            nlChannel.packetsWritten.get() should be (1)
+
+            And("The write contains the ten packets")
+            val bb = nlChannel.written.poll()
+            var offset = 0
+            var messages = 0
+            while (offset < bb.limit()) {
+                bb.getInt(offset + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                offset += NetlinkMessage.align(
+                    bb.getInt(offset + NetlinkMessage.NLMSG_LEN_OFFSET))
+                messages += 1
+            }
+            messages should be (10)
+
+            And("The metrics record the batch")
+            metrics.messagesPerWrite.getSnapshot.getMax should be (10)
+            metrics.bytesPerWrite.getSnapshot.getMax should be (bb.limit())
+            metrics.packetsExecuted.getCount should be (10)
+        }
+
+        scenario ("A full batch is written before the end of the batch") {
+            Given("A packet executor batching up to 4 packets")
+            val executor = new PacketExecutor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1, 0, factory,
+                new PacketExecutorMetrics(metricRegistry, 1),
+                maxBatchPackets = 4)
+
+            When("Executing a batch of ten packets")
+            executePackets(executor, 10)
+
+            Then("The executor writes three times")
+            nlChannel.packetsWritten.get() should be (3)
+        }
+    }
+
+    private def executePackets(executor: PacketExecutor, count: Int): Unit = {
+        for (seq <- 0 until count) {
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.packetActions.addAll(actions)
+            executor.onEvent(new PacketContextHolder(context, null), seq,
+                             endOfBatch = seq == count - 1)
+        }
+    }
+
+    private def batchingFlowProcessor(): FlowProcessor =
+        new FlowProcessor(
+            new DatapathStateDriver(datapath), ovsFamilies, maxPendingRequests = 1024,
+            maxRequestSize = 2048, factory, factory.selectorProvider,
+            simBackChannel, new DatapathMetrics(metricRegistry), clock,
+            maxBatchFlows = 3, maxBatchLatency = 1000000L)
+
+    private def createFlow(processor: FlowProcessor, sequence: Long,
+                           endOfBatch: Boolean): Unit = {
+        val context = packetContextFor(ethernet, UUID.randomUUID())
+        context.flowActions.addAll(actions)
+        context.flow = new ManagedFlow(null)
+        context.flow.mark = sequence.toInt
+        processor.onEvent(new PacketContextHolder(null, context), sequence,
+                          endOfBatch)
+    }
+
+    private def flowIndices(bb: ByteBuffer): Seq[Int] = {
+        val indices = Seq.newBuilder[Int]
+        var offset = 0
+        while (offset < bb.limit()) {
+            bb.getInt(offset + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+            indices += bb.getInt(offset + NetlinkMessage.NLMSG_SEQ_OFFSET)
+            offset += NetlinkMessage.align(
+                bb.getInt(offset + NetlinkMessage.NLMSG_LEN_OFFSET))
+        }
+        indices.result()
+    }
+
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
         val keys = new ArrayList[FlowKey](16)
         FlowKeys.buildFrom(buf, keys)
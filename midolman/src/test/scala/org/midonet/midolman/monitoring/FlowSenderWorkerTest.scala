@@ -18,6 +18,7 @@ package org.midonet.midolman.monitoring
 import java.io.IOException
 import java.net.InetSocketAddress
 import java.nio.{BufferOverflowException, ByteBuffer}
+import java.nio.file.{Files, Path}
 import java.util.concurrent.TimeUnit
 
 import scala.collection.JavaConverters._
@@ -482,6 +483,79 @@ class FlowSenderWorkerTest extends MidolmanSpec with MidonetEventually {
         }
     }
 
+    feature("Spool flow sender worker") {
+        scenario("spool yields spool worker") {
+            val directory = Files.createTempDirectory("flow-spool")
+            val (worker, _) = createWorker(spoolConfig(directory))
+            worker shouldBe a [SpoolFlowSenderWorker]
+        }
+        scenario("messages spooled until the endpoint is available") {
+            val target = HostAndPort.fromString("localhost:50027")
+            val directory = Files.createTempDirectory("flow-spool")
+            val (worker, discovery) = createWorker(spoolConfig(directory))
+
+            worker.startAsync().awaitRunning()
+
+            discovery.registerServiceInstance(EndpointServiceName, target)
+
+            val buffers = for (_ <- 0 until 10)
+                yield randomBytes(Random.nextInt(400) + 1)
+            for (buffer <- buffers) {
+                worker.submit(ByteBuffer.wrap(buffer)) shouldBe true
+            }
+
+            val observer = new TestAwaitableObserver[Array[Byte]]
+            val srv = getDelimBytesServer(50027, observer)
+            srv.startAsync().awaitRunning(Timeout.toMillis,
+                                          TimeUnit.MILLISECONDS)
+
+            try {
+                observer.awaitOnNext(buffers.size, Timeout) shouldBe true
+                observer.getOnNextEvents.asScala.map(_.toSeq) shouldBe
+                    buffers.map(_.toSeq)
+            } finally {
+                srv.stopAsync().awaitTerminated(Timeout.toMillis,
+                                                TimeUnit.MILLISECONDS)
+                worker.stopAsync().awaitTerminated()
+            }
+        }
+        scenario("spooled messages are shipped after a restart") {
+            val target = HostAndPort.fromString("localhost:50028")
+            val directory = Files.createTempDirectory("flow-spool")
+            val conf = spoolConfig(directory)
+
+            val (worker1, discovery) = createWorker(conf)
+            worker1.startAsync().awaitRunning()
+            val buf1 = randomBytes(Random.nextInt(400) + 1)
+            val buf2 = randomBytes(Random.nextInt(400) + 1)
+            worker1.submit(ByteBuffer.wrap(buf1))
+            worker1.submit(ByteBuffer.wrap(buf2))
+            eventually {
+                spooledRecords(directory) shouldBe 2
+            }
+            worker1.stopAsync().awaitTerminated()
+
+            val observer = new TestAwaitableObserver[Array[Byte]]
+            val srv = getDelimBytesServer(50028, observer)
+            srv.startAsync().awaitRunning(Timeout.toMillis,
+                                          TimeUnit.MILLISECONDS)
+            discovery.registerServiceInstance(EndpointServiceName, target)
+
+            val (worker2, _) = createWorker(conf)
+            worker2.startAsync().awaitRunning()
+
+            try {
+                observer.awaitOnNext(2, Timeout) shouldBe true
+                observer.getOnNextEvents.asScala.map(_.toSeq) shouldBe
+                    Seq(buf1.toSeq, buf2.toSeq)
+            } finally {
+                srv.stopAsync().awaitTerminated(Timeout.toMillis,
+                                                TimeUnit.MILLISECONDS)
+                worker2.stopAsync().awaitTerminated()
+            }
+        }
+    }
+
     /**
       * Create a server frontend expecting to receive delimited byte buffers.
       *
@@ -523,6 +597,36 @@ class FlowSenderWorkerTest extends MidolmanSpec with MidonetEventually {
         (recorder, backend.discovery)
     }
 
+    private def spoolConfig(directory: Path): MidolmanConfig = {
+        val confStr =
+            s"""
+               |agent.flow_history.enabled=true
+               |agent.flow_history.endpoint_service="$EndpointServiceName"
+               |agent.flow_history.connection_interval="0ms"
+               |agent.flow_history.spool_directory="$directory"
+               |agent.flow_history.spool_segment_size=4096
+            """.stripMargin
+        MidolmanConfig.forTests(confStr)
+    }
+
+    /** Counts the records written to the uncompressed spool segments. */
+    private def spooledRecords(directory: Path): Int = {
+        val stream = Files.list(directory)
+        val files = try stream.iterator().asScala.filter(
+            _.getFileName.toString.endsWith(FlowSpool.SegmentSuffix)).toList
+        finally stream.close()
+        files.map { file =>
+            val data = ByteBuffer.wrap(Files.readAllBytes(file))
+            var position = FlowSpool.HeaderSize
+            var count = 0
+            while (position + 4 <= data.limit() && data.getInt(position) > 0) {
+                position += 4 + data.getInt(position)
+                count += 1
+            }
+            count
+        }.sum
+    }
+
     private def createFlowSender(config: MidolmanConfig) = {
         val flowSender = new FlowSender(config.flowHistory, backend)
         (flowSender, backend.discovery)
@@ -24,9 +24,6 @@ import org.scalatest.junit.JUnitRunner
 import org.junit.runner.RunWith
 
 import org.midonet.odp.flows.FlowStats
-import org.midonet.odp.FlowMatches
-import org.midonet.packets.{IPv4Addr, MAC, Ethernet}
-import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.MeterTag
 
@@ -39,17 +36,8 @@ class MeterRegistryTest extends FeatureSpec with Matchers {
 
     def nonMeterRandomTag = FlowTagger.tagForBroadcast(UUID.randomUUID())
 
-    val packetA: Ethernet = { eth addr MAC.random() -> MAC.random() } <<
-                            { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
-                            { udp ports 4500 ---> 500 } <<
-                            { payload("foo") }
-    val packetB: Ethernet = { eth addr MAC.random() -> MAC.random() } <<
-                            { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
-                            { icmp.echo.request id 23 seq 32}
-
-
-    val matchA = FlowMatches.fromEthernetPacket(packetA)
-    val matchB = FlowMatches.fromEthernetPacket(packetB)
+    val markA = 1
+    val markB = 2
 
     val metersA: List[MeterTag] = List(deviceA, commonDevice)
     val metersB: List[MeterTag] = List(deviceB, commonDevice)
@@ -63,13 +51,13 @@ class MeterRegistryTest extends FeatureSpec with Matchers {
         scenario("registers new meters") {
             val registry = new MeterRegistry(10)
 
-            registry.trackFlow(matchA, tagsA)
+            registry.trackFlow(markA, tagsA)
             registry.meters should have size 2
             for (meter <- metersA) {
                 registry.meters.keySet should contain (meter.meterName)
             }
 
-            registry.trackFlow(matchB, tagsB)
+            registry.trackFlow(markB, tagsB)
             registry.meters should have size 3
             for (meter <- metersB) {
                 registry.meters.keySet should contain (meter.meterName)
@@ -83,14 +71,15 @@ class MeterRegistryTest extends FeatureSpec with Matchers {
 
         scenario("tracks stats for a single flow, N meters") {
             val registry = new MeterRegistry(10)
-            registry.trackFlow(matchA, tagsA)
+            registry.trackFlow(markA, tagsA)
             registry.recordPacket(FIRST_PKT_SIZE, tagsA)
 
             val stats = new FlowStats()
             for (i <- 1 to 10) {
                 stats.packets = i
                 stats.bytes = i * 100
-                registry.updateFlow(matchA, stats)
+                registry.updateFlow(markA, stats)
+                registry.aggregate()
 
                 for (meter <- registry.meters.values.asScala) {
                     meter.packets should === (i + 1)
@@ -101,18 +90,19 @@ class MeterRegistryTest extends FeatureSpec with Matchers {
 
         scenario("forgets flows") {
             val registry = new MeterRegistry(10)
-            registry.trackFlow(matchA, tagsA)
+            registry.trackFlow(markA, tagsA)
 
             val fixedPackets = 5
             val fixedBytes = 55
 
             val stats = new FlowStats(fixedPackets, fixedBytes)
-            registry.updateFlow(matchA, stats)
-            registry.forgetFlow(matchA)
+            registry.updateFlow(markA, stats)
+            registry.forgetFlow(markA)
 
             stats.packets = 245
             stats.bytes = 1235
-            registry.updateFlow(matchA, stats)
+            registry.updateFlow(markA, stats)
+            registry.aggregate()
             for (meter <- registry.meters.values.asScala) {
                 meter.packets should === (fixedPackets)
                 meter.bytes should === (fixedBytes)
@@ -121,15 +111,16 @@ class MeterRegistryTest extends FeatureSpec with Matchers {
 
         scenario("tracks stats for two flows, overlapping meters") {
             val registry = new MeterRegistry(10)
-            registry.trackFlow(matchA, tagsA)
-            registry.trackFlow(matchB, tagsB)
+            registry.trackFlow(markA, tagsA)
+            registry.trackFlow(markB, tagsB)
 
             val stats = new FlowStats()
             for (i <- 1 to 10) {
                 stats.packets = i
                 stats.bytes = i * 100
-                registry.updateFlow(matchA, stats)
-                registry.updateFlow(matchB, stats)
+                registry.updateFlow(markA, stats)
+                registry.updateFlow(markB, stats)
+                registry.aggregate()
 
                 registry.meters.get(commonDevice.meterName).packets should === (i * 2)
                 registry.meters.get(commonDevice.meterName).bytes should === (i * 200)
@@ -140,5 +131,40 @@ class MeterRegistryTest extends FeatureSpec with Matchers {
 
             }
         }
+
+        scenario("aggregates recorded packets") {
+            val registry = new MeterRegistry(10)
+            registry.recordPacket(FIRST_PKT_SIZE, tagsA)
+            registry.recordPacket(FIRST_PKT_SIZE, tagsB)
+
+            registry.meters should have size 0
+
+            registry.aggregate()
+            registry.meters should have size 3
+            registry.meters.get(commonDevice.meterName).packets should === (2)
+            registry.meters.get(commonDevice.meterName).bytes should === (2 * FIRST_PKT_SIZE)
+            registry.meters.get(deviceA.meterName).packets should === (1)
+            registry.meters.get(deviceB.meterName).packets should === (1)
+        }
+
+        scenario("tracks more flows than the maximum") {
+            val registry = new MeterRegistry(10)
+            val flows = 1 to 100
+            for (mark <- flows) {
+                registry.trackFlow(mark, tagsA)
+            }
+            for (mark <- flows if mark % 2 == 0) {
+                registry.forgetFlow(mark)
+            }
+
+            val stats = new FlowStats(1, 10)
+            for (mark <- flows) {
+                registry.updateFlow(mark, stats)
+            }
+            registry.aggregate()
+
+            registry.meters.get(deviceA.meterName).packets should === (50)
+            registry.meters.get(deviceA.meterName).bytes should === (500)
+        }
     }
 }
@@ -17,10 +17,17 @@ package org.midonet.midolman.simulation
 
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.HappyGoLuckyLeaser
+import org.midonet.midolman.state.NatState.NatKey
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.odp.FlowMatch
 import org.midonet.packets.IPAddr
+import org.midonet.packets.NatState.NatBinding
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+import org.midonet.util.Range
 
-import java.util.UUID
+import java.util.{Random, UUID}
 import org.junit.runner.RunWith
 import org.scalatest.{BeforeAndAfterAll, BeforeAndAfter, Matchers, Suite}
 import org.scalatest.junit.JUnitRunner
@@ -272,6 +279,194 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testCompiledChainMatchesLinearChain() {
+        val random = new Random(1)
+        val chainId = UUID.randomUUID
+        val rules = for (i <- 0 until 200) yield randomRule(random, chainId)
+        val classifier = RuleClassifier.compile(rules.asJava)
+        classifier should not be null
+
+        val linear = new Chain(chainId, rules.asJava,
+                               Map[UUID, Chain]().asJava, "linear")
+        val compiled = new Chain(chainId, rules.asJava,
+                                 Map[UUID, Chain]().asJava, "compiled",
+                                 classifier = classifier)
+
+        for (i <- 0 until 1000) {
+            val fmatch = randomMatch(random)
+            val linearCtx = PacketContext.generated(1, null, fmatch)
+            val compiledCtx = PacketContext.generated(1, null, fmatch)
+            linearCtx.currentDevice = ownerId
+            compiledCtx.currentDevice = ownerId
+
+            val linearResult = linear.process(linearCtx)
+            val compiledResult = compiled.process(compiledCtx)
+
+            compiledResult.action shouldBe linearResult.action
+            compiledCtx.traversedRules shouldBe linearCtx.traversedRules
+            compiledCtx.traversedRulesMatched shouldBe
+                linearCtx.traversedRulesMatched
+            compiledCtx.traversedRulesApplied shouldBe
+                linearCtx.traversedRulesApplied
+        }
+    }
+
+    def testCompiledChainReclassifiesAfterNat() {
+        val chainId = UUID.randomUUID
+        val rules = portForwardRule(chainId, 8080) ::
+                    fillerRules(chainId) ::: List(dropToPort(chainId, 8080))
+        val classifier = RuleClassifier.compile(rules.asJava)
+        classifier should not be null
+
+        val chain = new Chain(chainId, rules.asJava,
+                              Map[UUID, Chain]().asJava, "compiled",
+                              classifier = classifier)
+        val ctx = PacketContext.generated(1, null, portMatch(80))
+        ctx.currentDevice = ownerId
+
+        chain.process(ctx).action shouldBe Action.DROP
+        ctx.wcmatch.getDstPort shouldBe 8080
+    }
+
+    def testCompiledChainReclassifiesAfterJump() {
+        val target = makeChain(List(portForwardRule(null, 8080), returnRule))
+
+        val chainId = UUID.randomUUID
+        val jumpRule = makeJumpRule(target)
+        jumpRule.chainId = chainId
+        jumpRule.id = UUID.randomUUID
+        val rules = jumpRule ::
+                    fillerRules(chainId) ::: List(dropToPort(chainId, 8080))
+        val classifier = RuleClassifier.compile(rules.asJava)
+        classifier should not be null
+
+        val chain = new Chain(chainId, rules.asJava,
+                              Map(target.id -> target).asJava, "compiled",
+                              classifier = classifier)
+        val ctx = PacketContext.generated(1, null, portMatch(80))
+        ctx.currentDevice = ownerId
+
+        chain.process(ctx).action shouldBe Action.DROP
+    }
+
+    def testCompiledChainTracksConnections() {
+        // A forward flow rule for IPv6 packets to another port tracks the
+        // connection of the packet before its other fields fail to match.
+        val chainId = UUID.randomUUID
+        val c = new Condition()
+        c.matchForwardFlow = true
+        c.etherType = 0x86dd
+        c.tpDst = new Range[Integer](9999)
+        val forwardRule = new LiteralRule(c, Action.ACCEPT, chainId)
+        forwardRule.id = UUID.randomUUID
+        val rules = forwardRule :: fillerRules(chainId)
+        val classifier = RuleClassifier.compile(rules.asJava)
+        classifier should not be null
+
+        val chain = new Chain(chainId, rules.asJava,
+                              Map[UUID, Chain]().asJava, "compiled",
+                              classifier = classifier)
+        val conntrackTx = new FlowStateTransaction(
+            new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard())
+        val ctx = new PacketContext {
+            override protected def fetchIngressDevice(): UUID = ownerId
+        }
+        ctx.prepare(1, null, portMatch(80), null, null, null, null)
+        ctx.initialize(conntrackTx,
+                       new FlowStateTransaction[NatKey, NatBinding](null),
+                       HappyGoLuckyLeaser,
+                       new FlowStateTransaction[TraceKey, TraceContext](null))
+        ctx.currentDevice = ownerId
+
+        chain.process(ctx).action shouldBe Action.ACCEPT
+        ctx.trackConnection(UUID.randomUUID)
+        conntrackTx.size() shouldBe 1
+    }
+
+    def testShortChainsAreNotCompiled() {
+        val rules = List.fill(RuleClassifier.MIN_RULES - 1)(acceptRule)
+        RuleClassifier.compile(rules.asJava) shouldBe null
+    }
+
+    private def randomRule(random: Random, chainId: UUID): Rule = {
+        val cond = if (random.nextInt(20) == 0) Condition.FALSE else {
+            val c = new Condition()
+            c.conjunctionInv = random.nextInt(10) == 0
+            if (random.nextBoolean()) {
+                c.etherType = if (random.nextInt(4) == 0) 0x86dd else 0x0800
+                c.invDlType = random.nextInt(10) == 0
+            }
+            if (random.nextBoolean()) {
+                c.nwProto = Array[Byte](1, 6, 17)(random.nextInt(3))
+                c.nwProtoInv = random.nextInt(10) == 0
+            }
+            if (random.nextBoolean()) {
+                val start = random.nextInt(100)
+                c.tpDst = if (random.nextBoolean())
+                    new Range[Integer](start)
+                else
+                    new Range[Integer](start, start + random.nextInt(20))
+                c.tpDstInv = random.nextInt(10) == 0
+            }
+            c
+        }
+        // Most of the rules continue, such that the whole chain is traversed.
+        val action = if (random.nextInt(50) == 0) Action.DROP
+                     else Action.CONTINUE
+        val rule = new LiteralRule(cond, action, chainId)
+        rule.id = UUID.randomUUID
+        rule
+    }
+
+    /** A NAT rule that forwards the destination port and continues. */
+    private def portForwardRule(chainId: UUID, port: Int): Rule = {
+        val rule = new NatRule(Condition.TRUE, Action.CONTINUE, chainId,
+                               true) {
+            override protected def apply(ctx: PacketContext): Boolean = {
+                ctx.wcmatch.setDstPort(port)
+                true
+            }
+        }
+        rule.id = UUID.randomUUID
+        rule
+    }
+
+    private def fillerRules(chainId: UUID): List[Rule] = {
+        List.fill(RuleClassifier.MIN_RULES) {
+            val c = new Condition()
+            c.tpDst = new Range[Integer](9999)
+            val rule = new LiteralRule(c, Action.DROP, chainId)
+            rule.id = UUID.randomUUID
+            rule
+        }
+    }
+
+    private def dropToPort(chainId: UUID, port: Int): Rule = {
+        val c = new Condition()
+        c.tpDst = new Range[Integer](port)
+        val rule = new LiteralRule(c, Action.DROP, chainId)
+        rule.id = UUID.randomUUID
+        rule
+    }
+
+    private def portMatch(port: Int): FlowMatch = {
+        val fmatch = new FlowMatch()
+        fmatch.setEtherType(0x0800.toShort)
+        fmatch.setNetworkProto(6.toByte)
+        fmatch.setDstPort(port)
+        fmatch
+    }
+
+    private def randomMatch(random: Random): FlowMatch = {
+        val fmatch = new FlowMatch()
+        fmatch.setEtherType(if (random.nextInt(4) == 0) 0x86dd.toShort
+                            else 0x0800.toShort)
+        fmatch.setNetworkProto(Array[Byte](1, 6, 17, 47)(random.nextInt(4)))
+        fmatch.setSrcPort(random.nextInt(1000))
+        fmatch.setDstPort(random.nextInt(130))
+        fmatch
+    }
+
     private def applyChain(c: Chain) = {
         pktCtx.currentDevice = ownerId
         if (c ne null)
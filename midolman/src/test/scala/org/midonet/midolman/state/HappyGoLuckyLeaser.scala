@@ -18,8 +18,10 @@ package org.midonet.midolman.state
 
 import java.util.UUID
 
+import com.codahale.metrics.MetricRegistry
 import org.slf4j.helpers.NOPLogger
 
+import org.midonet.midolman.monitoring.metrics.NatLeaserMetrics
 import org.midonet.midolman.rules.NatTarget
 import org.midonet.packets.IPv4Addr
 import org.midonet.packets.NatState.NatBinding
@@ -31,6 +33,7 @@ object HappyGoLuckyLeaser extends NatLeaser {
     override val log = Logger(NOPLogger.NOP_LOGGER)
     override val allocator: NatBlockAllocator = new MockNatBlockAllocator
     override val clock = new MockClock
+    override val metrics = new NatLeaserMetrics(new MetricRegistry)
 
     override def allocateNatBinding(deviceId: UUID,
                                     destinationIp: IPv4Addr,
@@ -23,12 +23,14 @@ import scala.collection.mutable
 import scala.concurrent.Future
 import scala.concurrent.duration._
 
+import com.codahale.metrics.MetricRegistry
 import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 import org.slf4j.helpers.NOPLogger
 import org.junit.runner.RunWith
 
 import org.midonet.midolman.NotYetException
+import org.midonet.midolman.monitoring.metrics.NatLeaserMetrics
 import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.state.NatLeaser.{NoNatBindingException, blockOf}
 import org.midonet.packets.IPv4Addr
@@ -43,6 +45,9 @@ class NatLeaserTest extends FeatureSpec
     val dev = UUID.randomUUID()
     val clock = new MockClock()
     val allocatedBlocks = mutable.Set[NatBlock]()
+    val freedBlocks = mutable.Set[NatBlock]()
+    val metrics = new NatLeaserMetrics(new MetricRegistry)
+    var skippedPorts = NatLeaser.PREFETCH_SKIPPED_PORTS
     val natLeaser = new NatLeaser {
         override val log = Logger(NOPLogger.NOP_LOGGER)
         override val allocator: NatBlockAllocator = new NatBlockAllocator {
@@ -58,10 +63,13 @@ class NatLeaserTest extends FeatureSpec
                     }
                 } map Future.successful getOrElse Future.failed(NoFreeNatBlocksException)
 
-            override def freeBlock(natBlock: NatBlock): Unit = {}
+            override def freeBlock(natBlock: NatBlock): Unit =
+                freedBlocks += natBlock
         }
 
         override val clock = NatLeaserTest.this.clock
+        override val metrics = NatLeaserTest.this.metrics
+        override def prefetchSkippedPorts = skippedPorts
     }
 
     feature("NatBindings are allocated") {
@@ -337,4 +345,79 @@ class NatLeaserTest extends FeatureSpec
             }
         }
     }
+
+    feature("NatBlocks are prefetched") {
+        scenario("A crowded block prefetches the next block") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          1024, 1151)
+            val ip = IPv4Addr.random
+            skippedPorts = 0
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            metrics.bindingsPostponed.getCount shouldBe 1
+
+            for (i <- 0 until NatBlock.BLOCK_SIZE) {
+                val binding = natLeaser.allocateNatBinding(dev, ip, 10,
+                                                           Array(natTarget))
+                blockOf(binding.transportPort) shouldBe 16
+            }
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 16),
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 17)))
+            metrics.blocksPrefetched.getCount shouldBe 1
+            metrics.prefetchHits.getCount shouldBe 0
+
+            val binding = natLeaser.allocateNatBinding(dev, ip, 10,
+                                                       Array(natTarget))
+            blockOf(binding.transportPort) shouldBe 17
+            metrics.bindingsPostponed.getCount shouldBe 1
+            metrics.prefetchHits.getCount shouldBe 1
+            metrics.prefetchHitRatio.getValue shouldBe 1.0
+        }
+
+        scenario("A block that is not crowded does not prefetch") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          1024, 1151)
+            val ip = IPv4Addr.random
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 16)))
+            metrics.blocksPrefetched.getCount shouldBe 0
+        }
+
+        scenario("An unused prefetched block expires") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          1024, 1151)
+            val ip = IPv4Addr.random
+            skippedPorts = 0
+
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            val binding = natLeaser.allocateNatBinding(dev, ip, 10,
+                                                       Array(natTarget))
+            metrics.blocksPrefetched.getCount shouldBe 1
+
+            natLeaser.freeNatBinding(dev, ip, 10, binding)
+            clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+            natLeaser.obliterateUnusedBlocks()
+
+            freedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 16),
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 17)))
+            metrics.prefetchesExpired.getCount shouldBe 1
+            metrics.prefetchHits.getCount shouldBe 0
+            metrics.prefetchHitRatio.getValue shouldBe 0.0
+        }
+    }
 }
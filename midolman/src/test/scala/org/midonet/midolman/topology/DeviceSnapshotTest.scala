@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.topology.VirtualTopology.Device
+
+@RunWith(classOf[JUnitRunner])
+class DeviceSnapshotTest extends FeatureSpec with Matchers
+                         with GivenWhenThen {
+
+    private class TestDevice extends Device
+
+    feature("Snapshot caches devices") {
+        scenario("Device is returned for the cached version") {
+            Given("A snapshot")
+            val snapshot = new DeviceSnapshot(16)
+            val id = UUID.randomUUID()
+            val device = new TestDevice
+
+            Then("The snapshot does not return an uncached device")
+            snapshot.get(id, 0L) shouldBe null
+
+            When("Caching the device")
+            snapshot.put(id, device, 1L)
+
+            Then("The snapshot returns the device for the same version")
+            snapshot.get(id, 1L) shouldBe device
+            snapshot.get(new UUID(id.getMostSignificantBits,
+                                  id.getLeastSignificantBits), 1L) shouldBe device
+
+            And("The snapshot does not return the device for another version")
+            snapshot.get(id, 2L) shouldBe null
+        }
+
+        scenario("Devices sharing a slot replace each other") {
+            Given("A snapshot with a single slot")
+            val snapshot = new DeviceSnapshot(1)
+            val id1 = UUID.randomUUID()
+            val id2 = UUID.randomUUID()
+            val device1 = new TestDevice
+            val device2 = new TestDevice
+
+            When("Caching the first device")
+            snapshot.put(id1, device1, 1L)
+
+            Then("The snapshot returns only the first device")
+            snapshot.get(id1, 1L) shouldBe device1
+            snapshot.get(id2, 1L) shouldBe null
+
+            When("Caching the second device")
+            snapshot.put(id2, device2, 1L)
+
+            Then("The snapshot returns only the second device")
+            snapshot.get(id1, 1L) shouldBe null
+            snapshot.get(id2, 1L) shouldBe device2
+        }
+    }
+}
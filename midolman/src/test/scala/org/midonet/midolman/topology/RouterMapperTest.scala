@@ -799,6 +799,12 @@ class RouterMapperTest extends MidolmanSpec with TopologyBuilder
             device shouldBeDeviceOf router
             device.rTable.lookup(flowOf("1.0.0.0", "2.0.0.0")) should contain only
                 route4.setNextHopPortId(portId).asJava
+
+            And("The IPv6 route should be in the routing table")
+            val routes6 = device.rTable.lookup(flowOf("2001::1", "2002::1"))
+            routes6 should have size 1
+            routes6.get(0).nextHopPort shouldBe portId
+            device.rTable.lookup(flowOf("2001::1", "2003::1")) shouldBe empty
         }
 
         scenario("Port with IPv6 route and adding an IPv4 route") {
@@ -888,6 +894,9 @@ class RouterMapperTest extends MidolmanSpec with TopologyBuilder
             device shouldBeDeviceOf router
             device.rTable.lookup(flowOf("1.0.0.0", "2.0.0.0")) should contain only
                 route4.setNextHopPortId(portId).asJava
+            val routes6 = device.rTable.lookup(flowOf("2001::1", "2002::1"))
+            routes6 should have size 1
+            routes6.get(0).nextHopPort shouldBe portId
         }
 
         scenario("Removing a port with an IPv6 route") {
@@ -925,6 +934,7 @@ class RouterMapperTest extends MidolmanSpec with TopologyBuilder
             val device = obs.getOnNextEvents.get(2)
             device shouldBeDeviceOf router
             device.rTable.lookup(flowOf("1.0.0.0", "2.0.0.0")) shouldBe empty
+            device.rTable.lookup(flowOf("2001::1", "2002::1")) shouldBe empty
         }
     }
 
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.io.IOException
+import java.nio.file.Files
+import java.util.UUID
+
+import scala.concurrent.Await.ready
+import scala.concurrent.duration._
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.{Config, ConfigValueFactory}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.models.Topology.{Network => TopologyBridge, Port => TopologyPort}
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.topology.TopologyBuilder
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.simulation.{Port => SimulationPort}
+import org.midonet.midolman.topology.TopologySnapshot.Key
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.util.reactivex.TestAwaitableObserver
+
+@RunWith(classOf[JUnitRunner])
+class TopologySnapshotTest extends MidolmanSpec with TopologyBuilder {
+
+    private val directory = Files.createTempDirectory("topology-snapshot")
+    private val file = directory.resolve("topology.snapshot")
+
+    private var vt: VirtualTopology = _
+    private var store: Storage = _
+
+    private val bridgeId = UUID.randomUUID
+    private val timeout = 5 seconds
+
+    override def fillConfig(config: Config) = {
+        super.fillConfig(config.withValue(
+            "agent.midolman.topology_snapshot_file",
+            ConfigValueFactory.fromAnyRef(file.toString)))
+    }
+
+    protected override def beforeTest(): Unit = {
+        vt = injector.getInstance(classOf[VirtualTopology])
+        store = injector.getInstance(classOf[MidonetBackend]).store
+        store.create(createBridge(id = bridgeId))
+    }
+
+    protected override def afterTest(): Unit = {
+        vt.snapshots.stop()
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(directory)
+    }
+
+    private def loadPort(id: UUID): Unit = {
+        ready(intercept[NotYetException] {
+            VirtualTopology.tryGet(classOf[SimulationPort], id)
+        }.waitFor, timeout)
+    }
+
+    feature("Topology snapshot files") {
+        scenario("Objects are written and read") {
+            Given("A bridge and a port")
+            val bridge = createBridge(id = bridgeId)
+            val port = createBridgePort(bridgeId = Some(bridgeId))
+            val bridgeKey = Key(classOf[TopologyBridge], bridgeId)
+            val portKey = Key(classOf[TopologyPort], port.getId)
+
+            When("Writing the snapshot")
+            TopologySnapshot.write(file, 1000L,
+                                   Seq(bridgeKey -> bridge, portKey -> port))
+
+            Then("Reading the snapshot returns the objects")
+            val snapshot = TopologySnapshot.read(file)
+            snapshot.timestamp shouldBe 1000L
+            snapshot.size shouldBe 2
+            snapshot.get(bridgeKey) shouldBe bridge
+            snapshot.get(portKey) shouldBe port
+
+            And("The snapshot does not return other objects")
+            snapshot.get(Key(classOf[TopologyPort], bridgeId)) shouldBe null
+        }
+
+        scenario("Invalid files are not read") {
+            Given("A file that is not a snapshot")
+            Files.write(file, Array[Byte](1, 2, 3, 4, 5, 6, 7, 8))
+
+            Then("Reading the snapshot fails")
+            intercept[IOException] {
+                TopologySnapshot.read(file)
+            }
+        }
+    }
+
+    feature("Topology snapshot manager") {
+        scenario("The manager writes the loaded objects") {
+            Given("A port loaded by the virtual topology")
+            val port = createBridgePort(bridgeId = Some(bridgeId))
+            store.create(port)
+            loadPort(port.getId)
+
+            When("The snapshot manager stops")
+            vt.snapshots.stop()
+
+            Then("The snapshot contains the port")
+            val snapshot = TopologySnapshot.read(file)
+            snapshot.get(Key(classOf[TopologyPort], port.getId))
+                .asInstanceOf[TopologyPort].getId shouldBe port.getId
+        }
+
+        scenario("The manager reconciles a stale snapshot") {
+            Given("A port in storage")
+            val port = createBridgePort(bridgeId = Some(bridgeId),
+                                        tunnelKey = 2)
+            store.create(port)
+
+            And("A snapshot with a stale version of the port")
+            val key = Key(classOf[TopologyPort], port.getId)
+            val stale = port.toBuilder.setTunnelKey(1).build()
+            TopologySnapshot.write(file, System.currentTimeMillis() - 1000L,
+                                   Seq(key -> stale))
+
+            And("A snapshot manager")
+            val manager = new TopologySnapshotManager(vt, file.toString,
+                                                      60000L, new MetricRegistry)
+
+            When("Subscribing to the port before starting the manager")
+            val observer1 = new TestAwaitableObserver[TopologyPort]
+            manager.observable(classOf[TopologyPort], port.getId)
+                .subscribe(observer1)
+
+            Then("The observer receives the port from storage")
+            observer1.awaitOnNext(1, timeout) shouldBe true
+            observer1.getOnNextEvents.get(0) shouldBe port
+
+            When("Starting the manager")
+            manager.start()
+
+            Then("The manager reconciles the snapshot")
+            manager.metrics.snapshotObjectsGauge.getValue shouldBe 1
+            manager.metrics.snapshotAgeGauge.getValue should be >= 1000L
+            manager.metrics.staleObjectsCounter.getCount shouldBe 1
+            manager.metrics.reconciliationTimeGauge.getValue should be >= 0L
+
+            When("Subscribing to the port after the reconciliation")
+            val observer2 = new TestAwaitableObserver[TopologyPort]
+            manager.observable(classOf[TopologyPort], port.getId)
+                .subscribe(observer2)
+
+            Then("The observer receives only the port from storage")
+            observer2.awaitOnNext(1, timeout) shouldBe true
+            observer2.getOnNextEvents should contain only port
+
+            manager.stop()
+        }
+    }
+}
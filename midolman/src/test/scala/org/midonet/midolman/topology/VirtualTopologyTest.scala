@@ -50,6 +50,27 @@ class VirtualTopologyTest extends MidolmanSpec with TopologyBuilder {
         store.create(createBridge(id = bridgeId))
     }
 
+    /**
+     * Runs test code on a thread owning a device snapshot, which is preserved
+     * between runs.
+     */
+    private class SnapshotOwner extends DeviceSnapshot.Owner {
+        override val deviceSnapshot = new DeviceSnapshot(16)
+
+        def run(f: => Unit): Unit = {
+            @volatile var error: Throwable = null
+            val thread = new Thread with DeviceSnapshot.Owner {
+                override def deviceSnapshot = SnapshotOwner.this.deviceSnapshot
+                override def run(): Unit = {
+                    try f catch { case e: Throwable => error = e }
+                }
+            }
+            thread.start()
+            thread.join()
+            if (error ne null) throw error
+        }
+    }
+
     feature("The topology returns a port with tryGet()") {
         scenario("The port does not exist") {
             Given("A random port identifier")
@@ -424,6 +445,67 @@ class VirtualTopologyTest extends MidolmanSpec with TopologyBuilder {
         }
     }
 
+    feature("The topology uses the device snapshot of the thread") {
+        scenario("The snapshot returns the latest port version") {
+            Given("A bridge port")
+            val id = UUID.randomUUID
+            val port1 = createBridgePort(id = id, bridgeId = Some(bridgeId),
+                                         tunnelKey = 1)
+            store.create(port1)
+
+            And("A device snapshot owned by a thread")
+            val owner = new SnapshotOwner
+
+            When("Requesting the port from the thread")
+            owner.run {
+                ready(intercept[NotYetException] {
+                    VirtualTopology.tryGet(classOf[SimulationPort], id)
+                }.waitFor, timeout)
+            }
+
+            Then("The thread caches the port in the snapshot")
+            owner.run {
+                VirtualTopology.tryGet(classOf[SimulationPort], id)
+                    .tunnelKey shouldBe 1
+            }
+            val version = vt.deviceVersion.get
+            owner.deviceSnapshot.get(id, version) should not be null
+
+            When("Creating an observer to the VT observable")
+            val observer = new DeviceObserver[SimulationPort](vt)
+            vt.observables.get(Key(classOf[SimulationPort], id))
+                .asInstanceOf[Observable[SimulationPort]]
+                .subscribe(observer)
+            observer.awaitOnNext(1, timeout) shouldBe true
+
+            And("The port is updated")
+            store.update(createBridgePort(id = id, bridgeId = Some(bridgeId),
+                                          tunnelKey = 2))
+            observer.awaitOnNext(2, timeout) shouldBe true
+
+            Then("The snapshot entry is no longer valid")
+            vt.deviceVersion.get should be > version
+            owner.deviceSnapshot.get(id, vt.deviceVersion.get) shouldBe null
+
+            And("The thread returns the updated port")
+            owner.run {
+                VirtualTopology.tryGet(classOf[SimulationPort], id)
+                    .tunnelKey shouldBe 2
+            }
+
+            When("Deleting the port")
+            store.delete(classOf[TopologyPort], id)
+            observer.awaitCompletion(timeout)
+
+            Then("The thread does not return the port")
+            owner.run {
+                intercept[NotYetException] {
+                    VirtualTopology.tryGet(classOf[SimulationPort], id)
+                }
+            }
+        }
+    }
+
     feature("Test metrics") {
         scenario("Add a port, then remove it") {
             Given("A bridge port")
@@ -30,7 +30,7 @@ import org.midonet.cluster.state.PortStateStorage._
 import org.midonet.midolman.ShardedSimulationBackChannel
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
-import org.midonet.midolman.flows.FlowTagIndexer
+import org.midonet.midolman.flows.{FlowTagIndexer, ManagedFlow}
 import org.midonet.midolman.io.UpcallDatapathConnectionManager
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.state.PeerResolver
@@ -108,6 +108,8 @@ trait MidolmanServices {
         }
 
         override def invalidateFlowsFor(tag: FlowTag) = tags = tags :+ tag
+
+        protected override def flowForMark(mark: Int): ManagedFlow = null
     }
 
     def dpConn()(implicit ec: ExecutionContext, as: ActorSystem):
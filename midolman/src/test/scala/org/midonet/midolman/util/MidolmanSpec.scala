@@ -44,7 +44,7 @@ import org.midonet.odp.ports.{NetDevPort, VxLanTunnelPort}
 import org.midonet.odp.ports.VxLanTunnelPort.VXLAN_DEFAULT_DST_PORT
 import org.midonet.odp.{Datapath, DpPort}
 import org.midonet.odp.flows.{FlowActions, FlowActionOutput}
-import org.midonet.util.collection.IPv4InvalidationArray
+import org.midonet.util.collection.{IPv4InvalidationArray, IPv6InvalidationArray}
 
 /**
  * A base trait to be used for new style Midolman simulation tests with Midolman
@@ -93,6 +93,7 @@ trait MidolmanSpec extends FeatureSpecLike
                 actorsService))
 
             IPv4InvalidationArray.reset()
+            IPv6InvalidationArray.reset()
 
             val dir = injector.getInstance(classOf[Directory])
             ensurePath(dir, "/midonet/routers")
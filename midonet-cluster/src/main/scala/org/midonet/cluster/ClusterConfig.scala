@@ -179,6 +179,8 @@ class ContainersConfig(val conf: Config) extends MinionConfig[ContainerService]
     def schedulerRetryMs = conf.getDuration(s"$prefix.scheduler_retry", TimeUnit.MILLISECONDS)
     def schedulerMaxRetries = conf.getInt(s"$prefix.scheduler_max_retries")
     def schedulerBadHostLifetimeMs = conf.getDuration(s"$prefix.scheduler_bad_host_lifetime", TimeUnit.MILLISECONDS)
+    def schedulerBulkWindowMs = conf.getDuration(s"$prefix.scheduler_bulk_window", TimeUnit.MILLISECONDS)
+    def schedulerBatchSize = conf.getInt(s"$prefix.scheduler_batch_size")
 }
 
 class StateProxyConfig(val conf: Config) extends MinionConfig[StateProxy] {
@@ -215,5 +217,8 @@ class RecyclerConfig(val conf: Config) extends MinionConfig[Recycler] {
     override def isEnabled = conf.getBoolean(s"$prefix.enabled")
     def interval = conf.getDuration(s"$prefix.interval", TimeUnit.MINUTES) minutes
     def throttlingRate = conf.getInt(s"$prefix.throttling_rate")
+    def namespacesPerRun = conf.getInt(s"$prefix.namespaces_per_run")
+    def parallelism = conf.getInt(s"$prefix.parallelism")
+    def batchSize = conf.getInt(s"$prefix.batch_size")
     def shutdownTimeout = conf.getDuration(s"$prefix.shutdown_interval", TimeUnit.MILLISECONDS) millis
 }
\ No newline at end of file
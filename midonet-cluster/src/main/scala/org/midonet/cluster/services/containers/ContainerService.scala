@@ -17,8 +17,12 @@
 package org.midonet.cluster.services.containers
 
 import java.util.concurrent.{Executors, TimeUnit}
+import java.util.{List => JList}
 
+import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
 import scala.util.control.NonFatal
 
 import com.google.common.annotations.VisibleForTesting
@@ -40,6 +44,7 @@ import org.midonet.containers.ContainerDelegate
 import org.midonet.minion.MinionService.TargetNode
 import org.midonet.minion.{Context, Minion, MinionService}
 import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.makeFunc1
 import org.midonet.util.logging.Logger
 
 object ContainerService {
@@ -134,6 +139,18 @@ class ContainerService @Inject()(nodeContext: Context,
         }
     }
 
+    private val schedulerBatchObserver = new Observer[JList[SchedulerEvent]] {
+        override def onNext(events: JList[SchedulerEvent]): Unit = {
+            handleEvents(events)
+        }
+        override def onCompleted(): Unit = {
+            schedulerObserver.onCompleted()
+        }
+        override def onError(e: Throwable): Unit = {
+            schedulerObserver.onError(e)
+        }
+    }
+
     @VisibleForTesting
     def schedulerObserverErrorCount = errorCount
 
@@ -213,10 +230,68 @@ class ContainerService @Inject()(nodeContext: Context,
     private def startScheduling(): Unit = {
         stopScheduling()
         scheduler = newScheduler()
-        schedulerSubscription = scheduler.observable
+        val events = scheduler.observable
             .onBackpressureBuffer(SchedulingBufferSize)
-            .observeOn(delegateScheduler)
-            .subscribe(schedulerObserver)
+        val window = config.containers.schedulerBulkWindowMs
+        schedulerSubscription =
+            if (window > 0) {
+                // Gather the events emitted during the bulk window, such that
+                // the port bindings of the containers scheduled by the same
+                // bulk pass are applied in batches.
+                events
+                    .buffer(window, TimeUnit.MILLISECONDS,
+                            config.containers.schedulerBatchSize,
+                            delegateScheduler)
+                    .filter(makeFunc1(!_.isEmpty))
+                    .observeOn(delegateScheduler)
+                    .subscribe(schedulerBatchObserver)
+            } else {
+                events
+                    .observeOn(delegateScheduler)
+                    .subscribe(schedulerObserver)
+            }
+    }
+
+    /** Handles a batch of scheduling events. The consecutive [[Schedule]]
+      * and [[Unschedule]] events of the containers with a
+      * [[DatapathBoundContainerDelegate]] are grouped per delegate, and each
+      * group is applied in a single storage transaction. All other events are
+      * handled one at a time, after the pending groups, such that the events
+      * are handled in order.
+      */
+    private def handleEvents(events: JList[SchedulerEvent]): Unit = {
+        if (events.size == 1) {
+            handleEvent(events.get(0))
+            return
+        }
+        errorCount = 0
+        val bindings = new mutable.LinkedHashMap[DatapathBoundContainerDelegate,
+                                                 ArrayBuffer[SchedulerEvent]]
+        def flushBindings(): Unit = {
+            for ((delegate, batch) <- bindings) {
+                try delegate.onSchedulingChanged(batch)
+                catch {
+                    case NonFatal(e) =>
+                        log.warn(s"Container delegate failed during " +
+                                 s"${batch.size} scheduling events", e)
+                }
+            }
+            bindings.clear()
+        }
+        for (event <- events.asScala) {
+            val delegate =
+                try delegateOf(event.container)
+                catch { case NonFatal(_) => null }
+            (event, delegate) match {
+                case (Schedule(_, _) | Unschedule(_, _),
+                      d: DatapathBoundContainerDelegate) =>
+                    bindings.getOrElseUpdate(d, new ArrayBuffer) += event
+                case _ =>
+                    flushBindings()
+                    handleEvent(event)
+            }
+        }
+        flushBindings()
     }
 
     private def handleEvent(event: SchedulerEvent): Unit = {
@@ -22,6 +22,7 @@ import java.util.{ConcurrentModificationException, UUID}
 import javax.annotation.Nullable
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.util.control.NonFatal
 
 import com.typesafe.scalalogging.Logger
@@ -33,6 +34,7 @@ import org.midonet.cluster.data.storage.{NotFoundException, Transaction}
 import org.midonet.cluster.models.State.ContainerStatus
 import org.midonet.cluster.models.Topology.{Host, Port, ServiceContainer}
 import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.containers.schedulers.{Schedule, SchedulerEvent, Unschedule}
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.containers.ContainerDelegate
 
@@ -55,30 +57,68 @@ abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
                 s"$name container $containerId is not connected to a port")
         }
         val portId = container.getPortId.asJava
-        val interfaceName = s"$name-${portId.toString.substring(0, 8)}"
 
         log info s"$name container ${container.getId.asJava} scheduled at host " +
-                 s"$hostId: binding port $portId to interface $interfaceName"
+                 s"$hostId: binding port $portId to interface " +
+                 interfaceNameOf(portId)
         tryTx { tx =>
             val port = tx.get(classOf[Port], portId)
-            val builder = port.toBuilder.setHostId(hostId.asProto)
+            tx update bind(tx, port.toBuilder, hostId).build()
+        }
+    }
 
-            if (!port.hasInterfaceName) {
-                // If the interface name is not set, set it for backwards
-                // compatibility.
-                builder.setInterfaceName(interfaceName)
-            }
+    /** This method is called with a batch of [[Schedule]] and [[Unschedule]]
+      * events, in the order they were emitted by the scheduler. It applies the
+      * port bindings of all events in a single storage transaction, where the
+      * port of every container is read and written only once. If the
+      * transaction fails, the events are handled one at a time.
+      */
+    @throws[Exception]
+    def onSchedulingChanged(events: Seq[SchedulerEvent]): Unit = {
+        if (events.size == 1) {
+            handle(events.head)
+            return
+        }
 
-            // Check the host does not have another port bound to the same
-            // interface.
-            val host = tx.get(classOf[Host], hostId.asProto)
-            val hostPorts = tx.getAll(classOf[Port], host.getPortIdsList.asScala)
-            for (hostPort <- hostPorts
-                 if hostPort.getInterfaceName == interfaceName) {
-                log warn s"Host $hostId already has port ${hostPort.getId.asJava} " +
-                         s"bound to interface $interfaceName"
+        log info s"$name applying ${events.size} scheduling changes"
+        try backend.store.tryTransaction { tx =>
+            val ports = new mutable.LinkedHashMap[UUID, Port.Builder]
+            for (event <- events) {
+                val container = event.container
+                if (!container.hasPortId) {
+                    throw new IllegalArgumentException(
+                        s"$name container ${container.getId.asJava} is not " +
+                        "connected to a port")
+                }
+                val portId = container.getPortId.asJava
+                val builder = ports.getOrElseUpdate(
+                    portId, tx.get(classOf[Port], portId).toBuilder)
+                event match {
+                    case Schedule(_, hostId) =>
+                        bind(tx, builder, hostId)
+                    case Unschedule(_, hostId)
+                        if builder.hasHostId &&
+                           builder.getHostId.asJava == hostId =>
+                        builder.clearHostId()
+                    case _ =>
+                }
+            }
+            for (builder <- ports.values) {
+                tx update builder.build()
             }
-            tx update builder.build()
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"$name failed to apply ${events.size} scheduling " +
+                         "changes in a single transaction: applying each " +
+                         "change separately", e)
+                for (event <- events) {
+                    try handle(event)
+                    catch {
+                        case NonFatal(t) =>
+                            log.warn(s"$name failed to apply scheduling " +
+                                     s"change $event", t)
+                    }
+                }
         }
     }
 
@@ -127,6 +167,40 @@ abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
         }
     }
 
+    private def handle(event: SchedulerEvent): Unit = event match {
+        case Schedule(container, hostId) => onScheduled(container, hostId)
+        case Unschedule(container, hostId) => onUnscheduled(container, hostId)
+        case _ =>
+    }
+
+    private def interfaceNameOf(portId: UUID): String = {
+        s"$name-${portId.toString.substring(0, 8)}"
+    }
+
+    /** Binds the given port to the given host. */
+    private def bind(tx: Transaction, port: Port.Builder, hostId: UUID)
+    : Port.Builder = {
+        val interfaceName = interfaceNameOf(port.getId.asJava)
+        port.setHostId(hostId.asProto)
+
+        if (!port.hasInterfaceName) {
+            // If the interface name is not set, set it for backwards
+            // compatibility.
+            port.setInterfaceName(interfaceName)
+        }
+
+        // Check the host does not have another port bound to the same
+        // interface.
+        val host = tx.get(classOf[Host], hostId.asProto)
+        val hostPorts = tx.getAll(classOf[Port], host.getPortIdsList.asScala)
+        for (hostPort <- hostPorts
+             if hostPort.getInterfaceName == interfaceName) {
+            log warn s"Host $hostId already has port ${hostPort.getId.asJava} " +
+                     s"bound to interface $interfaceName"
+        }
+        port
+    }
+
     private def tryTx(f: (Transaction) => Unit)
                      (implicit handler: PartialFunction[Throwable, Unit] =
                          PartialFunction.empty): Unit = {
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.containers.schedulers
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable
+
+import com.google.common.annotations.VisibleForTesting
+import com.typesafe.scalalogging.Logger
+
+import org.slf4j.LoggerFactory.getLogger
+
+import rx.Observer
+
+import org.midonet.cluster.ContainersLog
+import org.midonet.cluster.models.Topology.ServiceContainerPolicy
+import org.midonet.cluster.services.containers.schedulers.ContainerScheduler.{AllocationFeedback, Feedback}
+import org.midonet.containers.Context
+import org.midonet.util.functors.makeAction0
+
+object BulkScheduler {
+
+    /** A container waiting for the next pass, with the hosts where the
+      * container may be scheduled, and the feedback observer of its
+      * [[ContainerScheduler]].
+      */
+    private case class Request(hosts: HostsEvent,
+                               policy: ServiceContainerPolicy,
+                               feedback: Observer[Feedback])
+
+    /** The containers assigned to a host by previous passes, while the host
+      * still reports the same container count.
+      */
+    private case class Inflight(count: Int, assigned: Int)
+
+    /** The load of a host during a pass. */
+    private class Load(val count: Int, var assigned: Int, var quota: Int) {
+        def total: Int = count + assigned
+    }
+
+    /** Indicates whether the bulk scheduler can assign a host for the given
+      * policy.
+      */
+    def supports(policy: ServiceContainerPolicy): Boolean = policy match {
+        case ServiceContainerPolicy.WEIGHTED_SCHEDULER => true
+        case ServiceContainerPolicy.LEAST_SCHEDULER => true
+        case _ => false
+    }
+
+}
+
+/**
+  * Coordinates the host selection of the [[ContainerScheduler]]s of a
+  * [[ServiceScheduler]].
+  *
+  * Without coordination, every container scheduler selects a new host on its
+  * own, using the container counts last reported by the hosts. When a host
+  * fails, all its containers are rescheduled at once from the same stale
+  * counts: the least policy sends all of them to the same host, while the
+  * weighted policy spreads them randomly. Instead, a container scheduler that
+  * must select a new host submits a request, and the bulk scheduler gathers
+  * the requests during the `windowMs` interval, and then assigns a host to all
+  * of them in a single pass. Each container scheduler is notified with an
+  * [[AllocationFeedback]] and retrieves its allocation when it schedules the
+  * container.
+  *
+  * The pass assigns the most constrained containers first, and places every
+  * container on the host whose load, after the assignment, is the lowest: the
+  * load is the number of containers divided by the host weight for the
+  * weighted policy, and the number of containers for the least policy. The
+  * number of containers includes the containers assigned by the same pass and
+  * by previous passes, until the host reports a new container count, and a
+  * host is not assigned more containers than its quota.
+  *
+  * This class is not thread-safe, and all methods must be called on the
+  * scheduler of the given context.
+  */
+class BulkScheduler(context: Context, windowMs: Long) {
+
+    import BulkScheduler._
+
+    private val log = Logger(getLogger(ContainersLog))
+
+    private val requests = new mutable.HashMap[UUID, Request]
+    private val allocations = new mutable.HashMap[UUID, UUID]
+    private val inflight = new mutable.HashMap[UUID, Inflight]
+    private var scheduled = false
+
+    /** The number of containers waiting for the next pass. */
+    def pending: Int = requests.size
+
+    /** Requests a host for the given container from the given hosts. The
+      * request replaces any previous request or allocation of the container.
+      */
+    def request(containerId: UUID, hosts: HostsEvent,
+                policy: ServiceContainerPolicy,
+                feedback: Observer[Feedback]): Unit = {
+        allocations -= containerId
+        requests += containerId -> Request(hosts, policy, feedback)
+        if (!scheduled) {
+            scheduled = true
+            val worker = context.scheduler.createWorker()
+            worker.schedule(makeAction0 {
+                try assign() finally worker.unsubscribe()
+            }, windowMs, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /** Returns and removes the host assigned to the given container by the
+      * last pass, if any. The host is `null` if the pass could not assign a
+      * host to the container.
+      */
+    def allocation(containerId: UUID): Option[UUID] = {
+        allocations.remove(containerId)
+    }
+
+    /** Cancels the request and the allocation of the given container. */
+    def cancel(containerId: UUID): Unit = {
+        requests -= containerId
+        allocations -= containerId
+    }
+
+    /** Assigns a host to all pending containers, and notifies their
+      * schedulers.
+      */
+    @VisibleForTesting
+    private[schedulers] def assign(): Unit = {
+        scheduled = false
+        if (requests.isEmpty) {
+            return
+        }
+
+        val batch = requests.toSeq.sortBy(_._2.hosts.size)
+        requests.clear()
+
+        val loads = new mutable.HashMap[UUID, Load]
+        def loadOf(hostId: UUID, host: HostEvent): Load = {
+            loads.getOrElseUpdate(hostId, {
+                val count = host.status.getCount
+                val assigned = inflight.get(hostId) match {
+                    case Some(Inflight(c, a)) if c == count => a
+                    case _ => 0
+                }
+                val quota = host.status.getQuota
+                new Load(count, assigned,
+                         if (quota < 0) quota else math.max(quota - assigned, 0))
+            })
+        }
+
+        var assigned = 0
+        for ((containerId, request) <- batch) {
+            var selectedId: UUID = null
+            var selected: Load = null
+            var selectedCost = Double.MaxValue
+            for ((hostId, host) <- request.hosts) {
+                val load = loadOf(hostId, host)
+                if (load.quota != 0) {
+                    val cost = request.policy match {
+                        case ServiceContainerPolicy.WEIGHTED_SCHEDULER =>
+                            (load.total + 1).toDouble / host.status.getWeight
+                        case _ =>
+                            load.total.toDouble
+                    }
+                    if (cost < selectedCost) {
+                        selectedId = hostId
+                        selected = load
+                        selectedCost = cost
+                    }
+                }
+            }
+            if (selected ne null) {
+                selected.assigned += 1
+                if (selected.quota > 0) {
+                    selected.quota -= 1
+                }
+                inflight += selectedId -> Inflight(selected.count,
+                                                   selected.assigned)
+                assigned += 1
+            }
+            allocations += containerId -> selectedId
+        }
+
+        log info s"Bulk scheduling assigned $assigned of ${batch.size} " +
+                 s"containers to ${loads.count(_._2.assigned > 0)} hosts"
+
+        for ((_, request) <- batch) {
+            request.feedback onNext AllocationFeedback
+        }
+    }
+
+}
@@ -90,12 +90,15 @@ object ContainerScheduler {
     /** The feedback notification stream is used to process changes to the
       * container status as [[StatusFeedback]], and notifications from the
       * scheduler to itself, such as scheduling timeouts [[TimeoutFeedback]]
-      * and scheduling retries [[RetryFeedback]].
+      * and scheduling retries [[RetryFeedback]]. The [[AllocationFeedback]]
+      * notifies the scheduler that the [[BulkScheduler]] has completed the
+      * pass that includes the container.
       */
     trait Feedback
     case object StatusFeedback extends Feedback
     case object TimeoutFeedback extends Feedback
     case object RetryFeedback extends Feedback
+    case object AllocationFeedback extends Feedback
 
     private case class ContainerSelector(portId: UUID, groupId: UUID)
 
@@ -124,6 +127,12 @@ object ContainerScheduler {
   * host by emitting a `Scheduled` notification, which in turn should call
   * the appropriate container handler.
   *
+  * If a [[BulkScheduler]] is given, the host selection is delegated to the
+  * bulk scheduler, which assigns the host in a single pass together with the
+  * other containers that must be scheduled at the same time. In the meantime,
+  * the container scheduler keeps its current state, and it schedules the
+  * container when notified with an [[AllocationFeedback]].
+  *
   * After a scheduling is made, the class monitors that the container state
   * changes to RUNNING at the selected host within the specified timeout
   * interval. If the container does not become RUNNING, or whenever the
@@ -152,7 +161,8 @@ object ContainerScheduler {
   */
 class ContainerScheduler(containerId: UUID, context: Context,
                          config: ContainersConfig,
-                         selectorProvider: HostSelectorProvider)
+                         selectorProvider: HostSelectorProvider,
+                         bulkScheduler: BulkScheduler = null)
     extends ObjectTracker[SchedulerEvent] with Logging {
 
     override def logSource = ContainersLog
@@ -169,6 +179,10 @@ class ContainerScheduler(containerId: UUID, context: Context,
 
     private val badHosts = new mutable.HashMap[UUID, BadHost]
 
+    // The previous host of a container waiting for a host from the bulk
+    // scheduler, if the container has been unscheduled from that host.
+    private var allocationOldHostId: Option[UUID] = None
+
     private var groupReady = false
     private var hostsReady = false
     private var portReady = false
@@ -616,6 +630,9 @@ class ContainerScheduler(containerId: UUID, context: Context,
             if ((state.hostId ne null) && eligibleHosts.contains(state.hostId)) {
                 // If the container is currently scheduled at a host, and that
                 // host belongs to the eligible set, no rescheduling needed.
+                if (bulkScheduler ne null) {
+                    bulkScheduler.cancel(containerId)
+                }
                 state.hostId
             } else {
                 val availableHosts = eligibleHosts.filter(isHostAvailable)
@@ -624,9 +641,35 @@ class ContainerScheduler(containerId: UUID, context: Context,
                           s"${availableHosts.keySet} using ${group.getPolicy} " +
                           "policy"
 
-                // Select a host from the available set based on the current
-                // selection policy (currently only weighted-random).
-                selectHost(availableHosts, group.getPolicy).orNull
+                if ((bulkScheduler ne null) && availableHosts.nonEmpty &&
+                    BulkScheduler.supports(group.getPolicy)) {
+                    // Use the host assigned by the bulk scheduler, if still
+                    // available, or otherwise request a host and wait for
+                    // the next bulk scheduling pass.
+                    bulkScheduler.allocation(containerId) match {
+                        case Some(hostId) if (hostId eq null) ||
+                                             availableHosts.contains(hostId) =>
+                            if (oldHostId.isEmpty) {
+                                oldHostId = allocationOldHostId
+                            }
+                            allocationOldHostId = None
+                            hostId
+                        case _ =>
+                            log debug "Waiting for the bulk scheduling of " +
+                                      s"${availableHosts.size} available hosts"
+                            if (oldHostId.nonEmpty) {
+                                allocationOldHostId = oldHostId
+                            }
+                            bulkScheduler.request(containerId, availableHosts,
+                                                  group.getPolicy,
+                                                  feedbackObserver)
+                            return Observable.from(events)
+                    }
+                } else {
+                    // Select a host from the available set based on the
+                    // current selection policy.
+                    selectHost(availableHosts, group.getPolicy).orNull
+                }
             }
 
         if ((selectedHostId ne null) || (namespaceId ne null)){
@@ -940,6 +983,9 @@ class ContainerScheduler(containerId: UUID, context: Context,
       */
     private def cleanup(subscriber: Subscriber[_ >: SchedulerEvent]): Unit = {
         statusSubscription.unsubscribe()
+        if (bulkScheduler ne null) {
+            bulkScheduler.cancel(containerId)
+        }
         state match {
             case ScheduledState(id, container, sub) =>
                 log info s"Cancel scheduling at host $id because the " +
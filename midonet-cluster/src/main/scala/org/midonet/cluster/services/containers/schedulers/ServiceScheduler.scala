@@ -51,6 +51,11 @@ import org.midonet.util.functors.{makeAction0, makeFunc1}
   *
   * To this end, the [[ServiceScheduler]] exposes an observable that emits
   * notifications when the scheduling of a container has changed.
+  *
+  * Unless the scheduler bulk window is zero, the container schedulers share
+  * a [[BulkScheduler]], such that the containers that must be scheduled at
+  * the same time, such as the containers of a failed host, are assigned to
+  * hosts in a single pass.
   */
 class ServiceScheduler(context: Context, config: ContainersConfig)
     extends ObjectTracker[SchedulerEvent] {
@@ -65,6 +70,12 @@ class ServiceScheduler(context: Context, config: ContainersConfig)
     // A provider that returns a host selection for a given scheduling policy.
     private val selectorProvider = new HostSelectorProvider(context)
 
+    // A scheduler that assigns hosts to the containers in bulk.
+    private val bulkScheduler =
+        if (config.schedulerBulkWindowMs > 0)
+            new BulkScheduler(context, config.schedulerBulkWindowMs)
+        else null
+
     private val containersObservable = context.store
         .observable(classOf[ServiceContainer])
         .onBackpressureBuffer(ContainerService.SchedulingBufferSize)
@@ -103,7 +114,8 @@ class ServiceScheduler(context: Context, config: ContainersConfig)
     : Observable[SchedulerEvent] = {
         log info s"New service container ${container.getId.asJava}"
         val scheduler = new ContainerScheduler(container.getId, context,
-                                               config, selectorProvider)
+                                               config, selectorProvider,
+                                               bulkScheduler)
         containers += container.getId.asJava -> scheduler
         scheduler.observable
                  .doOnCompleted(makeAction0(containerCompleted(container.getId)))
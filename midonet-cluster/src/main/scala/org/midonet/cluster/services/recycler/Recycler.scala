@@ -55,7 +55,12 @@ object Recycler {
   * created in ZooKeeper to host a subtree of ephemeral nodes for state (the
   * parent cannot be ephemeral as well as ZK wouldn't allow children on it).
   *
-  * This Minion is responsible for doing the necessary cleanup.
+  * This Minion is responsible for doing the necessary cleanup. The cleanup
+  * is incremental: every recycling task recycles a limited number of state
+  * namespaces, and the service keeps the cursor of the current recycling
+  * pass across tasks, such that a pass over a large NSDB is spread over
+  * several tasks. The result of every task, including the progress of the
+  * pass and the deletion rate, is published through [[tasks]].
   */
 @MinionService(name = "recycler", runsOn = TargetNode.CLUSTER)
 class Recycler @Inject()(context: Context, backend: MidonetBackend,
@@ -75,6 +80,7 @@ class Recycler @Inject()(context: Context, backend: MidonetBackend,
     protected val clock = UnixClock()
 
     private val currentContext = new AtomicReference[RecyclingContext]()
+    @volatile private var cursor: String = null
 
     private val recycleTask = makeRunnable { recycle() }
     @volatile private var taskFuture: ScheduledFuture[_] = null
@@ -168,7 +174,7 @@ class Recycler @Inject()(context: Context, backend: MidonetBackend,
         // next one.
         val context = new RecyclingContext(config.recycler, curator, store,
                                            executor, clock, log,
-                                           recyclingInterval)
+                                           recyclingInterval, cursor)
 
         // Verify if a recycling operation is already running, in which case
         // skip the current recycling and reschedule the next.
@@ -195,8 +201,12 @@ class Recycler @Inject()(context: Context, backend: MidonetBackend,
                      s"${context.skippedTables} skipped] " +
                      s"[legacy: ${context.totalLegacy} total " +
                      s"${context.deletedLegacy} deleted " +
-                     s"${context.skippedLegacy} skipped]"
+                     s"${context.skippedLegacy} skipped] " +
+                     s"[progress: ${context.recycledNamespaces} namespaces " +
+                     s"recycled ${context.remainingNamespaces} remaining] " +
+                     f"[rate: ${context.deletionRate}%.1f deletions/s]"
 
+            cursor = context.nextCursor
             tasksSubject onNext Success(context)
 
         } catch {
@@ -211,7 +221,8 @@ class Recycler @Inject()(context: Context, backend: MidonetBackend,
                 tasksSubject onNext Failure(e)
         } finally {
             currentContext.lazySet(null)
-            schedule(runInterval)
+            // Continue an incomplete recycling pass sooner.
+            schedule(if (cursor ne null) MinimumInterval else runInterval)
         }
     }
 
@@ -17,9 +17,10 @@
 package org.midonet.cluster.services.recycler
 
 import java.util
-import java.util.concurrent.{CountDownLatch, ScheduledExecutorService, TimeUnit}
+import java.util.concurrent.{Callable, CountDownLatch, ExecutionException, Executors, ScheduledExecutorService, TimeUnit, Future => JavaFuture}
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent.duration._
 import scala.util.control.NonFatal
 
@@ -29,22 +30,33 @@ import com.typesafe.scalalogging.Logger
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.utils.{PathUtils, ZKPaths}
 import org.apache.zookeeper.KeeperException.NoNodeException
-import org.apache.zookeeper.ZooKeeper
 import org.apache.zookeeper.data.Stat
+import org.apache.zookeeper.{Op, ZooKeeper}
 
 import org.midonet.cluster.RecyclerConfig
 import org.midonet.cluster.data.storage.ZookeeperObjectMapper
 import org.midonet.cluster.models.Topology.{Host, Network, Router}
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.util.UnixClock
+import org.midonet.util.concurrent.NamedThreadFactory
 
 object RecyclingContext {
 
-    private val ClusterNamespaceId = Seq(MidonetBackend.ClusterNamespaceId.toString)
-    private val StepCount = 12
+    private val ClusterNamespaceId = MidonetBackend.ClusterNamespaceId.toString
+    private val StepCount = 10
     private val LegacyClasses = Map(classOf[Network] -> "/bridges",
                                     classOf[Router] -> "/routers")
 
+    /**
+      * The result of recycling a state namespace: either the namespace itself
+      * when orphan, or the orphan object state of the namespace's host.
+      */
+    private case class NamespaceResult(deletedNamespaces: Int = 0,
+                                       skippedNamespaces: Int = 0,
+                                       totalObjects: Int = 0,
+                                       deletedObjects: Int = 0,
+                                       skippedObjects: Int = 0)
+
 }
 
 /**
@@ -52,6 +64,16 @@ object RecyclingContext {
   * class contains the state variable for a recycling operation, including
   * the start and finish timestamps, and the NSDB entries that have been
   * recycled (namespaces, objects, state paths).
+  *
+  * A recycling operation is incremental: it recycles at most
+  * `namespacesPerRun` state namespaces, in the order of their names, starting
+  * after the given `cursor` namespace. The [[nextCursor]] is the last
+  * namespace recycled by this operation, or `null` if the operation
+  * completed the recycling pass, in which case the operation also recycles
+  * the state tables. The namespaces are recycled in parallel by
+  * `parallelism` threads, and all NSDB operations share the same budget of
+  * `throttlingRate` operations per second. The orphan paths are deleted in
+  * ZooKeeper multi transactions of up to `batchSize` operations.
   */
 class RecyclingContext(val config: RecyclerConfig,
                        val curator: CuratorFramework,
@@ -59,7 +81,10 @@ class RecyclingContext(val config: RecyclerConfig,
                        val executor: ScheduledExecutorService,
                        val clock: UnixClock,
                        val log: Logger,
-                       val interval: Duration) {
+                       val interval: Duration,
+                       val cursor: String = null) {
+
+    import RecyclingContext._
 
     private val start = clock.time
     private var version = 0
@@ -71,17 +96,21 @@ class RecyclingContext(val config: RecyclerConfig,
     private var namespaces: Set[String] = null
 
     private val modelObjects = new util.HashMap[Class[_], Set[String]]()
-    private val stateObjects = new util.HashMap[(String, Class[_]), Set[String]]()
     private val tableObjects = new util.HashMap[Class[_], Set[String]]()
     private val legacyObjects = new util.HashMap[Class[_], Set[String]]()
 
-    private val limiter = RateLimiter.create(config.throttlingRate)
+    private val limiter =
+        if (config.throttlingRate > 0) RateLimiter.create(config.throttlingRate)
+        else null
 
     private var stepIndex = 0
 
+    private var next: String = null
+
     var totalNamespaces = 0
     var deletedNamespaces = 0
     var skippedNamespaces = 0
+    var recycledNamespaces = 0
 
     var totalObjects = 0
     var deletedObjects = 0
@@ -121,6 +150,35 @@ class RecyclingContext(val config: RecyclerConfig,
       */
     def nsdbVersion = version
 
+    /**
+      * @return The last namespace recycled by this operation, from where the
+      *         next operation continues the recycling pass, or `null` if this
+      *         operation completed the pass.
+      */
+    def nextCursor: String = next
+
+    /**
+      * @return True if this operation completed the recycling pass.
+      */
+    def isPassComplete: Boolean = next eq null
+
+    /**
+      * @return The number of namespaces remaining in the recycling pass.
+      */
+    def remainingNamespaces: Int = {
+        if ((next eq null) || (namespaces eq null)) 0
+        else namespaces.count(_ > next)
+    }
+
+    /**
+      * @return The number of NSDB paths deleted per second.
+      */
+    def deletionRate: Double = {
+        val deleted = deletedNamespaces + deletedObjects + deletedTables +
+                      deletedLegacy
+        deleted * 1000.0 / math.max(duration, 1L)
+    }
+
     @throws[RecyclingException]
     def recycle(): Unit = {
         if (state.getCount == 0) {
@@ -130,13 +188,14 @@ class RecyclingContext(val config: RecyclerConfig,
             validate()
             collectHosts()
             collectNamespaces()
-            deleteNamespaces()
             collectObjects()
-            deleteObjects()
-            collectTables()
-            deleteTables()
-            collectLegacyTables()
-            deleteLegacyTables()
+            recycleNamespaces()
+            if (isPassComplete) {
+                collectTables()
+                deleteTables()
+                collectLegacyTables()
+                deleteLegacyTables()
+            }
         } finally {
             state.countDown()
         }
@@ -146,7 +205,8 @@ class RecyclingContext(val config: RecyclerConfig,
       * Verifies that the current NSDB is recyclable by checking that the root
       * ZOOM node was last modified before the current time minus the current
       * recycling interval. If the NSDB is recyclable the object will write to
-      * the root znode to update its last modified timestamp.
+      * the root znode to update its last modified timestamp. An operation that
+      * continues a recycling pass does not check the recycling interval.
       */
     @throws[RecyclingException]
     private def validate(): Unit = {
@@ -155,7 +215,8 @@ class RecyclingContext(val config: RecyclerConfig,
         log debug s"Verifying if NSDB is recyclable ${step()}"
         getData(store.basePath, statBefore)
 
-        if (start - statBefore.getMtime < interval.toMillis) {
+        if ((cursor eq null) &&
+            start - statBefore.getMtime < interval.toMillis) {
             log debug "Skipping NSDB recycling: already recycled at " +
                       s"${statBefore.getMtime} current time is $start"
             throw new RecyclingCanceledException
@@ -205,53 +266,8 @@ class RecyclingContext(val config: RecyclerConfig,
     }
 
     /**
-      * Deletes the orphan namespaces by comparing the collected hosts and
-      * namespaces, and deleting all those namespaces that neither have a
-      * corresponding host not match the cluster namespace. To delete a
-      * namespace, it must have been created before the beginning of the
-      * recycling operation.
-      */
-    @throws[RecyclingException]
-    private def deleteNamespaces(): Unit = {
-
-        log debug s"Deleting orphan namespaces ${step()}"
-
-        // Never delete the cluster namespace.
-        val orphan = namespaces -- hosts -- RecyclingContext.ClusterNamespaceId
-
-        totalNamespaces = namespaces.size
-
-        log debug s"Found ${orphan.size} orphan namespaces"
-
-        val stat = new Stat()
-        for (namespace <- orphan) {
-
-            try {
-                log debug s"Verifying namespace $namespace"
-                val path = store.stateNamespacePath(namespace, version)
-                getData(path, stat)
-
-                if (stat.getCtime < timestamp) {
-                    log debug s"Deleting namespace $namespace verified with " +
-                              s"timestamp ${stat.getCtime}"
-                    delete(path, stat.getVersion)
-                    deletedNamespaces += 1
-                } else {
-                    log debug s"Skipping namespace $namespace with timestamp " +
-                              s"${stat.getCtime} newer than $timestamp"
-                    skippedNamespaces += 1
-                }
-            } catch {
-                case NonFatal(e) =>
-                    log.warn(s"Failed to delete namespace $namespace", e)
-                    skippedNamespaces += 1
-            }
-        }
-    }
-
-    /**
-      * Collects all objects and their corresponding state paths from the NSDB,
-      * and updates their lists from the current context.
+      * Collects all objects from the NSDB, and updates their lists from the
+      * current context.
       */
     @throws[RecyclingException]
     private def collectObjects(): Unit = {
@@ -265,68 +281,165 @@ class RecyclingContext(val config: RecyclerConfig,
             log debug s"Collected ${objects.size} objects for class " +
                       s"${clazz.getSimpleName}"
         }
+    }
 
-        log debug s"Collecting object state ${step()}"
+    /**
+      * Recycles the next namespaces of the current recycling pass, in
+      * parallel. The namespaces that neither have a corresponding host nor
+      * match the cluster namespace are deleted, while for the namespaces of
+      * the current hosts the object state of deleted objects is deleted.
+      */
+    @throws[RecyclingException]
+    private def recycleNamespaces(): Unit = {
 
-        for (host <- hosts; clazz <- store.classes) {
-            val path = store.stateClassPath(host, clazz, version)
+        totalNamespaces = namespaces.size
 
-            // State paths are created on demand, we must check whether they
-            // exist.
-            val objects = try zk.getChildren(path, null).asScala.toSet
-                          catch { case _: NoNodeException => Set.empty[String] }
-            stateObjects.put((host, clazz), objects)
+        val remaining = namespaces.toSeq.filter(n => (cursor eq null) ||
+                                                     n > cursor).sorted
+        val limit = if (config.namespacesPerRun > 0) config.namespacesPerRun
+                    else Int.MaxValue
+        val slice = remaining.take(limit)
+        next = if (remaining.size > slice.size) slice.last else null
 
-            totalObjects += objects.size
+        log debug s"Recycling ${slice.size} of ${remaining.size} remaining " +
+                  s"namespaces ${step()}"
 
-            log debug s"Collected state for ${objects.size} objects for host " +
-                      s"$host class ${clazz.getSimpleName}"
+        val pool = Executors.newFixedThreadPool(
+            math.max(config.parallelism, 1),
+            new NamedThreadFactory("recycler", isDaemon = true))
+        try {
+            val futures: Seq[JavaFuture[NamespaceResult]] =
+                for (namespace <- slice) yield pool.submit(
+                    new Callable[NamespaceResult] {
+                        override def call(): NamespaceResult =
+                            recycleNamespace(namespace)
+                    })
+
+            for (future <- futures) {
+                val result =
+                    try future.get()
+                    catch {
+                        case e: ExecutionException => e.getCause match {
+                            case re: RecyclingException => throw re
+                            case NonFatal(t) =>
+                                throw new RecyclingStorageException(t)
+                        }
+                    }
+                deletedNamespaces += result.deletedNamespaces
+                skippedNamespaces += result.skippedNamespaces
+                totalObjects += result.totalObjects
+                deletedObjects += result.deletedObjects
+                skippedObjects += result.skippedObjects
+                recycledNamespaces += 1
+            }
+        } finally {
+            pool.shutdownNow()
         }
     }
 
     /**
-      * Deletes the orphan objects state by comparing the collected objects
-      * and state paths, and deleting those that do not correspond to an
-      * existing object. To delete an object state, it must have been created
-      * before the beginning of the recycling operation.
+      * Recycles a namespace: the orphan namespaces are deleted, and otherwise
+      * if the namespace belongs to a current host, the orphan object state is
+      * deleted. To delete a namespace or an object state, it must have been
+      * created before the beginning of the recycling operation.
       */
     @throws[RecyclingException]
-    private def deleteObjects(): Unit = {
-
-        log debug s"Deleting orphan object state for ${hosts.size} hosts ${step()}"
+    private def recycleNamespace(namespace: String): NamespaceResult = {
+        if (namespace == ClusterNamespaceId) {
+            // Never delete the cluster namespace.
+            NamespaceResult()
+        } else if (hosts.contains(namespace)) {
+            deleteObjects(namespace)
+        } else {
+            deleteNamespace(namespace)
+        }
+    }
 
+    /**
+      * Deletes an orphan namespace, that does not have a corresponding host.
+      */
+    @throws[RecyclingException]
+    private def deleteNamespace(namespace: String): NamespaceResult = {
+        val batch = new DeleteBatch(s"namespace $namespace")
         val stat = new Stat()
-        for (entry <- stateObjects.entrySet().asScala;
-             id <- entry.getValue
-             if !modelObjects.get(entry.getKey._2).contains(id)) {
+        try {
+            log debug s"Verifying namespace $namespace"
+            val path = store.stateNamespacePath(namespace, version)
+            getData(path, stat)
+
+            if (stat.getCtime < timestamp) {
+                log debug s"Deleting namespace $namespace verified with " +
+                          s"timestamp ${stat.getCtime}"
+                batch.add(path, stat.getVersion)
+            } else {
+                log debug s"Skipping namespace $namespace with timestamp " +
+                          s"${stat.getCtime} newer than $timestamp"
+                batch.skipped += 1
+            }
+        } catch {
+            case e: RecyclingCanceledException => throw e
+            case NonFatal(e) =>
+                log.warn(s"Failed to delete namespace $namespace", e)
+                batch.skipped += 1
+        }
+        batch.flush()
+        NamespaceResult(deletedNamespaces = batch.deleted,
+                        skippedNamespaces = batch.skipped)
+    }
 
-            val host = entry.getKey._1
-            val clazz = entry.getKey._2
+    /**
+      * Deletes the orphan objects state of a host namespace by comparing the
+      * collected objects and state paths, and deleting those that do not
+      * correspond to an existing object.
+      */
+    @throws[RecyclingException]
+    private def deleteObjects(host: String): NamespaceResult = {
 
-            try {
-                log debug s"Verifying object ${clazz.getSimpleName}:$id " +
-                          s"at host $host"
+        log debug s"Deleting orphan object state for host $host"
 
-                val path = store.stateObjectPath(host, clazz, id, version)
-                getData(path, stat)
+        val batch = new DeleteBatch(s"object state at host $host")
+        val stat = new Stat()
+        var total = 0
+        for (clazz <- store.classes) {
+            // State paths are created on demand, we must check whether they
+            // exist.
+            val objects =
+                getChildrenIfExists(store.stateClassPath(host, clazz, version))
+            total += objects.size
 
-                if (stat.getCtime < timestamp) {
-                    log debug "Deleting state for object with timestamp " +
-                              s"${stat.getCtime}"
-                    delete(path, stat.getVersion)
-                    deletedObjects += 1
-                } else {
-                    log debug "Skipping state for object with timestamp " +
-                              s"${stat.getCtime}"
-                    skippedObjects += 1
+            log debug s"Collected state for ${objects.size} objects for host " +
+                      s"$host class ${clazz.getSimpleName}"
+
+            for (id <- objects if !modelObjects.get(clazz).contains(id)) {
+                try {
+                    log debug s"Verifying object ${clazz.getSimpleName}:$id " +
+                              s"at host $host"
+
+                    val path = store.stateObjectPath(host, clazz, id, version)
+                    getData(path, stat)
+
+                    if (stat.getCtime < timestamp) {
+                        log debug "Deleting state for object with timestamp " +
+                                  s"${stat.getCtime}"
+                        batch.add(path, stat.getVersion)
+                    } else {
+                        log debug "Skipping state for object with timestamp " +
+                                  s"${stat.getCtime}"
+                        batch.skipped += 1
+                    }
+                } catch {
+                    case e: RecyclingCanceledException => throw e
+                    case NonFatal(e) =>
+                        log.warn("Failed to delete state for object " +
+                                 s"${clazz.getSimpleName}:$id host $host", e)
+                        batch.skipped += 1
                 }
-            } catch {
-                case NonFatal(e) =>
-                    log.warn("Failed to delete state for object " +
-                             s"${clazz.getSimpleName}:$id host $host", e)
-                    skippedObjects += 1
             }
         }
+        batch.flush()
+        NamespaceResult(totalObjects = total,
+                        deletedObjects = batch.deleted,
+                        skippedObjects = batch.skipped)
     }
 
     /**
@@ -359,6 +472,7 @@ class RecyclingContext(val config: RecyclerConfig,
 
         log debug s"Deleting orphan object tables ${step()}"
 
+        val batch = new DeleteBatch("object tables")
         val stat = new Stat()
         for (clazz <- store.classes;
              id <- tableObjects.get(clazz)
@@ -374,20 +488,23 @@ class RecyclingContext(val config: RecyclerConfig,
                 if (stat.getCtime < timestamp) {
                     log debug "Deleting tables for object with timestamp " +
                               s"${stat.getCtime}"
-                    delete(path, stat.getVersion)
-                    deletedTables += 1
+                    batch.add(path, stat.getVersion)
                 } else {
                     log debug "Skipping tables for object with timestamp " +
                               s"${stat.getCtime}"
-                    skippedTables += 1
+                    batch.skipped += 1
                 }
             } catch {
+                case e: RecyclingCanceledException => throw e
                 case NonFatal(e) =>
                     log.warn("Failed to delete tables for object " +
                              s"${clazz.getSimpleName}:$id", e)
-                    skippedTables += 1
+                    batch.skipped += 1
             }
         }
+        batch.flush()
+        deletedTables += batch.deleted
+        skippedTables += batch.skipped
     }
 
     /**
@@ -400,7 +517,7 @@ class RecyclingContext(val config: RecyclerConfig,
 
         log debug s"Collecting legacy tables for bridges ${step()}"
 
-        for ((clazz, path) <- RecyclingContext.LegacyClasses) {
+        for ((clazz, path) <- LegacyClasses) {
             val objectsPath = s"${store.rootPath}$path"
 
             if (zk.exists(objectsPath, null) ne null) {
@@ -428,8 +545,9 @@ class RecyclingContext(val config: RecyclerConfig,
 
         log debug s"Deleting orphan object legacy tables ${step()}"
 
+        val batch = new DeleteBatch("legacy tables")
         val stat = new Stat()
-        for (clazz <- RecyclingContext.LegacyClasses.keys;
+        for (clazz <- LegacyClasses.keys;
              id <- legacyObjects.get(clazz)
              if !modelObjects.get(clazz).contains(id)) {
 
@@ -437,26 +555,142 @@ class RecyclingContext(val config: RecyclerConfig,
                 log debug s"Verifying legacy tables for object " +
                           s"${clazz.getSimpleName}:$id"
 
-                val path =
-                    s"${store.rootPath}${RecyclingContext.LegacyClasses(clazz)}/$id"
+                val path = s"${store.rootPath}${LegacyClasses(clazz)}/$id"
                 getData(path, stat)
 
                 if (stat.getCtime < timestamp) {
                     log debug "Deleting legacy tables for object with timestamp " +
                               s"${stat.getCtime}"
-                    delete(path, stat.getVersion)
-                    deletedLegacy += 1
+                    batch.add(path, stat.getVersion)
                 } else {
                     log debug "Skipping legacy tables for object with timestamp " +
                               s"${stat.getCtime}"
-                    skippedLegacy += 1
+                    batch.skipped += 1
                 }
             } catch {
+                case e: RecyclingCanceledException => throw e
                 case NonFatal(e) =>
                     log.warn("Failed to delete legacy tables for object " +
                              s"${clazz.getSimpleName}:$id", e)
-                    skippedLegacy += 1
+                    batch.skipped += 1
+            }
+        }
+        batch.flush()
+        deletedLegacy += batch.deleted
+        skippedLegacy += batch.skipped
+    }
+
+    /**
+      * Accumulates the deletion of orphan paths, including their children, and
+      * deletes them in a ZooKeeper multi transaction when the number of
+      * operations reaches the batch size. If the transaction fails, for
+      * instance because a path was modified since it was verified, the paths
+      * are deleted one at a time, such that a single path does not prevent
+      * the deletion of the others. An instance is confined to one thread.
+      */
+    private class DeleteBatch(description: String) {
+
+        private val paths = new ArrayBuffer[(String, Seq[Op])]
+        private var size = 0
+
+        var deleted = 0
+        var skipped = 0
+
+        /**
+          * Adds the deletion of the given path and its children to the batch,
+          * if none of the children was created after the beginning of the
+          * recycling operation.
+          */
+        @throws[RecyclingException]
+        def add(path: String, version: Int): Unit = {
+            val ops = new ArrayBuffer[Op]
+            if (!deleteOps(path, version, ops)) {
+                log debug s"Skipping $path with children newer than $timestamp"
+                skipped += 1
+            } else if (ops.size > config.batchSize) {
+                // The path has too many children for a single transaction:
+                // delete the children in several transactions before the
+                // path, which has already been verified.
+                flush()
+                deleteLarge(path, ops)
+            } else {
+                paths += ((path, ops))
+                size += ops.size
+                if (size >= config.batchSize) {
+                    flush()
+                }
+            }
+        }
+
+        /**
+          * Deletes the accumulated paths.
+          */
+        @throws[RecyclingException]
+        def flush(): Unit = {
+            if (paths.isEmpty) {
+                return
+            }
+            throttle(size)
+            try {
+                zk.multi(paths.flatMap(_._2).asJava)
+                deleted += paths.size
+            } catch {
+                case NonFatal(e) =>
+                    log debug s"Failed to delete ${paths.size} paths for " +
+                              s"$description in one transaction: retrying " +
+                              s"individually"
+                    for ((path, ops) <- paths) {
+                        throttle(ops.size)
+                        try {
+                            zk.multi(ops.asJava)
+                            deleted += 1
+                        } catch {
+                            case NonFatal(t) =>
+                                log.warn(s"Failed to delete $path", t)
+                                skipped += 1
+                        }
+                    }
+            }
+            paths.clear()
+            size = 0
+        }
+
+        @throws[RecyclingException]
+        private def deleteLarge(path: String, ops: Seq[Op]): Unit = {
+            for (group <- ops.grouped(config.batchSize)) {
+                throttle(group.size)
+                try zk.multi(group.asJava)
+                catch {
+                    case NonFatal(e) =>
+                        log.warn(s"Failed to delete $path", e)
+                        skipped += 1
+                        return
+                }
             }
+            deleted += 1
+        }
+
+        /**
+          * Adds to the operations the deletion of the given path, preceded by
+          * the deletion of its children, and returns false if any child was
+          * created after the beginning of the recycling operation.
+          */
+        @throws[RecyclingException]
+        private def deleteOps(path: String, version: Int,
+                              ops: ArrayBuffer[Op]): Boolean = {
+            PathUtils.validatePath(path)
+
+            val stat = new Stat
+            for (child <- getChildren(path).asScala) {
+                val childPath = ZKPaths.makePath(path, child)
+                getData(childPath, stat)
+                if (stat.getCtime >= timestamp ||
+                    !deleteOps(childPath, stat.getVersion, ops)) {
+                    return false
+                }
+            }
+            ops += Op.delete(path, version)
+            true
         }
     }
 
@@ -472,13 +706,16 @@ class RecyclingContext(val config: RecyclerConfig,
     }
 
     /**
-      * Throttles an NSDB read or write operation and verifies before and after
-      * whether the recycling task was canceled.
+      * Throttles a number of NSDB read or write operations and verifies before
+      * and after whether the recycling task was canceled. The rate limiter is
+      * shared by all recycling threads.
       */
     @throws[RecyclingException]
-    private def throttle(): Unit = {
+    private def throttle(permits: Int = 1): Unit = {
         verifyCanceled()
-        limiter.acquire()
+        if (limiter ne null) {
+            limiter.acquire(permits)
+        }
         verifyCanceled()
     }
 
@@ -510,42 +747,15 @@ class RecyclingContext(val config: RecyclerConfig,
     }
 
     @throws[RecyclingException]
-    private def delete(path: String, version: Int): Unit = {
+    private def getChildrenIfExists(path: String): Set[String] = {
         throttle()
-        try {
-            deleteWithChildren(path, version)
-        } catch {
+        try zk.getChildren(path, null).asScala.toSet
+        catch {
+            case _: NoNodeException => Set.empty
             case NonFatal(e) => throw new RecyclingStorageException(e)
         }
     }
 
-    @throws[Exception]
-    private def deleteWithChildren(path: String, version: Int): Boolean = {
-        PathUtils.validatePath(path)
-
-        val children = zk.getChildren(path, null).asScala
-
-        val stat = new Stat
-        val pathsWithVersion = for (child <- children) yield {
-            val childPath = ZKPaths.makePath(path, child)
-            zk.getData(childPath, null, stat)
-            if (stat.getCtime >= timestamp) {
-                return false
-            }
-            (childPath, stat.getVersion)
-        }
-
-        var delete = true
-        for ((childPath, childVersion) <- pathsWithVersion) {
-            delete &= deleteWithChildren(childPath, childVersion)
-        }
-
-        if (delete) {
-            zk.delete(path, version)
-        }
-        delete
-    }
-
     /**
       * Returns the underlying [[ZooKeeper]] client.
       */
@@ -16,6 +16,7 @@
 
 package org.midonet.cluster.services.topology
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 
 import org.slf4j.LoggerFactory
@@ -35,7 +36,8 @@ import org.midonet.util.netty.{ProtoBufSocketAdapter, ProtoBufWebSocketServerAda
 @MinionService(name = "topology-api", runsOn = TargetNode.CLUSTER)
 class TopologyApiService @Inject()(val nodeContext: Context,
                                    val backend: MidonetBackend,
-                                   val cfg: ClusterConfig)
+                                   val cfg: ClusterConfig,
+                                   val metrics: MetricRegistry)
     extends Minion(nodeContext) {
     private val log = LoggerFactory.getLogger(TopologyApiLog)
 
@@ -52,22 +54,27 @@ class TopologyApiService @Inject()(val nodeContext: Context,
         // Common handlers for protobuf-based requests
         val sessionManager = new SessionInventory(backend.store,
             cfg.topologyApi.sessionGracePeriod,
-            cfg.topologyApi.sessionBufferSize)
+            cfg.topologyApi.sessionBufferSize,
+            metrics)
         val protocol = new ServerProtocolFactory(sessionManager)
         val connMgr = new ConnectionManager(protocol)
         val reqHandler = new RequestHandler(connMgr)
         val srvHandler = new ApiServerHandler(reqHandler)
 
+        // Updates cached by the sessions are encoded once for all channels
+        val encoder = new CachedUpdateEncoder(sessionManager.updates)
+
         // Frontend frameworks
         if (cfg.topologyApi.socketEnabled) plainSrv = ServerFrontEnd.tcp(
             new ProtoBufSocketAdapter(
-                srvHandler, Commands.Request.getDefaultInstance),
+                srvHandler, Commands.Request.getDefaultInstance, None, encoder),
             cfg.topologyApi.port
         )
 
         if (cfg.topologyApi.wsEnabled) wsSrv = ServerFrontEnd.tcp(
             new ProtoBufWebSocketServerAdapter(
-                srvHandler, Commands.Request.getDefaultInstance, cfg.topologyApi.wsPath),
+                srvHandler, Commands.Request.getDefaultInstance,
+                cfg.topologyApi.wsPath, None, encoder),
             cfg.topologyApi.wsPort
         )
 
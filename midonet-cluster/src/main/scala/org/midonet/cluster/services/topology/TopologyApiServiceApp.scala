@@ -43,16 +43,19 @@ object TopologyApiServiceApp extends App {
         ClusterConfig()
     }
 
+    private val metrics = new MetricRegistry
+
     private val topologyApiServiceModule = new AbstractModule {
         override def configure(): Unit = {
             bind(classOf[Context]).toInstance(nodeContext)
+            bind(classOf[MetricRegistry]).toInstance(metrics)
             bind(classOf[TopologyApiService]).in(classOf[Singleton])
         }
     }
 
     val reflections = Some(new Reflections("org.midonet"))
     protected[cluster] val injector = Guice.createInjector(
-        new MidonetBackendModule(config.backend, reflections, new MetricRegistry),
+        new MidonetBackendModule(config.backend, reflections, metrics),
         topologyApiServiceModule
     )
 
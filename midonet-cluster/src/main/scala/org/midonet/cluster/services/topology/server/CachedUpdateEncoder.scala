@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import java.util.{List => JList}
+
+import com.google.protobuf.MessageLiteOrBuilder
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.protobuf.ProtobufEncoder
+
+import org.midonet.cluster.rpc.Commands.Response
+
+/**
+ * A protobuf encoder for the Topology API responses, which writes the
+ * updates cached by the [[UpdateCache]] without serializing them again.
+ *
+ * A response carrying a cached update is written as the serialized response
+ * without the update, followed by the encoded update field. Both buffers are
+ * wrapped in a composite buffer, such that the encoded update is shared by
+ * all the channels that write it, and it is not copied by this encoder. Since
+ * protobuf messages may have their fields in any order, the result is a valid
+ * serialization of the response. Any other message is encoded as usual.
+ */
+@Sharable
+class CachedUpdateEncoder(updates: UpdateCache) extends ProtobufEncoder {
+
+    override protected def encode(ctx: ChannelHandlerContext,
+                                  msg: MessageLiteOrBuilder,
+                                  out: JList[AnyRef]): Unit = msg match {
+        case rsp: Response =>
+            val update = updates.encoded(rsp)
+            if (update eq null) {
+                super.encode(ctx, msg, out)
+            } else {
+                val head = rsp.toBuilder.clearUpdate().build().toByteArray
+                out.add(Unpooled.wrappedBuffer(head, update))
+            }
+        case _ =>
+            super.encode(ctx, msg, out)
+    }
+
+}
@@ -27,6 +27,7 @@ import scala.concurrent.duration.Duration
 import scala.concurrent.{Await, Promise, TimeoutException}
 import scala.util.{Failure, Success}
 
+import com.codahale.metrics.MetricRegistry
 import com.google.protobuf.Message
 import org.slf4j.LoggerFactory
 import rx.Observable.OnSubscribe
@@ -51,52 +52,70 @@ object SessionInventory {
     /** Identifies anything upon which a subscription can be made */
     case class ObservableId(id: UUID, ofType: Class[_ <: Message])
 
+    /** Marks a watch that no longer retains its object in the update cache */
+    private[server] val Released = ObservableId(null, null)
+
     class UnknownTopologyEntityException
         extends RuntimeException("unknown topology entity type")
 
     class SessionExpirationException
         extends TimeoutException("session expired")
 
+    /** generate the update payload for a topology entity */
+    def updateOf(m: Message): Update = m match {
+        case h: BgpNetwork => Update.newBuilder().setBgpNetwork(h).build()
+        case h: BgpPeer => Update.newBuilder().setBgpPeer(h).build()
+        case h: Chain => Update.newBuilder().setChain(h).build()
+        case h: Dhcp => Update.newBuilder().setDhcp(h).build()
+        case h: DhcpV6 => Update.newBuilder().setDhcpV6(h).build()
+        case h: HealthMonitor => Update.newBuilder().setHealthMonitor(h).build()
+        case h: Host => Update.newBuilder().setHost(h).build()
+        case h: HostGroup => Update.newBuilder().setHostGroup(h).build()
+        case h: IPAddrGroup => Update.newBuilder().setIpAddrGroup(h).build()
+        case h: L2Insertion => Update.newBuilder().setL2Insertion(h).build()
+        case h: Mirror => Update.newBuilder().setMirror(h).build()
+        case h: Network => Update.newBuilder().setNetwork(h).build()
+        case h: Pool => Update.newBuilder().setPool(h).build()
+        case h: PoolMember => Update.newBuilder().setPoolMember(h).build()
+        case h: Port => Update.newBuilder().setPort(h).build()
+        case h: PortGroup => Update.newBuilder().setPortGroup(h).build()
+        case h: QosPolicy => Update.newBuilder().setQosPolicy(h).build()
+        case h: QosRuleBandwidthLimit => Update.newBuilder().setQosRuleBwLimit(h).build()
+        case h: QosRuleDscp => Update.newBuilder().setQosRuleDscp(h).build()
+        case h: ServiceContainer => Update.newBuilder().setServiceContainer(h).build()
+        case h: ServiceContainerGroup => Update.newBuilder().setServiceContainerGroup(h).build()
+        case h: Route => Update.newBuilder().setRoute(h).build()
+        case h: Router => Update.newBuilder().setRouter(h).build()
+        case h: LoadBalancer => Update.newBuilder().setLoadBalancer(h).build()
+        case h: Vip => Update.newBuilder().setVip(h).build()
+        case h: Rule => Update.newBuilder().setRule(h).build()
+        case h: TunnelZone => Update.newBuilder().setTunnelZone(h).build()
+        case h: TraceRequest => Update.newBuilder().setTraceRequest(h).build()
+        case h: Vtep => Update.newBuilder().setVtep(h).build()
+        case _ => throw new UnknownTopologyEntityException
+    }
+
     /** generate an update response */
     def updateBuilder(m: Message, reqId: UUID = null): Response.Builder = {
-        val u: Update = m match {
-            case h: BgpNetwork => Update.newBuilder().setBgpNetwork(h).build()
-            case h: BgpPeer => Update.newBuilder().setBgpPeer(h).build()
-            case h: Chain => Update.newBuilder().setChain(h).build()
-            case h: Dhcp => Update.newBuilder().setDhcp(h).build()
-            case h: DhcpV6 => Update.newBuilder().setDhcpV6(h).build()
-            case h: HealthMonitor => Update.newBuilder().setHealthMonitor(h).build()
-            case h: Host => Update.newBuilder().setHost(h).build()
-            case h: HostGroup => Update.newBuilder().setHostGroup(h).build()
-            case h: IPAddrGroup => Update.newBuilder().setIpAddrGroup(h).build()
-            case h: L2Insertion => Update.newBuilder().setL2Insertion(h).build()
-            case h: Mirror => Update.newBuilder().setMirror(h).build()
-            case h: Network => Update.newBuilder().setNetwork(h).build()
-            case h: Pool => Update.newBuilder().setPool(h).build()
-            case h: PoolMember => Update.newBuilder().setPoolMember(h).build()
-            case h: Port => Update.newBuilder().setPort(h).build()
-            case h: PortGroup => Update.newBuilder().setPortGroup(h).build()
-            case h: QosPolicy => Update.newBuilder().setQosPolicy(h).build()
-            case h: QosRuleBandwidthLimit => Update.newBuilder().setQosRuleBwLimit(h).build()
-            case h: QosRuleDscp => Update.newBuilder().setQosRuleDscp(h).build()
-            case h: ServiceContainer => Update.newBuilder().setServiceContainer(h).build()
-            case h: ServiceContainerGroup => Update.newBuilder().setServiceContainerGroup(h).build()
-            case h: Route => Update.newBuilder().setRoute(h).build()
-            case h: Router => Update.newBuilder().setRouter(h).build()
-            case h: LoadBalancer => Update.newBuilder().setLoadBalancer(h).build()
-            case h: Vip => Update.newBuilder().setVip(h).build()
-            case h: Rule => Update.newBuilder().setRule(h).build()
-            case h: TunnelZone => Update.newBuilder().setTunnelZone(h).build()
-            case h: TraceRequest => Update.newBuilder().setTraceRequest(h).build()
-            case h: Vtep => Update.newBuilder().setVtep(h).build()
-            case _ => throw new UnknownTopologyEntityException
-        }
         val objInfo = extractId(m)
         val response = Response.newBuilder()
                                .setType(ResponseType.UPDATE)
                                .setObjType(typeOf(objInfo.ofType).get)
                                .setObjId(toProto(objInfo.id))
-                               .setUpdate(u)
+                               .setUpdate(updateOf(m))
+        if (reqId != null)
+            response.setReqId(toProto(reqId))
+        response
+    }
+
+    /** generate an update response sharing the cached update */
+    def updateBuilder(entry: UpdateCache.Entry, reqId: UUID)
+    : Response.Builder = {
+        val response = Response.newBuilder()
+                               .setType(ResponseType.UPDATE)
+                               .setObjType(entry.objType)
+                               .setObjId(entry.objId)
+                               .setUpdate(entry.update)
         if (reqId != null)
             response.setReqId(toProto(reqId))
         response
@@ -188,8 +207,9 @@ object SessionInventory {
  *
  * @param reqId is the request originating this stream (used for notifications
  *              to user)
+ * @param updates is the cache of updates shared by all sessions
  */
-protected class StorageTransformer(val reqId: UUID)
+protected class StorageTransformer(val reqId: UUID, updates: UpdateCache)
     extends Observable.Transformer[Message, Response.Builder] {
 
     override def call(s: Observable[Message])
@@ -211,17 +231,19 @@ protected class StorageTransformer(val reqId: UUID)
         extends OnSubscribe[Response.Builder] {
         /* Remember the subscription to the source observable */
         private var sub: Subscription = null
+        private var converter: StorageEventConverter = null
 
         /** Propagate the unsubscription to the source */
         def cancel(): Unit = {
             if (sub != null) sub.unsubscribe()
+            if (converter != null) converter.release()
         }
 
         /** Bind the subscriber to the source */
         override def call(client: Subscriber[_ >: Response.Builder]): Unit = {
-            sub = source.subscribe(new StorageEventConverter(
-                client.asInstanceOf[Subscriber[Response.Builder]],
-                reqId))
+            converter = new StorageEventConverter(
+                client.asInstanceOf[Subscriber[Response.Builder]], reqId)
+            sub = source.subscribe(converter)
         }
     }
 
@@ -237,24 +259,43 @@ protected class StorageTransformer(val reqId: UUID)
         import org.midonet.cluster.services.topology.server.SessionInventory._
 
         private var oId: ObservableId = null
+        /* The object retained in the update cache, or Released */
+        private val retained = new AtomicReference[ObservableId](null)
+
+        /** Releases the object in the update cache, once it is deleted or
+          * no longer watched */
+        def release(): Unit = {
+            val id = retained.getAndSet(Released)
+            if ((id ne null) && (id ne Released))
+                updates.release(id)
+        }
 
         override def onCompleted(): Unit = {
-            if (oId != null)
+            release()
+            if (oId != null) {
                 observer.onNext(deletionBuilder(oId.id, oId.ofType, reqId))
+            }
             observer.onCompleted()
         }
-        override def onError(exc: Throwable): Unit = exc match {
-            case e: NotFoundException =>
-                observer.onNext(errorBuilder(reqId, "not found"))
-                observer.onCompleted()
-            case t: Throwable =>
-                observer.onNext(errorBuilder(reqId, "error on watch"))
-                observer.onError(t)
+        override def onError(exc: Throwable): Unit = {
+            release()
+            exc match {
+                case e: NotFoundException =>
+                    observer.onNext(errorBuilder(reqId, "not found"))
+                    observer.onCompleted()
+                case t: Throwable =>
+                    observer.onNext(errorBuilder(reqId, "error on watch"))
+                    observer.onError(t)
+            }
         }
         override def onNext(data: Message): Unit = {
-            if (oId == null)
+            if (oId == null) {
                 oId = extractId(data)
-            observer.onNext(updateBuilder(data, reqId))
+                updates.retain(oId)
+                if (!retained.compareAndSet(null, oId))
+                    updates.release(oId)
+            }
+            observer.onNext(updateBuilder(updates.get(data), reqId))
         }
     }
 }
@@ -350,12 +391,20 @@ protected class Buffer(minCapacity: Int, reader: ExecutorService)
     }
 }
 
-/** A collection of Sessions indexed by a session id. */
+/**
+ * A collection of Sessions indexed by a session id. The sessions share the
+ * updates they send through the [[UpdateCache]], such that an object watched
+ * by many sessions is converted to an update only once per version.
+ */
 class SessionInventory(private val store: Storage,
     private val gracePeriod: Long = SessionInventory.SESSION_GRACE_PERIOD,
-    private val bufferSize: Int = SessionInventory.SESSION_BUFFER_SIZE) {
+    private val bufferSize: Int = SessionInventory.SESSION_BUFFER_SIZE,
+    metrics: MetricRegistry = new MetricRegistry) {
     private val log = LoggerFactory.getLogger(TopologyApiSessionInventoryLog)
 
+    /** The cache of updates shared by all sessions */
+    val updates = new UpdateCache(metrics)
+
     /** A class that encapsulates the funnel of a bunch of individual low
       * level subscriptions into a single channel, anend exposes an observable
       * that can at most be subscribed by a single Observer at a given
@@ -476,7 +525,7 @@ class SessionInventory(private val store: Storage,
             // Get the item from the storage, and forward
             store.get(ofType, id).onComplete {
                 case Success(m) =>
-                    funnel.inject(updateBuilder(m, reqId))
+                    funnel.inject(updateBuilder(updates.get(m), reqId))
                 case Failure(exc) => exc match {
                     case nf: NotFoundException =>
                         funnel.inject(
@@ -515,7 +564,8 @@ class SessionInventory(private val store: Storage,
             val src = store.observable(ofType.asInstanceOf[Class[Message]], id)
             try {
                 val oldReq = funnel.add(
-                    obsId, src.compose(new StorageTransformer(reqId)), reqId)
+                    obsId, src.compose(new StorageTransformer(reqId, updates)),
+                    reqId)
                 if (reqId == oldReq)
                     funnel.inject(ackBuilder(accept = true, reqId))
                 else
@@ -543,7 +593,7 @@ class SessionInventory(private val store: Storage,
             val obsId = ObservableId(null, ofType)
             val src: Observable[Observable[Response.Builder]] =
                 store.observable(ofType.asInstanceOf[Class[Message]]).map(
-                    makeFunc1 {_.compose(new StorageTransformer(reqId))}
+                    makeFunc1 {_.compose(new StorageTransformer(reqId, updates))}
                 )
             try {
                 val oldReq = funnel.add(obsId, Observable.merge(src), reqId)
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{MetricRegistry, RatioGauge}
+import com.google.protobuf.{CodedOutputStream, Message}
+
+import org.midonet.cluster.models.{Commons, Topology}
+import org.midonet.cluster.rpc.Commands.Response
+import org.midonet.cluster.rpc.Commands.Response.Update
+import org.midonet.cluster.services.topology.common.TopologyMappings.{klassOf, typeOf}
+import org.midonet.cluster.services.topology.server.SessionInventory.{ObservableId, UnknownTopologyEntityException, extractId, updateOf}
+import org.midonet.cluster.util.UUIDUtil.{fromProto, toProto}
+
+object UpdateCache {
+
+    /**
+     * The cached update for a version of a topology object. The version is
+     * the object instance emitted by storage, which is shared by all the
+     * subscribers of the object. The `encoded` bytes are the serialized
+     * `update` field of a [[Response]], and they are computed once, by the
+     * first connection that writes the update.
+     */
+    final class Entry private[UpdateCache](val message: Message,
+                                           val update: Update,
+                                           val objType: Topology.Type,
+                                           val objId: Commons.UUID) {
+        private[UpdateCache] val writes = new AtomicLong
+        lazy val encoded: Array[Byte] = {
+            val size = CodedOutputStream.computeMessageSize(
+                Response.UPDATE_FIELD_NUMBER, update)
+            val bytes = new Array[Byte](size)
+            val out = CodedOutputStream.newInstance(bytes)
+            out.writeMessage(Response.UPDATE_FIELD_NUMBER, update)
+            out.checkNoSpaceLeft()
+            bytes
+        }
+    }
+
+}
+
+/**
+ * A cache of the updates sent by the Topology API sessions, shared by all
+ * the sessions of a [[SessionInventory]].
+ *
+ * Without the cache, every session watching an object builds its own update
+ * for every version of the object, and every connection serializes it again,
+ * such that an update fanned out to N sessions costs N builds and N
+ * serializations. Instead, the first session that receives a new version of
+ * an object builds the update, and the other sessions reuse the same
+ * [[Update]] instance. The connections encode the update once as well, and
+ * write the same encoded bytes to all channels (see [[CachedUpdateEncoder]]).
+ *
+ * The cache only holds the latest version of the objects watched by at least
+ * one session. Every watch retains the object when it receives its first
+ * version, and releases it when the object is deleted or no longer watched,
+ * such that the entry of an object is removed with its last watcher. The
+ * updates of objects that are not watched, such as the objects fetched by a
+ * single get, are built but not cached.
+ */
+class UpdateCache(metrics: MetricRegistry) {
+
+    import UpdateCache._
+
+    private val entries = new ConcurrentHashMap[ObservableId, Entry]()
+    private val watchers = new ConcurrentHashMap[ObservableId, Integer]()
+
+    private val hits = metrics.meter(name(classOf[UpdateCache], "hits"))
+    private val misses = metrics.meter(name(classOf[UpdateCache], "misses"))
+    private val bytesSaved =
+        metrics.counter(name(classOf[UpdateCache], "encodedBytesSaved"))
+
+    // The meters are shared by the caches using the same registry, and so is
+    // the gauge, which replaces the gauge of any previous cache.
+    private val hitRatioName = name(classOf[UpdateCache], "hitRatio")
+    metrics.remove(hitRatioName)
+    metrics.register(hitRatioName, new RatioGauge {
+        override def getRatio: RatioGauge.Ratio =
+            RatioGauge.Ratio.of(hits.getCount,
+                                hits.getCount + misses.getCount)
+    })
+
+    /** The number of cached objects. */
+    def size: Int = entries.size()
+
+    def hitCount: Long = hits.getCount
+
+    def missCount: Long = misses.getCount
+
+    def bytesSavedCount: Long = bytesSaved.getCount
+
+    /**
+     * Returns the cached update for the given version of a topology object,
+     * building the update if this version has not been cached yet. The update
+     * is only cached if the object is watched.
+     */
+    @throws[UnknownTopologyEntityException]
+    def get(m: Message): Entry = {
+        val id = extractId(m)
+        if (id eq null) {
+            throw new UnknownTopologyEntityException
+        }
+        val entry = entries.get(id)
+        if ((entry ne null) && ((entry.message eq m) || entry.message == m)) {
+            hits.mark()
+            return entry
+        }
+        misses.mark()
+        val objType = typeOf(id.ofType).getOrElse {
+            throw new UnknownTopologyEntityException
+        }
+        val created = new Entry(m, updateOf(m), objType, toProto(id.id))
+        if (watchers.containsKey(id)) {
+            entries.put(id, created)
+            // The last watcher may have released the object concurrently.
+            if (!watchers.containsKey(id)) {
+                entries.remove(id, created)
+            }
+        }
+        created
+    }
+
+    /** Adds a watcher of the given topology object. */
+    def retain(id: ObservableId): Unit = watchers.synchronized {
+        val count = watchers.get(id)
+        watchers.put(id, if (count eq null) 1 else count + 1)
+    }
+
+    /**
+     * Removes a watcher of the given topology object, and removes its cached
+     * update if there are no other watchers.
+     */
+    def release(id: ObservableId): Unit = watchers.synchronized {
+        val count = watchers.get(id)
+        if ((count ne null) && count > 1) {
+            watchers.put(id, count - 1)
+        } else {
+            watchers.remove(id)
+            entries.remove(id)
+        }
+    }
+
+    /**
+     * Returns the encoded `update` field of the given response, if the
+     * response carries the cached update of an object, or `null` otherwise.
+     */
+    def encoded(rsp: Response): Array[Byte] = {
+        if (!rsp.hasUpdate || !rsp.hasObjId || !rsp.hasObjType) {
+            return null
+        }
+        val ofType = klassOf(rsp.getObjType).orNull
+        if (ofType eq null) {
+            return null
+        }
+        val entry = entries.get(ObservableId(fromProto(rsp.getObjId), ofType))
+        if ((entry eq null) || (entry.update ne rsp.getUpdate)) {
+            return null
+        }
+        val bytes = entry.encoded
+        if (entry.writes.getAndIncrement() > 0) {
+            bytesSaved.inc(bytes.length)
+        }
+        bytes
+    }
+
+}
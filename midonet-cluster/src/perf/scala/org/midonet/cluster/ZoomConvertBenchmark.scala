@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.data.ZoomConvert
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.rest_api.models.{Port, Router, Rule}
+import org.midonet.cluster.topology.TopologyBuilder
+
+/**
+ * Measures the throughput of the conversion of the port, router and rule
+ * models of the REST API to and from their Protocol Buffers messages, as
+ * done by the list calls of the REST API and by the C3PO translations.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class ZoomConvertBenchmark extends TopologyBuilder {
+
+    private val portProto = createRouterPort(
+        routerId = Some(UUID.randomUUID),
+        inboundFilterId = Some(UUID.randomUUID),
+        outboundFilterId = Some(UUID.randomUUID),
+        hostId = Some(UUID.randomUUID),
+        interfaceName = Some("eth0"),
+        adminStateUp = true,
+        routeIds = Set(UUID.randomUUID, UUID.randomUUID))
+
+    private val routerProto = createRouter(
+        name = Some("router"),
+        adminStateUp = true,
+        inboundFilterId = Some(UUID.randomUUID),
+        outboundFilterId = Some(UUID.randomUUID),
+        routeIds = Seq(UUID.randomUUID, UUID.randomUUID),
+        portIds = Set(UUID.randomUUID, UUID.randomUUID, UUID.randomUUID))
+
+    private val ruleProto = createJumpRuleBuilder(
+        UUID.randomUUID,
+        chainId = Some(UUID.randomUUID),
+        jumpChainId = Some(UUID.randomUUID)).build()
+
+    private val port = ZoomConvert.fromProto(portProto, classOf[Port])
+    private val router = ZoomConvert.fromProto(routerProto, classOf[Router])
+    private val rule = ZoomConvert.fromProto(ruleProto, classOf[Rule])
+
+    @Benchmark
+    def portFromProto(bh: Blackhole): Unit = {
+        bh.consume(ZoomConvert.fromProto(portProto, classOf[Port]))
+    }
+
+    @Benchmark
+    def portToProto(bh: Blackhole): Unit = {
+        bh.consume(ZoomConvert.toProto(port, classOf[Topology.Port]))
+    }
+
+    @Benchmark
+    def routerFromProto(bh: Blackhole): Unit = {
+        bh.consume(ZoomConvert.fromProto(routerProto, classOf[Router]))
+    }
+
+    @Benchmark
+    def routerToProto(bh: Blackhole): Unit = {
+        bh.consume(ZoomConvert.toProto(router, classOf[Topology.Router]))
+    }
+
+    @Benchmark
+    def ruleFromProto(bh: Blackhole): Unit = {
+        bh.consume(ZoomConvert.fromProto(ruleProto, classOf[Rule]))
+    }
+
+    @Benchmark
+    def ruleToProto(bh: Blackhole): Unit = {
+        bh.consume(ZoomConvert.toProto(rule, classOf[Topology.Rule]))
+    }
+}
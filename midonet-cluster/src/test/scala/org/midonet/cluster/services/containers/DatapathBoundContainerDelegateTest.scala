@@ -30,6 +30,7 @@ import org.midonet.cluster.data.storage._
 import org.midonet.cluster.models.State.ContainerStatus
 import org.midonet.cluster.models.Topology.{Host, Port, ServiceContainer}
 import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.services.containers.schedulers.{Schedule, Unschedule}
 import org.midonet.cluster.services.discovery.{FakeDiscovery, MidonetDiscovery}
 import org.midonet.cluster.services.state.client.StateTableClient
 import org.midonet.cluster.topology.TopologyBuilder
@@ -256,6 +257,64 @@ class DatapathBoundContainerDelegateTest extends FeatureSpec with Matchers
         }
     }
 
+    feature("Container delegate handles batched scheduling operations") {
+        scenario("Containers rescheduled from a failed host") {
+            Given("Two hosts and several containers bound to the first host")
+            val host1 = createHost()
+            val host2 = createHost()
+            storage.multi(Seq(CreateOp(host1), CreateOp(host2)))
+            val containers = for (_ <- 0 until 10) yield {
+                val port = createRouterPort(hostId = Some(host1.getId))
+                val container = createServiceContainer(portId = Some(port.getId))
+                storage.multi(Seq(CreateOp(port), CreateOp(container)))
+                container
+            }
+
+            And("A container delegate")
+            val delegate = new TestDPConDel(backend)
+
+            When("Rescheduling the containers to the second host")
+            delegate.onSchedulingChanged(containers.flatMap { container =>
+                Seq(Unschedule(container, host1.getId.asJava),
+                    Schedule(container, host2.getId.asJava))
+            })
+
+            Then("All ports should be bound to the second host")
+            for (container <- containers) {
+                val port = storage.get(classOf[Port], container.getPortId).await()
+                port.getHostId shouldBe host2.getId
+                port.getInterfaceName shouldBe interfaceName(container)
+            }
+            storage.get(classOf[Host], host1.getId).await()
+                   .getPortIdsCount shouldBe 0
+            storage.get(classOf[Host], host2.getId).await()
+                   .getPortIdsCount shouldBe 10
+        }
+
+        scenario("A batch with a port that does not exist") {
+            Given("A host and a container with a port")
+            val host = createHost()
+            val port = createRouterPort()
+            val container = createServiceContainer(portId = Some(port.getId))
+            storage.multi(Seq(CreateOp(host), CreateOp(port), CreateOp(container)))
+
+            And("A container with a port that does not exist")
+            val missing = createServiceContainer(portId = Some(UUID.randomUUID()))
+
+            And("A container delegate")
+            val delegate = new TestDPConDel(backend)
+
+            When("Scheduling both containers in the same batch")
+            delegate.onSchedulingChanged(Seq(
+                Schedule(missing, host.getId.asJava),
+                Schedule(container, host.getId.asJava)))
+
+            Then("The existing port should be bound to the host")
+            val boundPort = storage.get(classOf[Port], port.getId).await()
+            boundPort.getHostId shouldBe host.getId
+        }
+    }
+
     feature("Delegate handles status operations") {
         scenario("Up status") {
             Given("A container")
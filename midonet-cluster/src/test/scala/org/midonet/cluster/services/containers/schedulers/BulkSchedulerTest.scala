@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.containers.schedulers
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import rx.observers.TestObserver
+
+import org.midonet.cluster.models.State.ContainerServiceStatus
+import org.midonet.cluster.models.Topology.ServiceContainerPolicy
+import org.midonet.cluster.services.containers.schedulers.ContainerScheduler.{AllocationFeedback, Feedback}
+
+@RunWith(classOf[JUnitRunner])
+class BulkSchedulerTest extends FeatureSpec with SchedulersTest
+                        with BeforeAndAfter with Matchers
+                        with GivenWhenThen {
+
+    // A window long enough such that the passes are only run by the tests.
+    private val Window = 3600000L
+
+    private def newBulkScheduler(): BulkScheduler = {
+        new BulkScheduler(context, Window)
+    }
+
+    private def hostEvent(weight: Int = 1, quota: Int = -1, count: Int = 0)
+    : HostEvent = {
+        HostEvent(running = true, ContainerServiceStatus.newBuilder()
+            .setWeight(weight)
+            .setQuota(quota)
+            .setCount(count)
+            .build())
+    }
+
+    private def newHosts(count: Int)(f: Int => HostEvent): HostsEvent = {
+        (0 until count).map(index => UUID.randomUUID() -> f(index)).toMap
+    }
+
+    /** Returns the number of containers assigned to every host. */
+    private def assign(bulk: BulkScheduler, containerIds: Seq[UUID])
+    : Map[UUID, Int] = {
+        bulk.assign()
+        val hostIds = containerIds.map(bulk.allocation(_).orNull)
+        hostIds.count(_ eq null) shouldBe 0
+        hostIds.groupBy(id => id).mapValues(_.size)
+    }
+
+    feature("Bulk scheduler assigns hosts in a single pass") {
+        scenario("Containers of failed hosts with the weighted policy") {
+            Given("A bulk scheduler")
+            val bulk = newBulkScheduler()
+
+            And("Twenty hosts with different weights and counts")
+            val hosts = newHosts(20) { index =>
+                hostEvent(weight = index % 4 + 1, count = random.nextInt(100))
+            }
+
+            When("Requesting a host for 5000 containers")
+            val obs = new TestObserver[Feedback]
+            val containerIds = for (_ <- 0 until 5000) yield UUID.randomUUID()
+            for (containerId <- containerIds) {
+                bulk.request(containerId, hosts,
+                             ServiceContainerPolicy.WEIGHTED_SCHEDULER, obs)
+            }
+            bulk.pending shouldBe 5000
+
+            And("Running the bulk scheduling pass")
+            val assigned = assign(bulk, containerIds)
+
+            Then("All containers should be assigned")
+            assigned.values.sum shouldBe 5000
+            bulk.pending shouldBe 0
+
+            And("Every scheduler should be notified")
+            obs.getOnNextEvents should have size 5000
+            obs.getOnNextEvents.get(0) shouldBe AllocationFeedback
+
+            And("The containers per unit of weight should be balanced")
+            def load(hostId: UUID, extra: Int): Double = {
+                val status = hosts(hostId).status
+                (status.getCount + assigned.getOrElse(hostId, 0) + extra)
+                    .toDouble / status.getWeight
+            }
+            for (hostId <- assigned.keys; other <- hosts.keys) {
+                load(hostId, 0) should be <= load(other, 1) + 1e-9
+            }
+        }
+
+        scenario("Containers of failed hosts with the least policy") {
+            Given("A bulk scheduler")
+            val bulk = newBulkScheduler()
+
+            And("Fifty hosts with different counts")
+            val hosts = newHosts(50) { _ =>
+                hostEvent(weight = random.nextInt(10) + 1,
+                          count = random.nextInt(200))
+            }
+
+            When("Requesting a host for 5000 containers")
+            val obs = new TestObserver[Feedback]
+            val containerIds = for (_ <- 0 until 5000) yield UUID.randomUUID()
+            for (containerId <- containerIds) {
+                bulk.request(containerId, hosts,
+                             ServiceContainerPolicy.LEAST_SCHEDULER, obs)
+            }
+            val assigned = assign(bulk, containerIds)
+
+            Then("All containers should be assigned")
+            assigned.values.sum shouldBe 5000
+
+            And("The container counts should be balanced")
+            val totals = hosts.map { case (hostId, host) =>
+                hostId -> (host.status.getCount + assigned.getOrElse(hostId, 0))
+            }
+            for (hostId <- assigned.keys) {
+                totals(hostId) should be <= totals.values.min + 1
+            }
+        }
+
+        scenario("Hosts are not assigned more containers than their quota") {
+            Given("A bulk scheduler")
+            val bulk = newBulkScheduler()
+
+            And("Ten hosts with a quota of 10 containers")
+            val hosts = newHosts(10) { _ => hostEvent(quota = 10) }
+
+            When("Requesting a host for 150 containers")
+            val obs = new TestObserver[Feedback]
+            val containerIds = for (_ <- 0 until 150) yield UUID.randomUUID()
+            for (containerId <- containerIds) {
+                bulk.request(containerId, hosts,
+                             ServiceContainerPolicy.WEIGHTED_SCHEDULER, obs)
+            }
+            bulk.assign()
+
+            Then("Every host should be assigned 10 containers")
+            val hostIds = containerIds.map(bulk.allocation(_).orNull)
+            hostIds.filter(_ ne null).groupBy(id => id).values
+                   .map(_.size).toList shouldBe List.fill(10)(10)
+
+            And("The remaining containers should not be assigned")
+            hostIds.count(_ eq null) shouldBe 50
+
+            And("Every scheduler should be notified")
+            obs.getOnNextEvents should have size 150
+        }
+
+        scenario("Constrained containers are assigned first") {
+            Given("A bulk scheduler")
+            val bulk = newBulkScheduler()
+
+            And("Two hosts with a quota of one container")
+            val hostId1 = UUID.randomUUID()
+            val hostId2 = UUID.randomUUID()
+            val host1 = hostId1 -> hostEvent(quota = 1)
+            val host2 = hostId2 -> hostEvent(weight = 10, quota = 1)
+
+            When("Requesting a host for a container on any host")
+            val obs = new TestObserver[Feedback]
+            val containerId1 = UUID.randomUUID()
+            bulk.request(containerId1, Map(host1, host2),
+                         ServiceContainerPolicy.WEIGHTED_SCHEDULER, obs)
+
+            And("For a container on the second host only")
+            val containerId2 = UUID.randomUUID()
+            bulk.request(containerId2, Map(host2),
+                         ServiceContainerPolicy.WEIGHTED_SCHEDULER, obs)
+            bulk.assign()
+
+            Then("Both containers should be assigned")
+            bulk.allocation(containerId1) shouldBe Some(hostId1)
+            bulk.allocation(containerId2) shouldBe Some(hostId2)
+        }
+
+        scenario("Pass accounts for the containers of previous passes") {
+            Given("A bulk scheduler")
+            val bulk = newBulkScheduler()
+
+            And("Two hosts")
+            val hostId1 = UUID.randomUUID()
+            val hostId2 = UUID.randomUUID()
+            val hosts = Map(hostId1 -> hostEvent(count = 0),
+                            hostId2 -> hostEvent(count = 2))
+
+            When("Assigning two containers")
+            val obs = new TestObserver[Feedback]
+            val first = for (_ <- 0 until 2) yield UUID.randomUUID()
+            for (containerId <- first) {
+                bulk.request(containerId, hosts,
+                             ServiceContainerPolicy.LEAST_SCHEDULER, obs)
+            }
+
+            Then("Both containers should be assigned to the first host")
+            assign(bulk, first) shouldBe Map(hostId1 -> 2)
+
+            When("Assigning two containers before the hosts report new counts")
+            val second = for (_ <- 0 until 2) yield UUID.randomUUID()
+            for (containerId <- second) {
+                bulk.request(containerId, hosts,
+                             ServiceContainerPolicy.LEAST_SCHEDULER, obs)
+            }
+
+            Then("The containers should be spread across both hosts")
+            assign(bulk, second) shouldBe Map(hostId1 -> 1, hostId2 -> 1)
+
+            When("The hosts report new counts")
+            val updated = Map(hostId1 -> hostEvent(count = 5),
+                              hostId2 -> hostEvent(count = 3))
+            val third = UUID.randomUUID()
+            bulk.request(third, updated,
+                         ServiceContainerPolicy.LEAST_SCHEDULER, obs)
+
+            Then("The pass should use the reported counts")
+            assign(bulk, Seq(third)) shouldBe Map(hostId2 -> 1)
+        }
+
+        scenario("Cancelled containers are not assigned") {
+            Given("A bulk scheduler")
+            val bulk = newBulkScheduler()
+            val hosts = newHosts(2) { _ => hostEvent() }
+
+            When("Requesting a host for a container")
+            val obs = new TestObserver[Feedback]
+            val containerId = UUID.randomUUID()
+            bulk.request(containerId, hosts,
+                         ServiceContainerPolicy.WEIGHTED_SCHEDULER, obs)
+
+            And("Cancelling the request")
+            bulk.cancel(containerId)
+            bulk.assign()
+
+            Then("The container should not be assigned")
+            bulk.pending shouldBe 0
+            bulk.allocation(containerId) shouldBe None
+            obs.getOnNextEvents shouldBe empty
+        }
+    }
+
+}
@@ -46,8 +46,10 @@ class ContainerSchedulerTest extends FeatureSpec with SchedulersTest
     class TestScheduler(containerId: UUID,
                         context: Context,
                         config: ContainersConfig,
-                        provider: HostSelectorProvider)
-        extends ContainerScheduler(containerId, context, config, provider) {
+                        provider: HostSelectorProvider,
+                        bulkScheduler: BulkScheduler = null)
+        extends ContainerScheduler(containerId, context, config, provider,
+                                   bulkScheduler) {
         var time = 0L
         var timer = PublishSubject.create[java.lang.Long]
         protected override def timeoutObservable = timer
@@ -69,8 +71,10 @@ class ContainerSchedulerTest extends FeatureSpec with SchedulersTest
         provider = new HostSelectorProvider(context)
     }
 
-    private def newScheduler(containerId: UUID): TestScheduler = {
-        new TestScheduler(containerId, context, config, provider)
+    private def newScheduler(containerId: UUID,
+                             bulkScheduler: BulkScheduler = null)
+    : TestScheduler = {
+        new TestScheduler(containerId, context, config, provider, bulkScheduler)
     }
 
     feature("Scheduler handles container notifications") {
@@ -3458,4 +3462,109 @@ class ContainerSchedulerTest extends FeatureSpec with SchedulersTest
         }
     }
 
+    feature("Scheduler uses the bulk scheduler") {
+        scenario("Containers scheduled at the same time are spread") {
+            Given("Two containers with least policy")
+            val group = createGroup(ServiceContainerPolicy.LEAST_SCHEDULER)
+            val container1 = createContainer(group.getId)
+            val container2 = createContainer(group.getId)
+
+            And("Two hosts with the same container count")
+            val host1 = createHost()
+            val host2 = createHost()
+            createHostStatus(host1.getId, weight = 1, count = 0)
+            createHostStatus(host2.getId, weight = 1, count = 0)
+
+            And("A bulk scheduler")
+            val bulk = new BulkScheduler(context, windowMs = 3600000L)
+
+            And("A scheduler for each container")
+            val scheduler1 = newScheduler(container1.getId, bulk)
+            val scheduler2 = newScheduler(container2.getId, bulk)
+
+            When("The observers subscribe to the schedulers")
+            val obs1 = new TestObserver[SchedulerEvent]
+            val obs2 = new TestObserver[SchedulerEvent]
+            scheduler1.observable subscribe obs1
+            scheduler2.observable subscribe obs2
+
+            Then("The containers should wait for the bulk scheduler")
+            obs1.getOnNextEvents shouldBe empty
+            obs2.getOnNextEvents shouldBe empty
+            bulk.pending shouldBe 2
+            scheduler1.schedulerState shouldBeDownFor(isUnsubscribed = true)
+            scheduler2.schedulerState shouldBeDownFor(isUnsubscribed = true)
+
+            When("The bulk scheduler assigns the containers")
+            bulk.assign()
+
+            Then("The containers should be scheduled at different hosts")
+            obs1.getOnNextEvents should have size 1
+            obs2.getOnNextEvents should have size 1
+            val hostId1 = obs1.getOnNextEvents.get(0).asInstanceOf[Schedule].hostId
+            val hostId2 = obs2.getOnNextEvents.get(0).asInstanceOf[Schedule].hostId
+            Set(hostId1, hostId2) shouldBe Set(host1.getId.asJava,
+                                               host2.getId.asJava)
+            scheduler1.schedulerState shouldBeScheduledFor(container1, hostId1)
+            scheduler2.schedulerState shouldBeScheduledFor(container2, hostId2)
+            bulk.pending shouldBe 0
+        }
+
+        scenario("Running container is rescheduled when the host fails") {
+            Given("A container with weighted policy")
+            val group = createGroup()
+            val container = createContainer(group.getId)
+
+            And("Two hosts with the container service")
+            val host1 = createHost()
+            val host2 = createHost()
+            createHostStatus(host1.getId, weight = 1)
+
+            And("A bulk scheduler")
+            val bulk = new BulkScheduler(context, windowMs = 3600000L)
+
+            And("A container scheduler")
+            val scheduler = newScheduler(container.getId, bulk)
+
+            And("A scheduler observer")
+            val obs = new TestObserver[SchedulerEvent]
+
+            When("The observer subscribes to the scheduler")
+            scheduler.observable subscribe obs
+            bulk.assign()
+
+            Then("The container should be scheduled at the first host")
+            obs.getOnNextEvents should have size 1
+            obs.getOnNextEvents.get(0) shouldBeScheduleFor(container, host1.getId)
+
+            When("The container is reported running")
+            createContainerStatus(container.getId, Code.RUNNING, host1.getId)
+
+            Then("The container should be up")
+            obs.getOnNextEvents should have size 2
+            scheduler.schedulerState shouldBeUpFor(container, host1.getId)
+
+            When("The second host starts and the first host fails")
+            createHostStatus(host2.getId, weight = 1)
+            deleteHostStatus(host1.getId)
+
+            Then("The container should wait for the bulk scheduler")
+            obs.getOnNextEvents should have size 2
+            bulk.pending shouldBe 1
+            scheduler.schedulerState shouldBeUpFor(container, host1.getId)
+
+            When("The bulk scheduler assigns the container")
+            bulk.assign()
+
+            Then("The container should be rescheduled at the second host")
+            obs.getOnNextEvents should have size 5
+            obs.getOnNextEvents.get(2) shouldBeDownFor(container, host1.getId)
+            obs.getOnNextEvents.get(3) shouldBeUnscheduleFor(container, host1.getId)
+            obs.getOnNextEvents.get(4) shouldBeScheduleFor(container, host2.getId)
+            scheduler.schedulerState shouldBeRescheduledFor(container,
+                                                            host1.getId,
+                                                            host2.getId)
+        }
+    }
+
 }
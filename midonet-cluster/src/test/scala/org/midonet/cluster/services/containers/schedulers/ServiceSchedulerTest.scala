@@ -30,11 +30,12 @@ import rx.observers.TestObserver
 import org.midonet.cluster.ContainersConfig
 import org.midonet.cluster.models.Topology.ServiceContainer
 import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.util.MidonetEventually
 
 @RunWith(classOf[JUnitRunner])
 class ServiceSchedulerTest extends FeatureSpec with SchedulersTest
                            with BeforeAndAfter with Matchers
-                           with GivenWhenThen {
+                           with GivenWhenThen with MidonetEventually {
 
     private val config = new ContainersConfig(ConfigFactory.parseString(
         """
@@ -43,8 +44,14 @@ class ServiceSchedulerTest extends FeatureSpec with SchedulersTest
           |cluster.containers.scheduler_retry : 15s
           |cluster.containers.scheduler_max_retries : 3
           |cluster.containers.scheduler_bad_host_lifetime : 300s
+          |cluster.containers.scheduler_bulk_window : 0s
         """.stripMargin))
 
+    private val bulkConfig = new ContainersConfig(ConfigFactory.parseString(
+        """
+          |cluster.containers.scheduler_bulk_window : 100ms
+        """.stripMargin).withFallback(config.conf))
+
     private def newScheduler(): ServiceScheduler = {
         new ServiceScheduler(context, config)
     }
@@ -294,4 +301,53 @@ class ServiceSchedulerTest extends FeatureSpec with SchedulersTest
                 container2.getId.asJava)
         }
     }
+
+    feature("Scheduler assigns hosts in bulk") {
+        scenario("Containers are scheduled after the bulk window") {
+            Given("Four containers")
+            val group = createGroup()
+            val containers = for (_ <- 0 until 4)
+                yield createContainer(group.getId)
+
+            And("Two hosts with the same weight")
+            val host1 = createHost()
+            val host2 = createHost()
+            createHostStatus(host1.getId, weight = 1)
+            createHostStatus(host2.getId, weight = 1)
+
+            And("A service scheduler with a bulk window")
+            val scheduler = new ServiceScheduler(context, bulkConfig)
+            val obs = new TestObserver[SchedulerEvent]
+
+            When("The observer subscribes to the scheduler")
+            scheduler.observable subscribe obs
+
+            Then("The observer receives the schedule notifications")
+            eventually {
+                obs.getOnNextEvents should have size 4
+            }
+            val scheduled = obs.getOnNextEvents.asScala
+                .map(_.asInstanceOf[Schedule])
+            scheduled.map(_.container) should contain theSameElementsAs containers
+
+            And("The containers are balanced between the hosts")
+            scheduled.groupBy(_.hostId).mapValues(_.size) shouldBe Map(
+                host1.getId.asJava -> 2, host2.getId.asJava -> 2)
+
+            When("The first host goes down")
+            deleteHostStatus(host1.getId)
+
+            Then("Its containers are rescheduled to the second host")
+            eventually {
+                obs.getOnNextEvents should have size 8
+            }
+            val rescheduled = obs.getOnNextEvents.asScala.drop(4)
+            rescheduled.collect { case e: Unschedule => e.hostId } shouldBe
+                Seq.fill(2)(host1.getId.asJava)
+            rescheduled.collect { case e: Schedule => e.hostId } shouldBe
+                Seq.fill(2)(host2.getId.asJava)
+
+            scheduler.complete()
+        }
+    }
 }
@@ -130,13 +130,18 @@ class RecyclerTest extends FeatureSpec with MidonetBackendTest with Matchers
               |cluster.recycler.interval : 1h
               |cluster.recycler.throttling_rate : 1000000001
               |cluster.recycler.shutdown_interval : 10s
+              |cluster.recycler.namespaces_per_run : 0
+              |cluster.recycler.parallelism : 4
+              |cluster.recycler.batch_size : 64
             """.stripMargin)
         )
     }
 
     private def newRecycler(executor: ScheduledExecutorService =
-                                new AutoScheduledExecutorService): TestableRecycler = {
-        new TestableRecycler(context = null, backend, executor, clusterConfig)
+                                new AutoScheduledExecutorService,
+                            config: ClusterConfig = clusterConfig)
+    : TestableRecycler = {
+        new TestableRecycler(context = null, backend, executor, config)
     }
 
     /* This method blocks until the creation time of the given path is not
@@ -446,6 +451,103 @@ class RecyclerTest extends FeatureSpec with MidonetBackendTest with Matchers
         }
     }
 
+    feature("Recycler recycles incrementally") {
+        scenario("Namespaces are recycled across several runs") {
+            Given("A recycling service recycling two namespaces per run")
+            val config = new ClusterConfig(ConfigFactory.parseString(
+                "cluster.recycler.namespaces_per_run : 2")
+                .withFallback(clusterConfig.conf))
+            val recycler = newRecycler(new AutoScheduledExecutorService(2),
+                                       config)
+            recycler.mockedClock.time = System.currentTimeMillis() +
+                                        clusterConfig.recycler.interval.toMillis
+
+            And("Three nodes for orphan namespaces")
+            val namespaces = for (i <- 0 until 3) yield {
+                val namespace = UUID.randomUUID().toString
+                val path = store.stateNamespacePath(namespace)
+                curator.create().forPath(path)
+                waitForExpiry(path)
+                namespace
+            }
+
+            And("A task observer")
+            val observer = new TestObserver[Try[RecyclingContext]]()
+            recycler.tasks.subscribe(observer)
+
+            When("The recycler starts")
+            recycler.startAsync().awaitRunning()
+
+            Then("The recycler should run the recycling task")
+            recycler.tasks.toBlocking.first()
+
+            And("The task should be run twice")
+            observer.getOnNextEvents should have size 2
+            val first = observer.getOnNextEvents.get(0).get
+            val second = observer.getOnNextEvents.get(1).get
+
+            And("The first task should recycle two namespaces")
+            first.recycledNamespaces shouldBe 2
+            first.remainingNamespaces shouldBe first.totalNamespaces - 2
+            first.isPassComplete shouldBe false
+
+            And("The second task should complete the recycling pass")
+            second.recycledNamespaces shouldBe first.remainingNamespaces
+            second.remainingNamespaces shouldBe 0
+            second.isPassComplete shouldBe true
+            second.cursor shouldBe first.nextCursor
+
+            And("All orphan namespaces should be deleted")
+            first.deletedNamespaces + second.deletedNamespaces shouldBe 3
+
+            And("The recycler stops")
+            recycler.stopAsync().awaitTerminated()
+
+            for (namespace <- namespaces) {
+                curator.checkExists()
+                       .forPath(store.stateNamespacePath(namespace)) shouldBe null
+            }
+        }
+
+        scenario("Orphan namespaces with children are deleted in batches") {
+            Given("A recycling service with small delete transactions")
+            val config = new ClusterConfig(ConfigFactory.parseString(
+                "cluster.recycler.batch_size : 4")
+                .withFallback(clusterConfig.conf))
+            val recycler = newRecycler(config = config)
+            recycler.mockedClock.time = System.currentTimeMillis() +
+                                        clusterConfig.recycler.interval.toMillis
+
+            And("An orphan namespace with state for ten objects")
+            val namespace = UUID.randomUUID().toString
+            var path: String = null
+            for (i <- 0 until 10) {
+                path = store.stateObjectPath(namespace, classOf[Port],
+                                             UUID.randomUUID()) + "/value"
+                curator.create()
+                    .creatingParentContainersIfNeeded()
+                    .forPath(path)
+            }
+            waitForExpiry(path)
+
+            When("The recycler starts")
+            recycler.startAsync().awaitRunning()
+
+            Then("The recycler should run the recycling task")
+            val result = recycler.tasks.toBlocking.first()
+            result.isSuccess shouldBe true
+            result.get.deletedNamespaces shouldBe 1
+            result.get.deletionRate should be > 0.0
+
+            And("The recycler stops")
+            recycler.stopAsync().awaitTerminated()
+
+            And("The namespace should be deleted")
+            curator.checkExists()
+                   .forPath(store.stateNamespacePath(namespace)) shouldBe null
+        }
+    }
+
     feature("Recycler deletes orphan object state") {
         scenario("Single-value state for non-existing objects") {
             Given("A recycling service")
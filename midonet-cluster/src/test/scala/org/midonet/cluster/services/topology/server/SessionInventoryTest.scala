@@ -22,7 +22,10 @@ import java.util.concurrent.TimeoutException
 import scala.collection.JavaConversions._
 import scala.concurrent.duration._
 
+import com.codahale.metrics.MetricRegistry
 import com.google.protobuf.Message
+import io.netty.buffer.ByteBuf
+import io.netty.channel.embedded.EmbeddedChannel
 import org.junit.runner.RunWith
 import org.scalatest._
 import org.scalatest.junit.JUnitRunner
@@ -782,4 +785,162 @@ class SessionInventoryTest extends FeatureSpec
             events.exists(rsp => isBridge(rsp, b1, "bridge1-update1")) shouldBe true
         }
     }
+
+    feature("updates shared by sessions")
+    {
+        scenario("many sessions watching the same entity")
+        {
+            val count = 200
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+
+            val sessions = for (i <- 0 until count) yield {
+                val session = inv.claim(UUID.randomUUID())
+                val collector = new TestAwaitableObserver[Response]
+                val subs = session.observable().subscribe(collector)
+                val req = UUID.randomUUID()
+                session.watch(oId, classOf[Network], req)
+                (session, collector, subs, req)
+            }
+
+            // wait for the initial updates
+            for ((_, collector, _, _) <- sessions)
+                collector.awaitOnNext(2, WAIT_TIME) shouldBe true
+
+            // update bridge
+            store.update(bridge(oId, "bridge-update"))
+            for ((_, collector, _, _) <- sessions)
+                collector.awaitOnNext(3, WAIT_TIME) shouldBe true
+
+            // all sessions receive the same update instances
+            val updates = sessions.map { case (_, collector, _, req) =>
+                val events =
+                    collectionAsScalaIterable(collector.getOnNextEvents).toArray
+                events.length shouldBe 3
+                events.exists(rsp => isAck(rsp, req)) shouldBe true
+                events.exists(rsp => isBridge(rsp, oId, "bridge")) shouldBe true
+                events.exists(rsp => isBridge(rsp, oId, "bridge-update")) shouldBe true
+                events.filter(_.hasUpdate).foreach { rsp =>
+                    UUIDUtil.fromProto(rsp.getReqId) shouldBe req
+                }
+                events.filter(_.hasUpdate).map(_.getUpdate)
+            }
+            for (i <- 0 until 2)
+                updates.forall(_(i) eq updates.head(i)) shouldBe true
+
+            // and the updates are built once per version
+            inv.updates.missCount shouldBe 2
+            inv.updates.hitCount shouldBe 2 * (count - 1)
+
+            // delete bridge
+            store.delete(classOf[Network], UUIDUtil.toProto(oId))
+            for ((_, collector, _, _) <- sessions)
+                collector.awaitOnNext(4, WAIT_TIME) shouldBe true
+            inv.updates.size shouldBe 0
+
+            for ((session, _, subs, _) <- sessions) {
+                subs.unsubscribe()
+                session.terminate()
+            }
+        }
+
+        scenario("objects are cached while they are watched")
+        {
+            val session = inv.claim(UUID.randomUUID())
+            val collector = new TestAwaitableObserver[Response]
+            val subs = session.observable().subscribe(collector)
+
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+
+            // a single get does not cache the object
+            session.get(oId, classOf[Network], UUID.randomUUID())
+            collector.awaitOnNext(1, WAIT_TIME) shouldBe true
+            inv.updates.size shouldBe 0
+
+            // a watch caches the object
+            session.watch(oId, classOf[Network], UUID.randomUUID())
+            collector.awaitOnNext(3, WAIT_TIME) shouldBe true
+            inv.updates.size shouldBe 1
+
+            // and the unwatch releases it
+            val req = UUID.randomUUID()
+            session.unwatch(oId, classOf[Network], req)
+            collector.awaitOnNext(4, WAIT_TIME) shouldBe true
+            isAck(collector.getOnNextEvents.get(3), req) shouldBe true
+            inv.updates.size shouldBe 0
+
+            subs.unsubscribe()
+            session.terminate()
+        }
+
+        scenario("terminated sessions release the cached objects")
+        {
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+
+            val sessions = for (i <- 0 until 2) yield {
+                val session = inv.claim(UUID.randomUUID())
+                val collector = new TestAwaitableObserver[Response]
+                val subs = session.observable().subscribe(collector)
+                session.watch(oId, classOf[Network], UUID.randomUUID())
+                collector.awaitOnNext(2, WAIT_TIME) shouldBe true
+                (session, subs)
+            }
+            inv.updates.size shouldBe 1
+
+            sessions(0)._2.unsubscribe()
+            sessions(0)._1.terminate()
+            inv.updates.size shouldBe 1
+
+            sessions(1)._2.unsubscribe()
+            sessions(1)._1.terminate()
+            inv.updates.size shouldBe 0
+        }
+
+        scenario("session inventories share a metric registry")
+        {
+            val metrics = new MetricRegistry
+            val inv1 = new SessionInventory(store, metrics = metrics)
+            val inv2 = new SessionInventory(store, metrics = metrics)
+
+            inv2.updates.get(bridge(UUID.randomUUID(), "bridge"))
+            metrics.getGauges.keySet.count(_.endsWith("hitRatio")) shouldBe 1
+        }
+
+        scenario("cached updates are encoded once")
+        {
+            val oId = UUID.randomUUID()
+            inv.updates.retain(
+                SessionInventory.ObservableId(oId, classOf[Network]))
+            val entry = inv.updates.get(bridge(oId, "bridge"))
+            val encoder = new CachedUpdateEncoder(inv.updates)
+
+            def encode(rsp: Response): Response = {
+                val channel = new EmbeddedChannel(encoder)
+                channel.writeOutbound(rsp) shouldBe true
+                val buf = channel.readOutbound[ByteBuf]()
+                val bytes = new Array[Byte](buf.readableBytes())
+                buf.readBytes(bytes)
+                buf.release()
+                channel.finish()
+                Response.parseFrom(bytes)
+            }
+
+            val rsp1 = SessionInventory.updateBuilder(entry, UUID.randomUUID())
+                                       .setSeqno(1).build()
+            val rsp2 = SessionInventory.updateBuilder(entry, UUID.randomUUID())
+                                       .setSeqno(2).build()
+
+            encode(rsp1) shouldBe rsp1
+            encode(rsp2) shouldBe rsp2
+            inv.updates.bytesSavedCount shouldBe entry.encoded.length
+
+            // responses with updates not in the cache are encoded as usual
+            val rsp3 = SessionInventory.updateBuilder(bridge(oId, "other"))
+                                       .setSeqno(3).build()
+            encode(rsp3) shouldBe rsp3
+            inv.updates.bytesSavedCount shouldBe entry.encoded.length
+        }
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+/**
+ * A flyweight view over the bytes of an Ethernet frame, which exposes the
+ * L2 to L4 header fields by reading them at their offset in the frame. Wrapping
+ * a frame only locates its headers, and neither wrapping nor reading a field
+ * allocates any object, such that a single view can be reused for any number
+ * of frames.
+ *
+ * The view only understands the VLAN, IPv4, IPv6 (without extension headers),
+ * TCP, UDP and ICMP headers. The fields of a header that is absent, or that is
+ * truncated in the frame, read as zero. Use {@link Ethernet#deserialize} when
+ * the full packet is needed.
+ *
+ * Instances are not thread-safe, and the view does not copy the frame: it
+ * reflects any change to the underlying array.
+ */
+public final class PacketView {
+
+    private static final int ETHERTYPE_OFFSET = 12;
+    private static final int IPV4_MIN_HEADER_LEN = 20;
+    private static final int IPV6_HEADER_LEN = 40;
+    private static final int TCP_MIN_HEADER_LEN = 20;
+    private static final int UDP_HEADER_LEN = 8;
+    private static final int ICMP_MIN_HEADER_LEN = 4;
+
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    private boolean valid;
+    private short etherType;
+    private int vlanCount;
+    private int networkOffset;
+    private byte networkProtocol;
+    private int transportOffset;
+
+    /**
+     * Wraps the frame of the given length starting at the given offset of the
+     * array, and locates its headers. Returns this view.
+     */
+    public PacketView wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.vlanCount = 0;
+        this.etherType = 0;
+        this.networkOffset = -1;
+        this.networkProtocol = 0;
+        this.transportOffset = -1;
+        this.valid = length >= Ethernet.MIN_HEADER_LEN;
+        if (!valid)
+            return this;
+
+        int pos = ETHERTYPE_OFFSET;
+        short type = getShort(pos);
+        while (type == Ethernet.VLAN_TAGGED_FRAME ||
+               type == Ethernet.PROVIDER_BRIDGING_TAG) {
+            if (pos + 2 + Ethernet.HEADER_TPID_LEN > length) {
+                valid = false;
+                return this;
+            }
+            vlanCount++;
+            pos += Ethernet.HEADER_TPID_LEN;
+            type = getShort(pos);
+        }
+        etherType = type;
+        networkOffset = pos + 2;
+
+        if (type == IPv4.ETHERTYPE &&
+            networkOffset + IPV4_MIN_HEADER_LEN <= length) {
+            networkProtocol = data[offset + networkOffset + 9];
+            int headerLen = (data[offset + networkOffset] & 0x0f) * 4;
+            boolean firstFragment =
+                (getShort(networkOffset + 6) & 0x1fff) == 0;
+            if (firstFragment && headerLen >= IPV4_MIN_HEADER_LEN &&
+                networkOffset + headerLen <= length) {
+                transportOffset = networkOffset + headerLen;
+            }
+        } else if (type == IPv6.ETHERTYPE &&
+                   networkOffset + IPV6_HEADER_LEN <= length) {
+            networkProtocol = data[offset + networkOffset + 6];
+            transportOffset = networkOffset + IPV6_HEADER_LEN;
+        }
+        if (transportOffset >= 0 &&
+            transportOffset + transportHeaderLength() > length) {
+            transportOffset = -1;
+        }
+        return this;
+    }
+
+    /** Whether the frame holds at least a complete Ethernet header. */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** The destination MAC address, in the 48 least significant bits. */
+    public long destinationMac() {
+        return valid ? getMac(0) : 0L;
+    }
+
+    /** The source MAC address, in the 48 least significant bits. */
+    public long sourceMac() {
+        return valid ? getMac(6) : 0L;
+    }
+
+    public boolean isBroadcast() {
+        return destinationMac() == 0xffffffffffffL;
+    }
+
+    public boolean isMulticast() {
+        return valid && (data[offset] & 0x01) != 0;
+    }
+
+    /** The EtherType of the payload, after the VLAN tags. */
+    public short etherType() {
+        return etherType;
+    }
+
+    public int vlanCount() {
+        return vlanCount;
+    }
+
+    /** The VLAN ID of the given tag, where tag zero is the outermost. */
+    public short vlanId(int tag) {
+        if (tag < 0 || tag >= vlanCount)
+            throw new IndexOutOfBoundsException("VLAN tag " + tag);
+        return (short) (getShort(ETHERTYPE_OFFSET + 2 +
+                                 tag * Ethernet.HEADER_TPID_LEN) & 0x0fff);
+    }
+
+    /** The offset of the network header in the frame, or -1. */
+    public int networkOffset() {
+        return networkOffset;
+    }
+
+    public boolean isIPv4() {
+        return etherType == IPv4.ETHERTYPE &&
+               networkOffset + IPV4_MIN_HEADER_LEN <= length;
+    }
+
+    public boolean isIPv6() {
+        return etherType == IPv6.ETHERTYPE &&
+               networkOffset + IPV6_HEADER_LEN <= length;
+    }
+
+    /** The IPv4 protocol or the IPv6 next header. */
+    public byte networkProtocol() {
+        return networkProtocol;
+    }
+
+    public int ipv4Source() {
+        return isIPv4() ? getInt(networkOffset + 12) : 0;
+    }
+
+    public int ipv4Destination() {
+        return isIPv4() ? getInt(networkOffset + 16) : 0;
+    }
+
+    /** The IPv4 time to live or the IPv6 hop limit. */
+    public byte ttl() {
+        if (isIPv4())
+            return data[offset + networkOffset + 8];
+        if (isIPv6())
+            return data[offset + networkOffset + 7];
+        return 0;
+    }
+
+    public boolean isFragment() {
+        return isIPv4() && (getShort(networkOffset + 6) & 0x3fff) != 0;
+    }
+
+    /** The offset of the transport header in the frame, or -1. */
+    public int transportOffset() {
+        return transportOffset;
+    }
+
+    public boolean isTcp() {
+        return transportOffset >= 0 &&
+               networkProtocol == TCP.PROTOCOL_NUMBER;
+    }
+
+    public boolean isUdp() {
+        return transportOffset >= 0 &&
+               networkProtocol == UDP.PROTOCOL_NUMBER;
+    }
+
+    public boolean isIcmp() {
+        return transportOffset >= 0 && etherType == IPv4.ETHERTYPE &&
+               networkProtocol == ICMP.PROTOCOL_NUMBER;
+    }
+
+    public int sourcePort() {
+        return isTcp() || isUdp() ? getShort(transportOffset) & 0xffff : 0;
+    }
+
+    public int destinationPort() {
+        return isTcp() || isUdp() ? getShort(transportOffset + 2) & 0xffff : 0;
+    }
+
+    /** The TCP flags, as the bits of {@link TCP.Flag}. */
+    public int tcpFlags() {
+        return isTcp() ? getShort(transportOffset + 12) & 0x01ff : 0;
+    }
+
+    public byte icmpType() {
+        return isIcmp() ? data[offset + transportOffset] : 0;
+    }
+
+    public byte icmpCode() {
+        return isIcmp() ? data[offset + transportOffset + 1] : 0;
+    }
+
+    private int transportHeaderLength() {
+        switch (networkProtocol) {
+            case TCP.PROTOCOL_NUMBER: return TCP_MIN_HEADER_LEN;
+            case UDP.PROTOCOL_NUMBER: return UDP_HEADER_LEN;
+            case ICMP.PROTOCOL_NUMBER: return ICMP_MIN_HEADER_LEN;
+            default: return 0;
+        }
+    }
+
+    private short getShort(int pos) {
+        return (short) (((data[offset + pos] & 0xff) << 8) |
+                        (data[offset + pos + 1] & 0xff));
+    }
+
+    private int getInt(int pos) {
+        return ((data[offset + pos] & 0xff) << 24) |
+               ((data[offset + pos + 1] & 0xff) << 16) |
+               ((data[offset + pos + 2] & 0xff) << 8) |
+               (data[offset + pos + 3] & 0xff);
+    }
+
+    private long getMac(int pos) {
+        return ((long) (getShort(pos) & 0xffff) << 32) |
+               (getInt(pos + 2) & 0xffffffffL);
+    }
+}
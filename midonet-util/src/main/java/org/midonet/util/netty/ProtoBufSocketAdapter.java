@@ -45,6 +45,7 @@ public class ProtoBufSocketAdapter<T extends GeneratedMessage>
     private final SimpleChannelInboundHandler<T> handler;
     private final T prototype;
     private final SslContext sslCtx;
+    private final ProtobufEncoder encoder;
 
     /**
      * Create a plain adapter pipeline (protobuf-based)
@@ -58,9 +59,21 @@ public class ProtoBufSocketAdapter<T extends GeneratedMessage>
 
     public ProtoBufSocketAdapter(SimpleChannelInboundHandler<T> handler,
                                  T prototype, Option<SslContext> sslCtx) {
+        this(handler, prototype, sslCtx, new ProtobufEncoder());
+    }
+
+    /**
+     * Create an adapter pipeline with a custom encoder for the sent
+     * protobufs. The encoder is shared by all channels, and must be
+     * sharable.
+     */
+    public ProtoBufSocketAdapter(SimpleChannelInboundHandler<T> handler,
+                                 T prototype, Option<SslContext> sslCtx,
+                                 ProtobufEncoder encoder) {
         this.handler = handler;
         this.prototype = prototype;
         this.sslCtx = sslCtx.isDefined()? sslCtx.get(): null;
+        this.encoder = encoder;
     }
 
     @Override
@@ -72,7 +85,7 @@ public class ProtoBufSocketAdapter<T extends GeneratedMessage>
         pipe.addLast(new ProtobufVarint32FrameDecoder());
         pipe.addLast(new ProtobufDecoder(prototype));
         pipe.addLast(new ProtobufVarint32LengthFieldPrepender());
-        pipe.addLast(new ProtobufEncoder());
+        pipe.addLast(encoder);
 
         // process request
         pipe.addLast(executor, handler);
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLongArray}
+
+object ConcurrentLongSet {
+    /** The largest key the set can hold. */
+    final val MaxKey = (1L << 62) - 3
+
+    private final val Empty = 0L
+    private final val Removed = (1L << 62) - 1
+    private final val Frozen = 1L << 62
+
+    private final val Absent = 0
+    private final val Present = 1
+    private final val Added = 2
+    private final val Retry = 3
+
+    private final class Table(capacity: Int) {
+        val slots = new AtomicLongArray(capacity)
+        val mask = capacity - 1
+        val threshold = capacity - (capacity >> 2)
+        val used = new AtomicInteger
+    }
+
+    private def hash(key: Long): Int = {
+        var h = key
+        h ^= h >>> 33
+        h *= 0xff51afd7ed558ccdL
+        h ^= h >>> 33
+        h.toInt
+    }
+
+    private def capacityFor(size: Int): Int =
+        Integer.highestOneBit(Math.max(size, 2) * 4 - 1)
+}
+
+/**
+ * A concurrent set of non-negative long keys, using open addressing over an
+ * array of primitive longs, such that adding and removing a key allocates
+ * nothing. Adding and removing keys are lock-free, except while the table is
+ * resized: the resizing thread holds the set lock and freezes every slot of
+ * the old table, and the threads finding a frozen slot wait for the lock
+ * before retrying on the new table. Removed keys leave a tombstone, which are
+ * purged when the table is resized.
+ */
+final class ConcurrentLongSet(initialCapacity: Int = 8) {
+    import ConcurrentLongSet._
+
+    @volatile private var table = new Table(capacityFor(initialCapacity))
+    private val count = new AtomicInteger
+
+    def size: Int = count.get
+
+    def isEmpty: Boolean = count.get == 0
+
+    /** Adds the key, and returns false if the set already contains it. */
+    def add(key: Long): Boolean = {
+        checkKey(key)
+        while (true) {
+            val t = table
+            tryAdd(t, key) match {
+                case Added => count.incrementAndGet(); return true
+                case Present => return false
+                case _ => resize(t)
+            }
+        }
+        false
+    }
+
+    /** Removes the key, and returns false if the set does not contain it. */
+    def remove(key: Long): Boolean = {
+        checkKey(key)
+        while (true) {
+            val t = table
+            tryRemove(t, key) match {
+                case Present => count.decrementAndGet(); return true
+                case Absent => return false
+                case _ => awaitResize()
+            }
+        }
+        false
+    }
+
+    def contains(key: Long): Boolean = {
+        checkKey(key)
+        val stored = key + 1
+        val t = table
+        var index = hash(key) & t.mask
+        var probes = 0
+        while (probes <= t.mask) {
+            // A frozen slot still holds the value it had before the resize.
+            val value = t.slots.get(index) & ~Frozen
+            if (value == stored) {
+                return true
+            } else if (value == Empty) {
+                return false
+            }
+            index = (index + 1) & t.mask
+            probes += 1
+        }
+        false
+    }
+
+    private def tryAdd(t: Table, key: Long): Int = {
+        val stored = key + 1
+        var index = hash(key) & t.mask
+        var probes = 0
+        while (probes <= t.mask) {
+            val value = t.slots.get(index)
+            if (value == stored) {
+                return Present
+            } else if ((value & Frozen) != 0) {
+                return Retry
+            } else if (value == Empty) {
+                if (t.used.get >= t.threshold) {
+                    return Retry
+                }
+                if (t.slots.compareAndSet(index, Empty, stored)) {
+                    t.used.incrementAndGet()
+                    return Added
+                }
+                // Another thread took the slot: read it again.
+            } else {
+                index = (index + 1) & t.mask
+                probes += 1
+            }
+        }
+        Retry
+    }
+
+    private def tryRemove(t: Table, key: Long): Int = {
+        val stored = key + 1
+        var index = hash(key) & t.mask
+        var probes = 0
+        while (probes <= t.mask) {
+            val value = t.slots.get(index)
+            if (value == stored) {
+                if (t.slots.compareAndSet(index, stored, Removed)) {
+                    return Present
+                }
+                // The slot was removed or frozen: read it again.
+            } else if ((value & Frozen) != 0) {
+                return Retry
+            } else if (value == Empty) {
+                return Absent
+            } else {
+                index = (index + 1) & t.mask
+                probes += 1
+            }
+        }
+        Absent
+    }
+
+    /**
+     * Replaces the given table by a new one holding its keys, unless another
+     * thread already replaced it.
+     */
+    private def resize(t: Table): Unit = synchronized {
+        if (table ne t) {
+            return
+        }
+        var live = 0
+        var index = 0
+        while (index <= t.mask) {
+            var value = t.slots.get(index)
+            while (!t.slots.compareAndSet(index, value, value | Frozen)) {
+                value = t.slots.get(index)
+            }
+            if (value != Empty && value != Removed) {
+                live += 1
+            }
+            index += 1
+        }
+
+        val next = new Table(capacityFor(live + 1))
+        index = 0
+        while (index <= t.mask) {
+            val value = t.slots.get(index) & ~Frozen
+            if (value != Empty && value != Removed) {
+                var slot = hash(value - 1) & next.mask
+                while (next.slots.get(slot) != Empty) {
+                    slot = (slot + 1) & next.mask
+                }
+                next.slots.set(slot, value)
+                next.used.incrementAndGet()
+            }
+            index += 1
+        }
+        table = next
+    }
+
+    /** Waits for the resizing thread, if any, to publish the new table. */
+    private def awaitResize(): Unit = synchronized { }
+
+    private def checkKey(key: Long): Unit = {
+        if (key < 0 || key > MaxKey)
+            throw new IllegalArgumentException(s"Invalid key $key")
+    }
+}
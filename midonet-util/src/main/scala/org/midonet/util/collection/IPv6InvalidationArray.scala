@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import java.util.{ArrayList, HashMap}
+
+object IPv6InvalidationArray {
+    val NO_ROUTE_VALUE = -1
+    val VALUE_MASK = (1 << 8) - 1
+    val NO_VALUE = VALUE_MASK
+    val NOT_TRACKED = -1
+
+    val DefaultCapacity = 1 << 16
+
+    def makeEntry(refCount: Int, v: Int): Int = (refCount << 8) | (v & VALUE_MASK)
+    def extractRefCount(entry: Int) = entry >> 8
+    def extractValue(entry: Int) = entry & VALUE_MASK
+
+    private def newArray = new ThreadLocal[IPv6InvalidationArray] {
+        override def initialValue = new IPv6InvalidationArray()
+    }
+
+    private var theInvalidationArray = newArray
+
+    def reset(): Unit = {
+        theInvalidationArray = newArray
+    }
+
+    def current = theInvalidationArray.get()
+
+    private final class Bucket {
+        var keys = new Array[Int](8)
+        var entries = new Array[Int](8)
+        var size = 0
+
+        def indexOf(key: Int): Int = {
+            var i = 0
+            while (i < size) {
+                if (keys(i) == key)
+                    return i
+                i += 1
+            }
+            -1
+        }
+
+        def add(key: Int, entry: Int): Unit = {
+            if (size == keys.length) {
+                keys = java.util.Arrays.copyOf(keys, size * 2)
+                entries = java.util.Arrays.copyOf(entries, size * 2)
+            }
+            keys(size) = key
+            entries(size) = entry
+            size += 1
+        }
+
+        def remove(index: Int): Unit = {
+            size -= 1
+            keys(index) = keys(size)
+            entries(index) = entries(size)
+        }
+    }
+}
+
+/*
+ * The IPv6 counterpart of the IPv4InvalidationArray: tracks the destination
+ * addresses whose flows should be invalidated upon a routing table change,
+ * along with their reference counts and the prefix length of the route that
+ * matched them.
+ *
+ * Implementation notes:
+ *
+ *   * Addresses are tracked with /64 granularity, the usual size of an IPv6
+ *     subnet, so the keys are the upper words of the addresses. Routes longer
+ *     than /64 invalidate the whole /64 they fall in.
+ *   * The keys form a two-level hashed trie: the upper 32 bits select a bucket
+ *     in a hash map, and each bucket keeps the lower 32 bits of its keys in a
+ *     small array. Deleting a prefix of /32 or longer only visits one bucket.
+ *   * The number of tracked /64s is bounded by the capacity. Once full, ref()
+ *     returns NOT_TRACKED, and the caller must use a coarser invalidation
+ *     mechanism for that destination.
+ */
+final class IPv6InvalidationArray(val capacity: Int) {
+    import IPv6InvalidationArray._
+
+    private val buckets = new HashMap[Integer, Bucket]()
+    private val bucketPool = new ArrayObjectPool[Bucket](64, _ => new Bucket)
+    private var count = 0
+
+    def this() = this(IPv6InvalidationArray.DefaultCapacity)
+
+    private def hi(key: Long): Int = (key >>> 32).toInt
+    private def lo(key: Long): Int = key.toInt
+
+    private def mask(prefixLen: Int): Int =
+        if (prefixLen <= 0) 0 else ~0 << (32 - prefixLen)
+
+    /** The number of tracked /64 prefixes. */
+    def size: Int = count
+
+    /*
+     * Deletes and returns the /64 prefixes under the given prefix as long as
+     * they matched a routing table entry whose prefix length is shorter or
+     * equal to the prefix length of this request.
+     */
+    def deletePrefix(key: Long, prefixLen: Int): ArrayList[Long] = {
+        val deletions = new ArrayList[Long]()
+        val len = Math.min(prefixLen, 64)
+        if (len >= 32) {
+            val bucket = buckets.get(hi(key))
+            if (bucket ne null)
+                deleteFromBucket(hi(key), bucket, lo(key), mask(len - 32),
+                                 prefixLen, deletions)
+        } else {
+            val upperMask = mask(len)
+            val it = buckets.entrySet().iterator()
+            while (it.hasNext) {
+                val e = it.next()
+                if (((e.getKey ^ hi(key)) & upperMask) == 0) {
+                    deleteFromBucket(e.getKey, e.getValue, 0, 0, prefixLen,
+                                     deletions)
+                    if (e.getValue.size == 0) {
+                        it.remove()
+                        bucketPool.offer(e.getValue)
+                    }
+                }
+            }
+            return deletions
+        }
+        cleanIfEmpty(hi(key))
+        deletions
+    }
+
+    private def deleteFromBucket(upper: Int, bucket: Bucket, lower: Int,
+                                 lowerMask: Int, prefixLen: Int,
+                                 deletions: ArrayList[Long]): Unit = {
+        var i = 0
+        while (i < bucket.size) {
+            val originalMatchLen = extractValue(bucket.entries(i))
+            if (((bucket.keys(i) ^ lower) & lowerMask) == 0 &&
+                originalMatchLen <= prefixLen) {
+                deletions.add((upper.toLong << 32) |
+                              (bucket.keys(i) & 0xFFFFFFFFL))
+                bucket.remove(i)
+                count -= 1
+            } else {
+                i += 1
+            }
+        }
+    }
+
+    private def cleanIfEmpty(upper: Int): Unit = {
+        val bucket = buckets.get(upper)
+        if ((bucket ne null) && bucket.size == 0) {
+            buckets.remove(upper)
+            bucketPool.offer(bucket)
+        }
+    }
+
+    /*
+     * Inserts or increments the reference count for the /64 prefix of an
+     * address and its given prefix match length. Like in the IPv4 array, the
+     * value is stored incremented by one, and matches of host routes are not
+     * tracked. Returns NOT_TRACKED if the array is full.
+     */
+    def ref(key: Long, v: Int): Int = {
+        if (v < 128) {
+            var bucket = buckets.get(hi(key))
+            val index = if (bucket ne null) bucket.indexOf(lo(key)) else -1
+            if (index >= 0) {
+                val e = bucket.entries(index)
+                val refs = extractRefCount(e) + 1
+                val newV = Math.min(v, extractValue(e) - 1)
+                bucket.entries(index) = makeEntry(refs, newV + 1)
+                refs
+            } else if (count >= capacity) {
+                NOT_TRACKED
+            } else {
+                if (bucket eq null) {
+                    bucket = bucketPool.take
+                    if (bucket eq null)
+                        bucket = new Bucket
+                    buckets.put(hi(key), bucket)
+                }
+                bucket.add(lo(key), makeEntry(1, v + 1))
+                count += 1
+                1
+            }
+        } else {
+            0
+        }
+    }
+
+    /*
+     * Retrieves the prefix match length associated with a /64 prefix. Returns
+     * NO_VALUE if the prefix is not contained in this invalidation array.
+     */
+    def apply(key: Long): Int = {
+        val bucket = buckets.get(hi(key))
+        val index = if (bucket ne null) bucket.indexOf(lo(key)) else -1
+        if (index >= 0) extractValue(bucket.entries(index)) - 1
+        else NO_VALUE
+    }
+
+    def countRefs(key: Long): Int = {
+        val bucket = buckets.get(hi(key))
+        val index = if (bucket ne null) bucket.indexOf(lo(key)) else -1
+        if (index >= 0) extractRefCount(bucket.entries(index)) else 0
+    }
+
+    /*
+     * Decrements the reference count on a /64 prefix.
+     */
+    def unref(key: Long): Int = {
+        val bucket = buckets.get(hi(key))
+        val index = if (bucket ne null) bucket.indexOf(lo(key)) else -1
+        if (index < 0)
+            return -1
+        val entry = bucket.entries(index)
+        extractRefCount(entry) match {
+            case 1 =>
+                bucket.remove(index)
+                count -= 1
+                cleanIfEmpty(hi(key))
+                0
+            case c =>
+                bucket.entries(index) = makeEntry(c - 1, extractValue(entry))
+                c - 1
+        }
+    }
+
+    def isEmpty: Boolean = count == 0
+
+    def nonEmpty = !isEmpty
+}
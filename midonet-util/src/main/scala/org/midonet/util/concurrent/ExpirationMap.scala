@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import org.midonet.util.collection.Reducer
+
+/**
+ * A map where each entry has an associated reference counter. Entries whose
+ * counter drops to 0 become idle and are removed by a subsequent call to
+ * obliterateIdleEntries() once their expiration interval has elapsed. An idle
+ * entry can be resurrected by a new reference before that happens.
+ */
+trait ExpirationMap[K <: AnyRef, V >: Null] {
+
+    /**
+     * Adds or replaces the value for the given key, incrementing its reference
+     * count. Returns the previous value, or null if there was none.
+     */
+    def putAndRef(key: K, value: V): V
+
+    /**
+     * Returns the value associated with the given key, or null.
+     */
+    def get(key: K): V
+
+    /**
+     * Increments the reference count of an existing key, returning its value,
+     * or null if there is no such key.
+     */
+    def ref(key: K): V
+
+    /**
+     * Returns the reference count of the given key.
+     */
+    def getRefCount(key: K): Int
+
+    /**
+     * Decrements the reference count of the given key, scheduling it for
+     * expiration if the count reaches 0.
+     */
+    def unref(key: K, currentTimeMillis: Long): V
+
+    /**
+     * Folds over all the entries in the map.
+     */
+    def fold[U](seed: U, func: Reducer[K, V, U]): U
+
+    /**
+     * Removes the idle entries whose expiration time has elapsed.
+     */
+    def obliterateIdleEntries(currentTimeMillis: Long): Unit
+
+    /**
+     * Removes the idle entries whose expiration time has elapsed, passing
+     * each of them to the given reducer before removal.
+     */
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U]): U
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.concurrent.locks.StampedLock
+
+import scala.concurrent.duration.Duration
+import scala.util.control.NonFatal
+
+import org.midonet.util.collection.Reducer
+import org.midonet.util.logging.Logger
+
+object OpenAddressingExpirationMap {
+    final val DefaultInitialCapacity = 1024
+    final val DefaultWheelTickMillis = 100L
+    final val DefaultWheelSize = 1024
+
+    private final val LoadFactor = 0.7
+    private final val NoIndex = -1
+    private final val Expiring = -1
+
+    private def tableSizeFor(capacity: Int): Int = {
+        val n = Math.max(capacity, 16)
+        Integer.highestOneBit(n - 1) << 1
+    }
+
+    /*
+     * The columns of the table. Each entry occupies the same index in all the
+     * arrays. Besides the key and the value, an entry keeps its hash, reference
+     * count and expiration time inline, as well as its links into the timer
+     * wheel when it is idle.
+     */
+    private final class Slots(val capacity: Int, wheelSize: Int) {
+        val mask = capacity - 1
+        val threshold = (capacity * LoadFactor).toInt
+        val keys = new Array[AnyRef](capacity)
+        val values = new Array[AnyRef](capacity)
+        val hashes = new Array[Int](capacity)
+        val refCounts = new Array[Int](capacity)
+        val expirations = new Array[Long](capacity)
+        val buckets = Array.fill[Int](capacity)(NoIndex)
+        val next = Array.fill[Int](capacity)(NoIndex)
+        val prev = Array.fill[Int](capacity)(NoIndex)
+        val heads = Array.fill[Int](wheelSize)(NoIndex)
+    }
+}
+
+/**
+ * An [[ExpirationMap]] that stores its entries in a set of parallel arrays
+ * using open addressing with linear probing, instead of allocating per-entry
+ * metadata objects, reference counters and expiration queue nodes. Idle
+ * entries are tracked by a hashed timer wheel whose buckets are doubly linked
+ * lists threaded through the table itself, so that scheduling and unscheduling
+ * an expiration is O(1) and allocation free.
+ *
+ * The map is meant to be owned by a single thread, which performs the puts and
+ * calls obliterateIdleEntries(), while other threads are allowed to read, ref
+ * and unref entries:
+ *
+ *   + Mutations are serialized by the write mode of a StampedLock. Critical
+ *     sections are a handful of array accesses long.
+ *
+ *   + get() uses an optimistic read, falling back to the read lock if a
+ *     writer interferes.
+ *
+ *   + obliterateIdleEntries() marks the expired entries with a reference count
+ *     of -1 and calls into the reducer without holding the lock, removing them
+ *     afterwards. As in [[TimedExpirationMap]], a ref() racing with the
+ *     expiration of a key fails, and a putAndRef() for that key waits until
+ *     the key is removed, preserving the happens-before relationship between
+ *     the reducer and the re-insertion of the key.
+ *
+ *   + fold() is weakly consistent, similar to an iteration over a
+ *     ConcurrentHashMap.
+ *
+ * Timer wheel buckets span `wheelTickMillis` and entries expiring more than a
+ * wheel revolution away remain in their bucket until they are due, such that
+ * expiration times are always honoured exactly.
+ */
+final class OpenAddressingExpirationMap[K <: AnyRef, V >: Null](
+        log: Logger,
+        expirationFor: K => Duration,
+        initialCapacity: Int = OpenAddressingExpirationMap.DefaultInitialCapacity,
+        wheelTickMillis: Long = OpenAddressingExpirationMap.DefaultWheelTickMillis,
+        wheelSize: Int = OpenAddressingExpirationMap.DefaultWheelSize)
+    extends ExpirationMap[K, V] {
+
+    import OpenAddressingExpirationMap._
+
+    require(wheelTickMillis > 0, "The wheel tick must be positive")
+    require(Integer.bitCount(wheelSize) == 1,
+            "The wheel size must be a power of two")
+
+    private def logger = log.wrapper
+
+    private val lock = new StampedLock
+    @volatile private var slots = new Slots(tableSizeFor(initialCapacity),
+                                            wheelSize)
+    private var entries = 0
+    private var currentTick = 0L
+
+    // Scratch space for the entries being expired, only used by the thread
+    // calling obliterateIdleEntries()
+    private var expiredKeys = new Array[AnyRef](64)
+    private var expiredValues = new Array[AnyRef](64)
+
+    /**
+     * Returns the number of entries in the map, including idle ones.
+     */
+    def size: Int = {
+        val stamp = lock.readLock()
+        try entries finally lock.unlockRead(stamp)
+    }
+
+    /**
+     * Returns the current capacity of the underlying table.
+     */
+    def capacity: Int = slots.capacity
+
+    override def putAndRef(key: K, value: V): V = {
+        val hash = spread(key.hashCode)
+        while (true) {
+            val stamp = lock.writeLock()
+            try {
+                var s = slots
+                val index = indexOf(s, key, hash)
+                if (index != NoIndex) {
+                    val count = s.refCounts(index)
+                    if (count != Expiring) {
+                        val oldValue = s.values(index).asInstanceOf[V]
+                        if (count == 0) {
+                            unschedule(s, index)
+                            logger.debug(log.marker, s"Unscheduling removal of $key")
+                        }
+                        s.refCounts(index) = count + 1
+                        s.values(index) = value
+                        return oldValue
+                    }
+                    /* Retry, a deletion is in progress for this key */
+                } else {
+                    if (entries >= s.threshold) {
+                        resize()
+                        s = slots
+                    }
+                    val free = insert(s, key, hash)
+                    s.values(free) = value
+                    s.refCounts(free) = 1
+                    s.expirations(free) = Long.MaxValue
+                    entries += 1
+                    logger.debug(log.marker,
+                                 s"Incrementing reference count of $key to 1")
+                    return null
+                }
+            } finally {
+                lock.unlockWrite(stamp)
+            }
+            Thread.`yield`()
+        }
+        null // not reached
+    }
+
+    override def get(key: K): V = {
+        val hash = spread(key.hashCode)
+        val stamp = lock.tryOptimisticRead()
+        if (stamp != 0L) {
+            try {
+                val value = valueOf(key, hash)
+                if (lock.validate(stamp))
+                    return value
+            } catch {
+                // A concurrent writer may have left us with an inconsistent
+                // view of the table, the validation would fail anyway.
+                case NonFatal(_) =>
+            }
+        }
+        val readStamp = lock.readLock()
+        try valueOf(key, hash) finally lock.unlockRead(readStamp)
+    }
+
+    override def getRefCount(key: K): Int = {
+        val hash = spread(key.hashCode)
+        val stamp = lock.readLock()
+        try {
+            val s = slots
+            val index = indexOf(s, key, hash)
+            if (index == NoIndex) 0 else s.refCounts(index)
+        } finally {
+            lock.unlockRead(stamp)
+        }
+    }
+
+    override def ref(key: K): V = {
+        val hash = spread(key.hashCode)
+        val stamp = lock.writeLock()
+        try {
+            val s = slots
+            val index = indexOf(s, key, hash)
+            if (index == NoIndex || s.refCounts(index) == Expiring) {
+                null
+            } else {
+                val newCount = s.refCounts(index) + 1
+                s.refCounts(index) = newCount
+                logger.debug(log.marker,
+                             s"Incrementing ref count of $key to $newCount")
+                if (newCount == 1) {
+                    unschedule(s, index)
+                    logger.debug(log.marker, s"Unscheduling removal of $key")
+                }
+                s.values(index).asInstanceOf[V]
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    override def unref(key: K, currentTimeMillis: Long): V = {
+        val hash = spread(key.hashCode)
+        val stamp = lock.writeLock()
+        try {
+            val s = slots
+            val index = indexOf(s, key, hash)
+            if (index == NoIndex) {
+                null
+            } else {
+                val count = s.refCounts(index)
+                if (count <= 0) {
+                    logger.error(log.marker,
+                                 s"Decrement a ref count past 0 for $key")
+                } else {
+                    s.refCounts(index) = count - 1
+                    logger.debug(log.marker,
+                                 s"Decrementing reference count of $key to ${count - 1}")
+                    if (count == 1) {
+                        logger.debug(log.marker, s"Scheduling removal of $key")
+                        s.expirations(index) =
+                            currentTimeMillis + expirationFor(key).toMillis
+                        schedule(s, index)
+                    }
+                }
+                s.values(index).asInstanceOf[V]
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+        val s = slots
+        var acc = seed
+        var index = 0
+        while (index < s.capacity) {
+            val key = s.keys(index)
+            val value = s.values(index)
+            if ((key ne null) && (s.keys(index) eq key)) {
+                acc = func(acc, key.asInstanceOf[K], value.asInstanceOf[V])
+            }
+            index += 1
+        }
+        acc
+    }
+
+    private val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    override def obliterateIdleEntries(currentTimeMillis: Long): Unit =
+        obliterateIdleEntries(currentTimeMillis, (), identityReducer)
+
+    /**
+     * Cleans up resources that have had their reference count at 0 for longer
+     * than the configured expiration.
+     *
+     * WARNING: This method is not thread-safe for multiple callers.
+     */
+    override def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                          reducer: Reducer[K, V, U]): U = {
+        val count = collectExpired(currentTimeMillis)
+        if (count == 0)
+            return seed
+
+        var acc = seed
+        try {
+            var i = 0
+            while (i < count) {
+                logger.debug(log.marker, s"Forgetting entry ${expiredKeys(i)}")
+                acc = reducer(acc, expiredKeys(i).asInstanceOf[K],
+                              expiredValues(i).asInstanceOf[V])
+                i += 1
+            }
+        } finally {
+            removeExpired(count)
+        }
+        acc
+    }
+
+    /*
+     * Walks the timer wheel buckets elapsed since the last call, marking the
+     * due entries as expiring and copying them to the scratch arrays. Returns
+     * the number of expired entries.
+     */
+    private def collectExpired(currentTimeMillis: Long): Int = {
+        val stamp = lock.writeLock()
+        try {
+            val s = slots
+            val nowTick = currentTimeMillis / wheelTickMillis
+            val ticks =
+                if (nowTick < currentTick) 0L
+                else Math.min(nowTick - currentTick + 1, wheelSize.toLong)
+            var count = 0
+            var tick = 0L
+            while (tick < ticks) {
+                val bucket = ((currentTick + tick) & (wheelSize - 1)).toInt
+                var index = s.heads(bucket)
+                while (index != NoIndex) {
+                    val next = s.next(index)
+                    if (s.expirations(index) <= currentTimeMillis) {
+                        unschedule(s, index)
+                        s.refCounts(index) = Expiring
+                        if (count == expiredKeys.length) {
+                            expiredKeys = java.util.Arrays.copyOf(
+                                expiredKeys, count << 1)
+                            expiredValues = java.util.Arrays.copyOf(
+                                expiredValues, count << 1)
+                        }
+                        expiredKeys(count) = s.keys(index)
+                        expiredValues(count) = s.values(index)
+                        count += 1
+                    }
+                    index = next
+                }
+                tick += 1
+            }
+            if (nowTick > currentTick)
+                currentTick = nowTick
+            count
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    private def removeExpired(count: Int): Unit = {
+        val stamp = lock.writeLock()
+        try {
+            val s = slots
+            var i = 0
+            while (i < count) {
+                val key = expiredKeys(i)
+                val index = indexOf(s, key, spread(key.hashCode))
+                if (index != NoIndex && s.refCounts(index) == Expiring)
+                    remove(s, index)
+                expiredKeys(i) = null
+                expiredValues(i) = null
+                i += 1
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    @inline private def spread(hash: Int): Int = {
+        val h = hash * 0x9E3779B9
+        h ^ (h >>> 16)
+    }
+
+    private def valueOf(key: K, hash: Int): V = {
+        val s = slots
+        val index = indexOf(s, key, hash)
+        if (index == NoIndex || s.refCounts(index) == Expiring) null
+        else s.values(index).asInstanceOf[V]
+    }
+
+    private def indexOf(s: Slots, key: AnyRef, hash: Int): Int = {
+        var index = hash & s.mask
+        var probes = 0
+        while (probes < s.capacity) {
+            val k = s.keys(index)
+            if (k eq null)
+                return NoIndex
+            if (s.hashes(index) == hash && ((k eq key) || k.equals(key)))
+                return index
+            index = (index + 1) & s.mask
+            probes += 1
+        }
+        NoIndex
+    }
+
+    /*
+     * Claims the first free slot for a key known not to be in the table.
+     */
+    private def insert(s: Slots, key: AnyRef, hash: Int): Int = {
+        var index = hash & s.mask
+        while (s.keys(index) ne null) {
+            index = (index + 1) & s.mask
+        }
+        s.keys(index) = key
+        s.hashes(index) = hash
+        index
+    }
+
+    /*
+     * Removes the entry at the given slot, shifting back the entries of the
+     * same probe sequence so that no tombstones are needed.
+     */
+    private def remove(s: Slots, slot: Int): Unit = {
+        unschedule(s, slot)
+        var free = slot
+        var index = (slot + 1) & s.mask
+        while (s.keys(index) ne null) {
+            val ideal = s.hashes(index) & s.mask
+            if (((index - ideal) & s.mask) >= ((index - free) & s.mask)) {
+                move(s, index, free)
+                free = index
+            }
+            index = (index + 1) & s.mask
+        }
+        s.keys(free) = null
+        s.values(free) = null
+        s.refCounts(free) = 0
+        s.expirations(free) = 0L
+        entries -= 1
+    }
+
+    private def move(s: Slots, from: Int, to: Int): Unit = {
+        s.keys(to) = s.keys(from)
+        s.values(to) = s.values(from)
+        s.hashes(to) = s.hashes(from)
+        s.refCounts(to) = s.refCounts(from)
+        s.expirations(to) = s.expirations(from)
+        val bucket = s.buckets(from)
+        s.buckets(to) = bucket
+        s.next(to) = s.next(from)
+        s.prev(to) = s.prev(from)
+        if (bucket != NoIndex) {
+            if (s.prev(to) != NoIndex) s.next(s.prev(to)) = to
+            else s.heads(bucket) = to
+            if (s.next(to) != NoIndex) s.prev(s.next(to)) = to
+        }
+        s.buckets(from) = NoIndex
+        s.next(from) = NoIndex
+        s.prev(from) = NoIndex
+    }
+
+    private def schedule(s: Slots, index: Int): Unit = {
+        val tick = Math.max(s.expirations(index) / wheelTickMillis, currentTick)
+        val bucket = (tick & (wheelSize - 1)).toInt
+        val head = s.heads(bucket)
+        s.next(index) = head
+        s.prev(index) = NoIndex
+        if (head != NoIndex)
+            s.prev(head) = index
+        s.heads(bucket) = index
+        s.buckets(index) = bucket
+    }
+
+    private def unschedule(s: Slots, index: Int): Unit = {
+        val bucket = s.buckets(index)
+        if (bucket != NoIndex) {
+            val next = s.next(index)
+            val prev = s.prev(index)
+            if (prev != NoIndex) s.next(prev) = next
+            else s.heads(bucket) = next
+            if (next != NoIndex)
+                s.prev(next) = prev
+            s.buckets(index) = NoIndex
+            s.next(index) = NoIndex
+            s.prev(index) = NoIndex
+        }
+    }
+
+    private def resize(): Unit = {
+        val old = slots
+        val s = new Slots(old.capacity << 1, wheelSize)
+        var i = 0
+        while (i < old.capacity) {
+            val key = old.keys(i)
+            if (key ne null) {
+                val index = insert(s, key, old.hashes(i))
+                s.values(index) = old.values(i)
+                s.refCounts(index) = old.refCounts(i)
+                s.expirations(index) = old.expirations(i)
+                if (old.buckets(i) != NoIndex)
+                    schedule(s, index)
+            }
+            i += 1
+        }
+        slots = s
+    }
+}
@@ -81,7 +81,8 @@ import org.midonet.util.logging.Logger
  *            guaranteeing the happens-before relationship described above.
  */
 final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
-                                                       expirationFor: K => Duration) {
+                                                       expirationFor: K => Duration)
+        extends ExpirationMap[K, V] {
 
     case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long)
 
@@ -126,7 +127,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
     }
 
     @tailrec
-    def putAndRef(key: K, value: V): V =
+    override def putAndRef(key: K, value: V): V =
         refCountMap.get(key) match {
             case m@Metadata(oldValue, count, _) =>
                 if (ref(key) != null) {
@@ -155,18 +156,18 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
             case _ => putIfAbsentAndRef(key, value)
         }
 
-    def get(key: K): V = {
+    override def get(key: K): V = {
         val metadata = refCountMap.get(key)
         if ((metadata eq null) || metadata.refCount.get == -1) null
         else metadata.value
     }
 
-    def getRefCount(key: K): Int = refCountMap.get(key) match {
+    override def getRefCount(key: K): Int = refCountMap.get(key) match {
         case null => 0
         case Metadata(_, refCount, _) => refCount.get
     }
 
-    def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
         var acc = seed
         val it = refCountMap.entrySet().iterator()
         while (it.hasNext) {
@@ -176,7 +177,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
         acc
     }
 
-    def ref(key: K): V =
+    override def ref(key: K): V =
         refCountMap.get(key) match {
             case m@Metadata(oldValue, count, _) =>
                 val newCount = tryIncIfGreaterThan(count, -1)
@@ -216,7 +217,7 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
         }
     }
 
-    def unref(key: K, currentTimeMillis: Long): V =
+    override def unref(key: K, currentTimeMillis: Long): V =
         refCountMap.get(key) match {
             case null =>
                 null
@@ -267,11 +268,11 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
         override def apply(acc: Unit, key: K, value: V): Unit = ()
     }
 
-    def obliterateIdleEntries[U](currentTimeMillis: Long): Unit =
+    override def obliterateIdleEntries(currentTimeMillis: Long): Unit =
         obliterateIdleEntries(currentTimeMillis, (), identityReducer)
 
-    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
-                                 reducer: Reducer[K, V, U]): U = {
+    override def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                          reducer: Reducer[K, V, U]): U = {
         var acc = seed
         val it = expiring.elements()
         while (it.hasMoreElements) {
@@ -35,10 +35,12 @@ import scala.concurrent.{Future, Promise}
  * @param handler is the protocol buffer message handler
  * @param prototype is the 'default instance' for the received protobufs
  * @param uri is the websocket url.
+ * @param encoder is the (sharable) encoder for the sent protobufs
  */
 abstract class ProtoBufWebSocketAdapter[T <: GeneratedMessage](
     val handler: SimpleChannelInboundHandler[T], val prototype: T,
-    val uri: URI, sslCtx: Option[SslContext])
+    val uri: URI, sslCtx: Option[SslContext],
+    encoder: ProtobufEncoder = new ProtobufEncoder)
     extends ChannelInitializer[SocketChannel] {
 
     import ProtoBufWebSocketAdapter._
@@ -102,7 +104,7 @@ abstract class ProtoBufWebSocketAdapter[T <: GeneratedMessage](
         pipe.addLast(new ProtobufDecoder(prototype))
 
         pipe.addLast(new ProtobufVarint32LengthFieldPrepender())
-        pipe.addLast(new ProtobufEncoder())
+        pipe.addLast(encoder)
 
         pipe.addLast(executor, handler)
     }
@@ -146,8 +148,13 @@ protected object ProtoBufWebSocketAdapter {
  */
 class ProtoBufWebSocketServerAdapter[T <: GeneratedMessage](
     handler: SimpleChannelInboundHandler[T], prototype: T, uri: URI,
-    sslCtx: Option[SslContext] = None)
-    extends ProtoBufWebSocketAdapter(handler, prototype, uri, sslCtx) {
+    sslCtx: Option[SslContext] = None,
+    encoder: ProtobufEncoder = new ProtobufEncoder)
+    extends ProtoBufWebSocketAdapter(handler, prototype, uri, sslCtx, encoder) {
+    def this(handler: SimpleChannelInboundHandler[T], prototype: T,
+             wsPath: String, sslCtx: Option[SslContext],
+             encoder: ProtobufEncoder) =
+        this(handler, prototype, URI.create(wsPath), sslCtx, encoder)
     def this(handler: SimpleChannelInboundHandler[T], prototype: T,
              wsPath: String, sslCtx: Option[SslContext]) =
         this(handler, prototype, URI.create(wsPath), sslCtx)
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPacketView {
+
+    private static final MAC srcMac = MAC.fromString("02:00:00:00:00:01");
+    private static final MAC dstMac = MAC.fromString("02:00:00:00:00:02");
+    private static final IPv4Addr srcIp = IPv4Addr.fromString("10.0.0.1");
+    private static final IPv4Addr dstIp = IPv4Addr.fromString("10.0.0.2");
+
+    private final PacketView view = new PacketView();
+
+    private static Ethernet ethernet(byte protocol, IPacket payload) {
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(srcIp);
+        ip.setDestinationAddress(dstIp);
+        ip.setTtl((byte) 64);
+        ip.setProtocol(protocol);
+        ip.setPayload(payload);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(srcMac);
+        eth.setDestinationMACAddress(dstMac);
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    private static Ethernet tcpSyn() {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(40000);
+        tcp.setDestinationPort(80);
+        tcp.setFlag(TCP.Flag.Syn, true);
+        tcp.setPayload(new Data(new byte[0]));
+        return ethernet(TCP.PROTOCOL_NUMBER, tcp);
+    }
+
+    private PacketView wrap(Ethernet eth) {
+        byte[] data = eth.serialize();
+        return view.wrap(data, 0, data.length);
+    }
+
+    @Test
+    public void testUdp() {
+        Ethernet eth = Packets.udp(srcMac, dstMac, srcIp, dstIp,
+                                   (short) 5000, (short) 53, new byte[8]);
+        wrap(eth);
+
+        assertTrue(view.isValid());
+        assertEquals(srcMac.asLong(), view.sourceMac());
+        assertEquals(dstMac.asLong(), view.destinationMac());
+        assertFalse(view.isBroadcast());
+        assertEquals(IPv4.ETHERTYPE, view.etherType());
+        assertEquals(0, view.vlanCount());
+        assertTrue(view.isIPv4());
+        assertEquals(srcIp.addr(), view.ipv4Source());
+        assertEquals(dstIp.addr(), view.ipv4Destination());
+        assertEquals(UDP.PROTOCOL_NUMBER, view.networkProtocol());
+        assertTrue(view.isUdp());
+        assertFalse(view.isTcp());
+        assertEquals(5000, view.sourcePort());
+        assertEquals(53, view.destinationPort());
+    }
+
+    @Test
+    public void testTcpFlags() {
+        wrap(tcpSyn());
+
+        assertTrue(view.isTcp());
+        assertEquals(40000, view.sourcePort());
+        assertEquals(80, view.destinationPort());
+        assertEquals(TCP.Flag.Syn.bit, view.tcpFlags());
+        assertEquals(64, view.ttl());
+    }
+
+    @Test
+    public void testIcmp() {
+        ICMP icmp = new ICMP();
+        icmp.setEchoRequest(1, (short) 2, new byte[4]);
+        wrap(ethernet(ICMP.PROTOCOL_NUMBER, icmp));
+
+        assertTrue(view.isIcmp());
+        assertEquals(ICMP.TYPE_ECHO_REQUEST, view.icmpType());
+        assertEquals(0, view.icmpCode());
+        assertEquals(0, view.sourcePort());
+    }
+
+    @Test
+    public void testVlanTags() {
+        Ethernet eth = tcpSyn();
+        eth.appendVlanID((short) 100);
+        eth.appendVlanID((short) 200);
+        wrap(eth);
+
+        assertEquals(2, view.vlanCount());
+        assertEquals(eth.getVlanIDs().get(0).shortValue(), view.vlanId(0));
+        assertEquals(eth.getVlanIDs().get(1).shortValue(), view.vlanId(1));
+        assertEquals(IPv4.ETHERTYPE, view.etherType());
+        assertEquals(22, view.networkOffset());
+        assertTrue(view.isTcp());
+        assertEquals(80, view.destinationPort());
+    }
+
+    @Test
+    public void testArp() {
+        wrap(Packets.arpRequest(srcMac, srcIp, dstIp));
+
+        assertTrue(view.isValid());
+        assertTrue(view.isBroadcast());
+        assertEquals(ARP.ETHERTYPE, view.etherType());
+        assertFalse(view.isIPv4());
+        assertEquals(-1, view.transportOffset());
+        assertEquals(0, view.networkProtocol());
+    }
+
+    @Test
+    public void testTruncatedFrames() {
+        byte[] data = tcpSyn().serialize();
+
+        view.wrap(data, 0, 10);
+        assertFalse(view.isValid());
+        assertEquals(0, view.etherType());
+
+        view.wrap(data, 0, 20);
+        assertTrue(view.isValid());
+        assertFalse(view.isIPv4());
+        assertEquals(0, view.ipv4Source());
+
+        view.wrap(data, 0, 40);
+        assertTrue(view.isIPv4());
+        assertFalse(view.isTcp());
+        assertEquals(0, view.destinationPort());
+    }
+
+    @Test
+    public void testTruncatedIpHeader() throws MalformedPacketException {
+        byte[] data = Arrays.copyOf(tcpSyn().serialize(),
+                                    Ethernet.MIN_HEADER_LEN + 10);
+
+        view.wrap(data, 0, data.length);
+        assertTrue(view.isValid());
+        assertFalse(view.isIPv4());
+        assertEquals(-1, view.transportOffset());
+
+        // A valid view guarantees that the frame can be deserialized.
+        Ethernet eth = new Ethernet();
+        eth.deserialize(ByteBuffer.wrap(data));
+        assertEquals(IPv4.ETHERTYPE, eth.getEtherType());
+        assertTrue(eth.getPayload() instanceof Data);
+    }
+
+    @Test
+    public void testOffsetAndReuse() {
+        byte[] tcp = tcpSyn().serialize();
+        byte[] data = new byte[tcp.length + 8];
+        System.arraycopy(tcp, 0, data, 8, tcp.length);
+        Arrays.fill(data, 0, 8, (byte) 0xff);
+
+        view.wrap(data, 8, tcp.length);
+        assertTrue(view.isTcp());
+        assertEquals(srcMac.asLong(), view.sourceMac());
+
+        wrap(Packets.arpRequest(srcMac, srcIp, dstIp));
+        assertFalse(view.isTcp());
+        assertEquals(0, view.tcpFlags());
+    }
+}
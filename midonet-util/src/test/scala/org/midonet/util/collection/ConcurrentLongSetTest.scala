@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class ConcurrentLongSetTest extends FeatureSpec with Matchers
+                            with GivenWhenThen {
+
+    feature("Set adds and removes keys") {
+        scenario("Single key") {
+            Given("An empty set")
+            val set = new ConcurrentLongSet()
+            set.isEmpty shouldBe true
+
+            Then("Adding a key succeeds once")
+            set.add(0L) shouldBe true
+            set.add(0L) shouldBe false
+            set.contains(0L) shouldBe true
+            set.size shouldBe 1
+
+            And("Removing the key succeeds once")
+            set.remove(0L) shouldBe true
+            set.remove(0L) shouldBe false
+            set.contains(0L) shouldBe false
+            set.isEmpty shouldBe true
+
+            And("The key can be added again")
+            set.add(0L) shouldBe true
+            set.contains(0L) shouldBe true
+        }
+
+        scenario("Largest key") {
+            val set = new ConcurrentLongSet()
+            set.add(ConcurrentLongSet.MaxKey) shouldBe true
+            set.contains(ConcurrentLongSet.MaxKey) shouldBe true
+            set.remove(ConcurrentLongSet.MaxKey) shouldBe true
+        }
+
+        scenario("Invalid keys") {
+            val set = new ConcurrentLongSet()
+            intercept[IllegalArgumentException] {
+                set.add(-1L)
+            }
+            intercept[IllegalArgumentException] {
+                set.add(ConcurrentLongSet.MaxKey + 1)
+            }
+        }
+
+        scenario("Set grows beyond its initial capacity") {
+            Given("A set with a small capacity")
+            val set = new ConcurrentLongSet(2)
+
+            When("Adding many keys")
+            for (key <- 0L until 10000L) {
+                set.add(key * 64) shouldBe true
+            }
+
+            Then("The set contains all keys")
+            set.size shouldBe 10000
+            for (key <- 0L until 10000L) {
+                set.contains(key * 64) shouldBe true
+                set.contains(key * 64 + 1) shouldBe false
+            }
+
+            When("Removing half of the keys")
+            for (key <- 0L until 10000L by 2) {
+                set.remove(key * 64) shouldBe true
+            }
+
+            Then("The set contains the other half")
+            set.size shouldBe 5000
+            for (key <- 0L until 10000L) {
+                set.contains(key * 64) shouldBe (key % 2 == 1)
+            }
+        }
+
+        scenario("Removed keys do not exhaust the table") {
+            val set = new ConcurrentLongSet(4)
+            for (key <- 0L until 100000L) {
+                set.add(key) shouldBe true
+                set.remove(key) shouldBe true
+            }
+            set.isEmpty shouldBe true
+        }
+    }
+
+    feature("Set is thread-safe") {
+        scenario("Concurrent adds and removes") {
+            Given("A set and several threads")
+            val set = new ConcurrentLongSet()
+            val threads = 8
+            val keys = 20000
+            val executor = Executors.newFixedThreadPool(threads)
+            val start = new CountDownLatch(1)
+            val done = new CountDownLatch(threads)
+            @volatile var failed = false
+
+            When("Each thread adds its keys, and removes the odd ones, while " +
+                 "also adding the shared keys")
+            for (thread <- 0 until threads) {
+                executor.submit(new Runnable {
+                    override def run(): Unit = try {
+                        start.await()
+                        for (key <- 0 until keys) {
+                            val k = (key.toLong << 4) | thread
+                            if (!set.add(k)) failed = true
+                            set.add(key.toLong << 4 | 0xf)
+                        }
+                        for (key <- 1 until keys by 2) {
+                            val k = (key.toLong << 4) | thread
+                            if (!set.remove(k)) failed = true
+                        }
+                    } finally {
+                        done.countDown()
+                    }
+                })
+            }
+            start.countDown()
+            done.await(30, TimeUnit.SECONDS) shouldBe true
+            executor.shutdown()
+
+            Then("Every thread added and removed its own keys")
+            failed shouldBe false
+
+            And("The set contains the even keys and the shared keys")
+            set.size shouldBe threads * keys / 2 + keys
+            for (thread <- 0 until threads; key <- 0 until keys) {
+                set.contains((key.toLong << 4) | thread) shouldBe (key % 2 == 0)
+                set.contains((key.toLong << 4) | 0xf) shouldBe true
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import org.junit.runner.RunWith
+import org.scalatest.{BeforeAndAfterEach, FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.packets.IPv6Addr
+
+@RunWith(classOf[JUnitRunner])
+class IPv6InvalidationArrayTest extends FeatureSpec with BeforeAndAfterEach
+                                with Matchers {
+
+    var array: IPv6InvalidationArray = null
+
+    implicit def str2long(str: String): Long = IPv6Addr.fromString(str).upperWord
+
+    val keys: List[Long] = List(
+        "2001:db8:0:0::", "2001:db8:0:1::", "2001:db8:0:2::", "2001:db8:0:3::",
+        "2001:db8:1:0::", "2001:db8:1:1::", "2001:db8:1:100::",
+        "2001:db9:0:0::", "2001:db9:0:1::", "fd00::", "fd00:0:0:1::")
+
+    override def beforeEach() {
+        array = new IPv6InvalidationArray()
+    }
+
+    feature("Invalidation array stores and deletes values") {
+        scenario("Returns -1 when unref'ing an unknown prefix") {
+            array.unref("2001:db8::") should be (-1)
+            array.ref("2001:db8:0:1::", 48)
+            array.unref("2001:db8::") should be (-1)
+        }
+
+        scenario("Stores values") {
+            var v = 0
+            for (k <- keys) {
+                array.ref(k, v)
+                v += 1
+            }
+            array.size shouldBe keys.size
+
+            v = 0
+            for (k <- keys) {
+                array(k) should be (v)
+                v += 1
+            }
+        }
+
+        scenario("Keeps the shortest match length") {
+            array.ref("2001:db8::", 48)
+            array.ref("2001:db8::", 32)
+            array.ref("2001:db8::", 56)
+            array("2001:db8::") should be (32)
+            array.countRefs("2001:db8::") should be (3)
+        }
+
+        scenario("Deletes values") {
+            for (k <- keys) { array.ref(k, 48) }
+            for (k <- keys) {
+                array.unref(k) should be (0)
+                array(k) should be (IPv6InvalidationArray.NO_VALUE)
+            }
+            array should be (`empty`)
+        }
+
+        scenario("Ignores /128 matches") {
+            array.ref("2001:db8::", 128) should be (0)
+            array should be (`empty`)
+        }
+
+        scenario("Stops tracking when full") {
+            val small = new IPv6InvalidationArray(2)
+            small.ref("2001:db8:0:1::", 48) should be (1)
+            small.ref("2001:db8:0:2::", 48) should be (1)
+            small.ref("2001:db8:0:3::", 48) shouldBe
+                IPv6InvalidationArray.NOT_TRACKED
+            small.ref("2001:db8:0:1::", 48) should be (2)
+            small.size should be (2)
+        }
+    }
+
+    feature("Invalidation invalidates route matches") {
+        scenario("Doesn't invalidate for a less specific route") {
+            for (k <- keys) { array.ref(k, 48) }
+            for (k <- keys) { array.deletePrefix(k, 40) should have size 0 }
+        }
+
+        scenario("Invalidates for more specific routes") {
+            for (k <- keys) { array.ref(k, 16) }
+            for (k <- keys) { array.deletePrefix(k, 64) should have size 1 }
+            array should be (`empty`)
+        }
+
+        scenario("Routes longer than /64 invalidate their /64") {
+            array.ref("2001:db8:0:1::", 48)
+            array.deletePrefix("2001:db8:0:1::", 120) should have size 1
+        }
+
+        scenario("Invalidates subnets") {
+            for (k <- keys) { array.ref(k, 0) }
+
+            val in48 = array.deletePrefix("2001:db8:1::", 48)
+            in48 should have size 3
+            in48 should contain (str2long("2001:db8:1:0::"))
+            in48 should contain (str2long("2001:db8:1:1::"))
+            in48 should contain (str2long("2001:db8:1:100::"))
+
+            // Prefixes shorter than /32 span several buckets.
+            val in16 = array.deletePrefix("2001::", 16)
+            in16 should have size 6
+
+            array.size should be (2)
+            array("fd00::") should be (0)
+        }
+
+        scenario("Cleans up buckets") {
+            array.ref("2001:db8::", 0)
+            array.ref("2001:db8::", 0)
+            array.ref("2001:db8:0:1::", 48)
+
+            array.deletePrefix("2001:db8::", 40) should have size 1
+            array should not be `empty`
+            array.deletePrefix("2001:db8:0:1::", 64) should have size 1
+            array.nonEmpty should be (false)
+        }
+    }
+}
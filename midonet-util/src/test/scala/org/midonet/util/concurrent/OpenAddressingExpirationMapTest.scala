@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.concurrent.{CountDownLatch, ThreadLocalRandom}
+
+import scala.concurrent.duration._
+
+import org.slf4j.helpers.NOPLogger
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.util.collection.Reducer
+import org.midonet.util.logging.Logger
+
+@RunWith(classOf[JUnitRunner])
+class OpenAddressingExpirationMapTest extends FeatureSpec
+                                      with Matchers
+                                      with OneInstancePerTest {
+
+    val map = new OpenAddressingExpirationMap[String, String](
+        Logger(NOPLogger.NOP_LOGGER),
+        {
+            case "high" => 5 days
+            case k if k.startsWith("s") => 1 second
+            case _ => 0 millis
+        }, initialCapacity = 16, wheelTickMillis = 10, wheelSize = 16)
+
+    val concat = new Reducer[String, String, String]() {
+        override def apply(acc: String, key: String, value: String): String =
+            acc + key + value
+    }
+
+    feature("Normal operations") {
+        scenario("putAndRef") {
+            var prev = map.putAndRef("A", "X")
+            prev should be (null)
+            map get "A" should be ("X")
+            map getRefCount "A" should be (1)
+
+            prev = map.putAndRef("A", "Y")
+            prev should be ("X")
+            map get "A" should be ("Y")
+            map getRefCount "A" should be (2)
+        }
+
+        scenario("ref") {
+            map.ref("A") should be (null)
+            map.putAndRef("A", "X")
+            map.ref("A") should be ("X")
+            map get "A" should be ("X")
+            map getRefCount "A" should be (2)
+        }
+
+        scenario("unref") {
+            map.unref("A", 0) should be (null)
+            map.putAndRef("A", "X")
+            map.ref("A") should be ("X")
+            map getRefCount "A" should be (2)
+            map.unref("A", 0) should be ("X")
+            map getRefCount "A" should be (1)
+            map.unref("A", 0) should be ("X")
+            map getRefCount "A" should be (0)
+            map.unref("A", 0) should be ("X")
+            map getRefCount "A" should be (0)
+        }
+
+        scenario("fold") {
+            map.putAndRef("A", "X")
+            map.putAndRef("B", "Y")
+            map.putAndRef("C", "Z")
+
+            map.fold("", concat).sorted should be ("ABCXYZ")
+        }
+
+        scenario("ref resurrects an idle entry") {
+            map.putAndRef("A", "X")
+            map.unref("A", 0)
+            map.ref("A") should be ("X")
+            map.obliterateIdleEntries(1000) should be (())
+            map get "A" should be ("X")
+            map.unref("A", 1000)
+            map.obliterateIdleEntries(1001, "", concat) should be ("AX")
+            map get "A" should be (null)
+            map.size should be (0)
+        }
+
+        scenario("obliterateIdleEntries blocks operations on the same key") {
+            map.putAndRef("A", "X")
+            map.unref("A", 0) should be ("X")
+
+            val outerLatch = new CountDownLatch(1)
+
+            map.obliterateIdleEntries(1, "", new Reducer[String, String, String]() {
+                override def apply(acc: String, key: String,
+                                   value: String): String = {
+                    map.ref("A") should be (null)
+                    map.get("A") should be (null)
+                    map.getRefCount("A") should be (-1)
+
+                    val innerLatch = new CountDownLatch(1)
+                    new Thread() {
+                        override def run() {
+                            innerLatch.countDown()
+                            map.putAndRef("A", "Y")
+                            outerLatch.countDown()
+                        }
+                    }.start()
+
+                    innerLatch.await()
+
+                    var retries = 500
+                    while (retries > 0) {
+                        map.get("A") should be (null)
+                        retries -= 1
+                    }
+
+                    acc + key + value
+                }
+            }) should be ("AX")
+
+            outerLatch.await()
+            map.get("A") should be ("Y")
+        }
+
+        scenario("a key with higher expiration count doesn't prevent lower "
+                 + "keys from being obliterated") {
+            map.putAndRef("high", "Y")
+            map.putAndRef("A", "X")
+            map.unref("high", 0) should be ("Y")
+            map.unref("A", 0) should be ("X")
+
+            map.obliterateIdleEntries(1, "", concat) should be ("AX")
+
+            map.get("A") should be (null)
+            map.get("high") should be ("Y")
+        }
+    }
+
+    feature("Timer wheel") {
+        scenario("entries expire exactly at their expiration time") {
+            map.putAndRef("s1", "X")
+            map.unref("s1", 5)
+
+            map.obliterateIdleEntries(1004, "", concat) should be ("")
+            map get "s1" should be ("X")
+            map.obliterateIdleEntries(1005, "", concat) should be ("s1X")
+            map get "s1" should be (null)
+        }
+
+        scenario("entries beyond a wheel revolution are kept until due") {
+            map.putAndRef("s1", "X")
+            map.unref("s1", 0)
+
+            // The wheel spans 160 ms, the entry expires after 1 second.
+            var time = 0L
+            while (time < 1000) {
+                map.obliterateIdleEntries(time, "", concat) should be ("")
+                time += 7
+            }
+            map get "s1" should be ("X")
+            map.obliterateIdleEntries(1000, "", concat) should be ("s1X")
+        }
+
+        scenario("entries unreferenced in the past are expired") {
+            map.obliterateIdleEntries(5000)
+            map.putAndRef("A", "X")
+            map.unref("A", 10)
+            map.obliterateIdleEntries(5000, "", concat) should be ("AX")
+        }
+    }
+
+    feature("Table growth and removal") {
+        scenario("the table grows and keeps the entries") {
+            val keys = (0 until 1000) map { i => s"k$i" }
+            keys foreach { k => map.putAndRef(k, k.toUpperCase) }
+            map.size should be (1000)
+            map.capacity should be >= 1024
+            keys foreach { k =>
+                map get k should be (k.toUpperCase)
+                map getRefCount k should be (1)
+            }
+        }
+
+        scenario("removals preserve the probe sequences") {
+            val keys = (0 until 1000) map { i => s"k$i" }
+            keys foreach { k => map.putAndRef(k, k.toUpperCase) }
+            keys.indices filter { _ % 3 == 0 } foreach { i =>
+                map.unref(keys(i), 0)
+            }
+            map.obliterateIdleEntries(1)
+
+            keys.indices foreach { i =>
+                if (i % 3 == 0) map get keys(i) should be (null)
+                else map get keys(i) should be (keys(i).toUpperCase)
+            }
+            map.size should be (keys.size - keys.indices.count(_ % 3 == 0))
+        }
+
+        scenario("idle entries survive a resize and still expire") {
+            map.putAndRef("s1", "X")
+            map.unref("s1", 0)
+            (0 until 100) foreach { i => map.putAndRef(s"k$i", "Y") }
+            map.obliterateIdleEntries(999, "", concat) should be ("")
+            map.obliterateIdleEntries(1000, "", concat) should be ("s1X")
+        }
+    }
+
+    feature("Correctness test") {
+        scenario("control for reference count") {
+            val keys = (0 to 5000) map { _.toString } toArray
+            val operations = 1000000
+
+            val threads = new Array[Thread](2)
+            val refs = new Array[Int](keys.length)
+            threads(0) = new Thread() {
+                override def run() {
+                    val rand = ThreadLocalRandom.current()
+                    var i = 0
+                    while (i < operations) {
+                        val index = rand.nextInt(0, keys.length)
+                        map.putAndRef(keys(index), rand.nextInt().toString)
+                        refs(index) += 1
+                        i += 1
+                    }
+                }
+            }
+
+            val unrefs = new Array[Int](keys.length)
+            threads(1) = new Thread()  {
+                override def run() {
+                    val rand = ThreadLocalRandom.current()
+                    var i = 0
+                    while (i < operations) {
+                        val index = rand.nextInt(0, keys.length)
+                        val key = keys(index)
+
+                        if (rand.nextInt(10) < 7) {
+                            if (map.getRefCount(key) > 0) {
+                                map.unref(key, 0)
+                                unrefs(index) += 1
+                            }
+                        } else {
+                            map.obliterateIdleEntries(1)
+                        }
+
+                        i += 1
+                    }
+                }
+            }
+
+            threads foreach (_.start())
+            threads foreach (_.join())
+
+            val results = (refs, unrefs).zipped map (_ - _)
+            keys.indices foreach { i =>
+                map.getRefCount(i.toString) should be (results(i))
+            }
+        }
+    }
+}
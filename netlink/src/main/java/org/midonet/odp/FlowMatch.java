@@ -371,6 +371,7 @@ public class FlowMatch {
     private final ArrayList<FlowKey> keys = new ArrayList<>();
     private int hashCode = 0;
     private int connectionHash = 0;
+    private int symmetricConnectionHash = 0;
 
     public FlowMatch() { }
 
@@ -940,9 +941,46 @@ public class FlowMatch {
         return connectionHash;
     }
 
+    /** Returns a hash code which, like connectionHash(), only uses the fields
+     *  that are part of a stateful L4 connection, but which does not depend
+     *  on the direction of the packet: the forward and return packets of a
+     *  connection get the same hash. For ICMP, the ICMP identifier takes the
+     *  place of the transport ports. Falls back to connectionHash() for
+     *  tunnelled packets and packets without L4 fields.
+     */
+    public int symmetricConnectionHash() {
+        if (symmetricConnectionHash == 0) {
+            if (!isFromTunnel() && highestLayer(usedFields) >= 4 &&
+                networkSrc != null && networkDst != null) {
+                boolean icmp = networkProto == ICMP.PROTOCOL_NUMBER;
+                symmetricConnectionHash = symmetricConnectionHash(
+                    networkSrc, icmp ? icmpId : srcPort,
+                    networkDst, icmp ? icmpId : dstPort,
+                    networkProto);
+            } else {
+                symmetricConnectionHash = connectionHash();
+            }
+        }
+        return symmetricConnectionHash;
+    }
+
+    /** Computes a connection hash that is invariant to swapping the source
+     *  and destination endpoints.
+     */
+    public static int symmetricConnectionHash(IPAddr src, int srcPort,
+                                              IPAddr dst, int dstPort,
+                                              byte proto) {
+        int a = 31 * Objects.hashCode(src) + srcPort;
+        int b = 31 * Objects.hashCode(dst) + dstPort;
+        int hash = a < b ? 31 * a + b : 31 * b + a;
+        hash = 31 * hash + proto;
+        return hash ^ (hash >>> 16);
+    }
+
     private void invalidateHashCode() {
         hashCode = 0;
         connectionHash = 0;
+        symmetricConnectionHash = 0;
     }
 
     @Override
@@ -15,18 +15,26 @@
  */
 package org.midonet.odp;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * A packet created from the frame bytes only deserializes its {@link Ethernet}
+ * object when first requested, and is executed from the original bytes as
+ * long as the object was not requested. Use a
+ * {@link org.midonet.packets.PacketView} to read the header fields of the
+ * frame without deserializing it.
+ *
  * @see FlowMatch
  */
 public class Packet {
@@ -38,10 +46,21 @@ public class Packet {
         FlowActionUserspace,
     }
 
+    /**
+     * Thrown when the frame of a packet created from its bytes cannot be
+     * deserialized.
+     */
+    public static class MalformedFrameException extends IllegalStateException {
+        public MalformedFrameException(Throwable cause) {
+            super("Malformed packet", cause);
+        }
+    }
+
     private FlowMatch match;
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
     public final int packetLen;
 
     // user field used by midolman packet pipeline to track time statistics,
@@ -58,16 +77,56 @@ public class Packet {
         this(eth, match, (eth != null) ? eth.length() : 0);
     }
 
+    /**
+     * Creates a packet for the given frame, which is deserialized on demand.
+     * The packet takes ownership of the array.
+     */
+    public Packet(byte[] data, FlowMatch match) {
+        this.data = data;
+        this.match = match;
+        this.packetLen = data.length;
+    }
+
+    /**
+     * Returns the Ethernet frame of this packet, deserializing it if the
+     * packet was created from the frame bytes. Any change to the returned
+     * object is reflected when the packet is executed.
+     *
+     * @throws MalformedFrameException if the frame cannot be deserialized.
+     */
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            Ethernet parsed = new Ethernet();
+            try {
+                parsed.deserialize(ByteBuffer.wrap(data));
+            } catch (MalformedPacketException e) {
+                throw new MalformedFrameException(e);
+            }
+            eth = parsed;
+            data = null;
+        }
         return eth;
     }
 
     public void setEthernet(Ethernet eth) {
         this.eth = eth;
+        this.data = null;
+    }
+
+    /**
+     * Whether the Ethernet object of this packet exists, meaning that the
+     * packet is executed by serializing it.
+     */
+    public boolean isDeserialized() {
+        return data == null;
     }
 
+    /**
+     * Returns the bytes of the frame. The returned array is owned by the
+     * packet when it was not deserialized, and must not be modified.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        return (data != null) ? data : eth.serialize();
     }
 
     public FlowMatch getMatch() {
@@ -99,7 +158,7 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -107,7 +166,7 @@ public class Packet {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -117,7 +176,7 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + ((data != null) ? data.length + " bytes" : eth) +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
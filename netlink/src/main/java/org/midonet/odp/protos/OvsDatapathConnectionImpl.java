@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -48,6 +47,7 @@ import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.PacketView;
 import org.midonet.util.BatchCollector;
 
 /**
@@ -73,43 +73,60 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         packetFamily = ovsNetlinkFamilies.packetFamily();
     }
 
+    /**
+     * Builds the packets of the upcalls. The frame is only copied from the
+     * notification buffer, and is deserialized on demand, except for ICMP
+     * packets whose flow match requires the ICMP data.
+     */
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private final PacketView view = new PacketView();
+        private byte[] data;
         private Long userData;
-        private int packetLen = 0;
 
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
+            try {
+                if (data == null)
+                    return null;
+                // The Ethernet header is the only part of the frame whose
+                // truncation fails the deserialization: a truncated network
+                // or transport header is deserialized as opaque data.
+                if (!view.wrap(data, 0, data.length).isValid()) {
+                    log.warn("Dropping malformed packet of {} bytes",
+                             data.length);
+                    return null;
+                }
+                Packet p;
+                if (view.isIcmp()) {
+                    Ethernet eth = new Ethernet();
+                    try {
+                        eth.deserialize(ByteBuffer.wrap(data));
+                    } catch (Exception e) {
+                        log.warn("Dropping malformed packet", e);
+                        return null;
+                    }
+                    FlowKeys.addUserspaceKeys(eth, keys);
+                    p = new Packet(eth, new FlowMatch(keys), data.length);
+                } else {
+                    p = new Packet(data, new FlowMatch(keys));
+                }
+                p.setUserData(userData);
+                return p;
+            } finally {
+                data = null;
                 keys.clear();
-                return null;
+                userData = null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys), packetLen);
-            p.setUserData(userData);
-            eth = null;
-            keys.clear();
-            userData = null;
-            return p;
         }
 
         @Override
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        packetLen = buffer.remaining();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
-                    }
+                    data = new byte[buffer.remaining()];
+                    buffer.get(data);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
@@ -33,6 +33,7 @@ import org.midonet.packets.ICMP;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.MAC;
+import org.midonet.packets.TCP;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -417,4 +418,47 @@ public class FlowMatchTest {
         m.getNetworkTTL();
         assertEquals(m.highestLayerSeen(), 4);
     }
+
+    @Test
+    public void testSymmetricConnectionHash() {
+        IPv4Addr a = IPv4Addr.fromString("10.0.0.1");
+        IPv4Addr b = IPv4Addr.fromString("10.0.0.2");
+        FlowMatch fwd = new FlowMatch()
+            .setNetworkSrc(a).setNetworkDst(b)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(12345).setDstPort(80);
+        FlowMatch ret = new FlowMatch()
+            .setNetworkSrc(b).setNetworkDst(a)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(80).setDstPort(12345);
+
+        assertEquals(fwd.symmetricConnectionHash(),
+                     ret.symmetricConnectionHash());
+        assertEquals(fwd.symmetricConnectionHash(),
+                     FlowMatch.symmetricConnectionHash(
+                         b, 80, a, 12345, TCP.PROTOCOL_NUMBER));
+
+        ret.setDstPort(12346);
+        assertTrue(fwd.symmetricConnectionHash() !=
+                   ret.symmetricConnectionHash());
+    }
+
+    @Test
+    public void testSymmetricConnectionHashIcmp() {
+        IPv4Addr a = IPv4Addr.fromString("10.0.0.1");
+        IPv4Addr b = IPv4Addr.fromString("10.0.0.2");
+        FlowMatch req = new FlowMatch()
+            .setNetworkSrc(a).setNetworkDst(b)
+            .setNetworkProto(ICMP.PROTOCOL_NUMBER)
+            .setSrcPort(ICMP.TYPE_ECHO_REQUEST).setDstPort(0)
+            .setIcmpIdentifier(7);
+        FlowMatch reply = new FlowMatch()
+            .setNetworkSrc(b).setNetworkDst(a)
+            .setNetworkProto(ICMP.PROTOCOL_NUMBER)
+            .setSrcPort(ICMP.TYPE_ECHO_REPLY).setDstPort(0)
+            .setIcmpIdentifier(7);
+
+        assertEquals(req.symmetricConnectionHash(),
+                     reply.symmetricConnectionHash());
+    }
 }
@@ -24,7 +24,7 @@ import scala.collection.JavaConversions._
 import scala.collection.concurrent.TrieMap
 
 import com.google.common.base.Defaults
-import com.google.protobuf.Descriptors.{EnumDescriptor, EnumValueDescriptor}
+import com.google.protobuf.Descriptors.{Descriptor, EnumDescriptor, EnumValueDescriptor, FieldDescriptor}
 import com.google.protobuf.GeneratedMessage.Builder
 import com.google.protobuf.{ByteString, Descriptors, Message}
 
@@ -42,6 +42,11 @@ import org.midonet.cluster.util.UUIDUtil
  *
  * The Java object class must extend the [[ZoomObject]] class, and provide a
  * parameter-less constructor.
+ *
+ * The annotations of a class are read once, when the class is first
+ * converted, into a [[ClassPlan]] with the accessors of its fields and, for
+ * each message descriptor, the message fields and their converters. The
+ * following conversions of the class only read the plan.
  */
 object ZoomConvert {
 
@@ -61,10 +66,90 @@ object ZoomConvert {
     private type ProtoBuilder = Builder[_ <: Builder[_ <: AnyRef]]
 
     private case class ConverterKey(clazz: Class[_], converter: Class[_])
-    private case class FieldInfo(field: Field, zoomField: ZoomField)
-    private case class ClassInfo(clazz: Class[_], zoomClass: ZoomClass,
-                                 zoomOneOf: ZoomOneOf,
-                                 fieldsInfo: Seq[FieldInfo])
+
+    /**
+     * The message field and the converter of a Java field, for a given
+     * message descriptor. The message field is null if the message does not
+     * have the field.
+     */
+    private final class FieldBinding(val descriptor: Descriptor,
+                                     val protoField: FieldDescriptor,
+                                     plan: FieldPlan) {
+        lazy val converter: Converter[_,_] =
+            getConverter(plan.fieldType, plan.genericType, protoField,
+                         plan.zoomField)
+    }
+
+    /**
+     * The conversion plan of a field annotated with [[ZoomField]]. The plan
+     * caches the binding of the field for the last message descriptor, which
+     * is the same for every conversion of the field.
+     */
+    private final class FieldPlan(field: Field, val zoomField: ZoomField) {
+        val fieldType = field.getType
+        val genericType = field.getGenericType
+        val accessor = new ZoomAccessor(field)
+        @volatile private var binding: FieldBinding = null
+
+        def bind(descriptor: Descriptor): FieldBinding = {
+            var b = binding
+            if ((b eq null) || (b.descriptor ne descriptor)) {
+                b = new FieldBinding(descriptor,
+                                     descriptor.findFieldByName(zoomField.name),
+                                     this)
+                binding = b
+            }
+            b
+        }
+    }
+
+    /**
+     * The conversion plan of a class, at one level of the object's inheritance
+     * hierarchy. The plan links to the plan of the super class, when the
+     * super class fields are converted as well.
+     */
+    private final class ClassPlan(val clazz: Class[_]) {
+        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+        val superPlan: ClassPlan =
+            if (clazz != classOf[ZoomObject] &&
+                clazz.getSuperclass != classOf[ZoomObject] &&
+                (zoomClass == null || !zoomClass.skipSuper))
+                planOf(clazz.getSuperclass)
+            else null
+        val fields: Array[FieldPlan] =
+            for (pojoField <- clazz.getDeclaredFields;
+                 zoomField = pojoField.getAnnotation(classOf[ZoomField])
+                 if zoomField ne null)
+                yield new FieldPlan(pojoField, zoomField)
+
+        lazy val factory: Factory[_, Message] =
+            if ((zoomClass ne null) &&
+                !zoomClass.factory().equals(classOf[DefaultFactory])) {
+                zoomClass.factory().newInstance()
+                    .asInstanceOf[Factory[_, Message]]
+            } else null
+
+        lazy val defaultConstructor: Constructor[_] =
+            getDefaultConstructor(clazz)
+
+        lazy val zoomConstructor: Constructor[_] = getZoomConstructor(clazz)
+
+        @volatile private var oneOfBinding: (Descriptor, FieldDescriptor) = null
+
+        /** Returns the one-of field of the given message descriptor. */
+        def oneOfField(descriptor: Descriptor): FieldDescriptor = {
+            var b = oneOfBinding
+            if ((b eq null) || (b._1 ne descriptor)) {
+                b = (descriptor, descriptor.findFieldByName(zoomOneOf.name))
+                oneOfBinding = b
+            }
+            b._2
+        }
+    }
+
+    private val plans = new TrieMap[Class[_], ClassPlan]
+    private val builderMethods = new TrieMap[Class[_], Method]
 
     private val converters =
         new TrieMap[Class[_ <: Converter[_,_]], Converter[_,_]]
@@ -76,8 +161,6 @@ object ZoomConvert {
     private val setConverters = new TrieMap[ConverterKey, SetConverter]
     private val jSetConverters = new TrieMap[ConverterKey, JavaSetConverter]
 
-    private val factories = new TrieMap[Class[_ <: Factory[_,_]], Factory[_,_]]
-
     /**
      * Converts a Java object to a Protocol Buffers message.
      *
@@ -102,7 +185,7 @@ object ZoomConvert {
         (pojo: T, pojoClass: Class[T], protoClass: Class[U]): U = {
         pojo.beforeToProto()
         val builder = newBuilder(protoClass)
-        to(pojo, pojoClass, builder)
+        to(pojo, planOf(pojoClass), builder)
         pojo.afterToProto(builder)
         builder.build().asInstanceOf[U]
     }
@@ -122,15 +205,15 @@ object ZoomConvert {
         if (proto eq null) {
             return null
         }
-        val clazz = newFactory(proto, pojoClass)
-        val defaultConstructor = getDefaultConstructor(clazz)
+        val plan = newFactory(proto, planOf(pojoClass))
+        val defaultConstructor = plan.defaultConstructor
         if (defaultConstructor ne null) {
-            val pojo = clazz.newInstance().asInstanceOf[T]
-            from(proto, pojo, pojo.getClass)
+            val pojo = defaultConstructor.newInstance().asInstanceOf[T]
+            from(proto, pojo, plan)
             pojo.afterFromProto(proto)
             pojo
         } else {
-            val pojo = fromNew(proto, clazz.asInstanceOf[Class[T]])
+            val pojo = fromNew[T, U](proto, plan)
             pojo.afterFromProto(proto)
             pojo
         }
@@ -166,46 +249,49 @@ object ZoomConvert {
         if (proto eq null) {
             return pojo
         }
-        from(proto, pojo, pojoClass)
+        from(proto, pojo, planOf(pojoClass))
         pojo.afterFromProto(proto)
         pojo
     }
 
 
+    /**
+     * Returns the conversion plan for the given class, building it on the
+     * first call.
+     */
+    private def planOf(clazz: Class[_]): ClassPlan = {
+        plans.getOrElseUpdate(clazz, new ClassPlan(clazz))
+    }
+
     /**
      * Internal method to convert a Java object to the corresponding Protocol
      * Buffers message. The method is called recursively to convert the fields
      * from all classes in the object's inheritance hierarchy.
      *
      * @param pojo The Java object.
-     * @param clazz The Java object class, representing the level in the
-     *              object's inheritance hierarchy at which the conversion is
-     *              performed.
+     * @param plan The plan of the Java object class, representing the level in
+     *             the object's inheritance hierarchy at which the conversion is
+     *             performed.
      * @param topBuilder The Protocol Buffers builder for the final message.
      */
     private def to[T <: ZoomObject, U <: Message](
-            pojo: T, clazz: Class[_], topBuilder: ProtoBuilder): ProtoBuilder = {
+            pojo: T, plan: ClassPlan, topBuilder: ProtoBuilder): ProtoBuilder = {
 
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
         // Recursively iterate over all superclasses in the objects inheritance
         // hierarchy, and get the corresponding Protocol Buffers message.
         val superBuilder =
-            if (clazz != classOf[ZoomObject] &&
-                clazz.getSuperclass != classOf[ZoomObject] &&
-                (zoomClass == null || !zoomClass.skipSuper))
-                to(pojo, clazz.getSuperclass, topBuilder)
+            if (plan.superPlan ne null) to(pojo, plan.superPlan, topBuilder)
             else topBuilder
 
         // If the class has a one-of annotation, get the builder from the one-of
         // field.
-        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
-        val thisBuilder = if (zoomOneOf ne null) {
+        val thisBuilder = if (plan.zoomOneOf ne null) {
             val superDescriptor = superBuilder.getDescriptorForType
-            val oneOfField = superDescriptor.findFieldByName(zoomOneOf.name)
+            val oneOfField = plan.oneOfField(superDescriptor)
             if (oneOfField eq null) {
                 throw new ConvertException(
                     s"Message ${superDescriptor.getName} does not have a " +
-                    s"one-of field ${zoomOneOf.name}")
+                    s"one-of field ${plan.zoomOneOf.name}")
             }
             superBuilder.getFieldBuilder(oneOfField).asInstanceOf[ProtoBuilder]
         } else superBuilder
@@ -213,27 +299,25 @@ object ZoomConvert {
         // Get the descriptor for the current builder.
         val descriptor = thisBuilder.getDescriptorForType
 
-        for (pojoField <- clazz.getDeclaredFields;
-             zoomField = pojoField.getAnnotation(classOf[ZoomField])
-             if zoomField ne null) {
-            val protoField = descriptor.findFieldByName(zoomField.name)
+        var index = 0
+        while (index < plan.fields.length) {
+            val fieldPlan = plan.fields(index)
+            val binding = fieldPlan.bind(descriptor)
+            val protoField = binding.protoField
 
             // Verify the field exists.
             if (protoField eq null) {
                 throw new ConvertException(
                     s"Message ${descriptor.getName} does not have a " +
-                    s"field with name ${zoomField.name}")
+                    s"field with name ${fieldPlan.zoomField.name}")
             }
             try {
                 // Get the field value.
-                val pojoValue = pojo.getField(pojoField)
+                val pojoValue = fieldPlan.accessor.get(pojo)
                 // Ignore the null fields.
                 if (null != pojoValue) {
-                    val converter = getConverter(pojoField.getType,
-                                                 pojoField.getGenericType,
-                                                 protoField, zoomField)
-                    val protoValue = converter.to(pojoValue,
-                                                  pojoField.getGenericType)
+                    val protoValue = binding.converter.to(pojoValue,
+                                                          fieldPlan.genericType)
                     thisBuilder.setField(protoField, protoValue)
                 }
             } catch {
@@ -241,13 +325,14 @@ object ZoomConvert {
                           _ : IllegalAccessException |
                           _ : IllegalArgumentException |
                           _ : ClassCastException) =>
-                    val msg = s"Class $clazz failed to convert field " +
-                              s"${zoomField.name} from Java type " +
-                              s"${pojoField.getType} to Protocol Buffers " +
+                    val msg = s"Class ${plan.clazz} failed to convert field " +
+                              s"${fieldPlan.zoomField.name} from Java type " +
+                              s"${fieldPlan.fieldType} to Protocol Buffers " +
                               s"type ${protoField.getType}"
                     log.error(msg, e)
                     throw new ConvertException(msg, e)
             }
+            index += 1
         }
 
         thisBuilder
@@ -262,22 +347,16 @@ object ZoomConvert {
      * and [[ZoomOneOf]] annotations.
      *
      * @param proto The Protocol Buffers message.
-     * @param pojo The Java object class, representing the level in the object's
-     *             inheritance hierarchy at which the conversion is performed.
-     * @param clazz The Java class corresponding to the current inheritance
-     *              level.
+     * @param pojo The Java object.
+     * @param plan The plan of the Java class corresponding to the current
+     *             inheritance level.
      */
     private def from[T <: ZoomObject, U <: Message]
-                    (proto: U, pojo: T, clazz: Class[_]): Message = {
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
-
+                    (proto: U, pojo: T, plan: ClassPlan): Message = {
         // Recursively iterate over all superclasses in the objects inheritance
         // hierarchy, and get the corresponding Protocol Buffers message.
         var message =
-            if (clazz != classOf[ZoomObject] &&
-                clazz.getSuperclass != classOf[ZoomObject] &&
-                (zoomClass == null || !zoomClass.skipSuper))
-                from(proto, pojo, clazz.getSuperclass)
+            if (plan.superPlan ne null) from(proto, pojo, plan.superPlan)
             else proto
 
         // Get the descriptor for the current message.
@@ -285,9 +364,9 @@ object ZoomConvert {
 
         // If the class has a one-of annotation, extract the message from
         // the one-of field.
-        val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+        val zoomOneOf = plan.zoomOneOf
         if (zoomOneOf ne null) {
-            val oneOfField = descriptor.findFieldByName(zoomOneOf.name)
+            val oneOfField = plan.oneOfField(descriptor)
             message = if (oneOfField eq null) {
                 throw new ConvertException(
                     s"Message ${descriptor.getName} does not have a " +
@@ -304,40 +383,40 @@ object ZoomConvert {
             }
         }
 
-        for (pojoField <- clazz.getDeclaredFields;
-             zoomField = pojoField.getAnnotation(classOf[ZoomField])
-             if zoomField ne null) {
-            val protoField = descriptor.findFieldByName(zoomField.name)
+        var index = 0
+        while (index < plan.fields.length) {
+            val fieldPlan = plan.fields(index)
+            val binding = fieldPlan.bind(descriptor)
+            val protoField = binding.protoField
 
             // Verify the field exists.
             if (protoField eq null) {
                 throw new ConvertException(
                     s"Message ${descriptor.getName} does not have a " +
-                    s"field ${zoomField.name}")
+                    s"field ${fieldPlan.zoomField.name}")
             } else if (protoField.isRepeated || protoField.hasDefaultValue ||
                        message.hasField(protoField)) {
                 // We ignore unset message fields, and let the corresponding
                 // Java object field set to the its type-default value.
                 try {
                     val protoValue = message.getField(protoField)
-                    val converter = getConverter(pojoField.getType,
-                                                 pojoField.getGenericType,
-                                                 protoField, zoomField)
-                    val pojoValue = converter.from(protoValue,
-                                                   pojoField.getGenericType)
-                    pojo.setField(pojoField, pojoValue)
+                    val pojoValue = binding.converter.from(protoValue,
+                                                           fieldPlan.genericType)
+                    fieldPlan.accessor.set(pojo, pojoValue)
                 } catch {
                     case e @ (_ : InstantiationException |
                               _ : IllegalAccessException |
                               _ : IllegalArgumentException |
+                              _ : ClassCastException |
                               _ : NullPointerException) =>
                         throw new ConvertException(
                             s"Class ${pojo.getClass} failed to convert " +
-                            s"field ${zoomField.name} from Protocol Buffers " +
-                            s"type ${protoField.getType} to Java type " +
-                            s"${pojoField.getType}", e)
+                            s"field ${fieldPlan.zoomField.name} from Protocol " +
+                            s"Buffers type ${protoField.getType} to Java type " +
+                            s"${fieldPlan.fieldType}", e)
                 }
             }
+            index += 1
         }
 
         message
@@ -348,12 +427,13 @@ object ZoomConvert {
      * corresponding Java object using a non-default constructor.
      *
      * @param proto The Protocol Buffers message.
-     * @param clazz The Java object class.
+     * @param plan The plan of the Java object class.
      * @return The converted object.
      */
     private def fromNew[T <: ZoomObject, U <: Message]
-                       (proto: U, clazz: Class[T]): T = {
-        val constructor = getZoomConstructor(clazz)
+                       (proto: U, plan: ClassPlan): T = {
+        val clazz = plan.clazz
+        val constructor = plan.zoomConstructor
 
         // Get the descriptor for the current message.
         val descriptor = proto.getDescriptorForType
@@ -417,8 +497,12 @@ object ZoomConvert {
      */
     private def newBuilder[U <: Message](clazz: Class[U]): ProtoBuilder = {
         try {
-            clazz.getMethod(ZoomConvert.BuilderMethod)
-                .invoke(null).asInstanceOf[ProtoBuilder]
+            var method = builderMethods.getOrElse(clazz, null)
+            if (method eq null) {
+                method = clazz.getMethod(ZoomConvert.BuilderMethod)
+                builderMethods.putIfAbsent(clazz, method)
+            }
+            method.invoke(null).asInstanceOf[ProtoBuilder]
         } catch {
             case e @ (_ : NoSuchMethodException |
                       _ : IllegalAccessException |
@@ -433,28 +517,22 @@ object ZoomConvert {
      * message. The method traverses the object's inheritance hierarchy to
      * determine the top class corresponding to the message.
      * @param proto The Protocol Buffers message.
-     * @param clazz The expected class of the Java object. It can be a super
-     *              class not necessarily the instance class, allowing the user
-     *              to specify abstract classes.
-     * @return A factory class.
+     * @param plan The plan of the expected class of the Java object. It can be
+     *             a super class not necessarily the instance class, allowing
+     *             the user to specify abstract classes.
+     * @return The plan of the factory class.
      */
     private def newFactory[T <: ZoomObject, U <: Message]
-                          (proto: U, clazz: Class[_]): Class[_] = {
-        var factory = clazz
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
-
-        if (null != zoomClass &&
-            !zoomClass.factory().equals(classOf[DefaultFactory])) {
-            factories.getOrElseUpdate(zoomClass.factory(),
-                                      zoomClass.factory().newInstance())
-                .asInstanceOf[Factory[_, U]]
-                .getType(proto) match {
-                case c: Class[_] if clazz != c =>
-                    factory = newFactory(proto, c)
+                          (proto: U, plan: ClassPlan): ClassPlan = {
+        val factory = plan.factory
+        if (factory ne null) {
+            factory.asInstanceOf[Factory[_, U]].getType(proto) match {
+                case c: Class[_] if plan.clazz != c =>
+                    return newFactory(proto, planOf(c))
                 case _ =>
             }
         }
-        factory
+        plan
     }
 
     /**
@@ -755,10 +833,10 @@ object ZoomConvert {
 
         override def toProto(value: ZoomObject, clazz: Type): Message = clazz match {
             case c: Class[_] if classOf[ZoomObject].isAssignableFrom(c) =>
-                val protoClass = c.getAnnotation(classOf[ZoomClass]).clazz()
-                val builder = newBuilder(protoClass)
+                val plan = planOf(c)
+                val builder = newBuilder(plan.zoomClass.clazz())
                 value.beforeToProto()
-                ZoomConvert.to(value.asInstanceOf[ZoomObject], c, builder)
+                ZoomConvert.to(value.asInstanceOf[ZoomObject], plan, builder)
                 builder.build()
             case _ => throw new ConvertException(
                 s"Object converter not supported for class $clazz");
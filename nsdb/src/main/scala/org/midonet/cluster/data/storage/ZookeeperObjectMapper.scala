@@ -18,10 +18,9 @@ package org.midonet.cluster.data.storage
 import java.util.ConcurrentModificationException
 import java.util.concurrent.Executors._
 import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 
 import scala.annotation.tailrec
-import scala.collection.breakOut
 import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
@@ -127,6 +126,8 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
     private[storage] val topologyLockPath = s"$basePath/locks/zoom-topology"
     private[storage] val transactionLocksPath = basePath + s"/zoomlocks/lock"
     private[storage] val modelPath = basePath + s"/models"
+    private val binarySerialization = config.binarySerialization
+    private val readWindow = Math.max(config.readWindow, 1)
     @volatile private var lockFree = false
 
     private val executor = newSingleThreadExecutor(
@@ -283,12 +284,13 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                 case TxCreate(obj) =>
                     val path = getPath(clazz, id)
                     Log.debug(s"Create: $path")
-                    txn.create.forPath(path, serialize(obj)).and
+                    txn.create
+                        .forPath(path, serialize(obj, binarySerialization)).and
                 case TxUpdate(obj, ver) =>
                     val path = getPath(clazz, id)
                     Log.debug(s"Update ($ver): $path")
                     txn.setData().withVersion(ver)
-                        .forPath(path, serialize(obj)).and
+                        .forPath(path, serialize(obj, binarySerialization)).and
                 case TxDelete(ver) =>
                     val path = getPath(clazz, id)
                     Log.debug(s"Delete ($ver): $path")
@@ -614,7 +616,7 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
     : Future[Seq[T]] = {
         assertBuilt()
         assert(isRegistered(clazz))
-        Future.sequence(ids.map(get(clazz, _)))(breakOut, CallingThreadExecutionContext)
+        new BatchRead(clazz, ids.toIndexedSeq).start()
     }
 
     /**
@@ -651,6 +653,71 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         all.future
     }
 
+    /**
+     * Reads a batch of objects of the same class, keeping at most `readWindow`
+     * read requests in flight. Every completed read issues the next one from
+     * the callback, such that large batches are pipelined over the ZooKeeper
+     * connection without flooding the outgoing queue of the client. The batch
+     * fails with the first object that cannot be read, and the remaining
+     * objects are not read.
+     */
+    private class BatchRead[T](clazz: Class[T], ids: IndexedSeq[ObjId]) {
+
+        private val results = new Array[Any](ids.size)
+        private val next = new AtomicInteger()
+        private val remaining = new AtomicInteger(ids.size)
+        private val promise = Promise[Seq[T]]()
+        private val startTime = System.nanoTime()
+
+        def start(): Future[Seq[T]] = {
+            if (ids.isEmpty) {
+                return Future.successful(Seq.empty)
+            }
+            var count = Math.min(readWindow, ids.size)
+            while (count > 0) {
+                readNext()
+                count -= 1
+            }
+            promise.future
+        }
+
+        private def readNext(): Unit = {
+            val index = next.getAndIncrement()
+            if (index >= ids.size || promise.isCompleted) {
+                return
+            }
+            val id = ids(index)
+            val start = System.nanoTime()
+            val cb = new BackgroundCallback {
+                override def processResult(client: CuratorFramework,
+                                           event: CuratorEvent): Unit = {
+                    metrics.performance.addReadLatency(System.nanoTime() - start)
+                    try {
+                        results(index) = tryDeserialize(clazz, id, event)
+                    } catch {
+                        case NonFatal(e) =>
+                            promise.tryFailure(e)
+                            return
+                    }
+                    // The decrement publishes the result to the thread that
+                    // completes the batch.
+                    if (remaining.decrementAndGet() == 0) {
+                        metrics.performance.addBatchReadLatency(
+                            ids.size, System.nanoTime() - startTime)
+                        promise.trySuccess(results.toSeq.asInstanceOf[Seq[T]])
+                    } else {
+                        readNext()
+                    }
+                }
+            }
+            try {
+                curator.getData.inBackground(cb).forPath(objectPath(clazz, id))
+            } catch {
+                case NonFatal(e) => promise.tryFailure(e)
+            }
+        }
+    }
+
     /**
      * Returns true if the specified object exists in Zookeeper.
      */
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+import com.google.protobuf.Message
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.zookeeper.KeeperException.{BadVersionException, NoNodeException}
+import org.apache.zookeeper.data.Stat
+import org.slf4j.LoggerFactory
+
+object ZoomFormatMigration {
+
+    /** The number of attempts to rewrite an object that is being modified
+      * concurrently. */
+    final val MaxAttempts = 5
+
+    /**
+      * The outcome of a migration: the number of objects that were converted,
+      * that were already in the requested format, and that could not be
+      * converted, plus the names of the model classes that were skipped.
+      */
+    case class Result(converted: Int, unchanged: Int, failed: Int,
+                      skippedClasses: Seq[String])
+}
+
+/**
+ * Rewrites in place the topology objects stored by ZOOM in either the binary
+ * or the text protocol buffers format.
+ *
+ * Every object is rewritten with a conditional update on the version that was
+ * read, such that the updates made concurrently by the cluster are never
+ * overwritten: an object modified during the migration is read again and its
+ * conversion retried. The rewrite changes the version of the objects and
+ * notifies their watchers, but not their content.
+ *
+ * @param modelPath The path of the ZOOM models, relative to the namespace of
+ *                  the curator client.
+ * @param classes The classes of the objects to convert. The objects of any
+ *                other class found under the model path are skipped.
+ */
+class ZoomFormatMigration(curator: CuratorFramework, modelPath: String,
+                          classes: Seq[Class[_]]) {
+
+    import ZoomFormatMigration._
+
+    private val log = LoggerFactory.getLogger("org.midonet.nsdb")
+
+    private val classesByName = classes
+        .filter(classOf[Message].isAssignableFrom)
+        .map(clazz => clazz.getSimpleName -> clazz)
+        .toMap
+
+    /**
+      * Converts all objects to the binary format when `binary` is true, or
+      * to the text format otherwise. When `dryRun` is true, the objects are
+      * only counted.
+      */
+    def migrate(binary: Boolean, dryRun: Boolean = false): Result = {
+        var converted = 0
+        var unchanged = 0
+        var failed = 0
+        val skipped = Seq.newBuilder[String]
+
+        for (name <- curator.getChildren.forPath(modelPath).asScala.sorted) {
+            classesByName.get(name) match {
+                case Some(clazz) =>
+                    val classPath = s"$modelPath/$name"
+                    for (id <- curator.getChildren.forPath(classPath).asScala) {
+                        migrateObject(s"$classPath/$id", clazz, binary,
+                                      dryRun) match {
+                            case Some(true) => converted += 1
+                            case Some(false) => unchanged += 1
+                            case None => failed += 1
+                        }
+                    }
+                case None =>
+                    log.warn(s"Skipping objects of unknown class $name")
+                    skipped += name
+            }
+        }
+        Result(converted, unchanged, failed, skipped.result())
+    }
+
+    /**
+      * Converts the object at the given path, and returns whether the object
+      * was converted, or `None` if the conversion failed.
+      */
+    private def migrateObject(path: String, clazz: Class[_], binary: Boolean,
+                              dryRun: Boolean): Option[Boolean] = {
+        var attempt = 0
+        while (attempt < MaxAttempts) {
+            attempt += 1
+            try {
+                val stat = new Stat()
+                val data = curator.getData.storingStatIn(stat).forPath(path)
+                if (ZoomSerializer.isBinary(data) == binary) {
+                    return Some(false)
+                }
+                val message = ZoomSerializer.deserialize(data, clazz)
+                                            .asInstanceOf[Message]
+                if (!dryRun) {
+                    curator.setData().withVersion(stat.getVersion)
+                        .forPath(path, ZoomSerializer.serialize(message, binary))
+                }
+                return Some(true)
+            } catch {
+                case e: BadVersionException =>
+                    log.debug(s"Object $path modified during conversion: " +
+                              "retrying")
+                case e: NoNodeException =>
+                    log.debug(s"Object $path deleted during conversion")
+                    return Some(false)
+                case NonFatal(e) =>
+                    log.warn(s"Failed to convert object $path", e)
+                    return None
+            }
+        }
+        log.warn(s"Failed to convert object $path after $MaxAttempts " +
+                 "attempts")
+        None
+    }
+
+}
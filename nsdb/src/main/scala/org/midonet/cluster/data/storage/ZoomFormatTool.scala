@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import scala.util.control.NonFatal
+
+import org.rogach.scallop.ScallopConf
+
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.conf.MidoNodeConfigurator
+
+/**
+ * Command line tool that rewrites the topology objects stored in the NSDB in
+ * the binary protocol buffers format, or back in the text format with the
+ * --text option. The tool connects to the ZooKeeper root configured for the
+ * local host.
+ */
+object ZoomFormatTool extends App {
+    System.setProperty("logback.configurationFile", "logback-disabled.xml")
+
+    /** The models path relative to the ZooKeeper root, for the only ZOOM
+      * version currently in use. */
+    final val ModelPath = "/zoom/0/models"
+
+    val opts = new ScallopConf(args) {
+        val text = opt[Boolean]("text", noshort = true,
+            descr = "Converts the objects to the text format, which is " +
+                    "required before downgrading to a version that does " +
+                    "not read the binary format")
+        val dryRun = opt[Boolean]("dry-run", noshort = true,
+            descr = "Counts the objects to convert without modifying them")
+
+        printedName = "mn-zoom-format"
+        footer("Copyright (c) 2016 Midokura SARL, All Rights Reserved.")
+    }
+
+    val binary = !opts.text.get.getOrElse(false)
+    val dryRun = opts.dryRun.get.getOrElse(false)
+
+    val curator = MidoNodeConfigurator.zkBootstrap()
+    val ret = try {
+        val migration = new ZoomFormatMigration(curator, ModelPath,
+                                                MidonetBackend.ZoomClasses)
+        val result = migration.migrate(binary, dryRun)
+        val format = if (binary) "binary" else "text"
+        val verb = if (dryRun) "To convert" else "Converted"
+        println(s"$verb to $format format: ${result.converted}")
+        println(s"Already in $format format: ${result.unchanged}")
+        println(s"Failed: ${result.failed}")
+        if (result.skippedClasses.nonEmpty) {
+            println("Skipped unknown classes: " +
+                    result.skippedClasses.mkString(", "))
+        }
+        if (result.failed == 0) 0 else 1
+    } catch {
+        case NonFatal(e) =>
+            System.err.println(s"[mn-zoom-format] Failed: ${e.getMessage}")
+            2
+    } finally {
+        curator.close()
+    }
+
+    System.exit(ret)
+}
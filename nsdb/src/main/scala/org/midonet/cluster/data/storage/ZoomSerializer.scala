@@ -24,7 +24,7 @@ import scala.util.control.NonFatal
 
 import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.recipes.cache.ChildData
 
@@ -36,24 +36,42 @@ import org.midonet.util.functors.makeFunc1
 
 private[storage] object ZoomSerializer {
 
+    /**
+      * The first byte of the messages serialized in the binary format. The
+      * protobuf text format only contains printable characters, and therefore
+      * it never starts with this byte.
+      */
+    final val BinaryHeader: Byte = 0x01
+
     private val JsonFactory = new JsonFactory(new ObjectMapper())
     private val ProtoParser = createProtoParser
     private val Utf8 = Charset.forName("UTF-8")
 
     private val Deserializers =
         new TrieMap[Class[_], Func1[ChildData, Notification[_]]]
+    private val DefaultInstances = new TrieMap[Class[_], Message]
 
     /**
-      * Serializes an object to a byte array for writing to storage.
+      * Serializes an object to a byte array for writing to storage. Protocol
+      * buffer messages are serialized in the binary format when `binary` is
+      * true, and in the text format otherwise.
       */
     @throws[InternalObjectMapperException]
-    def serialize(obj: Obj): Array[Byte] = {
+    def serialize(obj: Obj, binary: Boolean = false): Array[Byte] = {
         obj match {
+            case message: Message if binary => serializeBinaryMessage(message)
             case message: Message => serializeMessage(message)
             case _ => serializeJava(obj)
         }
     }
 
+    /**
+      * Returns whether the data is a message serialized in the binary format.
+      */
+    def isBinary(data: Array[Byte]): Boolean = {
+        (data ne null) && data.length > 0 && data(0) == BinaryHeader
+    }
+
     /**
       * Deserializes an object from a byte array read from storage.
       */
@@ -117,13 +135,32 @@ private[storage] object ZoomSerializer {
         builder.toString.getBytes(Utf8)
     }
 
+    @inline
+    private def serializeBinaryMessage(message: Message): Array[Byte] = {
+        val data = new Array[Byte](message.getSerializedSize + 1)
+        data(0) = BinaryHeader
+        val output = CodedOutputStream.newInstance(data, 1, data.length - 1)
+        message.writeTo(output)
+        output.checkNoSpaceLeft()
+        data
+    }
+
+    /**
+      * Deserializes a message from either the binary or the text format,
+      * depending on the first byte of the data.
+      */
     @throws[InternalObjectMapperException]
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
         try {
-            val builder = clazz.getMethod("newBuilder").invoke(null)
-                .asInstanceOf[Message.Builder]
-            ProtoParser.merge(new String(data, Utf8), builder)
-            builder.build().asInstanceOf[T]
+            val prototype = defaultInstanceOf(clazz)
+            if (isBinary(data)) {
+                prototype.getParserForType
+                    .parseFrom(data, 1, data.length - 1).asInstanceOf[T]
+            } else {
+                val builder = prototype.newBuilderForType()
+                ProtoParser.merge(new String(data, Utf8), builder)
+                builder.build().asInstanceOf[T]
+            }
         } catch {
             case NonFatal(e) =>
                 throw new InternalObjectMapperException(
@@ -132,6 +169,19 @@ private[storage] object ZoomSerializer {
         }
     }
 
+    /**
+      * Returns the default instance for a message class, which is the factory
+      * for the builders and the parser of the class. The instances are
+      * cached, such that the reflective lookup is done once per class.
+      */
+    private def defaultInstanceOf(clazz: Class[_]): Message = {
+        val instance = DefaultInstances.get(clazz)
+        if (instance.isDefined) instance.get
+        else DefaultInstances.getOrElseUpdate(
+            clazz, clazz.getMethod("getDefaultInstance").invoke(null)
+                        .asInstanceOf[Message])
+    }
+
     private def createProtoParser: TextFormat.Parser = {
         val builder = TextFormat.Parser.newBuilder()
         val builderClass = builder.getClass
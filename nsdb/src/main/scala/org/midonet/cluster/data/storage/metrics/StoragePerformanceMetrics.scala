@@ -54,6 +54,12 @@ class StoragePerformanceMetrics(registry: MetricRegistry) {
         registry.timer(name(classOf[StorageTimer], "write"))
     private val multiTimer =
         registry.timer(name(classOf[StorageTimer], "multi"))
+    private val batchReadTimer =
+        registry.timer(name(classOf[StorageTimer], "readBatch"))
+    private val batchReadObjectsMeter =
+        registry.meter(name(classOf[StorageMeter], "readBatchObjects"))
+    private val batchReadSize =
+        registry.histogram(name(classOf[StorageHistogram], "readBatchSize"))
 
     private val stateTableReadLatency =
         registry.histogram(name(classOf[StorageHistogram], "stateTable",
@@ -77,6 +83,12 @@ class StoragePerformanceMetrics(registry: MetricRegistry) {
     def addMultiLatency(latencyInNanos: Long): Unit =
         multiTimer.update(latencyInNanos, NANOSECONDS)
 
+    def addBatchReadLatency(count: Int, latencyInNanos: Long): Unit = {
+        batchReadTimer.update(latencyInNanos, NANOSECONDS)
+        batchReadObjectsMeter.mark(count)
+        batchReadSize.update(count)
+    }
+
     def addStateTableReadLatency(latencyInNanos: Long): Unit =
         stateTableReadLatency.update(latencyInNanos)
 
@@ -67,6 +67,13 @@ class MidonetBackendConfig(val conf: Config,
     def stateClient = new StateProxyClientConfig(conf)
     def lockTimeoutMs = conf.getDuration("zookeeper.lock_timeout", TimeUnit.MILLISECONDS)
     def transactionAttempts = conf.getInt("zookeeper.transaction_attempts")
+    def binarySerialization =
+        conf.hasPath("zookeeper.binary_serialization") &&
+        conf.getBoolean("zookeeper.binary_serialization")
+    def readWindow =
+        if (conf.hasPath("zookeeper.read_window"))
+            conf.getInt("zookeeper.read_window")
+        else 256
 }
 
 class CassandraConfig(val conf: Config) {
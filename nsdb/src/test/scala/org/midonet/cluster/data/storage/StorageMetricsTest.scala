@@ -435,6 +435,26 @@ class StorageMetricsTest extends FeatureSpec
             And("There was a write for each object")
             getCountForTimer("write") shouldBe objects.length
         }
+
+        scenario("Zoom batch reads") {
+            Given("A set of bridges")
+            val bridges = for (index <- 1 to 4) yield {
+                val bridge = createPojoBridge()
+                zoom.create(bridge)
+                bridge
+            }
+
+            When("Reading all bridges")
+            Await.result(zoom.getAll(classOf[PojoBridge]), timeout)
+                .map(_.id) should contain theSameElementsAs bridges.map(_.id)
+
+            Then("There was one batch read")
+            getCountForTimer("readBatch") shouldBe 1
+
+            And("The batch read all bridges")
+            registry.getMeters.filterKeys(_ contains "readBatchObjects")
+                .head._2.getCount shouldBe bridges.size
+        }
     }
 
     feature("Zoom state storage metrics") {
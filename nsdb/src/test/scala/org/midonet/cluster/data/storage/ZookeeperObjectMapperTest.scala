@@ -61,6 +61,7 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
         """
           |zookeeper.lock_timeout : 60s
           |zookeeper.transaction_attempts : 1000
+          |zookeeper.read_window : 4
         """.stripMargin
 
     feature("Test subscribe") {
@@ -890,6 +891,51 @@ class ZookeeperObjectMapperTest extends StorageTest with MidonetBackendTest
         }
     }
 
+    feature("Test batched reads") {
+        scenario("Reading more objects than the read window") {
+            Given("A set of bridges")
+            val bridges = for (index <- 0 until 50) yield {
+                val bridge = createPojoBridge(name = s"bridge$index")
+                storage.create(bridge)
+                bridge
+            }
+
+            Then("Reading the bridges by identifier returns them in order")
+            await(storage.getAll(classOf[PojoBridge], bridges.map(_.id)))
+                .map(_.name) shouldBe bridges.map(_.name)
+
+            And("Reading all bridges returns all of them")
+            await(storage.getAll(classOf[PojoBridge]))
+                .map(_.id) should contain theSameElementsAs bridges.map(_.id)
+        }
+
+        scenario("Reading a batch with a missing object") {
+            Given("A set of bridges")
+            val bridges = for (index <- 0 until 10) yield {
+                val bridge = createPojoBridge()
+                storage.create(bridge)
+                bridge
+            }
+
+            When("Reading the bridges and a non-existing bridge")
+            val id = UUID.randomUUID()
+            val ids = bridges.map(_.id).take(5) ++ Seq(id) ++
+                      bridges.map(_.id).drop(5)
+
+            Then("The read fails with the missing bridge")
+            val e = intercept[NotFoundException] {
+                await(storage.getAll(classOf[PojoBridge], ids))
+            }
+            e.clazz shouldBe classOf[PojoBridge]
+            e.id shouldBe id
+        }
+
+        scenario("Reading an empty batch") {
+            await(storage.getAll(classOf[PojoBridge], Seq.empty[UUID])) shouldBe
+                empty
+        }
+    }
+
     feature("Test Zookeeper") {
         scenario("Test get path") {
             val zoom = storage.asInstanceOf[ZookeeperObjectMapper]
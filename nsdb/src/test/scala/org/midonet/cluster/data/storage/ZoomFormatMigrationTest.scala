@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.data.storage.StorageTest._
+import org.midonet.cluster.models.Topology.{Network, Router}
+import org.midonet.cluster.util.CuratorTestFramework
+
+@RunWith(classOf[JUnitRunner])
+class ZoomFormatMigrationTest extends FeatureSpec with Matchers
+                              with GivenWhenThen with CuratorTestFramework {
+
+    private def modelPath = s"$zkRoot/zoom/0/models"
+
+    private def create(message: Network, binary: Boolean): String = {
+        val path = s"$modelPath/Network/${message.getId.getMsb}"
+        curator.create().creatingParentsIfNeeded()
+            .forPath(path, ZoomSerializer.serialize(message, binary))
+        path
+    }
+
+    feature("Migration converts the stored objects") {
+        scenario("Objects are converted to the binary format") {
+            Given("Two networks in the text format and one in binary")
+            val network1 = createProtoNetwork(name = "network1")
+            val network2 = createProtoNetwork(name = "network2")
+            val network3 = createProtoNetwork(name = "network3")
+            val path1 = create(network1, binary = false)
+            val path2 = create(network2, binary = false)
+            val path3 = create(network3, binary = true)
+
+            When("Migrating to the binary format")
+            val migration = new ZoomFormatMigration(curator, modelPath,
+                                                    Seq(classOf[Network]))
+            val result = migration.migrate(binary = true)
+
+            Then("The text objects are converted")
+            result shouldBe ZoomFormatMigration.Result(2, 1, 0, Seq())
+
+            And("All objects are stored in the binary format")
+            for ((path, network) <- Seq(path1 -> network1, path2 -> network2,
+                                        path3 -> network3)) {
+                val data = curator.getData.forPath(path)
+                ZoomSerializer.isBinary(data) shouldBe true
+                ZoomSerializer.deserialize(data, classOf[Network]) shouldBe
+                    network
+            }
+        }
+
+        scenario("Objects are converted back to the text format") {
+            Given("A network in the binary format")
+            val network = createProtoNetwork(name = "network")
+            val path = create(network, binary = true)
+
+            When("Migrating to the text format")
+            val migration = new ZoomFormatMigration(curator, modelPath,
+                                                    Seq(classOf[Network]))
+            migration.migrate(binary = false) shouldBe
+                ZoomFormatMigration.Result(1, 0, 0, Seq())
+
+            Then("The network is stored in the text format")
+            val data = curator.getData.forPath(path)
+            ZoomSerializer.isBinary(data) shouldBe false
+            ZoomSerializer.deserialize(data, classOf[Network]) shouldBe network
+        }
+
+        scenario("A dry run does not modify the objects") {
+            Given("A network in the text format")
+            val network = createProtoNetwork(name = "network")
+            val path = create(network, binary = false)
+
+            When("Running the migration in dry run mode")
+            val migration = new ZoomFormatMigration(curator, modelPath,
+                                                    Seq(classOf[Network]))
+            migration.migrate(binary = true, dryRun = true) shouldBe
+                ZoomFormatMigration.Result(1, 0, 0, Seq())
+
+            Then("The network is still stored in the text format")
+            ZoomSerializer.isBinary(curator.getData.forPath(path)) shouldBe false
+        }
+
+        scenario("Objects of unknown classes are skipped") {
+            Given("A network")
+            create(createProtoNetwork(), binary = false)
+
+            When("Migrating only routers")
+            val migration = new ZoomFormatMigration(curator, modelPath,
+                                                    Seq(classOf[Router]))
+
+            Then("The networks are skipped")
+            migration.migrate(binary = true) shouldBe
+                ZoomFormatMigration.Result(0, 0, 0, Seq("Network"))
+        }
+
+        scenario("Objects that cannot be parsed are reported") {
+            Given("A network with bad data")
+            curator.create().creatingParentsIfNeeded()
+                .forPath(s"$modelPath/Network/bad", new Array[Byte](16))
+
+            When("Migrating to the binary format")
+            val migration = new ZoomFormatMigration(curator, modelPath,
+                                                    Seq(classOf[Network]))
+
+            Then("The object is reported as failed")
+            migration.migrate(binary = true) shouldBe
+                ZoomFormatMigration.Result(0, 0, 1, Seq())
+        }
+    }
+}
@@ -80,6 +80,62 @@ class ZoomSerializerTest extends FeatureSpec with Matchers with GivenWhenThen {
         message1 shouldBe message2
     }
 
+    scenario("Test Protobuf binary message serializer") {
+        Given("A message")
+        val message1 = createProtoNetwork(name = "network")
+
+        Then("Serializing the message in binary should return a byte array")
+        val data = ZoomSerializer.serialize(message1, binary = true)
+
+        And("The data should start with the binary header")
+        data(0) shouldBe ZoomSerializer.BinaryHeader
+        ZoomSerializer.isBinary(data) shouldBe true
+        data.length shouldBe message1.getSerializedSize + 1
+
+        And("Deserializing the byte array should return a message")
+        val message2 = ZoomSerializer.deserialize(data, classOf[Network])
+
+        And("The messages should be equal")
+        message1 shouldBe message2
+    }
+
+    scenario("Test Protobuf deserializer reads both formats") {
+        Given("A message serialized in both formats")
+        val message = createProtoNetwork(name = "network")
+        val text = ZoomSerializer.serialize(message)
+        val binary = ZoomSerializer.serialize(message, binary = true)
+
+        Then("The text data should not be detected as binary")
+        ZoomSerializer.isBinary(text) shouldBe false
+
+        And("Both formats should deserialize to the same message")
+        ZoomSerializer.deserialize(text, classOf[Network]) shouldBe message
+        ZoomSerializer.deserialize(binary, classOf[Network]) shouldBe message
+    }
+
+    scenario("Test Protobuf serializer handles empty messages") {
+        Given("An empty message")
+        val message = Network.getDefaultInstance
+
+        Then("The message should round trip in both formats")
+        val text = ZoomSerializer.serialize(message)
+        val binary = ZoomSerializer.serialize(message, binary = true)
+        ZoomSerializer.isBinary(text) shouldBe false
+        ZoomSerializer.isBinary(binary) shouldBe true
+        ZoomSerializer.deserialize(text, classOf[Network]) shouldBe message
+        ZoomSerializer.deserialize(binary, classOf[Network]) shouldBe message
+    }
+
+    scenario("Test Protobuf binary deserializer handles exceptions") {
+        Given("Bad binary data")
+        val data = Array[Byte](ZoomSerializer.BinaryHeader, 0x0a, 0x7f)
+
+        Then("Deserializing the data should throw an exception")
+        intercept[InternalObjectMapperException] {
+            ZoomSerializer.deserialize(data, classOf[Network])
+        }
+    }
+
     scenario("Test Protobuf message deserializer handles exceptions") {
         Given("Bad data")
         val data = new Array[Byte](16)